@@ -28,6 +28,20 @@ public class Book {
         this.description = description;
     }
 
+    public Book(Book other) {
+        this.id = other.id;
+        this.isbn = other.isbn;
+        this.title = other.title;
+        this.author = other.author;
+        this.publisher = other.publisher;
+        this.publicationYear = other.publicationYear;
+        this.category = other.category;
+        this.totalCopies = other.totalCopies;
+        this.availableCopies = other.availableCopies;
+        this.description = other.description;
+        this.createdAt = other.createdAt;
+    }
+
     // Getters and Setters
     public int getId() { return id; }
     public void setId(int id) { this.id = id; }
@@ -0,0 +1,144 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Search latency on a large catalogue. A fresh database is filled with
+ * generated books, then each query runs two ways: the LIKE scan that
+ * searchBooks used before the full-text index (every row, sorted by
+ * title), and searchBooks' first page of 20 from the index. The keystroke
+ * rows are what a search box sends while "deploy" is typed. Times are the
+ * median of several runs.
+ *
+ * Usage: java BookSearchBenchmark [books]
+ */
+public class BookSearchBenchmark {
+    private static final String[] WORDS = {
+        "java", "python", "database", "systems", "design", "patterns", "algorithms", "network", "security",
+        "cloud", "deploy", "modern", "practical", "guide", "introduction", "advanced", "history", "art",
+        "science", "data", "learning", "programming", "theory", "handbook", "complete", "essential",
+        "distributed", "compilers", "graphics", "operating", "mobile", "testing", "agile", "architecture"
+    };
+    private static final String[] SURNAMES = {
+        "Smith", "Bloch", "Martin", "Knuth", "Fowler", "Beck", "Gamma", "Liskov", "Hopper", "Ritchie", "Kernighan"
+    };
+    private static final String[] CATEGORIES = { "Programming", "Database", "Computer Science", "Fiction", "History" };
+    private static final String[] QUERIES = {
+        "java", "distributed systems", "Knuth", "compilers theory", "978-9000012345", "nonexistentword"
+    };
+    private static final int CHUNK = 100_000;
+    private static final int PAGE = 20;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int bookCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path dir = Files.createTempDirectory("library-search");
+        DatabaseManager dbManager = new DatabaseManager("jdbc:sqlite:" + dir.resolve("search.db"), 1);
+        BookService bookService = new BookService(dbManager);
+
+        System.out.println("=== Book Search Benchmark ===");
+        System.out.println("Books: " + bookCount);
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int from = 0; from < bookCount; from += CHUNK) {
+            List<Book> books = new ArrayList<>();
+            for (int i = from; i < Math.min(bookCount, from + CHUNK); i++) {
+                books.add(new Book(String.format("978-9%09d", i), words(random, 2 + random.nextInt(4)),
+                                   SURNAMES[random.nextInt(SURNAMES.length)] + " " + (char) ('A' + random.nextInt(26)),
+                                   "Publisher", 1950 + random.nextInt(75), CATEGORIES[random.nextInt(CATEGORIES.length)],
+                                   1 + random.nextInt(3), words(random, 8 + random.nextInt(12))));
+            }
+            if (!bookService.addBooks(books)) throw new IllegalStateException("addBooks failed at " + from);
+        }
+        System.out.printf("Loaded and indexed in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        System.out.println();
+
+        List<String> queries = new ArrayList<>(Arrays.asList(QUERIES));
+        for (int length = 1; length <= "deploy".length(); length++) {
+            queries.add("deploy".substring(0, length));
+        }
+
+        System.out.printf("%-22s %10s %12s %12s %10s%n", "query", "like rows", "like ms", "fts page ms", "speedup");
+        boolean ok = true;
+        for (String query : queries) {
+            long[] likeNanos = new long[RUNS];
+            long[] ftsNanos = new long[RUNS];
+            int likeRows = 0;
+            List<Book> page = null;
+            for (int run = 0; run < RUNS; run++) {
+                long t0 = System.nanoTime();
+                likeRows = likeSearch(dbManager, query);
+                long t1 = System.nanoTime();
+                page = bookService.searchBooks(query, 0, PAGE);
+                long t2 = System.nanoTime();
+                likeNanos[run] = t1 - t0;
+                ftsNanos[run] = t2 - t1;
+            }
+            ok &= page.isEmpty() || matches(page.get(0), query);
+            double like = median(likeNanos) / 1e6;
+            double fts = median(ftsNanos) / 1e6;
+            System.out.printf("%-22s %10d %12.2f %12.2f %9.0fx%n", query, likeRows, like, fts, like / fts);
+        }
+        dbManager.closeConnection();
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) System.exit(1);
+    }
+
+    /**
+     * The search as it was: a substring match over four columns, every row
+     * read, all matches returned by title.
+     */
+    private static int likeSearch(DatabaseManager dbManager, String searchTerm) throws SQLException {
+        String query = "SELECT * FROM books WHERE title LIKE ? OR author LIKE ? OR isbn LIKE ? OR category LIKE ? ORDER BY title";
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            String searchPattern = "%" + searchTerm + "%";
+            for (int i = 1; i <= 4; i++) {
+                stmt.setString(i, searchPattern);
+            }
+            int rows = 0;
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                rs.getString("title");
+                rows++;
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Whether every word of the query starts a word somewhere in the book.
+     */
+    private static boolean matches(Book book, String query) {
+        String text = String.join(" ", book.getTitle(), book.getAuthor(), book.getIsbn(), book.getCategory(),
+                                  book.getDescription()).toLowerCase(Locale.ROOT);
+        List<String> words = Arrays.asList(text.split("[^\\p{L}\\p{N}]+"));
+        for (String term : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty() && words.stream().noneMatch(word -> word.startsWith(term))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) text.append(' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
\ No newline at end of file
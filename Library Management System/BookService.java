@@ -5,6 +5,14 @@ import java.util.List;
 public class BookService {
     private DatabaseManager dbManager;
 
+    // Queries whose plans QueryPlanTest checks against the schema indexes
+    static final String BOOKS_BY_CATEGORY_QUERY = "SELECT * FROM books WHERE category = ? ORDER BY title";
+    static final String ACTIVE_LOANS_FOR_BOOK_QUERY = "SELECT COUNT(*) FROM loans WHERE book_id = ? AND status = 'ISSUED'";
+
+    // Keys of the catalogue cache
+    private static final String CATEGORIES = "categories";
+    private static final String AUTHORS = "authors";
+
     public BookService(DatabaseManager dbManager) {
         this.dbManager = dbManager;
     }
@@ -12,17 +20,11 @@ public class BookService {
     public boolean addBook(Book book) {
         String query = "INSERT INTO books (isbn, title, author, publisher, publication_year, category, total_copies, available_copies, description) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
-            stmt.setString(1, book.getIsbn());
-            stmt.setString(2, book.getTitle());
-            stmt.setString(3, book.getAuthor());
-            stmt.setString(4, book.getPublisher());
-            stmt.setInt(5, book.getPublicationYear());
-            stmt.setString(6, book.getCategory());
-            stmt.setInt(7, book.getTotalCopies());
-            stmt.setInt(8, book.getAvailableCopies());
-            stmt.setString(9, book.getDescription());
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            setBookParameters(stmt, book);
             
+            dbManager.afterWrite(dbManager.getCatalogueCache()::invalidateAll);
             return stmt.executeUpdate() > 0;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -30,10 +32,63 @@ public class BookService {
         }
     }
 
+    /**
+     * Adds all the books in one transaction, sending the inserts to the
+     * database in batches. Either every book is added or none is.
+     */
+    public boolean addBooks(List<Book> books) {
+        String query = "INSERT INTO books (isbn, title, author, publisher, publication_year, category, total_copies, available_copies, description) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        
+        try (Connection conn = dbManager.getWriteConnection()) {
+            dbManager.afterWrite(dbManager.getCatalogueCache()::invalidateAll);
+            boolean ownTransaction = conn.getAutoCommit();
+            if (ownTransaction) {
+                conn.setAutoCommit(false);
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                int pending = 0;
+                for (Book book : books) {
+                    setBookParameters(stmt, book);
+                    stmt.addBatch();
+                    if (++pending == DatabaseManager.BATCH_SIZE) {
+                        stmt.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                }
+                if (ownTransaction) {
+                    conn.commit();
+                }
+                return true;
+            } catch (SQLException e) {
+                DatabaseManager.abandonWrite(conn, ownTransaction, "addBooks", e);
+                throw e;
+            } finally {
+                if (ownTransaction) {
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * The book with its current available copies. Served from the book
+     * cache; every write to a book drops its entry.
+     */
     public Book getBookById(int id) {
+        return dbManager.getBookCache().get(id, this::loadBookById);
+    }
+
+    private Book loadBookById(int id) {
         String query = "SELECT * FROM books WHERE id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, id);
             
             ResultSet rs = stmt.executeQuery();
@@ -50,7 +105,8 @@ public class BookService {
         List<Book> books = new ArrayList<>();
         String query = "SELECT * FROM books ORDER BY title";
         
-        try (Statement stmt = dbManager.getConnection().createStatement();
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(query)) {
             
             while (rs.next()) {
@@ -63,15 +119,43 @@ public class BookService {
     }
 
     public List<Book> searchBooks(String searchTerm) {
+        return searchBooks(searchTerm, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Full-text search over title, author, ISBN, category and description,
+     * best match first: a hit in the title counts most, one in the
+     * description least, and ties go to the older book. Every word of the
+     * search term matches as the start of a word, so "eff jav" finds
+     * "Effective Java". Skips the first {@code offset} matches and returns
+     * at most {@code limit}. A term with no words lists all books by title.
+     */
+    public List<Book> searchBooks(String searchTerm, int offset, int limit) {
         List<Book> books = new ArrayList<>();
-        String query = "SELECT * FROM books WHERE title LIKE ? OR author LIKE ? OR isbn LIKE ? OR category LIKE ? ORDER BY title";
+        String match = toMatchQuery(searchTerm);
+        String query = match == null
+            ? "SELECT * FROM books ORDER BY title LIMIT ? OFFSET ?"
+            // Ranked inside the index first, so only the page is read from books
+            : """
+                SELECT b.* FROM (
+                    SELECT rowid, bm25(books_fts, 10.0, 5.0, 5.0, 2.0, 1.0) AS score
+                    FROM books_fts
+                    WHERE books_fts MATCH ?
+                    ORDER BY score, rowid
+                    LIMIT ? OFFSET ?
+                ) hits
+                JOIN books b ON b.id = hits.rowid
+                ORDER BY hits.score, hits.rowid
+            """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
-            String searchPattern = "%" + searchTerm + "%";
-            stmt.setString(1, searchPattern);
-            stmt.setString(2, searchPattern);
-            stmt.setString(3, searchPattern);
-            stmt.setString(4, searchPattern);
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            int index = 1;
+            if (match != null) {
+                stmt.setString(index++, match);
+            }
+            stmt.setInt(index++, limit);
+            stmt.setInt(index, offset);
             
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
@@ -83,11 +167,27 @@ public class BookService {
         return books;
     }
 
+    /**
+     * Turns a search term into an FTS5 query: the words as the index splits
+     * them, each quoted so that no input reads as query syntax, each a
+     * prefix, all required. Null when there are no words.
+     */
+    private String toMatchQuery(String searchTerm) {
+        if (searchTerm == null) return null;
+        StringBuilder match = new StringBuilder();
+        for (String word : searchTerm.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append('"').append(word).append("\"*");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
     public List<Book> getBooksByCategory(String category) {
         List<Book> books = new ArrayList<>();
-        String query = "SELECT * FROM books WHERE category = ? ORDER BY title";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(BOOKS_BY_CATEGORY_QUERY)) {
             stmt.setString(1, category);
             
             ResultSet rs = stmt.executeQuery();
@@ -104,7 +204,8 @@ public class BookService {
         List<Book> books = new ArrayList<>();
         String query = "SELECT * FROM books WHERE available_copies > 0 ORDER BY title";
         
-        try (Statement stmt = dbManager.getConnection().createStatement();
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(query)) {
             
             while (rs.next()) {
@@ -119,7 +220,8 @@ public class BookService {
     public boolean updateBook(Book book) {
         String query = "UPDATE books SET isbn = ?, title = ?, author = ?, publisher = ?, publication_year = ?, category = ?, total_copies = ?, available_copies = ?, description = ? WHERE id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, book.getIsbn());
             stmt.setString(2, book.getTitle());
             stmt.setString(3, book.getAuthor());
@@ -131,6 +233,7 @@ public class BookService {
             stmt.setString(9, book.getDescription());
             stmt.setInt(10, book.getId());
             
+            invalidateAfterWrite(book.getId());
             return stmt.executeUpdate() > 0;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -139,15 +242,18 @@ public class BookService {
     }
 
     public boolean deleteBook(int id) {
-        // Check if book has active loans
-        if (hasActiveLoans(id)) {
-            return false;
-        }
-        
         String query = "DELETE FROM books WHERE id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        // Held across the check, so no loan can be issued in between
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            // Check if book has active loans
+            if (hasActiveLoans(id)) {
+                return false;
+            }
+            
             stmt.setInt(1, id);
+            invalidateAfterWrite(id);
             return stmt.executeUpdate() > 0;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -158,11 +264,14 @@ public class BookService {
     public boolean updateAvailableCopies(int bookId, int change) {
         String query = "UPDATE books SET available_copies = available_copies + ? WHERE id = ? AND available_copies + ? >= 0";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, change);
             stmt.setInt(2, bookId);
             stmt.setInt(3, change);
             
+            // Only the copies change, so the catalogue lists stay
+            dbManager.afterWrite(() -> dbManager.getBookCache().invalidate(bookId));
             return stmt.executeUpdate() > 0;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -171,10 +280,17 @@ public class BookService {
     }
 
     public List<String> getAllCategories() {
+        List<String> categories = dbManager.getCatalogueCache().get(CATEGORIES, key -> loadCategories());
+        return categories != null ? categories : new ArrayList<>();
+    }
+
+    /** The categories, or null if they could not be read. */
+    private List<String> loadCategories() {
         List<String> categories = new ArrayList<>();
         String query = "SELECT DISTINCT category FROM books WHERE category IS NOT NULL ORDER BY category";
         
-        try (Statement stmt = dbManager.getConnection().createStatement();
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(query)) {
             
             while (rs.next()) {
@@ -182,15 +298,23 @@ public class BookService {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
         }
         return categories;
     }
 
     public List<String> getAllAuthors() {
+        List<String> authors = dbManager.getCatalogueCache().get(AUTHORS, key -> loadAuthors());
+        return authors != null ? authors : new ArrayList<>();
+    }
+
+    /** The authors, or null if they could not be read. */
+    private List<String> loadAuthors() {
         List<String> authors = new ArrayList<>();
         String query = "SELECT DISTINCT author FROM books ORDER BY author";
         
-        try (Statement stmt = dbManager.getConnection().createStatement();
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(query)) {
             
             while (rs.next()) {
@@ -198,14 +322,25 @@ public class BookService {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
         }
         return authors;
     }
 
+    /**
+     * Drops the book and the catalogue lists from the caches once the
+     * current write is over.
+     */
+    private void invalidateAfterWrite(int bookId) {
+        dbManager.afterWrite(() -> {
+            dbManager.getBookCache().invalidate(bookId);
+            dbManager.getCatalogueCache().invalidateAll();
+        });
+    }
+
     private boolean hasActiveLoans(int bookId) {
-        String query = "SELECT COUNT(*) FROM loans WHERE book_id = ? AND status = 'ISSUED'";
-        
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(ACTIVE_LOANS_FOR_BOOK_QUERY)) {
             stmt.setInt(1, bookId);
             
             ResultSet rs = stmt.executeQuery();
@@ -216,6 +351,18 @@ public class BookService {
         }
     }
 
+    private void setBookParameters(PreparedStatement stmt, Book book) throws SQLException {
+        stmt.setString(1, book.getIsbn());
+        stmt.setString(2, book.getTitle());
+        stmt.setString(3, book.getAuthor());
+        stmt.setString(4, book.getPublisher());
+        stmt.setInt(5, book.getPublicationYear());
+        stmt.setString(6, book.getCategory());
+        stmt.setInt(7, book.getTotalCopies());
+        stmt.setInt(8, book.getAvailableCopies());
+        stmt.setString(9, book.getDescription());
+    }
+
     private Book mapResultSetToBook(ResultSet rs) throws SQLException {
         Book book = new Book();
         book.setId(rs.getInt("id"));
@@ -1,6 +1,8 @@
 import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class BookServiceTest {
     private DatabaseManager dbManager;
@@ -166,6 +168,65 @@ public class BookServiceTest {
         assertFalse(mixedCase.isEmpty());
     }
 
+    // Full-Text Search Tests (5 test cases)
+    @Test
+    void testSearchBooksByWordPrefix() {
+        Book book = new Book(null, "Zyxwquartz Handbook", "Prefix Author", "Publisher", 2023, "Category", 1, "Description");
+        assertTrue(bookService.addBook(book));
+        
+        List<Book> books = bookService.searchBooks("zyxwq hand");
+        assertFalse(books.isEmpty());
+        assertEquals("Zyxwquartz Handbook", books.get(0).getTitle());
+    }
+
+    @Test
+    void testSearchRanksTitleMatchesFirst() {
+        Book inDescription = new Book(null, "Ranking Other", "Author", "Publisher", 2023, "Category", 1, "All about plorbnik");
+        Book inTitle = new Book(null, "Plorbnik Basics", "Author", "Publisher", 2023, "Category", 1, "Description");
+        assertTrue(bookService.addBook(inDescription));
+        assertTrue(bookService.addBook(inTitle));
+        
+        List<Book> books = bookService.searchBooks("plorbnik");
+        assertTrue(books.size() >= 2);
+        assertEquals("Plorbnik Basics", books.get(0).getTitle());
+    }
+
+    @Test
+    void testSearchBooksPagination() {
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(bookService.addBook(new Book(null, "Quillfeather Volume " + i, "Author", "Publisher", 2023, "Category", 1, "Description")));
+        }
+        
+        List<Book> all = bookService.searchBooks("quillfeather");
+        List<Book> paged = new ArrayList<>();
+        for (int offset = 0; offset < all.size(); offset += 2) {
+            List<Book> page = bookService.searchBooks("quillfeather", offset, 2);
+            assertTrue(page.size() <= 2);
+            paged.addAll(page);
+        }
+        assertEquals(all.stream().map(Book::getId).collect(Collectors.toList()), paged.stream().map(Book::getId).collect(Collectors.toList()));
+        assertTrue(bookService.searchBooks("quillfeather", all.size(), 2).isEmpty());
+    }
+
+    @Test
+    void testSearchFollowsUpdatedTitle() {
+        assertTrue(bookService.addBook(new Book(null, "Snarfblat Original", "Author", "Publisher", 2023, "Category", 1, "Description")));
+        Book book = bookService.searchBooks("Snarfblat Original").get(0);
+        
+        book.setTitle("Snarfblat Revised");
+        assertTrue(bookService.updateBook(book));
+        
+        assertTrue(bookService.searchBooks("Snarfblat Revised").stream().anyMatch(b -> b.getId() == book.getId()));
+        assertTrue(bookService.searchBooks("Snarfblat Original").stream().noneMatch(b -> b.getId() == book.getId()));
+    }
+
+    @Test
+    void testSearchIgnoresQuerySyntax() {
+        assertNotNull(bookService.searchBooks("\"Java\" OR NOT (*"));
+        assertFalse(bookService.searchBooks("Java*").isEmpty());
+        assertEquals(bookService.getAllBooks().size(), bookService.searchBooks("  -- ").size());
+    }
+
     // Update Book Tests (5 test cases)
     @Test
     void testUpdateBook() {
@@ -361,4 +422,30 @@ public class BookServiceTest {
         List<String> categoriesAfter = bookService.getAllCategories();
         assertFalse(categoriesAfter.contains("UniqueTestCategory"));
     }
+
+    // Batch Add Tests (3 test cases)
+    @Test
+    void testAddBooksInBatch() {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            books.add(new Book(String.format("979-%010d", i), "Batch Book " + i, "Batch Author",
+                               "Publisher", 2023, "BatchCategory", 1, "Description"));
+        }
+        assertTrue(bookService.addBooks(books));
+        assertEquals(2500, bookService.getBooksByCategory("BatchCategory").size());
+    }
+
+    @Test
+    void testAddBooksWithDuplicateISBNAddsNone() {
+        List<Book> books = List.of(
+            new Book("978-1212121212", "Batch Duplicate One", "Author", "Publisher", 2023, "Category", 1, "Description"),
+            new Book("978-1212121212", "Batch Duplicate Two", "Author", "Publisher", 2023, "Category", 1, "Description"));
+        assertFalse(bookService.addBooks(books));
+        assertTrue(bookService.searchBooks("Batch Duplicate").isEmpty());
+    }
+
+    @Test
+    void testAddBooksEmptyList() {
+        assertTrue(bookService.addBooks(List.of()));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Loading a large catalogue and loan history into a fresh database file.
+ * First a sample of books goes in one addBook call at a time, with the
+ * statement cache on and off, as the row-at-a-time baseline. Then the whole
+ * catalogue is loaded with addBooks, users with registerUsers and the loan
+ * history with importLoans, each in chunks of one transaction. Last come
+ * random getBookById lookups with and without the statement cache. The
+ * counts and the issued copies must add up afterwards.
+ *
+ * Usage: java BulkLoadBenchmark [books] [loans] [users]
+ */
+public class BulkLoadBenchmark {
+    private static final int CHUNK = 100_000;
+    private static final int SINGLE_ROW_SAMPLE = 20_000;
+    private static final int LOOKUPS = 100_000;
+    private static final int COPIES = 20;
+    private static final String[] CATEGORIES = { "Programming", "Database", "Computer Science", "Fiction", "History" };
+
+    public static void main(String[] args) throws Exception {
+        int bookCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int loanCount = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+        int userCount = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        Path dir = Files.createTempDirectory("library-bulk");
+        String url = "jdbc:sqlite:" + dir.resolve("bulk.db");
+
+        System.out.println("=== Bulk Load Benchmark ===");
+        System.out.println("Books: " + bookCount + ", loans: " + loanCount + ", users: " + userCount);
+        System.out.println();
+
+        for (int cacheSize : new int[] { 0, ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE }) {
+            Path sampleDir = Files.createTempDirectory("library-single");
+            DatabaseManager sampleDb = new DatabaseManager("jdbc:sqlite:" + sampleDir.resolve("single.db"), 1, cacheSize);
+            BookService sampleBooks = new BookService(sampleDb);
+            long start = System.nanoTime();
+            for (int i = 0; i < SINGLE_ROW_SAMPLE; i++) {
+                sampleBooks.addBook(book(i));
+            }
+            report("addBook, cache " + (cacheSize > 0 ? "on" : "off"), SINGLE_ROW_SAMPLE, System.nanoTime() - start);
+            sampleDb.closeConnection();
+        }
+
+        DatabaseManager dbManager = new DatabaseManager(url, ConnectionPool.DEFAULT_READERS);
+        BookService bookService = new BookService(dbManager);
+        UserService userService = new UserService(dbManager);
+        LoanService loanService = new LoanService(dbManager, bookService);
+        int firstBookId = maxId(dbManager, "books") + 1;
+        int firstUserId = maxId(dbManager, "users") + 1;
+
+        long start = System.nanoTime();
+        for (int from = 0; from < bookCount; from += CHUNK) {
+            List<Book> books = new ArrayList<>();
+            for (int i = from; i < Math.min(bookCount, from + CHUNK); i++) {
+                books.add(book(i));
+            }
+            if (!bookService.addBooks(books)) throw new IllegalStateException("addBooks failed at " + from);
+        }
+        report("addBooks", bookCount, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            users.add(new User("bulk_user" + i, "password", "bulk" + i + "@bench.com", "Bulk User " + i));
+        }
+        if (!userService.registerUsers(users)) throw new IllegalStateException("registerUsers failed");
+        report("registerUsers", userCount, System.nanoTime() - start);
+
+        // One loan in ten is still out; spread over the catalogue that is about one copy per book
+        Random random = new Random(42);
+        LocalDateTime base = LocalDateTime.of(2020, 1, 1, 9, 0);
+        long issued = 0;
+        start = System.nanoTime();
+        for (int from = 0; from < loanCount; from += CHUNK) {
+            List<Loan> loans = new ArrayList<>();
+            for (int i = from; i < Math.min(loanCount, from + CHUNK); i++) {
+                Loan loan = new Loan();
+                loan.setUserId(firstUserId + random.nextInt(userCount));
+                loan.setBookId(firstBookId + random.nextInt(bookCount));
+                loan.setIssueDate(base.plusMinutes(i));
+                loan.setDueDate(base.plusMinutes(i).plusDays(14));
+                if (random.nextInt(10) == 0) {
+                    loan.setStatus("ISSUED");
+                    issued++;
+                } else {
+                    loan.setStatus("RETURNED");
+                    loan.setReturnDate(base.plusMinutes(i).plusDays(random.nextInt(20)));
+                }
+                loans.add(loan);
+            }
+            if (!loanService.importLoans(loans)) throw new IllegalStateException("importLoans failed at " + from);
+        }
+        report("importLoans", loanCount, System.nanoTime() - start);
+
+        boolean ok = count(dbManager, "SELECT COUNT(*) FROM books WHERE id >= " + firstBookId) == bookCount
+                && count(dbManager, "SELECT COUNT(*) FROM loans") == loanCount
+                && count(dbManager, "SELECT SUM(total_copies - available_copies) FROM books") == issued;
+        dbManager.closeConnection();
+
+        System.out.println();
+        for (int cacheSize : new int[] { 0, ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE }) {
+            // Lookup cache off, so every lookup prepares and runs its query
+            DatabaseManager lookupDb = new DatabaseManager(url, 1, cacheSize, 0);
+            BookService lookups = new BookService(lookupDb);
+            random = new Random(7);
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                ok &= lookups.getBookById(firstBookId + random.nextInt(bookCount)) != null;
+            }
+            report("getBookById, cache " + (cacheSize > 0 ? "on" : "off"), LOOKUPS, System.nanoTime() - start);
+            lookupDb.closeConnection();
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) System.exit(1);
+    }
+
+    private static Book book(int i) {
+        return new Book(String.format("979-%010d", i), "Bulk Title " + i, "Author " + (i % 50_000),
+                        "Publisher " + (i % 500), 1950 + i % 75, CATEGORIES[i % CATEGORIES.length], COPIES,
+                        "Generated catalogue entry " + i);
+    }
+
+    private static void report(String label, long rows, long nanos) {
+        System.out.printf("%-24s %10d rows %10.2f s %12.0f rows/s %10.1f us/row%n", label, rows, nanos / 1e9,
+                          rows / (nanos / 1e9), nanos / 1e3 / rows);
+    }
+
+    private static int maxId(DatabaseManager dbManager, String table) throws SQLException {
+        return (int) count(dbManager, "SELECT COALESCE(MAX(id), 0) FROM " + table);
+    }
+
+    private static long count(DatabaseManager dbManager, String query) throws SQLException {
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+    }
+}
\ No newline at end of file
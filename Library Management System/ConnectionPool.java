@@ -0,0 +1,259 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLite connections for many concurrent users. The database runs in WAL
+ * mode, so readers never block the writer or each other. One connection
+ * takes every write and is held by one thread at a time; a fixed pool of
+ * query-only connections serves reads.
+ *
+ * The connections handed out are wrappers whose close() gives the
+ * connection back, so callers open them in try-with-resources. The write
+ * connection is reentrant: a thread that already holds it gets it again,
+ * so a service call made inside another service's transaction joins it,
+ * and reads on that thread go to it too and see the transaction's own
+ * changes. A service only commits a transaction it began; if it fails
+ * inside one it joined, it throws IllegalStateException and leaves the
+ * rollback to the caller. The URL must name a database file; each connection to
+ * ":memory:" would get a database of its own.
+ *
+ * Each connection keeps a StatementCache, and prepareStatement(sql) on a
+ * borrowed connection is served from it.
+ *
+ * afterWrite() holds work that must wait for a write to be over, such as
+ * dropping cached rows it changed, until the write connection is given
+ * back.
+ */
+public class ConnectionPool {
+    public static final int DEFAULT_READERS = 4;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+
+    private final Connection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<Connection> readers;
+    private final List<Connection> allConnections = new ArrayList<>();
+    private final Map<Connection, StatementCache> statementCaches = new IdentityHashMap<>();
+    private final int statementCacheSize;
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    // Only touched by the thread holding writeLock
+    private final List<Runnable> pendingAfterWrite = new ArrayList<>();
+
+    public ConnectionPool(String url, int readerCount) throws SQLException {
+        this(url, readerCount, DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * @param statementCacheSize statements cached per connection; 0 prepares
+     *                           every statement afresh
+     */
+    public ConnectionPool(String url, int readerCount, int statementCacheSize) throws SQLException {
+        this.statementCacheSize = statementCacheSize;
+        writer = open(url);
+        try (Statement stmt = writer.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            // Safe with WAL: a crash can lose the last commits but never corrupt the file
+            stmt.execute("PRAGMA synchronous = NORMAL");
+        }
+
+        readers = new ArrayBlockingQueue<>(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            Connection reader = open(url);
+            try (Statement stmt = reader.createStatement()) {
+                stmt.execute("PRAGMA query_only = ON");
+            }
+            readers.add(reader);
+        }
+    }
+
+    private Connection open(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        allConnections.add(connection);
+        if (statementCacheSize > 0) {
+            statementCaches.put(connection, new StatementCache(connection, statementCacheSize,
+                                                               statementCacheHits, statementCacheMisses));
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+        }
+        return connection;
+    }
+
+    /**
+     * Borrows a connection for queries. On a thread holding the write
+     * connection this is the write connection.
+     */
+    public Connection getReadConnection() throws SQLException {
+        if (writeLock.isHeldByCurrentThread()) {
+            return getWriteConnection();
+        }
+        Connection reader;
+        try {
+            reader = readers.poll(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read connection");
+        }
+        if (reader == null) {
+            throw new SQLException("Timed out waiting for a read connection");
+        }
+        return wrap(reader, () -> release(reader, () -> readers.add(reader)));
+    }
+
+    /**
+     * Takes the write connection, waiting while another thread has it. A
+     * transaction begun on it stays private to this thread until the
+     * outermost holder closes it; one still open then is rolled back.
+     */
+    public Connection getWriteConnection() throws SQLException {
+        try {
+            if (!writeLock.tryLock(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLException("Timed out waiting for the write connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for the write connection");
+        }
+        return wrap(writer, () -> {
+            if (writeLock.getHoldCount() == 1) {
+                release(writer, () -> {
+                    try {
+                        runAfterWrite();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                });
+            } else {
+                writeLock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code action} once the current thread gives the write connection
+     * back, after its transaction has been committed or rolled back, and
+     * before another thread can take it. On a thread not holding the write
+     * connection it runs straight away.
+     */
+    public void afterWrite(Runnable action) {
+        if (writeLock.isHeldByCurrentThread()) {
+            pendingAfterWrite.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Whether the current thread holds the write connection with afterWrite()
+     * actions still waiting, that is, has changes other threads may not see
+     * yet.
+     */
+    public boolean hasPendingWrites() {
+        return writeLock.isHeldByCurrentThread() && !pendingAfterWrite.isEmpty();
+    }
+
+    private void runAfterWrite() {
+        List<Runnable> actions = new ArrayList<>(pendingAfterWrite);
+        pendingAfterWrite.clear();
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Rolls back anything a borrower left uncommitted, then hands the
+     * connection back.
+     */
+    private void release(Connection connection, Runnable giveBack) {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            giveBack.run();
+        }
+    }
+
+    /**
+     * A view of {@code connection} whose close() runs {@code onClose} once
+     * instead of closing it.
+     */
+    private Connection wrap(Connection connection, Runnable onClose) {
+        StatementCache cache = statementCaches.get(connection);
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!closed) {
+                            closed = true;
+                            onClose.run();
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed || connection.isClosed();
+                    default:
+                        if (closed) {
+                            throw new SQLException("Connection has been returned to the pool");
+                        }
+                        if (cache != null && method.getName().equals("prepareStatement") && args.length == 1) {
+                            return cache.prepare((String) args[0]);
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                   new Class<?>[] { Connection.class }, handler);
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    public void close() {
+        for (StatementCache cache : statementCaches.values()) {
+            cache.close();
+        }
+        for (Connection connection : allConnections) {
+            try {
+                if (!connection.isClosed()) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
\ No newline at end of file
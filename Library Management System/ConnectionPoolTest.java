@@ -0,0 +1,275 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConnectionPoolTest {
+    @TempDir
+    Path tempDir;
+
+    private DatabaseManager dbManager;
+    private BookService bookService;
+    private UserService userService;
+    private LoanService loanService;
+
+    @BeforeEach
+    void setUp() {
+        // A database of its own, so concurrent loans start from known copies
+        dbManager = new DatabaseManager("jdbc:sqlite:" + tempDir.resolve("pool-test.db"), 4);
+        bookService = new BookService(dbManager);
+        userService = new UserService(dbManager);
+        loanService = new LoanService(dbManager, bookService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        dbManager.closeConnection();
+    }
+
+    private Book addBook(String isbn, int copies) {
+        Book book = new Book(isbn, "Pool Book " + isbn, "Pool Author", "Publisher", 2023, "Testing", copies, "Desc");
+        assertTrue(bookService.addBook(book));
+        return bookService.searchBooks(isbn).get(0);
+    }
+
+    private List<Integer> addUsers(int count) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String username = "pool_user" + i;
+            assertTrue(userService.registerUser(new User(username, "password", username + "@test.com", "Pool User " + i)));
+            ids.add(userService.authenticate(username, "password").getId());
+        }
+        return ids;
+    }
+
+    // Connection Tests (7 test cases)
+    @Test
+    void testReadConnectionRejectsWrites() throws SQLException {
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement()) {
+            assertThrows(SQLException.class, () -> stmt.executeUpdate("UPDATE books SET available_copies = 0"));
+        }
+    }
+
+    @Test
+    void testClosedConnectionCannotBeUsed() throws SQLException {
+        Connection conn = dbManager.getReadConnection();
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertThrows(SQLException.class, conn::createStatement);
+    }
+
+    @Test
+    void testReadsInsideTransactionSeeItsChanges() throws SQLException {
+        try (Connection conn = dbManager.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            // addBook takes the write connection again and joins the transaction
+            assertTrue(bookService.addBook(new Book("978-7000000001", "Uncommitted Book", "Author",
+                                                    "Publisher", 2023, "Testing", 1, "Desc")));
+            assertEquals(1, bookService.searchBooks("Uncommitted Book").size());
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+        assertTrue(bookService.searchBooks("Uncommitted Book").isEmpty());
+    }
+
+    @Test
+    void testUncommittedWorkRolledBackOnClose() throws SQLException {
+        try (Connection conn = dbManager.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            assertTrue(bookService.addBook(new Book("978-7000000002", "Abandoned Book", "Author",
+                                                    "Publisher", 2023, "Testing", 1, "Desc")));
+        }
+        assertTrue(bookService.searchBooks("Abandoned Book").isEmpty());
+
+        try (Connection conn = dbManager.getWriteConnection()) {
+            assertTrue(conn.getAutoCommit());
+        }
+    }
+
+    @Test
+    void testIssueJoinsOpenTransaction() throws SQLException {
+        Book book = addBook("978-7000000003", 1);
+        int userId = addUsers(1).get(0);
+        try (Connection conn = dbManager.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            assertTrue(loanService.issueBook(userId, book.getId(), 14));
+            // issueBook left the transaction open, so the rollback undoes the loan
+            assertFalse(conn.getAutoCommit());
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+        assertTrue(loanService.getUserLoans(userId).isEmpty());
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+    }
+
+    @Test
+    void testFailureInsideOpenTransactionThrows() throws SQLException {
+        List<User> users = List.of(new User("pool_dup", "password", "dup1@test.com", "Dup One"),
+                                   new User("pool_dup", "password", "dup2@test.com", "Dup Two"));
+        try (Connection conn = dbManager.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            // The rollback belongs to the caller, so the failure is not just a false
+            assertThrows(IllegalStateException.class, () -> userService.registerUsers(users));
+            assertFalse(conn.getAutoCommit());
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+        assertNull(userService.authenticate("pool_dup", "password"));
+    }
+
+    @Test
+    void testWriteConnectionHeldByOneThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Connection conn = dbManager.getWriteConnection();
+            Future<Boolean> other = executor.submit(() -> {
+                try (Connection second = dbManager.getWriteConnection()) {
+                    return second != null;
+                }
+            });
+            try {
+                assertThrows(TimeoutException.class, () -> other.get(200, TimeUnit.MILLISECONDS));
+            } finally {
+                conn.close();
+            }
+            assertTrue(other.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Statement Cache Tests (3 test cases)
+    @Test
+    void testRepeatedQueryUsesCachedStatement() {
+        ConnectionPool pool = dbManager.getConnectionPool();
+        // Once on each of the 4 read connections
+        for (int i = 0; i < 4; i++) {
+            assertFalse(bookService.getBooksByCategory("Programming").isEmpty());
+        }
+        long misses = pool.getStatementCacheMisses();
+        long hits = pool.getStatementCacheHits();
+        for (int i = 0; i < 10; i++) {
+            assertFalse(bookService.getBooksByCategory("Programming").isEmpty());
+        }
+        assertEquals(misses, pool.getStatementCacheMisses());
+        assertEquals(hits + 10, pool.getStatementCacheHits());
+    }
+
+    @Test
+    void testSameStatementPreparedTwiceWhileOpen() throws SQLException {
+        String query = "SELECT COUNT(*) FROM books WHERE id > ?";
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement outer = conn.prepareStatement(query);
+             PreparedStatement inner = conn.prepareStatement(query)) {
+            outer.setInt(1, 0);
+            inner.setInt(1, 1000);
+            ResultSet outerRs = outer.executeQuery();
+            ResultSet innerRs = inner.executeQuery();
+            assertTrue(outerRs.next());
+            assertTrue(innerRs.next());
+            assertTrue(outerRs.getInt(1) > 0);
+            assertEquals(0, innerRs.getInt(1));
+        }
+    }
+
+    @Test
+    void testStatementCacheDisabled() {
+        dbManager.closeConnection();
+        dbManager = new DatabaseManager("jdbc:sqlite:" + tempDir.resolve("pool-test.db"), 1, 0);
+        bookService = new BookService(dbManager);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(bookService.getBookById(1));
+        }
+        assertEquals(0, dbManager.getConnectionPool().getStatementCacheHits());
+    }
+
+    // Concurrent Loan Tests (3 test cases)
+    @Test
+    void testConcurrentIssueNeverOverbooks() throws Exception {
+        Book book = addBook("978-7000000003", 3);
+        List<Integer> users = addUsers(12);
+
+        ExecutorService executor = Executors.newFixedThreadPool(users.size());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int userId : users) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return loanService.issueBook(userId, book.getId(), 14);
+            }));
+        }
+        start.countDown();
+
+        int issued = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get(30, TimeUnit.SECONDS)) issued++;
+        }
+        executor.shutdown();
+
+        assertEquals(3, issued);
+        assertEquals(0, bookService.getBookById(book.getId()).getAvailableCopies());
+        assertEquals(3, loanService.getActiveLoans().size());
+    }
+
+    @Test
+    void testConcurrentIssueAndReturnKeepsCopies() throws Exception {
+        Book book = addBook("978-7000000004", 2);
+        List<Integer> users = addUsers(8);
+
+        ExecutorService executor = Executors.newFixedThreadPool(users.size());
+        AtomicInteger returned = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+        for (int userId : users) {
+            results.add(executor.submit(() -> {
+                for (int round = 0; round < 20; round++) {
+                    if (loanService.issueBook(userId, book.getId(), 14)) {
+                        for (Loan loan : loanService.getUserLoans(userId)) {
+                            if ("ISSUED".equals(loan.getStatus()) && loanService.returnBook(loan.getId())) {
+                                returned.incrementAndGet();
+                            }
+                        }
+                    }
+                    Book current = bookService.getBookById(book.getId());
+                    assertTrue(current.getAvailableCopies() >= 0);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertTrue(returned.get() > 0);
+        assertEquals(2, bookService.getBookById(book.getId()).getAvailableCopies());
+        assertTrue(loanService.getActiveLoans().isEmpty());
+    }
+
+    @Test
+    void testReturnOnlyCountsOnce() throws Exception {
+        Book book = addBook("978-7000000005", 1);
+        int userId = addUsers(1).get(0);
+        assertTrue(loanService.issueBook(userId, book.getId(), 14));
+        int loanId = loanService.getUserLoans(userId).get(0).getId();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> loanService.returnBook(loanId)));
+        }
+        int successes = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get(30, TimeUnit.SECONDS)) successes++;
+        }
+        executor.shutdown();
+
+        assertEquals(1, successes);
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+    }
+}
\ No newline at end of file
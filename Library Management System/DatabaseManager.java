@@ -1,25 +1,132 @@
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DatabaseManager {
     private static final String DB_URL = "jdbc:sqlite:database/library.db";
-    private Connection connection;
+    /** Rows sent to the database per executeBatch() in the bulk writes. */
+    public static final int BATCH_SIZE = 1000;
+    /** Books, users and catalogue lists kept by each lookup cache. */
+    public static final int DEFAULT_LOOKUP_CACHE_SIZE = 10_000;
+    // A bound on staleness should a write ever skip its invalidation
+    private static final long LOOKUP_CACHE_TTL_MILLIS = 60_000;
+
+    /**
+     * Schema changes made after the tables in createTables, oldest first;
+     * see migrate(). Only ever append: a step that has shipped has already
+     * run on existing databases, and editing it would not run it again.
+     */
+    private static final String[][] MIGRATIONS = {
+        // 1: full-text index over the searchable book columns for
+        // BookService.searchBooks. An FTS5 table over the books table's own
+        // content, kept in step by triggers, so it stores only the index.
+        // The update trigger fires only for the indexed columns, so issuing
+        // and returning books never touch it. Prefix indexes for two- and
+        // three-letter prefixes, typed while searching.
+        {
+            """
+            CREATE VIRTUAL TABLE IF NOT EXISTS books_fts USING fts5(
+                title, author, isbn, category, description,
+                content = 'books', content_rowid = 'id', prefix = '2 3'
+            )
+            """,
+            
+            """
+            CREATE TRIGGER IF NOT EXISTS books_fts_insert AFTER INSERT ON books BEGIN
+                INSERT INTO books_fts (rowid, title, author, isbn, category, description)
+                VALUES (new.id, new.title, new.author, new.isbn, new.category, new.description);
+            END
+            """,
+            
+            """
+            CREATE TRIGGER IF NOT EXISTS books_fts_delete AFTER DELETE ON books BEGIN
+                INSERT INTO books_fts (books_fts, rowid, title, author, isbn, category, description)
+                VALUES ('delete', old.id, old.title, old.author, old.isbn, old.category, old.description);
+            END
+            """,
+            
+            """
+            CREATE TRIGGER IF NOT EXISTS books_fts_update
+            AFTER UPDATE OF title, author, isbn, category, description ON books BEGIN
+                INSERT INTO books_fts (books_fts, rowid, title, author, isbn, category, description)
+                VALUES ('delete', old.id, old.title, old.author, old.isbn, old.category, old.description);
+                INSERT INTO books_fts (rowid, title, author, isbn, category, description)
+                VALUES (new.id, new.title, new.author, new.isbn, new.category, new.description);
+            END
+            """,
+            
+            // Index the books already there
+            "INSERT INTO books_fts (books_fts) VALUES ('rebuild')"
+        },
+        
+        // 2: secondary indexes for the loan, catalogue and rating lookups;
+        // QueryPlanTest checks that the queries use them. The partial ones
+        // hold only the ISSUED loans, a small share of all loans, and serve
+        // queries that say status = 'ISSUED' literally.
+        {
+            // getUserLoans in issue date order, fines, reading history
+            "CREATE INDEX IF NOT EXISTS idx_loans_user ON loans (user_id, issue_date)",
+            // Active loans of a book, and loan counts per book
+            "CREATE INDEX IF NOT EXISTS idx_loans_book ON loans (book_id, status)",
+            // getActiveLoans and getOverdueLoans in due date order
+            "CREATE INDEX IF NOT EXISTS idx_loans_issued_due ON loans (status, due_date) WHERE status = 'ISSUED'",
+            // A user's active loans, of one book or all
+            "CREATE INDEX IF NOT EXISTS idx_loans_issued_user ON loans (user_id, book_id) WHERE status = 'ISSUED'",
+            "CREATE INDEX IF NOT EXISTS idx_book_ratings_book ON book_ratings (book_id, rating)",
+            "CREATE INDEX IF NOT EXISTS idx_user_preferences_user ON user_preferences (user_id)",
+            "CREATE INDEX IF NOT EXISTS idx_books_category ON books (category, title)",
+            "CREATE INDEX IF NOT EXISTS idx_books_author ON books (author)",
+            "CREATE INDEX IF NOT EXISTS idx_books_title ON books (title)"
+        }
+    };
+
+    /** The user_version of a database with every migration applied. */
+    public static final int SCHEMA_VERSION = MIGRATIONS.length;
+
+    private ConnectionPool pool;
+    private final LookupCache<Integer, Book> bookCache;
+    private final LookupCache<Integer, User> userCache;
+    private final LookupCache<String, List<String>> catalogueCache;
 
     public DatabaseManager() {
-        initializeDatabase();
+        this(DB_URL, ConnectionPool.DEFAULT_READERS);
+    }
+
+    public DatabaseManager(String url, int readers) {
+        this(url, readers, ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    public DatabaseManager(String url, int readers, int statementCacheSize) {
+        this(url, readers, statementCacheSize, DEFAULT_LOOKUP_CACHE_SIZE);
+    }
+
+    /**
+     * @param lookupCacheSize entries kept by each lookup cache; 0 sends every
+     *                        lookup to the database
+     */
+    public DatabaseManager(String url, int readers, int statementCacheSize, int lookupCacheSize) {
+        initializeDatabase(url, readers, statementCacheSize);
+        bookCache = new LookupCache<>(lookupCacheSize, LOOKUP_CACHE_TTL_MILLIS, Book::new, this::hasPendingWrites);
+        userCache = new LookupCache<>(lookupCacheSize, LOOKUP_CACHE_TTL_MILLIS, User::new, this::hasPendingWrites);
+        catalogueCache = new LookupCache<>(lookupCacheSize, LOOKUP_CACHE_TTL_MILLIS, ArrayList::new,
+                                           this::hasPendingWrites);
     }
 
-    private void initializeDatabase() {
+    private void initializeDatabase(String url, int readers, int statementCacheSize) {
         try {
-            connection = DriverManager.getConnection(DB_URL);
-            createTables();
-            insertSampleData();
+            pool = new ConnectionPool(url, readers, statementCacheSize);
+            try (Connection connection = pool.getWriteConnection()) {
+                createTables(connection);
+                migrate(connection);
+                insertSampleData(connection);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    private void createTables() throws SQLException {
+    private void createTables(Connection connection) throws SQLException {
         String[] createTableQueries = {
             // Users table
             """
@@ -102,7 +209,47 @@ public class DatabaseManager {
         }
     }
 
-    private void insertSampleData() throws SQLException {
+    /**
+     * Applies the MIGRATIONS this database has not had yet. PRAGMA
+     * user_version counts the ones applied; each runs once, in its own
+     * transaction together with the version bump.
+     */
+    private void migrate(Connection connection) throws SQLException {
+        int version = readSchemaVersion(connection);
+        for (int i = version; i < MIGRATIONS.length; i++) {
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                for (String query : MIGRATIONS[i]) {
+                    stmt.execute(query);
+                }
+                stmt.execute("PRAGMA user_version = " + (i + 1));
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private int readSchemaVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    public int getSchemaVersion() {
+        try (Connection connection = getReadConnection()) {
+            return readSchemaVersion(connection);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private void insertSampleData(Connection connection) throws SQLException {
         // Check if data already exists
         String checkQuery = "SELECT COUNT(*) FROM users";
         try (Statement stmt = connection.createStatement();
@@ -130,30 +277,89 @@ public class DatabaseManager {
             "INSERT INTO books (isbn, title, author, publisher, publication_year, category, total_copies, available_copies, description) VALUES ('978-0201616224', 'The Pragmatic Programmer', 'Andrew Hunt', 'Addison-Wesley', 1999, 'Programming', 3, 3, 'From journeyman to master')"
         };
 
-        for (String insert : userInserts) {
-            try (Statement stmt = connection.createStatement()) {
-                stmt.execute(insert);
+        // One batch in one transaction instead of a commit per row
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            for (String insert : userInserts) {
+                stmt.addBatch(insert);
             }
+            for (String insert : bookInserts) {
+                stmt.addBatch(insert);
+            }
+            stmt.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
         }
+    }
 
-        for (String insert : bookInserts) {
-            try (Statement stmt = connection.createStatement()) {
-                stmt.execute(insert);
-            }
+    /**
+     * Borrows a connection for queries; close it to give it back. Inside a
+     * transaction this is the transaction's connection.
+     */
+    public Connection getReadConnection() throws SQLException {
+        return pool.getReadConnection();
+    }
+
+    /**
+     * Takes the single write connection; close it to give it back. Other
+     * threads wait until then, so a transaction on it is never shared.
+     */
+    public Connection getWriteConnection() throws SQLException {
+        return pool.getWriteConnection();
+    }
+
+    /**
+     * Runs {@code action} once the current thread's write is over, committed
+     * or rolled back; straight away outside a write. Writers drop the cache
+     * entries they change this way, so no other thread can load the old row
+     * back into the cache after the entry is gone.
+     */
+    public void afterWrite(Runnable action) {
+        pool.afterWrite(action);
+    }
+
+    /**
+     * Gives up a service's failed write. A transaction the service began
+     * itself is rolled back; one the caller had already opened is the
+     * caller's to roll back, so the failure is thrown to it instead.
+     */
+    static void abandonWrite(Connection conn, boolean ownTransaction, String what, SQLException cause) throws SQLException {
+        if (!ownTransaction) {
+            throw new IllegalStateException(what + " failed inside the caller's transaction", cause);
         }
+        conn.rollback();
+    }
+
+    private boolean hasPendingWrites() {
+        return pool != null && pool.hasPendingWrites();
+    }
+
+    /** Books by id, for BookService.getBookById. */
+    public LookupCache<Integer, Book> getBookCache() {
+        return bookCache;
     }
 
-    public Connection getConnection() {
-        return connection;
+    /** Users by id, for UserService.getUserById. */
+    public LookupCache<Integer, User> getUserCache() {
+        return userCache;
+    }
+
+    /** The category and author lists of the catalogue, by name. */
+    public LookupCache<String, List<String>> getCatalogueCache() {
+        return catalogueCache;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return pool;
     }
 
     public void closeConnection() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (pool != null) {
+            pool.close();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Many library users at once. Each simulated user browses the catalogue,
+ * borrows an available book and returns an earlier one, over and over, on
+ * its own thread against a fresh database file. The run is repeated with one
+ * read connection and with the full read pool, to show what the pool buys
+ * while the single writer is busy. Afterwards every book must account for
+ * its copies: available plus issued equals total, and never below zero.
+ *
+ * Usage: java LoanConcurrencyBenchmark [users] [rounds] [readers]
+ */
+public class LoanConcurrencyBenchmark {
+    private static final int BOOKS = 20;
+    private static final int COPIES = 3;
+    private static final String[] SEARCHES = { "Java", "Algorithms", "Book", "Author 7", "Design" };
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : ConnectionPool.DEFAULT_READERS;
+
+        System.out.println("=== Loan Concurrency Benchmark ===");
+        System.out.println("Users: " + users + ", rounds per user: " + rounds);
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %10s %12s %12s %12s %12s %8s%n", "readers", "seconds", "ops/s",
+                          "loans", "browse p50", "browse p99", "loan p50", "loan p99", "check");
+
+        boolean ok = true;
+        for (int readerCount : readers > 1 ? new int[] { 1, readers } : new int[] { readers }) {
+            ok &= run(users, rounds, readerCount);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean run(int userCount, int rounds, int readers) throws Exception {
+        Path dir = Files.createTempDirectory("library-bench");
+        DatabaseManager dbManager = new DatabaseManager("jdbc:sqlite:" + dir.resolve("bench.db"), readers);
+        BookService bookService = new BookService(dbManager);
+        UserService userService = new UserService(dbManager);
+        LoanService loanService = new LoanService(dbManager, bookService);
+
+        for (int i = 0; i < BOOKS; i++) {
+            bookService.addBook(new Book("978-9" + String.format("%09d", i), "Bench Book " + i, "Author " + i,
+                                         "Publisher", 2020, "Benchmark", COPIES, "Benchmark copy"));
+        }
+        List<Integer> userIds = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            String username = "bench_user" + i;
+            userService.registerUser(new User(username, "password", username + "@bench.com", "Bench User " + i));
+            userIds.add(userService.authenticate(username, "password").getId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(userCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[][]>> results = new ArrayList<>();
+        for (int u = 0; u < userCount; u++) {
+            int userId = userIds.get(u);
+            long seed = u;
+            results.add(executor.submit(() -> simulateUser(bookService, loanService, userId, rounds, seed, start)));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+
+        List<Long> browse = new ArrayList<>();
+        List<Long> loans = new ArrayList<>();
+        for (Future<long[][]> result : results) {
+            long[][] latencies = result.get();
+            for (long nanos : latencies[0]) browse.add(nanos);
+            for (long nanos : latencies[1]) {
+                if (nanos > 0) loans.add(nanos);
+            }
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        executor.shutdown();
+
+        boolean consistent = checkCopies(dbManager);
+        System.out.printf("%-8d %10.2f %10.0f %10d %10.2fms %10.2fms %10.2fms %10.2fms %8s%n", readers, seconds,
+                          (browse.size() + loans.size()) / seconds, loans.size(), percentile(browse, 50),
+                          percentile(browse, 99), percentile(loans, 50), percentile(loans, 99),
+                          consistent ? "ok" : "BROKEN");
+        dbManager.closeConnection();
+        return consistent;
+    }
+
+    /**
+     * One user's session: each round browses twice, then borrows a random
+     * available book and returns the oldest one held once three are out.
+     * Returns the browse latencies and the latencies of loans and returns
+     * that went through.
+     */
+    private static long[][] simulateUser(BookService bookService, LoanService loanService, int userId, int rounds,
+                                         long seed, CountDownLatch start) throws InterruptedException {
+        Random random = new Random(seed);
+        long[] browse = new long[rounds * 2];
+        long[] loans = new long[rounds * 2];
+        start.await();
+        for (int round = 0; round < rounds; round++) {
+            long t0 = System.nanoTime();
+            bookService.searchBooks(SEARCHES[random.nextInt(SEARCHES.length)]);
+            long t1 = System.nanoTime();
+            List<Book> available = bookService.getAvailableBooks();
+            long t2 = System.nanoTime();
+            browse[round * 2] = t1 - t0;
+            browse[round * 2 + 1] = t2 - t1;
+
+            if (!available.isEmpty()) {
+                Book book = available.get(random.nextInt(available.size()));
+                long t3 = System.nanoTime();
+                if (loanService.issueBook(userId, book.getId(), 14)) {
+                    loans[round * 2] = System.nanoTime() - t3;
+                }
+            }
+
+            List<Loan> held = new ArrayList<>();
+            for (Loan loan : loanService.getUserLoans(userId)) {
+                if ("ISSUED".equals(loan.getStatus())) held.add(loan);
+            }
+            if (held.size() >= 3) {
+                // getUserLoans lists the newest first
+                long t4 = System.nanoTime();
+                if (loanService.returnBook(held.get(held.size() - 1).getId())) {
+                    loans[round * 2 + 1] = System.nanoTime() - t4;
+                }
+            }
+        }
+        return new long[][] { browse, loans };
+    }
+
+    private static boolean checkCopies(DatabaseManager dbManager) throws SQLException {
+        String query = """
+            SELECT COUNT(*) FROM books b
+            WHERE b.available_copies < 0
+               OR b.available_copies + (SELECT COUNT(*) FROM loans l WHERE l.book_id = b.id AND l.status = 'ISSUED')
+                  != b.total_copies
+        """;
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            return rs.next() && rs.getInt(1) == 0;
+        }
+    }
+
+    private static double percentile(List<Long> nanos, int percent) {
+        if (nanos.isEmpty()) return 0;
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1e6;
+    }
+}
\ No newline at end of file
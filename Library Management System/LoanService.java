@@ -1,116 +1,150 @@
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class LoanService {
     private DatabaseManager dbManager;
     private BookService bookService;
     private static final double FINE_PER_DAY = 1.0; // $1 per day overdue
 
+    // Queries whose plans QueryPlanTest checks against the schema indexes
+    static final String USER_LOANS_QUERY = """
+        SELECT l.*, u.full_name as user_name, b.title as book_title, b.author as book_author
+        FROM loans l
+        JOIN users u ON l.user_id = u.id
+        JOIN books b ON l.book_id = b.id
+        WHERE l.user_id = ?
+        ORDER BY l.issue_date DESC
+    """;
+    static final String ACTIVE_LOANS_QUERY = """
+        SELECT l.*, u.full_name as user_name, b.title as book_title, b.author as book_author
+        FROM loans l
+        JOIN users u ON l.user_id = u.id
+        JOIN books b ON l.book_id = b.id
+        WHERE l.status = 'ISSUED'
+        ORDER BY l.due_date ASC
+    """;
+    static final String OVERDUE_LOANS_QUERY = """
+        SELECT l.*, u.full_name as user_name, b.title as book_title, b.author as book_author
+        FROM loans l
+        JOIN users u ON l.user_id = u.id
+        JOIN books b ON l.book_id = b.id
+        WHERE l.status = 'ISSUED' AND l.due_date < ?
+        ORDER BY l.due_date ASC
+    """;
+    static final String ACTIVE_LOAN_COUNT_QUERY = "SELECT COUNT(*) FROM loans WHERE user_id = ? AND status = 'ISSUED'";
+    static final String TOTAL_FINES_QUERY = "SELECT SUM(fine_amount) FROM loans WHERE user_id = ? AND fine_amount > 0";
+    static final String ACTIVE_BOOK_LOAN_QUERY = "SELECT COUNT(*) FROM loans WHERE user_id = ? AND book_id = ? AND status = 'ISSUED'";
+
     public LoanService(DatabaseManager dbManager, BookService bookService) {
         this.dbManager = dbManager;
         this.bookService = bookService;
     }
 
     public boolean issueBook(int userId, int bookId, int loanDurationDays) {
-        // Check if book is available
-        Book book = bookService.getBookById(bookId);
-        if (book == null || !book.isAvailable()) {
-            return false;
-        }
-
-        // Check if user already has this book
-        if (hasActiveBookLoan(userId, bookId)) {
-            return false;
-        }
-
-        Connection conn = dbManager.getConnection();
-        try {
-            conn.setAutoCommit(false);
-
-            // Create loan record
-            LocalDateTime dueDate = LocalDateTime.now().plusDays(loanDurationDays);
-            String loanQuery = "INSERT INTO loans (user_id, book_id, due_date) VALUES (?, ?, ?)";
-            
-            try (PreparedStatement loanStmt = conn.prepareStatement(loanQuery)) {
-                loanStmt.setInt(1, userId);
-                loanStmt.setInt(2, bookId);
-                loanStmt.setTimestamp(3, Timestamp.valueOf(dueDate));
-                loanStmt.executeUpdate();
+        // The checks run on the write connection, so no other loan can take
+        // the last copy between them and the update
+        try (Connection conn = dbManager.getWriteConnection()) {
+            // Check if book is available
+            Book book = bookService.getBookById(bookId);
+            if (book == null || !book.isAvailable()) {
+                return false;
             }
 
-            // Update available copies
-            if (bookService.updateAvailableCopies(bookId, -1)) {
-                conn.commit();
-                return true;
-            } else {
-                conn.rollback();
+            // Check if user already has this book
+            if (hasActiveBookLoan(userId, bookId)) {
                 return false;
             }
 
-        } catch (SQLException e) {
-            try {
-                conn.rollback();
-            } catch (SQLException rollbackEx) {
-                rollbackEx.printStackTrace();
+            boolean ownTransaction = conn.getAutoCommit();
+            if (ownTransaction) {
+                conn.setAutoCommit(false);
             }
-            e.printStackTrace();
-            return false;
-        } finally {
             try {
-                conn.setAutoCommit(true);
+                // Create loan record
+                LocalDateTime dueDate = LocalDateTime.now().plusDays(loanDurationDays);
+                String loanQuery = "INSERT INTO loans (user_id, book_id, due_date) VALUES (?, ?, ?)";
+                
+                try (PreparedStatement loanStmt = conn.prepareStatement(loanQuery)) {
+                    loanStmt.setInt(1, userId);
+                    loanStmt.setInt(2, bookId);
+                    loanStmt.setTimestamp(3, Timestamp.valueOf(dueDate));
+                    loanStmt.executeUpdate();
+                }
+
+                // Update available copies
+                if (bookService.updateAvailableCopies(bookId, -1)) {
+                    if (ownTransaction) {
+                        conn.commit();
+                    }
+                    return true;
+                } else {
+                    DatabaseManager.abandonWrite(conn, ownTransaction, "issueBook", null);
+                    return false;
+                }
             } catch (SQLException e) {
-                e.printStackTrace();
+                DatabaseManager.abandonWrite(conn, ownTransaction, "issueBook", e);
+                throw e;
+            } finally {
+                if (ownTransaction) {
+                    conn.setAutoCommit(true);
+                }
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
         }
     }
 
     public boolean returnBook(int loanId) {
-        Loan loan = getLoanById(loanId);
-        if (loan == null || !"ISSUED".equals(loan.getStatus())) {
-            return false;
-        }
-
-        Connection conn = dbManager.getConnection();
-        try {
-            conn.setAutoCommit(false);
-
-            // Calculate fine if overdue
-            double fine = calculateFine(loan);
-            
-            // Update loan record
-            String updateQuery = "UPDATE loans SET return_date = ?, status = 'RETURNED', fine_amount = ? WHERE id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(updateQuery)) {
-                stmt.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
-                stmt.setDouble(2, fine);
-                stmt.setInt(3, loanId);
-                stmt.executeUpdate();
-            }
-
-            // Update available copies
-            if (bookService.updateAvailableCopies(loan.getBookId(), 1)) {
-                conn.commit();
-                return true;
-            } else {
-                conn.rollback();
+        // Checked on the write connection, so a loan is only returned once
+        try (Connection conn = dbManager.getWriteConnection()) {
+            Loan loan = getLoanById(loanId);
+            if (loan == null || !"ISSUED".equals(loan.getStatus())) {
                 return false;
             }
 
-        } catch (SQLException e) {
-            try {
-                conn.rollback();
-            } catch (SQLException rollbackEx) {
-                rollbackEx.printStackTrace();
+            boolean ownTransaction = conn.getAutoCommit();
+            if (ownTransaction) {
+                conn.setAutoCommit(false);
             }
-            e.printStackTrace();
-            return false;
-        } finally {
             try {
-                conn.setAutoCommit(true);
+                // Calculate fine if overdue
+                double fine = calculateFine(loan);
+                
+                // Update loan record
+                String updateQuery = "UPDATE loans SET return_date = ?, status = 'RETURNED', fine_amount = ? WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(updateQuery)) {
+                    stmt.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
+                    stmt.setDouble(2, fine);
+                    stmt.setInt(3, loanId);
+                    stmt.executeUpdate();
+                }
+
+                // Update available copies
+                if (bookService.updateAvailableCopies(loan.getBookId(), 1)) {
+                    if (ownTransaction) {
+                        conn.commit();
+                    }
+                    return true;
+                } else {
+                    DatabaseManager.abandonWrite(conn, ownTransaction, "returnBook", null);
+                    return false;
+                }
             } catch (SQLException e) {
-                e.printStackTrace();
+                DatabaseManager.abandonWrite(conn, ownTransaction, "returnBook", e);
+                throw e;
+            } finally {
+                if (ownTransaction) {
+                    conn.setAutoCommit(true);
+                }
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
         }
     }
 
@@ -123,7 +157,8 @@ public class LoanService {
         LocalDateTime newDueDate = loan.getDueDate().plusDays(additionalDays);
         String query = "UPDATE loans SET due_date = ? WHERE id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setTimestamp(1, Timestamp.valueOf(newDueDate));
             stmt.setInt(2, loanId);
             
@@ -134,6 +169,95 @@ public class LoanService {
         }
     }
 
+    /**
+     * Bulk import of loan records, e.g. from another system, in one
+     * transaction. The inserts go out in batches. Loans still ISSUED take
+     * their copies from the books, and the import fails as a whole if a
+     * book has too few copies left. A missing issue date means now and a
+     * missing status means ISSUED.
+     */
+    public boolean importLoans(List<Loan> loans) {
+        String loanQuery = "INSERT INTO loans (user_id, book_id, issue_date, due_date, return_date, status, fine_amount) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        String copiesQuery = "UPDATE books SET available_copies = available_copies - ? WHERE id = ? AND available_copies >= ?";
+        
+        try (Connection conn = dbManager.getWriteConnection()) {
+            boolean ownTransaction = conn.getAutoCommit();
+            if (ownTransaction) {
+                conn.setAutoCommit(false);
+            }
+            try (PreparedStatement loanStmt = conn.prepareStatement(loanQuery);
+                 PreparedStatement copiesStmt = conn.prepareStatement(copiesQuery)) {
+                Map<Integer, Integer> issuedPerBook = new HashMap<>();
+                int pending = 0;
+                for (Loan loan : loans) {
+                    String status = loan.getStatus() != null ? loan.getStatus() : "ISSUED";
+                    LocalDateTime issueDate = loan.getIssueDate() != null ? loan.getIssueDate() : LocalDateTime.now();
+                    loanStmt.setInt(1, loan.getUserId());
+                    loanStmt.setInt(2, loan.getBookId());
+                    loanStmt.setTimestamp(3, Timestamp.valueOf(issueDate));
+                    loanStmt.setTimestamp(4, Timestamp.valueOf(loan.getDueDate()));
+                    loanStmt.setTimestamp(5, loan.getReturnDate() != null ? Timestamp.valueOf(loan.getReturnDate()) : null);
+                    loanStmt.setString(6, status);
+                    loanStmt.setDouble(7, loan.getFineAmount());
+                    loanStmt.addBatch();
+                    if (++pending == DatabaseManager.BATCH_SIZE) {
+                        loanStmt.executeBatch();
+                        pending = 0;
+                    }
+                    if ("ISSUED".equals(status)) {
+                        issuedPerBook.merge(loan.getBookId(), 1, Integer::sum);
+                    }
+                }
+                if (pending > 0) {
+                    loanStmt.executeBatch();
+                }
+
+                // One update per book rather than one per loan
+                dbManager.afterWrite(() -> issuedPerBook.keySet().forEach(dbManager.getBookCache()::invalidate));
+                pending = 0;
+                boolean enoughCopies = true;
+                for (Map.Entry<Integer, Integer> issued : issuedPerBook.entrySet()) {
+                    copiesStmt.setInt(1, issued.getValue());
+                    copiesStmt.setInt(2, issued.getKey());
+                    copiesStmt.setInt(3, issued.getValue());
+                    copiesStmt.addBatch();
+                    if (++pending == DatabaseManager.BATCH_SIZE) {
+                        enoughCopies &= allUpdated(copiesStmt.executeBatch());
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    enoughCopies &= allUpdated(copiesStmt.executeBatch());
+                }
+                if (!enoughCopies) {
+                    DatabaseManager.abandonWrite(conn, ownTransaction, "importLoans", null);
+                    return false;
+                }
+                if (ownTransaction) {
+                    conn.commit();
+                }
+                return true;
+            } catch (SQLException e) {
+                DatabaseManager.abandonWrite(conn, ownTransaction, "importLoans", e);
+                throw e;
+            } finally {
+                if (ownTransaction) {
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean allUpdated(int[] counts) {
+        for (int count : counts) {
+            if (count == 0) return false;
+        }
+        return true;
+    }
+
     public Loan getLoanById(int id) {
         String query = """
             SELECT l.*, u.full_name as user_name, b.title as book_title, b.author as book_author
@@ -143,7 +267,8 @@ public class LoanService {
             WHERE l.id = ?
         """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, id);
             
             ResultSet rs = stmt.executeQuery();
@@ -158,16 +283,9 @@ public class LoanService {
 
     public List<Loan> getUserLoans(int userId) {
         List<Loan> loans = new ArrayList<>();
-        String query = """
-            SELECT l.*, u.full_name as user_name, b.title as book_title, b.author as book_author
-            FROM loans l
-            JOIN users u ON l.user_id = u.id
-            JOIN books b ON l.book_id = b.id
-            WHERE l.user_id = ?
-            ORDER BY l.issue_date DESC
-        """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(USER_LOANS_QUERY)) {
             stmt.setInt(1, userId);
             
             ResultSet rs = stmt.executeQuery();
@@ -182,17 +300,10 @@ public class LoanService {
 
     public List<Loan> getActiveLoans() {
         List<Loan> loans = new ArrayList<>();
-        String query = """
-            SELECT l.*, u.full_name as user_name, b.title as book_title, b.author as book_author
-            FROM loans l
-            JOIN users u ON l.user_id = u.id
-            JOIN books b ON l.book_id = b.id
-            WHERE l.status = 'ISSUED'
-            ORDER BY l.due_date ASC
-        """;
         
-        try (Statement stmt = dbManager.getConnection().createStatement();
-             ResultSet rs = stmt.executeQuery(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(ACTIVE_LOANS_QUERY)) {
             
             while (rs.next()) {
                 loans.add(mapResultSetToLoan(rs));
@@ -205,16 +316,9 @@ public class LoanService {
 
     public List<Loan> getOverdueLoans() {
         List<Loan> loans = new ArrayList<>();
-        String query = """
-            SELECT l.*, u.full_name as user_name, b.title as book_title, b.author as book_author
-            FROM loans l
-            JOIN users u ON l.user_id = u.id
-            JOIN books b ON l.book_id = b.id
-            WHERE l.status = 'ISSUED' AND l.due_date < ?
-            ORDER BY l.due_date ASC
-        """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(OVERDUE_LOANS_QUERY)) {
             stmt.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
             
             ResultSet rs = stmt.executeQuery();
@@ -237,7 +341,8 @@ public class LoanService {
             ORDER BY l.issue_date DESC
         """;
         
-        try (Statement stmt = dbManager.getConnection().createStatement();
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(query)) {
             
             while (rs.next()) {
@@ -250,9 +355,8 @@ public class LoanService {
     }
 
     public int getUserActiveLoanCount(int userId) {
-        String query = "SELECT COUNT(*) FROM loans WHERE user_id = ? AND status = 'ISSUED'";
-        
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(ACTIVE_LOAN_COUNT_QUERY)) {
             stmt.setInt(1, userId);
             
             ResultSet rs = stmt.executeQuery();
@@ -264,9 +368,8 @@ public class LoanService {
     }
 
     public double getUserTotalFines(int userId) {
-        String query = "SELECT SUM(fine_amount) FROM loans WHERE user_id = ? AND fine_amount > 0";
-        
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(TOTAL_FINES_QUERY)) {
             stmt.setInt(1, userId);
             
             ResultSet rs = stmt.executeQuery();
@@ -278,9 +381,8 @@ public class LoanService {
     }
 
     private boolean hasActiveBookLoan(int userId, int bookId) {
-        String query = "SELECT COUNT(*) FROM loans WHERE user_id = ? AND book_id = ? AND status = 'ISSUED'";
-        
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(ACTIVE_BOOK_LOAN_QUERY)) {
             stmt.setInt(1, userId);
             stmt.setInt(2, bookId);
             
@@ -0,0 +1,175 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoanServiceTest {
+    @TempDir
+    Path tempDir;
+
+    private DatabaseManager dbManager;
+    private BookService bookService;
+    private UserService userService;
+    private LoanService loanService;
+
+    @BeforeEach
+    void setUp() {
+        dbManager = new DatabaseManager("jdbc:sqlite:" + tempDir.resolve("loan-test.db"), 2);
+        bookService = new BookService(dbManager);
+        userService = new UserService(dbManager);
+        loanService = new LoanService(dbManager, bookService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        dbManager.closeConnection();
+    }
+
+    private Book addBook(String isbn, int copies) {
+        assertTrue(bookService.addBook(new Book(isbn, "Import Book " + isbn, "Author", "Publisher", 2023,
+                                                "Testing", copies, "Desc")));
+        return bookService.searchBooks(isbn).get(0);
+    }
+
+    private Loan loan(int userId, int bookId, String status) {
+        Loan loan = new Loan(userId, bookId, LocalDateTime.now().plusDays(14));
+        loan.setStatus(status);
+        if ("RETURNED".equals(status)) {
+            loan.setReturnDate(LocalDateTime.now());
+        }
+        return loan;
+    }
+
+    // Loan Import Tests (4 test cases)
+    @Test
+    void testImportLoansTakesCopiesForIssuedLoans() {
+        Book book = addBook("978-8000000001", 3);
+        int john = userService.authenticate("john_doe", "password123").getId();
+        int jane = userService.authenticate("jane_smith", "password123").getId();
+
+        assertTrue(loanService.importLoans(List.of(loan(john, book.getId(), "ISSUED"),
+                                                   loan(jane, book.getId(), "ISSUED"),
+                                                   loan(john, book.getId(), "RETURNED"))));
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+        assertEquals(2, loanService.getUserLoans(john).size());
+        assertEquals(2, loanService.getActiveLoans().size());
+    }
+
+    @Test
+    void testImportLoansWithTooFewCopiesImportsNone() {
+        Book book = addBook("978-8000000002", 1);
+        int john = userService.authenticate("john_doe", "password123").getId();
+        int jane = userService.authenticate("jane_smith", "password123").getId();
+
+        assertFalse(loanService.importLoans(List.of(loan(john, book.getId(), "ISSUED"),
+                                                    loan(jane, book.getId(), "ISSUED"))));
+        assertTrue(loanService.getAllLoans().isEmpty());
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+    }
+
+    @Test
+    void testImportedLoanCanBeReturned() {
+        Book book = addBook("978-8000000003", 1);
+        int bob = userService.authenticate("bob_wilson", "password123").getId();
+
+        assertTrue(loanService.importLoans(List.of(loan(bob, book.getId(), "ISSUED"))));
+        int loanId = loanService.getUserLoans(bob).get(0).getId();
+        assertTrue(loanService.returnBook(loanId));
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+    }
+
+    @Test
+    void testImportManyLoansAcrossBatches() {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            books.add(new Book(String.format("978-81%08d", i), "Bulk Book " + i, "Author", "Publisher", 2023,
+                               "Bulk", 100, "Desc"));
+        }
+        assertTrue(bookService.addBooks(books));
+        List<Book> added = bookService.getBooksByCategory("Bulk");
+        int john = userService.authenticate("john_doe", "password123").getId();
+
+        List<Loan> loans = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            loans.add(loan(john, added.get(i % added.size()).getId(), i % 2 == 0 ? "ISSUED" : "RETURNED"));
+        }
+        assertTrue(loanService.importLoans(loans));
+        assertEquals(2500, loanService.getAllLoans().size());
+        for (Book book : bookService.getBooksByCategory("Bulk")) {
+            assertEquals(75, book.getAvailableCopies());
+        }
+    }
+
+    // Lookup Cache Tests (5 test cases)
+    @Test
+    void testCachedAvailabilityFollowsIssueAndReturn() {
+        Book book = addBook("978-8000000010", 2);
+        int john = userService.authenticate("john_doe", "password123").getId();
+        assertEquals(2, bookService.getBookById(book.getId()).getAvailableCopies());
+
+        assertTrue(loanService.issueBook(john, book.getId(), 14));
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+        assertTrue(loanService.returnBook(loanService.getUserLoans(john).get(0).getId()));
+        assertEquals(2, bookService.getBookById(book.getId()).getAvailableCopies());
+        assertTrue(dbManager.getBookCache().getHits() > 0);
+    }
+
+    @Test
+    void testRolledBackWriteLeavesNoStaleEntry() throws SQLException {
+        Book book = addBook("978-8000000011", 1);
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+
+        try (Connection conn = dbManager.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            assertTrue(bookService.updateAvailableCopies(book.getId(), -1));
+            // This thread sees its own change, and it is not cached
+            assertEquals(0, bookService.getBookById(book.getId()).getAvailableCopies());
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+        assertEquals(1, bookService.getBookById(book.getId()).getAvailableCopies());
+    }
+
+    @Test
+    void testCachedCategoriesFollowUpdateBook() {
+        Book book = addBook("978-8000000012", 1);
+        assertTrue(bookService.getAllCategories().contains("Testing"));
+
+        book.setCategory("Cached Category");
+        assertTrue(bookService.updateBook(book));
+        List<String> categories = bookService.getAllCategories();
+        assertTrue(categories.contains("Cached Category"));
+        assertFalse(categories.contains("Testing"));
+    }
+
+    @Test
+    void testCachedUserFollowsUpdateUser() {
+        int john = userService.authenticate("john_doe", "password123").getId();
+        User user = userService.getUserById(john);
+        user.setFullName("Johnny Doe");
+        // Changing the returned copy leaves the cache alone
+        assertEquals("John Doe", userService.getUserById(john).getFullName());
+
+        assertTrue(userService.updateUser(user));
+        assertEquals("Johnny Doe", userService.getUserById(john).getFullName());
+    }
+
+    @Test
+    void testCachedUserFollowsChangePassword() {
+        int john = userService.authenticate("john_doe", "password123").getId();
+        assertEquals("john_doe", userService.getUserById(john).getUsername());
+        long misses = dbManager.getUserCache().getMisses();
+
+        assertTrue(userService.changePassword(john, "newPassword456"));
+        // The cached row was dropped, so this read goes to the database
+        assertEquals("john_doe", userService.getUserById(john).getUsername());
+        assertEquals(misses + 1, dbManager.getUserCache().getMisses());
+        assertNotNull(userService.authenticate("john_doe", "newPassword456"));
+        assertNull(userService.authenticate("john_doe", "password123"));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Read-through cache of rows loaded from the database: get() returns the
+ * cached value or loads it, keeping at most {@code maxSize} entries (least
+ * recently used go first) for at most {@code ttlMillis} each. Null results
+ * are not cached. Callers get their own copy of a cached value, so changing
+ * it leaves the cache alone.
+ *
+ * Writers drop stale entries with invalidate(), run through
+ * DatabaseManager.afterWrite() so that it happens once their transaction
+ * has ended. A load that was already under way then is not cached, since it
+ * may have read the old row. While {@code bypass} is true (the current
+ * thread has writes not yet ended) the cache is neither read nor filled,
+ * as that thread must see its own uncommitted rows.
+ */
+public class LookupCache<K, V> {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final UnaryOperator<V> copy;
+    private final BooleanSupplier bypass;
+    private final Map<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize entries kept; 0 turns the cache off
+     */
+    public LookupCache(int maxSize, long ttlMillis, UnaryOperator<V> copy, BooleanSupplier bypass) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.copy = copy;
+        this.bypass = bypass;
+    }
+
+    public V get(K key, Function<K, V> loader) {
+        if (maxSize == 0 || bypass.getAsBoolean()) {
+            return loader.apply(key);
+        }
+        long loadGeneration;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits++;
+                return copy.apply(entry.value);
+            }
+            if (entry != null) {
+                entries.remove(key);
+                evictions++;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        // Loaded without the lock, so a slow query holds up no one else
+        V value = loader.apply(key);
+        if (value == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                entries.put(key, new Entry<>(copy.apply(value), System.nanoTime() + ttlNanos));
+                if (entries.size() > maxSize) {
+                    K eldest = entries.keySet().iterator().next();
+                    entries.remove(eldest);
+                    evictions++;
+                }
+            }
+        }
+        return value;
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Entries dropped for room or age; invalidated ones are not counted. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,172 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Book and catalogue lookups while books are being borrowed. Reader threads
+ * call getBookById on a skewed choice of books, with getAllCategories now
+ * and then, while one thread keeps issuing and returning books. The run is
+ * made with the lookup cache off and on. Afterwards the cached copies must
+ * match the books table, and the issued copies the active loans.
+ *
+ * Usage: java LookupCacheBenchmark [threads] [seconds] [books]
+ */
+public class LookupCacheBenchmark {
+    private static final int COPIES = 5;
+    private static final int USERS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int bookCount = args.length > 2 ? Integer.parseInt(args[2]) : 5_000;
+
+        System.out.println("=== Lookup Cache Benchmark ===");
+        System.out.println("Reader threads: " + threads + ", seconds: " + seconds + ", books: " + bookCount);
+        System.out.println();
+        System.out.printf("%-8s %14s %12s %10s %10s %8s%n", "cache", "lookups/s", "loans/s", "hit rate", "entries",
+                          "check");
+
+        boolean ok = true;
+        for (int cacheSize : new int[] { 0, DatabaseManager.DEFAULT_LOOKUP_CACHE_SIZE }) {
+            ok &= run(threads, seconds, bookCount, cacheSize);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean run(int threads, int seconds, int bookCount, int cacheSize) throws Exception {
+        Path dir = Files.createTempDirectory("library-lookup");
+        DatabaseManager dbManager = new DatabaseManager("jdbc:sqlite:" + dir.resolve("lookup.db"),
+                                                        ConnectionPool.DEFAULT_READERS,
+                                                        ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE, cacheSize);
+        BookService bookService = new BookService(dbManager);
+        UserService userService = new UserService(dbManager);
+        LoanService loanService = new LoanService(dbManager, bookService);
+
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < bookCount; i++) {
+            books.add(new Book(String.format("978-6%09d", i), "Lookup Book " + i, "Author " + (i % 500), "Publisher",
+                               2020, "Category " + (i % 20), COPIES, "Lookup copy"));
+        }
+        if (!bookService.addBooks(books)) throw new IllegalStateException("addBooks failed");
+        List<Integer> bookIds = new ArrayList<>();
+        for (Book book : bookService.searchBooks("", 0, bookCount + 100)) {
+            if (book.getIsbn().startsWith("978-6")) bookIds.add(book.getId());
+        }
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            users.add(new User("lookup_user" + i, "password", "lookup" + i + "@bench.com", "Lookup User " + i));
+        }
+        if (!userService.registerUsers(users)) throw new IllegalStateException("registerUsers failed");
+        List<Integer> userIds = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            userIds.add(userService.authenticate("lookup_user" + i, "password").getId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong lookups = new AtomicLong();
+        AtomicLong loanOps = new AtomicLong();
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            results.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                while (!stop.get()) {
+                    if (count % 50 == 0) {
+                        bookService.getAllCategories();
+                    }
+                    if (bookService.getBookById(bookIds.get(skewed(random, bookIds.size()))) == null) {
+                        throw new IllegalStateException("Book missing");
+                    }
+                    count++;
+                }
+                lookups.addAndGet(count);
+                return null;
+            }));
+        }
+        results.add(executor.submit(() -> {
+            Random random = new Random(99);
+            while (!stop.get()) {
+                int userId = userIds.get(random.nextInt(userIds.size()));
+                int bookId = bookIds.get(skewed(random, bookIds.size()));
+                if (loanService.issueBook(userId, bookId, 14)) {
+                    loanOps.incrementAndGet();
+                }
+                List<Loan> active = loanService.getActiveLoans();
+                if (active.size() > USERS * 2) {
+                    if (loanService.returnBook(active.get(random.nextInt(active.size())).getId())) {
+                        loanOps.incrementAndGet();
+                    }
+                }
+            }
+            return null;
+        }));
+
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        boolean ok = consistent(dbManager, bookService, bookIds);
+        LookupCache<Integer, Book> cache = dbManager.getBookCache();
+        long requests = cache.getHits() + cache.getMisses();
+        System.out.printf("%-8s %14.0f %12.0f %9.1f%% %10d %8s%n", cacheSize > 0 ? "on" : "off",
+                          lookups.get() / elapsed, loanOps.get() / elapsed,
+                          requests > 0 ? 100.0 * cache.getHits() / requests : 0.0, cache.size(), ok ? "ok" : "STALE");
+        dbManager.closeConnection();
+        return ok;
+    }
+
+    /**
+     * Mostly the first tenth of the books, as a few titles get most of the
+     * attention.
+     */
+    private static int skewed(Random random, int size) {
+        return random.nextInt(4) > 0 ? random.nextInt(Math.max(1, size / 10)) : random.nextInt(size);
+    }
+
+    /**
+     * Whether every book, as getBookById returns it, has the copies the
+     * books table and the active loans say it has.
+     */
+    private static boolean consistent(DatabaseManager dbManager, BookService bookService, List<Integer> bookIds)
+            throws SQLException {
+        String query = """
+            SELECT b.id, b.available_copies, b.total_copies,
+                   (SELECT COUNT(*) FROM loans l WHERE l.book_id = b.id AND l.status = 'ISSUED') AS issued
+            FROM books b
+            """;
+        Map<Integer, Integer> availableById = new HashMap<>();
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            while (rs.next()) {
+                int available = rs.getInt("available_copies");
+                if (available + rs.getInt("issued") != rs.getInt("total_copies")) {
+                    return false;
+                }
+                availableById.put(rs.getInt("id"), available);
+            }
+        }
+        for (int id : bookIds) {
+            if (bookService.getBookById(id).getAvailableCopies() != availableById.get(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
\ No newline at end of file
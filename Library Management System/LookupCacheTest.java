@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class LookupCacheTest {
+    private AtomicInteger loads;
+    private Function<Integer, String> loader;
+
+    @BeforeEach
+    void setUp() {
+        loads = new AtomicInteger();
+        loader = key -> {
+            loads.incrementAndGet();
+            return "value " + key;
+        };
+    }
+
+    private LookupCache<Integer, String> cache(int maxSize, long ttlMillis) {
+        return new LookupCache<>(maxSize, ttlMillis, value -> value, () -> false);
+    }
+
+    // Read-Through Tests (5 test cases)
+    @Test
+    void testSecondGetServedFromCache() {
+        LookupCache<Integer, String> cache = cache(10, 60_000);
+        assertEquals("value 1", cache.get(1, loader));
+        assertEquals("value 1", cache.get(1, loader));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void testNullNotCached() {
+        LookupCache<Integer, String> cache = cache(10, 60_000);
+        assertNull(cache.get(1, key -> null));
+        assertEquals(0, cache.size());
+        assertEquals("value 1", cache.get(1, loader));
+    }
+
+    @Test
+    void testCallerGetsCopy() {
+        LookupCache<Integer, List<String>> cache = new LookupCache<>(10, 60_000, ArrayList::new, () -> false);
+        cache.get(1, key -> new ArrayList<>(List.of("a"))).add("b");
+        cache.get(1, key -> new ArrayList<>()).add("c");
+        assertEquals(List.of("a"), cache.get(1, key -> new ArrayList<>()));
+    }
+
+    @Test
+    void testDisabledCacheAlwaysLoads() {
+        LookupCache<Integer, String> cache = cache(0, 60_000);
+        cache.get(1, loader);
+        cache.get(1, loader);
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testBypassSkipsCache() {
+        AtomicBoolean bypass = new AtomicBoolean(true);
+        LookupCache<Integer, String> cache = new LookupCache<>(10, 60_000, value -> value, bypass::get);
+        cache.get(1, loader);
+        assertEquals(0, cache.size());
+
+        bypass.set(false);
+        cache.get(1, loader);
+        bypass.set(true);
+        cache.get(1, loader);
+        assertEquals(3, loads.get());
+        assertEquals(0, cache.getHits());
+    }
+
+    // Eviction Tests (5 test cases)
+    @Test
+    void testLeastRecentlyUsedEvicted() {
+        LookupCache<Integer, String> cache = cache(2, 60_000);
+        cache.get(1, loader);
+        cache.get(2, loader);
+        cache.get(1, loader);
+        cache.get(3, loader);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        loads.set(0);
+        cache.get(1, loader);
+        cache.get(3, loader);
+        assertEquals(0, loads.get());
+        cache.get(2, loader);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void testExpiredEntryReloaded() {
+        LookupCache<Integer, String> cache = cache(10, 0);
+        cache.get(1, loader);
+        cache.get(1, loader);
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    void testInvalidateDropsOneEntry() {
+        LookupCache<Integer, String> cache = cache(10, 60_000);
+        cache.get(1, loader);
+        cache.get(2, loader);
+        cache.invalidate(1);
+        assertEquals(1, cache.size());
+        cache.get(1, loader);
+        cache.get(2, loader);
+        assertEquals(3, loads.get());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void testInvalidateAllDropsEverything() {
+        LookupCache<Integer, String> cache = cache(10, 60_000);
+        cache.get(1, loader);
+        cache.get(2, loader);
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testLoadOverlappingInvalidationNotCached() {
+        LookupCache<Integer, String> cache = cache(10, 60_000);
+        // A write lands while the old row is being read
+        assertEquals("old", cache.get(1, key -> {
+            cache.invalidate(key);
+            return "old";
+        }));
+        assertEquals(0, cache.size());
+        assertEquals("value 1", cache.get(1, loader));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueryPlanTest {
+    @TempDir
+    Path tempDir;
+
+    private String url;
+    private DatabaseManager dbManager;
+
+    @BeforeEach
+    void setUp() {
+        url = "jdbc:sqlite:" + tempDir.resolve("plan-test.db");
+        dbManager = new DatabaseManager(url, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        dbManager.closeConnection();
+    }
+
+    /**
+     * The steps of EXPLAIN QUERY PLAN for a query, with every parameter
+     * bound to 1.
+     */
+    private List<String> plan(String query) throws SQLException {
+        List<String> steps = new ArrayList<>();
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + query)) {
+            int parameters = (int) query.chars().filter(c -> c == '?').count();
+            for (int i = 1; i <= parameters; i++) {
+                stmt.setInt(i, 1);
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                steps.add(rs.getString("detail"));
+            }
+        }
+        return steps;
+    }
+
+    private void assertUsesIndex(String query, String table, String index) throws SQLException {
+        List<String> steps = plan(query);
+        assertTrue(steps.stream().anyMatch(step -> step.matches("(SEARCH|SCAN) " + table + " USING (COVERING )?INDEX " + index + "\\b.*")),
+                   "Expected " + table + " to use " + index + ", plan was " + steps);
+    }
+
+    private void assertNoTableScan(String query) throws SQLException {
+        List<String> steps = plan(query);
+        assertTrue(steps.stream().noneMatch(step -> step.matches("SCAN (TABLE )?\\w+( AS \\w+)?")),
+                   "Expected no full table scan, plan was " + steps);
+    }
+
+    private void assertNoSort(String query) throws SQLException {
+        List<String> steps = plan(query);
+        assertTrue(steps.stream().noneMatch(step -> step.contains("TEMP B-TREE FOR ORDER BY")),
+                   "Expected rows in index order, plan was " + steps);
+    }
+
+    // Migration Tests (3 test cases)
+    @Test
+    void testNewDatabaseFullyMigrated() {
+        assertEquals(DatabaseManager.SCHEMA_VERSION, dbManager.getSchemaVersion());
+    }
+
+    @Test
+    void testReopenRunsNoMigrationTwice() {
+        int books = new BookService(dbManager).getAllBooks().size();
+        dbManager.closeConnection();
+
+        dbManager = new DatabaseManager(url, 1);
+        assertEquals(DatabaseManager.SCHEMA_VERSION, dbManager.getSchemaVersion());
+        assertEquals(books, new BookService(dbManager).searchBooks("").size());
+        assertEquals(1, new BookService(dbManager).searchBooks("Effective Java").size());
+    }
+
+    @Test
+    void testOlderDatabaseGetsMissingMigrations() throws SQLException {
+        // Turn the database back into one that only had the first migration
+        try (Connection conn = dbManager.getWriteConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP INDEX idx_loans_user");
+            stmt.execute("PRAGMA user_version = 1");
+        }
+        dbManager.closeConnection();
+
+        dbManager = new DatabaseManager(url, 1);
+        assertEquals(DatabaseManager.SCHEMA_VERSION, dbManager.getSchemaVersion());
+        assertUsesIndex(LoanService.USER_LOANS_QUERY, "l", "idx_loans_user");
+    }
+
+    // Loan Query Plan Tests (6 test cases)
+    @Test
+    void testUserLoansUseUserIndexInIssueOrder() throws SQLException {
+        assertUsesIndex(LoanService.USER_LOANS_QUERY, "l", "idx_loans_user");
+        assertNoSort(LoanService.USER_LOANS_QUERY);
+    }
+
+    @Test
+    void testActiveLoansUsePartialIndexInDueOrder() throws SQLException {
+        assertUsesIndex(LoanService.ACTIVE_LOANS_QUERY, "l", "idx_loans_issued_due");
+        assertNoSort(LoanService.ACTIVE_LOANS_QUERY);
+    }
+
+    @Test
+    void testOverdueLoansUsePartialIndexInDueOrder() throws SQLException {
+        assertUsesIndex(LoanService.OVERDUE_LOANS_QUERY, "l", "idx_loans_issued_due");
+        assertNoSort(LoanService.OVERDUE_LOANS_QUERY);
+    }
+
+    @Test
+    void testActiveLoanChecksUsePartialUserIndex() throws SQLException {
+        assertUsesIndex(LoanService.ACTIVE_LOAN_COUNT_QUERY, "loans", "idx_loans_issued_user");
+        assertUsesIndex(LoanService.ACTIVE_BOOK_LOAN_QUERY, "loans", "idx_loans_issued_user");
+    }
+
+    @Test
+    void testTotalFinesUseUserIndex() throws SQLException {
+        assertUsesIndex(LoanService.TOTAL_FINES_QUERY, "loans", "idx_loans_user");
+    }
+
+    @Test
+    void testNoLoanQueryScansTable() throws SQLException {
+        String[] queries = {
+            LoanService.USER_LOANS_QUERY, LoanService.ACTIVE_LOANS_QUERY, LoanService.OVERDUE_LOANS_QUERY,
+            LoanService.ACTIVE_LOAN_COUNT_QUERY, LoanService.TOTAL_FINES_QUERY, LoanService.ACTIVE_BOOK_LOAN_QUERY,
+            BookService.ACTIVE_LOANS_FOR_BOOK_QUERY
+        };
+        for (String query : queries) {
+            assertNoTableScan(query);
+        }
+    }
+
+    // Catalogue Query Plan Tests (3 test cases)
+    @Test
+    void testActiveLoansForBookUseCoveringBookIndex() throws SQLException {
+        assertUsesIndex(BookService.ACTIVE_LOANS_FOR_BOOK_QUERY, "loans", "idx_loans_book");
+    }
+
+    @Test
+    void testBooksByCategoryUseCategoryIndexInTitleOrder() throws SQLException {
+        assertUsesIndex(BookService.BOOKS_BY_CATEGORY_QUERY, "books", "idx_books_category");
+        assertNoSort(BookService.BOOKS_BY_CATEGORY_QUERY);
+    }
+
+    @Test
+    void testAverageRatingUsesRatingIndex() throws SQLException {
+        assertUsesIndex(RecommendationService.AVERAGE_RATING_QUERY, "book_ratings", "idx_book_ratings_book");
+    }
+}
\ No newline at end of file
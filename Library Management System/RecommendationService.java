@@ -6,6 +6,9 @@ public class RecommendationService {
     private DatabaseManager dbManager;
     private BookService bookService;
 
+    // Queries whose plans QueryPlanTest checks against the schema indexes
+    static final String AVERAGE_RATING_QUERY = "SELECT AVG(rating) FROM book_ratings WHERE book_id = ?";
+
     public RecommendationService(DatabaseManager dbManager, BookService bookService) {
         this.dbManager = dbManager;
         this.bookService = bookService;
@@ -40,7 +43,8 @@ public class RecommendationService {
     public boolean rateBook(int userId, int bookId, int rating, String review) {
         String query = "INSERT OR REPLACE INTO book_ratings (user_id, book_id, rating, review) VALUES (?, ?, ?, ?)";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, userId);
             stmt.setInt(2, bookId);
             stmt.setInt(3, rating);
@@ -54,9 +58,8 @@ public class RecommendationService {
     }
 
     public double getBookAverageRating(int bookId) {
-        String query = "SELECT AVG(rating) FROM book_ratings WHERE book_id = ?";
-        
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(AVERAGE_RATING_QUERY)) {
             stmt.setInt(1, bookId);
             
             ResultSet rs = stmt.executeQuery();
@@ -79,7 +82,8 @@ public class RecommendationService {
             LIMIT ?
         """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, limit);
             
             ResultSet rs = stmt.executeQuery();
@@ -116,8 +120,9 @@ public class RecommendationService {
         String deleteQuery = "DELETE FROM user_preferences WHERE user_id = ?";
         String insertQuery = "INSERT INTO user_preferences (user_id, preferred_categories, preferred_authors) VALUES (?, ?, ?)";
         
-        try (PreparedStatement deleteStmt = dbManager.getConnection().prepareStatement(deleteQuery);
-             PreparedStatement insertStmt = dbManager.getConnection().prepareStatement(insertQuery)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement deleteStmt = conn.prepareStatement(deleteQuery);
+             PreparedStatement insertStmt = conn.prepareStatement(insertQuery)) {
             
             deleteStmt.setInt(1, userId);
             deleteStmt.executeUpdate();
@@ -138,7 +143,8 @@ public class RecommendationService {
         
         // Get explicit preferences
         String prefQuery = "SELECT preferred_categories FROM user_preferences WHERE user_id = ?";
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(prefQuery)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(prefQuery)) {
             stmt.setInt(1, userId);
             ResultSet rs = stmt.executeQuery();
             if (rs.next() && rs.getString(1) != null) {
@@ -159,7 +165,8 @@ public class RecommendationService {
             LIMIT 5
         """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(historyQuery)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(historyQuery)) {
             stmt.setInt(1, userId);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
@@ -180,7 +187,8 @@ public class RecommendationService {
         
         // Get explicit preferences
         String prefQuery = "SELECT preferred_authors FROM user_preferences WHERE user_id = ?";
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(prefQuery)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(prefQuery)) {
             stmt.setInt(1, userId);
             ResultSet rs = stmt.executeQuery();
             if (rs.next() && rs.getString(1) != null) {
@@ -201,7 +209,8 @@ public class RecommendationService {
             LIMIT 5
         """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(historyQuery)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(historyQuery)) {
             stmt.setInt(1, userId);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
@@ -221,7 +230,8 @@ public class RecommendationService {
         Set<Integer> bookIds = new HashSet<>();
         String query = "SELECT DISTINCT book_id FROM loans WHERE user_id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, userId);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
@@ -244,7 +254,8 @@ public class RecommendationService {
             placeholders
         );
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             for (int i = 0; i < categories.size(); i++) {
                 stmt.setString(i + 1, categories.get(i));
             }
@@ -274,7 +285,8 @@ public class RecommendationService {
             placeholders
         );
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             for (int i = 0; i < authors.size(); i++) {
                 stmt.setString(i + 1, authors.get(i));
             }
@@ -314,7 +326,8 @@ public class RecommendationService {
             LIMIT ?
         """;
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, limit * 2);
             
             ResultSet rs = stmt.executeQuery();
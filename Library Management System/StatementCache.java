@@ -0,0 +1,163 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepared statements of one pooled connection, kept by SQL text so that
+ * SQLite parses and plans each query once instead of on every call. Only
+ * the thread holding the connection uses its cache.
+ *
+ * prepare() hands out a view of the cached statement whose close() closes
+ * its last result set, clears its parameters and batch, and leaves it in
+ * the cache. A statement still open when the same SQL is prepared again
+ * (a nested call) is not shared; the second caller gets a statement of its
+ * own. The least recently used statements are closed beyond the capacity.
+ */
+public class StatementCache {
+    private final Connection connection;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final Map<String, Entry> statements;
+
+    /**
+     * @param hits   counts prepares served from the cache
+     * @param misses counts prepares that had to parse the SQL
+     */
+    public StatementCache(Connection connection, int capacity, LongAdder hits, LongAdder misses) {
+        this.connection = connection;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= capacity) return false;
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        Entry entry = statements.get(sql);
+        if (entry != null && entry.evicted) {
+            // Its reset failed; parse it afresh
+            statements.remove(sql);
+            entry = null;
+        }
+        if (entry != null && !entry.inUse) {
+            hits.increment();
+            return entry.borrow();
+        }
+        misses.increment();
+        PreparedStatement statement = connection.prepareStatement(sql);
+        if (entry != null) {
+            return statement;
+        }
+        entry = new Entry(statement);
+        statements.put(sql, entry);
+        return entry.borrow();
+    }
+
+    /**
+     * Closes every cached statement, including ones still borrowed.
+     */
+    public void close() {
+        for (Entry entry : statements.values()) {
+            entry.close();
+        }
+        statements.clear();
+    }
+
+    private static class Entry {
+        private final PreparedStatement statement;
+        private boolean inUse;
+        private boolean evicted;
+        private ResultSet lastResult;
+
+        Entry(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        PreparedStatement borrow() {
+            inUse = true;
+            InvocationHandler handler = new InvocationHandler() {
+                private boolean closed;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "close":
+                            if (!closed) {
+                                closed = true;
+                                release();
+                            }
+                            return null;
+                        case "isClosed":
+                            return closed || statement.isClosed();
+                        default:
+                            if (closed) {
+                                throw new SQLException("Statement has been returned to the cache");
+                            }
+                            Object result;
+                            try {
+                                result = method.invoke(statement, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                            if (result instanceof ResultSet) {
+                                lastResult = (ResultSet) result;
+                            }
+                            return result;
+                    }
+                }
+            };
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                              new Class<?>[] { PreparedStatement.class }, handler);
+        }
+
+        /**
+         * Resets the statement for its next user. Closing the result set
+         * matters: a query left stepping keeps its read snapshot open.
+         */
+        private void release() throws SQLException {
+            inUse = false;
+            if (evicted) {
+                close();
+                return;
+            }
+            try {
+                if (lastResult != null) {
+                    lastResult.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException e) {
+                evicted = true;
+                close();
+                throw e;
+            } finally {
+                lastResult = null;
+            }
+        }
+
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
\ No newline at end of file
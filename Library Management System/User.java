@@ -30,6 +30,17 @@ public class User {
         this.isActive = isActive;
     }
 
+    public User(User other) {
+        this.id = other.id;
+        this.username = other.username;
+        this.password = other.password;
+        this.email = other.email;
+        this.fullName = other.fullName;
+        this.role = other.role;
+        this.createdAt = other.createdAt;
+        this.isActive = other.isActive;
+    }
+
     // Getters and Setters
     public int getId() { return id; }
     public void setId(int id) { this.id = id; }
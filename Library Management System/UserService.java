@@ -12,7 +12,8 @@ public class UserService {
     public User authenticate(String username, String password) {
         String query = "SELECT * FROM users WHERE username = ? AND password = ? AND is_active = 1";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, username);
             stmt.setString(2, password);
             
@@ -29,7 +30,8 @@ public class UserService {
     public boolean registerUser(User user) {
         String query = "INSERT INTO users (username, password, email, full_name) VALUES (?, ?, ?, ?)";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, user.getUsername());
             stmt.setString(2, user.getPassword());
             stmt.setString(3, user.getEmail());
@@ -42,10 +44,64 @@ public class UserService {
         }
     }
 
+    /**
+     * Registers all the users in one transaction, in batches. A duplicate
+     * username or email fails the whole list.
+     */
+    public boolean registerUsers(List<User> users) {
+        String query = "INSERT INTO users (username, password, email, full_name) VALUES (?, ?, ?, ?)";
+        
+        try (Connection conn = dbManager.getWriteConnection()) {
+            boolean ownTransaction = conn.getAutoCommit();
+            if (ownTransaction) {
+                conn.setAutoCommit(false);
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                int pending = 0;
+                for (User user : users) {
+                    stmt.setString(1, user.getUsername());
+                    stmt.setString(2, user.getPassword());
+                    stmt.setString(3, user.getEmail());
+                    stmt.setString(4, user.getFullName());
+                    stmt.addBatch();
+                    if (++pending == DatabaseManager.BATCH_SIZE) {
+                        stmt.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                }
+                if (ownTransaction) {
+                    conn.commit();
+                }
+                return true;
+            } catch (SQLException e) {
+                DatabaseManager.abandonWrite(conn, ownTransaction, "registerUsers", e);
+                throw e;
+            } finally {
+                if (ownTransaction) {
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Served from the user cache; updateUser drops the user's entry.
+     */
     public User getUserById(int id) {
+        return dbManager.getUserCache().get(id, this::loadUserById);
+    }
+
+    private User loadUserById(int id) {
         String query = "SELECT * FROM users WHERE id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, id);
             
             ResultSet rs = stmt.executeQuery();
@@ -62,7 +118,8 @@ public class UserService {
         List<User> users = new ArrayList<>();
         String query = "SELECT * FROM users ORDER BY full_name";
         
-        try (Statement stmt = dbManager.getConnection().createStatement();
+        try (Connection conn = dbManager.getReadConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(query)) {
             
             while (rs.next()) {
@@ -77,7 +134,8 @@ public class UserService {
     public boolean updateUser(User user) {
         String query = "UPDATE users SET username = ?, email = ?, full_name = ?, role = ?, is_active = ? WHERE id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, user.getUsername());
             stmt.setString(2, user.getEmail());
             stmt.setString(3, user.getFullName());
@@ -85,6 +143,7 @@ public class UserService {
             stmt.setBoolean(5, user.isActive());
             stmt.setInt(6, user.getId());
             
+            dbManager.afterWrite(() -> dbManager.getUserCache().invalidate(user.getId()));
             return stmt.executeUpdate() > 0;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -95,10 +154,12 @@ public class UserService {
     public boolean changePassword(int userId, String newPassword) {
         String query = "UPDATE users SET password = ? WHERE id = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getWriteConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, newPassword);
             stmt.setInt(2, userId);
             
+            dbManager.afterWrite(() -> dbManager.getUserCache().invalidate(userId));
             return stmt.executeUpdate() > 0;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -109,7 +170,8 @@ public class UserService {
     public boolean isUsernameExists(String username) {
         String query = "SELECT COUNT(*) FROM users WHERE username = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, username);
             
             ResultSet rs = stmt.executeQuery();
@@ -123,7 +185,8 @@ public class UserService {
     public boolean isEmailExists(String email) {
         String query = "SELECT COUNT(*) FROM users WHERE email = ?";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setString(1, email);
             
             ResultSet rs = stmt.executeQuery();
@@ -138,7 +201,8 @@ public class UserService {
         List<User> users = new ArrayList<>();
         String query = "SELECT * FROM users WHERE full_name LIKE ? OR username LIKE ? OR email LIKE ? ORDER BY full_name";
         
-        try (PreparedStatement stmt = dbManager.getConnection().prepareStatement(query)) {
+        try (Connection conn = dbManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             String searchPattern = "%" + searchTerm + "%";
             stmt.setString(1, searchPattern);
             stmt.setString(2, searchPattern);
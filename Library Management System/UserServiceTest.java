@@ -1,5 +1,7 @@
 import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class UserServiceTest {
     private DatabaseManager dbManager;
@@ -253,4 +255,24 @@ public class UserServiceTest {
         assertFalse(userService.isUsernameExists(""));
         assertFalse(userService.isEmailExists(""));
     }
+
+    // Batch Registration Tests (2 test cases)
+    @Test
+    void testRegisterUsersInBatch() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            users.add(new User("batch_user" + i, "password", "batch" + i + "@test.com", "Batch User " + i));
+        }
+        assertTrue(userService.registerUsers(users));
+        assertNotNull(userService.authenticate("batch_user1499", "password"));
+    }
+
+    @Test
+    void testRegisterUsersWithDuplicateAddsNone() {
+        List<User> users = List.of(
+            new User("batch_new_user", "password", "batch_new@test.com", "Batch New User"),
+            new User("admin", "password", "batch_admin@test.com", "Duplicate Admin"));
+        assertFalse(userService.registerUsers(users));
+        assertFalse(userService.isUsernameExists("batch_new_user"));
+    }
 }
\ No newline at end of file
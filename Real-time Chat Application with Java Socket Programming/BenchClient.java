@@ -0,0 +1,156 @@
+package com.chat.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Minimal non-blocking chat client used by the load tests and benchmarks.
+ * Many of these share one Selector so thousands of simulated users can be
+ * driven from a single thread. Lines carrying a timestamp marker are turned
+ * into delivery latency samples.
+ */
+class BenchClient {
+    static final String MARKER = "bench|";
+    
+    private final SocketChannel channel;
+    private final LatencyRecorder recorder;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean welcomed;
+    
+    private BenchClient(SocketChannel channel, LatencyRecorder recorder) {
+        this.channel = channel;
+        this.recorder = recorder;
+    }
+    
+    static BenchClient connect(Selector selector, int port, LatencyRecorder recorder) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        channel.configureBlocking(false);
+        BenchClient client = new BenchClient(channel, recorder);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        return client;
+    }
+    
+    void send(String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    void sendTimestamped() throws IOException {
+        send(MARKER + System.nanoTime());
+    }
+    
+    boolean isWelcomed() {
+        return welcomed;
+    }
+    
+    void close() throws IOException {
+        channel.close();
+    }
+    
+    private void read() throws IOException {
+        readBuffer.clear();
+        if (channel.read(readBuffer) < 0) {
+            channel.close();
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                onLine(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+                lineLength = 0;
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+    
+    private void onLine(String text) {
+        int marker = text.indexOf(MARKER);
+        if (marker >= 0) {
+            long sentAt = Long.parseLong(text.substring(marker + MARKER.length()).trim());
+            recorder.record(System.nanoTime() - sentAt);
+        } else if (text.startsWith("Welcome, ")) {
+            welcomed = true;
+            recorder.welcomed++;
+        }
+    }
+    
+    /**
+     * Reads from every ready client until {@code done} holds or the timeout
+     * expires. Returns false on timeout.
+     */
+    static boolean pump(Selector selector, BooleanSupplier done, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!done.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            selector.select(10);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    ((BenchClient) key.attachment()).read();
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Collects latency samples and login confirmations for a run.
+     */
+    static class LatencyRecorder {
+        private long[] latencies;
+        private int samples;
+        private int welcomed;
+        
+        LatencyRecorder(int initialCapacity) {
+            latencies = new long[Math.max(16, initialCapacity)];
+        }
+        
+        void record(long nanos) {
+            if (samples == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[samples++] = nanos;
+        }
+        
+        int samples() {
+            return samples;
+        }
+        
+        int welcomed() {
+            return welcomed;
+        }
+        
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(latencies, samples);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+        
+        static double percentileMillis(long[] sorted, double p) {
+            if (sorted.length == 0) return 0.0;
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
\ No newline at end of file
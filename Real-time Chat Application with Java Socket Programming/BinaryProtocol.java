@@ -0,0 +1,335 @@
+package com.chat.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Optional length-prefixed binary format for the TCP chat protocol. The
+ * text protocol stays the default: a client opts in by sending
+ * UPGRADE_REQUEST as its first line and waiting for the UPGRADE_ACK line.
+ * From then on every byte in both directions is a frame:
+ * <pre>
+ *   varint length | opcode | payload      (length counts opcode and payload)
+ * </pre>
+ * Strings are a varint byte count followed by UTF-8. MESSAGE frames refer to
+ * rooms and users by varint id; the server sends a DEFINE frame for an id
+ * before the first MESSAGE that uses it on each connection. A message whose
+ * names got no id (see Message.NAMES) is sent as a TEXT frame instead.
+ */
+public final class BinaryProtocol {
+    public static final String UPGRADE_REQUEST = "/binary";
+    public static final String UPGRADE_ACK = "Switched to binary protocol.";
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    
+    /** Client to server: a login attempt (username). */
+    public static final int LOGIN = 1;
+    /** Client to server: a message for the current room (content). */
+    public static final int CHAT = 2;
+    /** Client to server: a private message (recipient, content). */
+    public static final int PRIVATE = 3;
+    /** Client to server: any other command line, e.g. "/join lobby". */
+    public static final int COMMAND = 4;
+    /** Server to client: a line of text (text). */
+    public static final int TEXT = 16;
+    /** Server to client: names an id (id, name). */
+    public static final int DEFINE = 17;
+    /** Server to client: a routed message (type, room id + 1, user id + 1, epoch millis, content). */
+    public static final int MESSAGE = 18;
+    
+    /**
+     * Ids of the room and user names seen by the server, shared by every
+     * connection so that a MESSAGE frame is encoded once per broadcast.
+     * These are the ids Messages already carry.
+     */
+    public static final SymbolTable NAMES = Message.NAMES;
+    
+    /** Encodes a routed message as a MESSAGE frame. */
+    public static final MessageEncoder MESSAGE_FRAME = BinaryProtocol::encodeMessage;
+    
+    private BinaryProtocol() {
+    }
+    
+    /**
+     * Builds a frame whose payload is the given strings, in order.
+     */
+    public static ByteBuffer frame(int opcode, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += varintSize(encoded[i].length) + encoded[i].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(frame, length);
+        frame.put((byte) opcode);
+        for (byte[] field : encoded) {
+            putVarint(frame, field.length);
+            frame.put(field);
+        }
+        return frame.flip();
+    }
+    
+    public static ByteBuffer text(String text) {
+        return frame(TEXT, text);
+    }
+    
+    public static ByteBuffer define(int id, String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + varintSize(id) + varintSize(encoded.length) + encoded.length;
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(frame, length);
+        frame.put((byte) DEFINE);
+        putVarint(frame, id);
+        putVarint(frame, encoded.length);
+        frame.put(encoded);
+        return frame.flip();
+    }
+    
+    private static ByteBuffer encodeMessage(Message message) {
+        if (message.getRoomId() == Message.INLINE_NAME || message.getUserId() == Message.INLINE_NAME) {
+            return text(message.toString());
+        }
+        int room = message.getRoomId() + 1;
+        int user = message.getUserId() + 1;
+        long millis = message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        byte[] content = message.getContent() == null ? new byte[0] : message.getContent().getBytes(StandardCharsets.UTF_8);
+        int length = 2 + varintSize(room) + varintSize(user) + varlongSize(millis)
+                     + varintSize(content.length) + content.length;
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(frame, length);
+        frame.put((byte) MESSAGE);
+        frame.put((byte) message.getType().ordinal());
+        putVarint(frame, room);
+        putVarint(frame, user);
+        putVarlong(frame, millis);
+        putVarint(frame, content.length);
+        frame.put(content);
+        return frame.flip();
+    }
+    
+    /**
+     * Decodes a MESSAGE payload, looking up room and user ids in
+     * {@code names} (filled from DEFINE frames).
+     */
+    public static Message decodeMessage(ByteBuffer payload, IntFunction<String> names) {
+        Message.MessageType type = Message.MessageType.values()[payload.get()];
+        int room = getVarint(payload);
+        int user = getVarint(payload);
+        long millis = getVarlong(payload);
+        String content = getString(payload);
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        return new Message(user == 0 ? "" : names.apply(user - 1), content,
+                           room == 0 ? "" : names.apply(room - 1), type, timestamp);
+    }
+    
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    public static void putVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+    
+    public static int varlongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+    
+    public static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    public static long getVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    public static String getString(ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+    
+    /**
+     * Reads a varint from a blocking stream, e.g. a frame length.
+     */
+    public static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed frame length");
+    }
+    
+    /**
+     * Receives one decoded frame. The payload is only valid during the call.
+     */
+    public interface FrameHandler {
+        void onFrame(int opcode, ByteBuffer payload);
+    }
+    
+    /**
+     * Splits a byte stream into frames, keeping a partial frame between
+     * calls. Frames that arrive whole are handed over without copying.
+     */
+    public static final class FrameDecoder {
+        private byte[] pending = new byte[256];
+        private int pendingLength;
+        
+        public void feed(ByteBuffer input, FrameHandler handler) throws IOException {
+            ByteBuffer source = input;
+            if (pendingLength > 0) {
+                append(input);
+                source = ByteBuffer.wrap(pending, 0, pendingLength);
+            } else if (!input.hasArray()) {
+                append(input);
+                source = ByteBuffer.wrap(pending, 0, pendingLength);
+            }
+            while (source.hasRemaining()) {
+                int start = source.position();
+                int length = readLength(source);
+                if (length < 0 || source.remaining() < length) {
+                    source.position(start);
+                    break;
+                }
+                int opcode = source.get() & 0xff;
+                ByteBuffer payload = source.slice(source.position(), length - 1);
+                source.position(source.position() + length - 1);
+                handler.onFrame(opcode, payload);
+            }
+            int left = source.remaining();
+            if (source == input) {
+                if (left > pending.length) {
+                    pending = new byte[left];
+                }
+                input.get(pending, 0, left);
+            } else {
+                System.arraycopy(pending, source.position(), pending, 0, left);
+            }
+            pendingLength = left;
+        }
+        
+        private void append(ByteBuffer input) {
+            int needed = pendingLength + input.remaining();
+            if (needed > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+            }
+            int count = input.remaining();
+            input.get(pending, pendingLength, count);
+            pendingLength += count;
+        }
+        
+        /**
+         * Returns the frame length at the buffer's position, or -1 if the
+         * varint is not complete yet.
+         */
+        private static int readLength(ByteBuffer source) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32 && source.hasRemaining(); shift += 7) {
+                byte b = source.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    if (value < 1 || value > MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid frame length " + value);
+                    }
+                    return value;
+                }
+            }
+            return -1;
+        }
+    }
+    
+    /**
+     * Emits DEFINE frames on a connection's writer: shown each outgoing
+     * frame, it returns the definitions of any ids in it the client has not
+     * been told about yet, or null. Because it runs as frames are written,
+     * the client learns every id it sees, whatever the outbound queue
+     * dropped. Frames up to and including {@code after} (the text lines
+     * sent before the upgrade) are passed over. Ids stay below
+     * Message.MAX_NAMES, which bounds the ids remembered as sent.
+     */
+    public static final class Definitions implements UnaryOperator<ByteBuffer> {
+        private final BitSet sent = new BitSet();
+        private ByteBuffer after;
+        
+        public Definitions(ByteBuffer after) {
+            this.after = after;
+        }
+        
+        @Override
+        public ByteBuffer apply(ByteBuffer frame) {
+            if (after != null) {
+                if (frame == after) after = null;
+                return null;
+            }
+            ByteBuffer view = frame.duplicate();
+            getVarint(view);
+            if (view.get() != MESSAGE) return null;
+            view.get();
+            int room = getVarint(view) - 1;
+            int user = getVarint(view) - 1;
+            ByteBuffer roomDefinition = definition(room);
+            ByteBuffer userDefinition = definition(user);
+            if (roomDefinition == null) return userDefinition;
+            if (userDefinition == null) return roomDefinition;
+            ByteBuffer both = ByteBuffer.allocate(roomDefinition.remaining() + userDefinition.remaining());
+            return both.put(roomDefinition).put(userDefinition).flip();
+        }
+        
+        private ByteBuffer definition(int id) {
+            if (id < 0 || sent.get(id)) return null;
+            sent.set(id);
+            return define(id, NAMES.nameOf(id));
+        }
+    }
+}
\ No newline at end of file
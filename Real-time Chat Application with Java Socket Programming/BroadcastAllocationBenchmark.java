@@ -0,0 +1,107 @@
+package com.chat.test;
+
+import com.chat.common.Message;
+import com.chat.server.ChatServer;
+import com.chat.server.ClientHandler;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many bytes one room broadcast allocates on the sending thread.
+ * The "per-recipient" path is how broadcasts used to work: the message is
+ * formatted once with String.format and a fresh DateTimeFormatter, then
+ * encoded again for every member. The "shared" path encodes the message once
+ * with Message.toLine and hands every member a view of the same bytes.
+ *
+ * Recipients are in-memory handlers whose writer never runs, so only the
+ * fan-out itself is measured; each queue is emptied between broadcasts.
+ *
+ * Usage: java com.chat.test.BroadcastAllocationBenchmark [broadcasts per room size]
+ */
+public class BroadcastAllocationBenchmark {
+    private static final int[] ROOM_SIZES = { 10, 100, 1000 };
+    private static final String CONTENT = "The quick brown fox jumps over the lazy dog, twice.";
+    
+    public static void main(String[] args) {
+        int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        
+        System.out.println("=== Broadcast Allocation Benchmark ===");
+        System.out.println("Broadcasts per room size: " + broadcasts);
+        System.out.println();
+        System.out.printf("%-8s %-14s %14s %16s %12s%n",
+                "members", "path", "bytes/bcast", "bytes/recipient", "us/bcast");
+        
+        ChatServer server = new ChatServer();
+        for (int members : ROOM_SIZES) {
+            List<ClientHandler> room = new ArrayList<>();
+            for (int i = 0; i < members; i++) {
+                room.add(new SinkHandler(server));
+            }
+            // Fewer iterations for big rooms keep the run time roughly flat
+            int iterations = Math.max(100, broadcasts * ROOM_SIZES[0] / members);
+            for (boolean shared : new boolean[] { false, true }) {
+                // Warm up so the JIT has compiled (and possibly scalarized) the path
+                for (int i = 0; i < iterations; i++) {
+                    broadcast(room, shared);
+                }
+                long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    broadcast(room, shared);
+                }
+                long elapsed = System.nanoTime() - start;
+                long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+                
+                double perBroadcast = bytes / (double) iterations;
+                System.out.printf("%-8d %-14s %14.0f %16.1f %12.2f%n",
+                        members, shared ? "shared" : "per-recipient",
+                        perBroadcast, perBroadcast / members, elapsed / 1_000.0 / iterations);
+            }
+        }
+        server.stop();
+    }
+    
+    private static void broadcast(List<ClientHandler> room, boolean shared) {
+        Message message = new Message("alice", CONTENT, "general", Message.MessageType.CHAT);
+        if (shared) {
+            ByteBuffer line = message.toLine();
+            for (ClientHandler member : room) {
+                member.sendLine(line);
+            }
+        } else {
+            String text = legacyFormat(message);
+            for (ClientHandler member : room) {
+                member.sendMessage(text);
+            }
+        }
+        for (ClientHandler member : room) {
+            member.getOutboundQueue().clear();
+        }
+    }
+    
+    /**
+     * Message.toString as it was before broadcasts were serialized once.
+     */
+    private static String legacyFormat(Message message) {
+        String timestamp = message.getTimestamp().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+        return String.format("[%s] %s: %s", timestamp, message.getUsername(), message.getContent());
+    }
+    
+    /**
+     * Recipient that only queues: its writer is never scheduled.
+     */
+    private static class SinkHandler extends ClientHandler {
+        SinkHandler(ChatServer server) {
+            super(server);
+        }
+        
+        @Override
+        protected void scheduleWrite() {
+        }
+    }
+}
\ No newline at end of file
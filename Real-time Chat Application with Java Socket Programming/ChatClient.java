@@ -1,18 +1,43 @@
 package com.chat.client;
 
+import com.chat.common.BinaryProtocol;
+import com.chat.common.DeflateProtocol;
+import com.chat.common.Heartbeat;
+import com.chat.common.SessionProtocol;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatClient {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8080;
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30_000;
     
     private Socket socket;
     private BufferedReader reader;
-    private PrintWriter writer;
+    private volatile PrintWriter writer;
     private Scanner scanner;
     private volatile boolean running;
+    private boolean binary;
+    private boolean compressed;
+    private long flushIntervalMillis;
+    private InputStream input;
+    private OutputStream output;
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private final Map<Integer, String> names = new HashMap<>();
+    // Text-mode session state, kept so a dropped connection can be resumed
+    private volatile String pendingUsername;
+    private String username;
+    private volatile String sessionToken;
+    private String currentRoom;
+    private final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
     
     public ChatClient() {
         scanner = new Scanner(System.in);
@@ -22,7 +47,12 @@ public class ChatClient {
     public void start() {
         try {
             connectToServer();
-            startMessageListener();
+            if (binary) {
+                upgradeToBinary();
+                startFrameListener();
+            } else {
+                startMessageListener();
+            }
             handleUserInput();
         } catch (IOException e) {
             System.err.println("Client error: " + e.getMessage());
@@ -34,17 +64,111 @@ public class ChatClient {
     private void connectToServer() throws IOException {
         System.out.println("Connecting to chat server...");
         socket = new Socket(SERVER_HOST, SERVER_PORT);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         writer = new PrintWriter(socket.getOutputStream(), true);
+        input = new BufferedInputStream(socket.getInputStream());
+        if (compressed) {
+            negotiateCompression();
+        }
+        reader = new BufferedReader(new InputStreamReader(input));
         System.out.println("Connected to server at " + SERVER_HOST + ":" + SERVER_PORT);
     }
     
-    private void startMessageListener() {
-        Thread messageListener = new Thread(() -> {
+    /**
+     * Asks for compressed output and prints the server's text lines until
+     * it agrees or turns the request down. From the acknowledgement on,
+     * everything is read through an InflatingInputStream.
+     */
+    private void negotiateCompression() throws IOException {
+        writer.println(DeflateProtocol.UPGRADE_REQUEST);
+        String line;
+        while ((line = readRawLine()) != null) {
+            if (line.equals(DeflateProtocol.UPGRADE_ACK)) {
+                System.out.println("Using compressed output.");
+                input = new DeflateProtocol.InflatingInputStream(input);
+                return;
+            }
+            System.out.println(line);
+            if (line.equals(DeflateProtocol.UPGRADE_REFUSED)) {
+                return;
+            }
+        }
+        throw new EOFException("Server closed the connection during the protocol upgrade");
+    }
+    
+    /**
+     * Reads one line byte by byte, so that nothing after it is consumed.
+     * Returns null at the end of the stream.
+     */
+    private String readRawLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) >= 0) {
+            if (b == '\n') {
+                return line.toString(StandardCharsets.UTF_8).trim();
+            }
+            line.write(b);
+        }
+        return null;
+    }
+    
+    /**
+     * Uses the binary frame protocol instead of text lines. Binary sessions
+     * are not resumed after a dropped connection. Call before start().
+     */
+    public void setBinaryProtocol(boolean binary) {
+        this.binary = binary;
+    }
+    
+    /**
+     * Asks the server to deflate everything it sends (see DeflateProtocol).
+     * Call before start().
+     */
+    public void setCompression(boolean compressed) {
+        this.compressed = compressed;
+    }
+    
+    /**
+     * In binary mode, collects outgoing frames for up to {@code millis} and
+     * sends them in one write. 0 (the default) sends each one immediately.
+     * Call before start().
+     */
+    public void setFlushInterval(long millis) {
+        this.flushIntervalMillis = millis;
+    }
+    
+    /**
+     * Asks for the binary protocol and prints the server's text lines until
+     * it agrees. Reads byte by byte so that nothing after the acknowledgement
+     * is consumed as text.
+     */
+    private void upgradeToBinary() throws IOException {
+        output = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        writer.println(BinaryProtocol.UPGRADE_REQUEST);
+        String text;
+        while ((text = readRawLine()) != null) {
+            if (text.equals(BinaryProtocol.UPGRADE_ACK)) {
+                System.out.println("Using the binary protocol.");
+                if (flushIntervalMillis > 0) {
+                    startFlusher();
+                }
+                return;
+            }
+            System.out.println(text);
+        }
+        throw new EOFException("Server closed the connection during the protocol upgrade");
+    }
+    
+    private void startFrameListener() {
+        Thread frameListener = new Thread(() -> {
             try {
-                String message;
-                while (running && (message = reader.readLine()) != null) {
-                    System.out.println(message);
+                byte[] frame = new byte[256];
+                while (running) {
+                    int length = BinaryProtocol.readVarint(input);
+                    if (length > frame.length) {
+                        frame = new byte[Math.max(length, frame.length * 2)];
+                    }
+                    readFully(frame, length);
+                    handleFrame(frame[0] & 0xff, ByteBuffer.wrap(frame, 1, length - 1).slice());
                 }
             } catch (IOException e) {
                 if (running) {
@@ -53,10 +177,208 @@ public class ChatClient {
                 }
             }
         });
+        frameListener.setDaemon(true);
+        frameListener.start();
+    }
+    
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = input.read(buffer, read, length - read);
+            if (count < 0) throw new EOFException();
+            read += count;
+        }
+    }
+    
+    private void handleFrame(int opcode, ByteBuffer payload) {
+        switch (opcode) {
+            case BinaryProtocol.TEXT:
+                String text = BinaryProtocol.getString(payload);
+                if (text.equals(Heartbeat.PING)) {
+                    sendFrame(Heartbeat.PONG);
+                } else {
+                    System.out.println(text);
+                }
+                break;
+            case BinaryProtocol.DEFINE:
+                int id = BinaryProtocol.getVarint(payload);
+                names.put(id, BinaryProtocol.getString(payload));
+                break;
+            case BinaryProtocol.MESSAGE:
+                System.out.println(BinaryProtocol.decodeMessage(payload, names::get));
+                break;
+            default:
+                // Frame types added by newer servers
+        }
+    }
+    
+    private void startFlusher() {
+        Thread flusher = new Thread(() -> {
+            try {
+                while (running) {
+                    Thread.sleep(flushIntervalMillis);
+                    flushFrames();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    
+    /**
+     * Sends one line of user input as the matching binary frame.
+     */
+    private void sendFrame(String input) {
+        ByteBuffer frame;
+        if (input.startsWith("/pm ") || input.startsWith("/private ")) {
+            String[] parts = input.split(" ", 3);
+            frame = parts.length == 3 ? BinaryProtocol.frame(BinaryProtocol.PRIVATE, parts[1], parts[2])
+                                      : BinaryProtocol.frame(BinaryProtocol.COMMAND, input);
+        } else if (input.startsWith("/")) {
+            frame = BinaryProtocol.frame(BinaryProtocol.COMMAND, input);
+        } else {
+            frame = BinaryProtocol.frame(BinaryProtocol.CHAT, input);
+        }
+        outputLock.lock();
+        try {
+            output.write(frame.array(), 0, frame.limit());
+            if (flushIntervalMillis <= 0) {
+                output.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending message: " + e.getMessage());
+        } finally {
+            outputLock.unlock();
+        }
+    }
+    
+    private void flushFrames() {
+        outputLock.lock();
+        try {
+            output.flush();
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error sending message: " + e.getMessage());
+            }
+        } finally {
+            outputLock.unlock();
+        }
+    }
+    
+    private void startMessageListener() {
+        Thread messageListener = new Thread(() -> {
+            while (running) {
+                try {
+                    String message;
+                    while (running && (message = reader.readLine()) != null) {
+                        handleLine(message);
+                    }
+                    if (running) {
+                        System.err.println("Connection to server lost.");
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("Connection to server lost: " + e.getMessage());
+                    }
+                }
+                if (!running || sessionToken == null || !reconnect()) {
+                    running = false;
+                    return;
+                }
+            }
+        });
         messageListener.setDaemon(true);
         messageListener.start();
     }
     
+    /**
+     * Prints one server line, first noting the session token, the current
+     * room and the sequence number of each room message.
+     */
+    private void handleLine(String line) {
+        if (line.equals(Heartbeat.PING)) {
+            writer.println(Heartbeat.PONG);
+            return;
+        }
+        if (line.startsWith(SessionProtocol.TOKEN + " ")) {
+            sessionToken = line.substring(SessionProtocol.TOKEN.length() + 1);
+            username = pendingUsername;
+            return;
+        }
+        if (!line.isEmpty() && line.charAt(0) == SessionProtocol.SEQUENCE_MARK) {
+            int roomStart = line.indexOf(' ') + 1;
+            int roomEnd = line.indexOf(' ', roomStart);
+            if (roomStart > 0 && roomEnd > 0) {
+                try {
+                    lastSequences.merge(line.substring(roomStart, roomEnd),
+                                        Long.parseLong(line.substring(1, roomStart - 1)), Math::max);
+                    line = line.substring(roomEnd + 1);
+                } catch (NumberFormatException e) {
+                    // Not a sequence number; print the line as it is
+                }
+            }
+        }
+        if (line.startsWith("=== Joined room: ") && line.endsWith(" ===")) {
+            currentRoom = line.substring("=== Joined room: ".length(), line.length() - " ===".length());
+        } else if (line.equals("You left the room.")) {
+            currentRoom = null;
+        }
+        System.out.println(line);
+    }
+    
+    /**
+     * Reconnects with growing delays and resumes the session in the room it
+     * was in, from the last message seen there. Returns false once the
+     * attempts are used up.
+     */
+    private boolean reconnect() {
+        long delay = 1000;
+        for (int attempt = 1; attempt <= MAX_RECONNECT_ATTEMPTS && running; attempt++) {
+            try {
+                Thread.sleep(delay);
+                System.out.println("Reconnecting (attempt " + attempt + " of " + MAX_RECONNECT_ATTEMPTS + ")...");
+                socket.close();
+                connectToServer();
+                String resume = SessionProtocol.RESUME + " " + username + " " + sessionToken;
+                if (currentRoom != null) {
+                    resume += " " + currentRoom + " " + lastSequences.getOrDefault(currentRoom, 0L);
+                }
+                writer.println(resume);
+                if (awaitResume()) {
+                    return true;
+                }
+            } catch (IOException e) {
+                System.err.println("Reconnect failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+        return false;
+    }
+    
+    /**
+     * Prints the server's answer to a resume until it sends a token. The
+     * old connection may still hold the username for a moment, in which
+     * case the server closes it and the next attempt goes through.
+     */
+    private boolean awaitResume() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.contains("is already taken")) {
+                return false;
+            }
+            handleLine(line);
+            if (line.startsWith(SessionProtocol.TOKEN + " ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private void handleUserInput() {
         System.out.println("You can start typing messages. Type '/help' for commands or '/quit' to exit.");
         
@@ -72,7 +394,15 @@ public class ChatClient {
                         break;
                     }
                     
-                    writer.println(input);
+                    if (binary) {
+                        sendFrame(input);
+                    } else if (sessionToken == null && !input.startsWith("/")) {
+                        // Log in with a resumable session
+                        pendingUsername = input;
+                        writer.println(SessionProtocol.LOGIN + " " + input);
+                    } else {
+                        writer.println(input);
+                    }
                 }
             } catch (Exception e) {
                 System.err.println("Error reading input: " + e.getMessage());
@@ -84,7 +414,10 @@ public class ChatClient {
     private void disconnect() {
         running = false;
         try {
-            if (writer != null) {
+            if (binary && output != null && !socket.isClosed()) {
+                sendFrame("/quit");
+                flushFrames();
+            } else if (writer != null) {
                 writer.println("/quit");
                 writer.close();
             }
@@ -99,12 +432,24 @@ public class ChatClient {
         System.out.println("Disconnected from server.");
     }
     
+    /**
+     * Usage: ChatClient [--binary] [--deflate] [--flush-interval-ms=N]
+     */
     public static void main(String[] args) {
         System.out.println("=== Real-Time Chat Client ===");
         System.out.println("Developed using Java Socket Programming");
         System.out.println("=====================================");
         
         ChatClient client = new ChatClient();
+        for (String arg : args) {
+            if (arg.equals("--binary")) {
+                client.setBinaryProtocol(true);
+            } else if (arg.equals("--deflate")) {
+                client.setCompression(true);
+            } else if (arg.startsWith("--flush-interval-ms=")) {
+                client.setFlushInterval(Long.parseLong(arg.substring("--flush-interval-ms=".length())));
+            }
+        }
         
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(client::disconnect));
@@ -1,20 +1,44 @@
 package com.chat.client;
 
+import com.chat.common.Heartbeat;
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Swing chat client. The listener thread never touches Swing itself: it
+ * queues incoming lines, and at most once per frame the event dispatch
+ * thread appends everything queued in one update, so a busy room costs the
+ * EDT one task per frame rather than one per line. The chat area keeps the
+ * last MAX_LINES lines. The queue is held to the same size, since older
+ * lines would be trimmed as soon as they were shown; what it drops is
+ * reported as skipped.
+ */
 public class ChatClientGUI extends JFrame {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8080;
+    private static final int FRAME_MILLIS = 16;
+    private static final int MAX_LINES = 5000;
     
     private Socket socket;
     private BufferedReader reader;
     private PrintWriter writer;
     private volatile boolean connected = false;
     
+    // Lines waiting for the next frame, filled from any thread
+    private final transient Queue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    private final transient AtomicInteger pendingCount = new AtomicInteger();
+    private final transient AtomicInteger skippedLines = new AtomicInteger();
+    private final transient AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final transient Timer frameTimer = new Timer(FRAME_MILLIS, e -> flushChat());
+    
     // GUI Components
     private JTextArea chatArea;
     private JTextField messageField;
@@ -26,6 +50,7 @@ public class ChatClientGUI extends JFrame {
     private JLabel statusLabel;
     
     public ChatClientGUI() {
+        frameTimer.setRepeats(false);
         initializeGUI();
     }
     
@@ -145,8 +170,11 @@ public class ChatClientGUI extends JFrame {
             try {
                 String message;
                 while (connected && (message = reader.readLine()) != null) {
-                    final String msg = message;
-                    SwingUtilities.invokeLater(() -> appendToChat(msg));
+                    if (message.equals(Heartbeat.PING)) {
+                        writer.println(Heartbeat.PONG);
+                        continue;
+                    }
+                    appendToChat(message);
                 }
             } catch (IOException e) {
                 if (connected) {
@@ -223,11 +251,49 @@ public class ChatClientGUI extends JFrame {
         }
     }
     
+    /**
+     * Queues a line for the chat area. Safe to call from any thread; the
+     * line appears with the next frame.
+     */
     private void appendToChat(String message) {
-        SwingUtilities.invokeLater(() -> {
-            chatArea.append(message + "\n");
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        pendingLines.add(message);
+        if (pendingCount.incrementAndGet() > MAX_LINES && pendingLines.poll() != null) {
+            pendingCount.decrementAndGet();
+            skippedLines.incrementAndGet();
+        }
+        if (frameScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(frameTimer::start);
+        }
+    }
+    
+    /**
+     * Appends every queued line in one document update and trims the chat
+     * area back to MAX_LINES. Runs on the EDT.
+     */
+    private void flushChat() {
+        // Cleared first, so a line queued from here on schedules another frame
+        frameScheduled.set(false);
+        StringBuilder text = new StringBuilder();
+        int skipped = skippedLines.getAndSet(0);
+        if (skipped > 0) {
+            text.append("... ").append(skipped).append(" messages skipped ...\n");
+        }
+        String line;
+        while ((line = pendingLines.poll()) != null) {
+            pendingCount.decrementAndGet();
+            text.append(line).append('\n');
+        }
+        if (text.length() == 0) return;
+        chatArea.append(text.toString());
+        int excess = chatArea.getLineCount() - 1 - MAX_LINES;
+        if (excess > 0) {
+            try {
+                chatArea.replaceRange("", 0, chatArea.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                System.err.println("Error trimming chat: " + e.getMessage());
+            }
+        }
+        chatArea.setCaretPosition(chatArea.getDocument().getLength());
     }
     
     public static void main(String[] args) {
@@ -0,0 +1,235 @@
+package com.chat.server;
+
+import com.chat.common.ChatRoom;
+import com.chat.common.Connection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one ChatRouter and every transport
+ * attached to it, rendered in the Prometheus text format by scrape().
+ * Recording only touches LongAdders and preallocated histograms, so it
+ * allocates nothing on the message path; per-room counts live on the
+ * ChatRoom itself and queue gauges are read from the connections at scrape
+ * time.
+ */
+public class ChatMetrics {
+    /** Upper bounds, in seconds, of the exported histogram buckets. */
+    private static final String[] BUCKET_BOUNDS = {
+        "0.00001", "0.000025", "0.00005", "0.0001", "0.00025", "0.0005", "0.001", "0.0025",
+        "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5"
+    };
+    private static final long[] BUCKET_BOUND_NANOS = new long[BUCKET_BOUNDS.length];
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            BUCKET_BOUND_NANOS[i] = Math.round(Double.parseDouble(BUCKET_BOUNDS[i]) * 1e9);
+        }
+    }
+    private static final String[] COMMANDS = {
+        "help", "join", "leave", "pm", "private", "users", "rooms", "history", "search", "more", "stats", "pong",
+        "quit", "exit"
+    };
+    
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder userThrottled = new LongAdder();
+    private final LongAdder roomThrottled = new LongAdder();
+    private final LongAdder compressionIn = new LongAdder();
+    private final LongAdder compressionOut = new LongAdder();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> commandLatency = new LinkedHashMap<>();
+    private final LatencyHistogram otherCommandLatency = new LatencyHistogram();
+    
+    public ChatMetrics() {
+        for (String command : COMMANDS) {
+            commandLatency.put("/" + command, new LatencyHistogram());
+        }
+    }
+    
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+    
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+    
+    /**
+     * Counts bytes written to clients; writers add once per flushed batch.
+     */
+    public LongAdder getBytesWritten() {
+        return bytesWritten;
+    }
+    
+    /** Counts an input line dropped by a connection's rate limit. */
+    public void userThrottled() {
+        userThrottled.increment();
+    }
+    
+    /** Counts a message dropped by a room's rate limit. */
+    public void roomThrottled() {
+        roomThrottled.increment();
+    }
+    
+    public long getUserThrottled() {
+        return userThrottled.sum();
+    }
+    
+    public long getRoomThrottled() {
+        return roomThrottled.sum();
+    }
+    
+    /** Counts the output of compressed connections before packing. */
+    public LongAdder getCompressionIn() {
+        return compressionIn;
+    }
+    
+    /** Counts what compressed connections actually sent. */
+    public LongAdder getCompressionOut() {
+        return compressionOut;
+    }
+    
+    public void recordFanOut(long nanos) {
+        fanOut.record(nanos);
+    }
+    
+    /**
+     * Records how long a command took. Unknown commands share one series so
+     * that typos cannot create new ones.
+     */
+    public void recordCommand(String command, long nanos) {
+        commandLatency.getOrDefault(command, otherCommandLatency).record(nanos);
+    }
+    
+    public LatencyHistogram getFanOutLatency() {
+        return fanOut;
+    }
+    
+    /**
+     * Renders every metric in the Prometheus text exposition format, with
+     * the gauges read from {@code router}, the router these metrics belong to.
+     */
+    public String scrape(ChatRouter router) {
+        StringBuilder out = new StringBuilder(4096);
+        int connections = 0;
+        long queued = 0;
+        int deepest = 0;
+        long dropped = 0;
+        for (Connection connection : router.getConnections()) {
+            connections++;
+            int depth = connection.getQueueDepth();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+            dropped += connection.getDroppedCount();
+        }
+        
+        header(out, "chat_connections", "gauge", "Users currently logged in on this server");
+        out.append("chat_connections ").append(connections).append('\n');
+        header(out, "chat_connections_opened_total", "counter", "Logins since startup");
+        out.append("chat_connections_opened_total ").append(connectionsOpened.sum()).append('\n');
+        header(out, "chat_connections_closed_total", "counter", "Logouts and disconnects since startup");
+        out.append("chat_connections_closed_total ").append(connectionsClosed.sum()).append('\n');
+        
+        header(out, "chat_messages_routed_total", "counter", "Messages routed to rooms and users");
+        out.append("chat_messages_routed_total ").append(router.getMessagesRouted()).append('\n');
+        header(out, "chat_deliveries_total", "counter", "Messages handed to recipient connections");
+        out.append("chat_deliveries_total ").append(router.getDeliveries()).append('\n');
+        header(out, "chat_room_messages_in_total", "counter", "Messages posted to each room");
+        for (ChatRoom room : router.getRooms()) {
+            out.append("chat_room_messages_in_total{room=\"");
+            escape(out, room.getName()).append("\"} ").append(room.getMessagesIn()).append('\n');
+        }
+        header(out, "chat_room_messages_out_total", "counter", "Deliveries to the members of each room");
+        for (ChatRoom room : router.getRooms()) {
+            out.append("chat_room_messages_out_total{room=\"");
+            escape(out, room.getName()).append("\"} ").append(room.getMessagesOut()).append('\n');
+        }
+        header(out, "chat_room_throttled_total", "counter", "Messages each room's rate limit turned away");
+        for (ChatRoom room : router.getRooms()) {
+            out.append("chat_room_throttled_total{room=\"");
+            escape(out, room.getName()).append("\"} ").append(room.getThrottled()).append('\n');
+        }
+        header(out, "chat_throttled_total", "counter", "Input dropped by rate limits");
+        out.append("chat_throttled_total{scope=\"user\"} ").append(userThrottled.sum()).append('\n');
+        out.append("chat_throttled_total{scope=\"room\"} ").append(roomThrottled.sum()).append('\n');
+        header(out, "chat_room_members", "gauge", "Members of each room on this server");
+        for (ChatRoom room : router.getRooms()) {
+            out.append("chat_room_members{room=\"");
+            escape(out, room.getName()).append("\"} ").append(room.getClientCount()).append('\n');
+        }
+        header(out, "chat_room_search_index_bytes", "gauge", "Estimated heap of each room's search index");
+        for (ChatRoom room : router.getRooms()) {
+            if (room.getSearchIndex() != null) {
+                out.append("chat_room_search_index_bytes{room=\"");
+                escape(out, room.getName()).append("\"} ").append(room.getSearchIndex().getBytes()).append('\n');
+            }
+        }
+        
+        header(out, "chat_outbound_queued", "gauge", "Messages waiting in all outbound queues");
+        out.append("chat_outbound_queued ").append(queued).append('\n');
+        header(out, "chat_outbound_queue_depth_max", "gauge", "Deepest outbound queue of any connection");
+        out.append("chat_outbound_queue_depth_max ").append(deepest).append('\n');
+        header(out, "chat_outbound_dropped", "gauge", "Messages dropped by connected users' full queues");
+        out.append("chat_outbound_dropped ").append(dropped).append('\n');
+        header(out, "chat_bytes_written_total", "counter", "Bytes written to client sockets");
+        out.append("chat_bytes_written_total ").append(bytesWritten.sum()).append('\n');
+        header(out, "chat_compression_bytes_total", "counter", "Output of compressed connections before and after packing");
+        out.append("chat_compression_bytes_total{stage=\"in\"} ").append(compressionIn.sum()).append('\n');
+        out.append("chat_compression_bytes_total{stage=\"out\"} ").append(compressionOut.sum()).append('\n');
+        
+        header(out, "chat_fanout_seconds", "histogram", "Time to queue a room message for every local member");
+        histogram(out, "chat_fanout_seconds", "", fanOut);
+        header(out, "chat_command_seconds", "histogram", "Time to handle each text command");
+        for (Map.Entry<String, LatencyHistogram> entry : commandLatency.entrySet()) {
+            histogram(out, "chat_command_seconds", "command=\"" + entry.getKey().substring(1) + "\"", entry.getValue());
+        }
+        histogram(out, "chat_command_seconds", "command=\"other\"", otherCommandLatency);
+        
+        ClusterNode cluster = router.getCluster();
+        if (cluster != null) {
+            header(out, "chat_cluster_peers_connected", "gauge", "Cluster peers with a live link");
+            out.append("chat_cluster_peers_connected ").append(cluster.getConnectedPeerCount()).append('\n');
+            header(out, "chat_cluster_delivery_latency_seconds", "histogram",
+                   "Time from another node sending a message to its delivery here");
+            histogram(out, "chat_cluster_delivery_latency_seconds", "", cluster.getLatency());
+        }
+        return out.toString();
+    }
+    
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            cumulative = histogram.countAtOrBelow(BUCKET_BOUND_NANOS[i]);
+            out.append(name).append("_bucket").append(prefix).append("le=\"").append(BUCKET_BOUNDS[i]).append("\"} ")
+               .append(cumulative).append('\n');
+        }
+        // Values recorded during the scrape must not make +Inf smaller than a bucket
+        long count = Math.max(cumulative, histogram.getCount());
+        out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(histogram.getSum() / 1e9).append('\n');
+        out.append(name).append("_count").append(suffix).append(count).append('\n');
+    }
+    
+    private static StringBuilder escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        return out;
+    }
+}
\ No newline at end of file
@@ -1,54 +1,195 @@
 package com.chat.common;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatRoom {
+    public static final int DEFAULT_HISTORY_SIZE = 100;
+    private static final Connection[] NO_MEMBERS = new Connection[0];
+    
     private String name;
-    private Map<String, Object> clients;
-    private List<Message> messageHistory;
-    private int maxHistorySize;
+    private final int id;
+    private Map<String, Connection> clients;
+    // Rebuilt on every join and leave, which are rare next to broadcasts
+    private volatile Connection[] members = NO_MEMBERS;
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    private final ReentrantLock historyLock = new ReentrantLock();
+    private final MessageHistory messageHistory;
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final AtomicLong lastSequence = new AtomicLong();
+    private final LongAdder throttled = new LongAdder();
+    private TokenBucket rateLimit;
+    private SearchIndex searchIndex;
     
     public ChatRoom(String name) {
+        this(name, DEFAULT_HISTORY_SIZE);
+    }
+    
+    public ChatRoom(String name, int maxHistorySize) {
         this.name = name;
+        this.id = Message.idOf(name);
         this.clients = new ConcurrentHashMap<>();
-        this.messageHistory = new CopyOnWriteArrayList<>();
-        this.maxHistorySize = 100;
+        this.messageHistory = new MessageHistory(maxHistorySize);
     }
     
     public String getName() { return name; }
     
-    public void addClient(String username, Object clientHandler) {
-        clients.put(username, clientHandler);
+    /** The room name's id in Message.NAMES, or Message.INLINE_NAME. */
+    public int getId() { return id; }
+    
+    public void addClient(String username, Connection connection) {
+        membershipLock.lock();
+        try {
+            clients.put(username, connection);
+            members = clients.values().toArray(NO_MEMBERS);
+        } finally {
+            membershipLock.unlock();
+        }
     }
     
     public void removeClient(String username) {
-        clients.remove(username);
+        membershipLock.lock();
+        try {
+            if (clients.remove(username) != null) {
+                members = clients.values().toArray(NO_MEMBERS);
+            }
+        } finally {
+            membershipLock.unlock();
+        }
     }
     
     public boolean hasClient(String username) {
         return clients.containsKey(username);
     }
     
-    public Map<String, Object> getClients() {
+    public Map<String, Connection> getClients() {
         return clients;
     }
     
+    /**
+     * Returns the members as of the last join or leave. The array is never
+     * modified, so callers can iterate it without locking but must not
+     * change it.
+     */
+    public Connection[] getMembers() {
+        return members;
+    }
+    
     public int getClientCount() {
         return clients.size();
     }
     
+    /**
+     * Records a message in the history, numbering it first unless it
+     * already carries a sequence from the room's owner in a cluster. Both
+     * happen under the history lock, so the history holds messages in the
+     * order of their numbers.
+     */
     public void addMessage(Message message) {
-        messageHistory.add(message);
-        if (messageHistory.size() > maxHistorySize) {
-            messageHistory.remove(0);
+        historyLock.lock();
+        try {
+            if (message.getSequence() == 0) {
+                message.setSequence(lastSequence.incrementAndGet());
+            } else {
+                advanceSequence(message.getSequence());
+            }
+            messageHistory.add(message);
+        } finally {
+            historyLock.unlock();
+        }
+        if (searchIndex != null && message.getType() == Message.MessageType.CHAT) {
+            searchIndex.add(message);
         }
     }
     
+    /**
+     * Makes the next message number at least {@code sequence + 1}, e.g. to
+     * carry on from an earlier room of the same name.
+     */
+    public void advanceSequence(long sequence) {
+        lastSequence.accumulateAndGet(sequence, Math::max);
+    }
+    
+    public long getLastSequence() {
+        return lastSequence.get();
+    }
+    
+    /**
+     * Returns a copy of the recent messages. Use getHistory() to iterate
+     * them without copying.
+     */
     public List<Message> getMessageHistory() {
-        return new CopyOnWriteArrayList<>(messageHistory);
+        return messageHistory.toList();
+    }
+    
+    public MessageHistory getHistory() {
+        return messageHistory;
+    }
+    
+    /**
+     * Held by whoever records a message and passes it on, or reads the
+     * history and acts on it, so that the two happen in one order.
+     */
+    public ReentrantLock getHistoryLock() {
+        return historyLock;
+    }
+    
+    /**
+     * Counts one message posted to the room and the deliveries it made.
+     */
+    public void recordBroadcast(int recipients) {
+        messagesIn.increment();
+        messagesOut.add(recipients);
+    }
+    
+    /**
+     * Limits how fast messages can be posted to this room. Call before the
+     * room is shared.
+     */
+    public void setRateLimit(TokenBucket rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+    
+    /**
+     * Takes a token for one new message. Returns false, and counts the
+     * rejection, when the room is over its rate limit.
+     */
+    public boolean tryPost() {
+        if (rateLimit == null || rateLimit.tryAcquire()) {
+            return true;
+        }
+        throttled.increment();
+        return false;
+    }
+    
+    /**
+     * Indexes the room's chat messages from now on, for /search. Call
+     * before the room is shared.
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+    
+    /** The room's search index, or null if search is off. */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+    
+    public long getThrottled() {
+        return throttled.sum();
+    }
+    
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+    
+    public long getMessagesOut() {
+        return messagesOut.sum();
     }
     
     public boolean isEmpty() {
@@ -0,0 +1,845 @@
+package com.chat.server;
+
+import com.chat.common.ChatRoom;
+import com.chat.common.Connection;
+import com.chat.common.Message;
+import com.chat.common.SearchIndex;
+import com.chat.common.TokenBucket;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The transport-independent chat core: who is online, which rooms exist,
+ * room history and message fan-out. The TCP servers and the WebSocket
+ * server register their users here as Connections, so a message sent over
+ * one transport reaches the members of its room on every transport through
+ * the same broadcast path. Each connection renders what it is delivered in
+ * its own wire format.
+ * <p>
+ * With a ClusterNode attached, the router is one of several: room messages
+ * are recorded and published by the node that owns the room, and users
+ * logged in on other nodes count as online here.
+ */
+public class ChatRouter {
+    public static final String DEFAULT_ROOM = "general";
+    private static final int MAX_HISTORY_REPLAY = 500;
+    public static final int SEARCH_PAGE_SIZE = 10;
+    private static final int MAX_SEARCH_RESULTS = 200;
+    private static final int MAX_RELEASED_ROOMS = 10_000;
+    private static final SecureRandom TOKENS = new SecureRandom();
+    private static final int SYSTEM_USER = Message.idOf("SYSTEM");
+    
+    private final Map<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();
+    private final Map<String, Connection> connectedClients = new ConcurrentHashMap<>();
+    private final Map<String, String> sessionTokens = new ConcurrentHashMap<>();
+    // Last sequence of recently removed rooms, so a room recreated under the same name never
+    // reuses a number; rooms forgotten to keep this bounded only raise releasedFloor
+    private final Map<String, Long> releasedSequences = new LinkedHashMap<>();
+    private final ReentrantLock releasedLock = new ReentrantLock();
+    private long releasedFloor;
+    private final LongAdder messagesRouted = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final ChatMetrics metrics = new ChatMetrics();
+    private int historySize = ChatRoom.DEFAULT_HISTORY_SIZE;
+    private double roomRate;
+    private int roomBurst;
+    private long searchBudget;
+    private MessageLogStore messageLog;
+    private ClusterNode cluster;
+    
+    public ChatRouter() {
+        chatRooms.put(DEFAULT_ROOM, newRoom(DEFAULT_ROOM));
+    }
+    
+    /**
+     * Registers a logged-in user. Returns false if the username is already
+     * in use; the check and insert are one atomic map operation, so no lock
+     * is held while the join is broadcast.
+     */
+    public boolean addClient(String username, Connection connection) {
+        return register(username, connection, DEFAULT_ROOM, -1);
+    }
+    
+    /**
+     * Registers a user coming back after a dropped connection, putting it
+     * straight back into {@code roomName} and replaying only the messages
+     * after {@code lastSequence}. Returns false if the username is in use;
+     * a stale connection still holding it is closed, so a retry succeeds
+     * once the transport has cleaned it up.
+     */
+    public boolean resumeClient(String username, Connection connection, String roomName, long lastSequence) {
+        if (!register(username, connection, roomName, lastSequence)) {
+            Connection stale = connectedClients.get(username);
+            if (stale != null && stale != connection) {
+                stale.disconnect();
+            }
+            return false;
+        }
+        return true;
+    }
+    
+    private boolean register(String username, Connection connection, String roomName, long lastSequence) {
+        if (cluster != null && cluster.nodeOf(username) != null) {
+            return false;
+        }
+        if (connectedClients.putIfAbsent(username, connection) != null) {
+            return false;
+        }
+        if (cluster != null) {
+            cluster.userUp(username);
+        }
+        metrics.connectionOpened();
+        joinRoom(username, roomName, lastSequence);
+        broadcastSystemMessage(roomName, username + " connected to the server");
+        System.out.println("Client connected: " + username + " (Total: " + connectedClients.size() + ")");
+        return true;
+    }
+    
+    /**
+     * Issues a new resume token for a user, replacing any earlier one.
+     */
+    public String startSession(String username) {
+        String token = Long.toHexString(TOKENS.nextLong());
+        sessionTokens.put(username, token);
+        return token;
+    }
+    
+    public boolean isSessionValid(String username, String token) {
+        return token.equals(sessionTokens.get(username));
+    }
+    
+    /**
+     * Forgets a user's resume token, e.g. after a deliberate logout.
+     */
+    public void endSession(String username) {
+        sessionTokens.remove(username);
+    }
+    
+    public void removeClient(String username) {
+        Connection connection = connectedClients.remove(username);
+        if (connection != null) {
+            metrics.connectionClosed();
+            if (cluster != null) {
+                cluster.userDown(username);
+            }
+            String currentRoom = connection.getCurrentRoom();
+            if (currentRoom != null) {
+                leaveRoom(username, currentRoom);
+            }
+            broadcastSystemMessage(currentRoom != null ? currentRoom : DEFAULT_ROOM,
+                                 username + " disconnected from the server");
+            System.out.println("Client disconnected: " + username + " (Total: " + connectedClients.size() + ")");
+        }
+    }
+    
+    public void joinRoom(String username, String roomName) {
+        joinRoom(username, roomName, -1);
+    }
+    
+    /**
+     * Moves a user into a room. With a negative {@code lastSequence} the
+     * room's recent history is replayed; otherwise only what came after it.
+     */
+    private void joinRoom(String username, String roomName, long lastSequence) {
+        ChatRoom room = chatRooms.computeIfAbsent(roomName, this::newRoom);
+        Connection connection = connectedClients.get(username);
+        
+        if (connection != null) {
+            // Leave current room if any
+            String currentRoom = connection.getCurrentRoom();
+            if (currentRoom != null && !currentRoom.equals(roomName)) {
+                leaveRoom(username, currentRoom);
+            }
+            
+            // Nothing is recorded in the room in between, so each message is
+            // either in the replay or delivered live after it, never both or neither
+            ReentrantLock historyLock = room.getHistoryLock();
+            historyLock.lock();
+            try {
+                room.addClient(username, connection);
+                // The room's own copy of the name, so later lookups by it match on identity
+                connection.setCurrentRoom(room.getName());
+                
+                // Send room history to the joining client
+                connection.sendMessage("=== Joined room: " + roomName + " ===");
+                if (lastSequence >= 0 && lastSequence <= room.getLastSequence()) {
+                    replayMissed(connection, room, lastSequence);
+                } else {
+                    connection.deliverAll(chatMessages(room));
+                }
+            } finally {
+                historyLock.unlock();
+            }
+            if (cluster != null) {
+                cluster.roomMembershipChanged(roomName);
+            }
+            
+            publish(room, roomMessage(room, Message.idOf(username), username, "", Message.MessageType.JOIN));
+        }
+    }
+    
+    /**
+     * Sends the chat messages numbered after {@code lastSequence}, noting
+     * when some of them have already dropped out of the history.
+     */
+    private void replayMissed(Connection connection, ChatRoom room, long lastSequence) {
+        boolean first = true;
+        List<Message> missed = new ArrayList<>();
+        for (Message msg : room.getHistory()) {
+            if (msg.getSequence() <= lastSequence) continue;
+            if (first && msg.getSequence() > lastSequence + 1) {
+                connection.sendMessage("=== Older missed messages are no longer available ===");
+            }
+            first = false;
+            if (msg.getType() == Message.MessageType.CHAT) {
+                missed.add(msg);
+            }
+        }
+        connection.deliverAll(missed);
+        connection.sendMessage("=== Resumed " + room.getName() + " (" + missed.size() + " missed messages) ===");
+    }
+    
+    /**
+     * The chat messages in a room's history, i.e. what a joiner is replayed.
+     */
+    private static List<Message> chatMessages(ChatRoom room) {
+        List<Message> messages = new ArrayList<>(room.getHistory().size());
+        for (Message msg : room.getHistory()) {
+            if (msg.getType() == Message.MessageType.CHAT) {
+                messages.add(msg);
+            }
+        }
+        return messages;
+    }
+    
+    public void leaveRoom(String username, String roomName) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room != null) {
+            room.removeClient(username);
+            Connection connection = connectedClients.get(username);
+            if (connection != null && roomName.equals(connection.getCurrentRoom())) {
+                connection.setCurrentRoom(null);
+            }
+            
+            if (cluster != null) {
+                cluster.roomMembershipChanged(roomName);
+            }
+            
+            publish(room, roomMessage(room, Message.idOf(username), username, "", Message.MessageType.LEAVE));
+            releaseRoom(roomName);
+        }
+    }
+    
+    /**
+     * Removes a room nobody is in any more (except the default room). An
+     * owned room stays while other nodes are subscribed to it.
+     */
+    void releaseRoom(String roomName) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room != null && room.isEmpty() && !DEFAULT_ROOM.equals(roomName)
+                && (cluster == null || !cluster.hasSubscribers(roomName))) {
+            chatRooms.remove(roomName);
+            rememberSequence(roomName, room.getLastSequence());
+            if (messageLog != null) {
+                messageLog.closeRoom(roomName);
+            }
+        }
+    }
+    
+    private void rememberSequence(String roomName, long sequence) {
+        releasedLock.lock();
+        try {
+            releasedSequences.remove(roomName);
+            releasedSequences.put(roomName, sequence);
+            if (releasedSequences.size() > MAX_RELEASED_ROOMS) {
+                Iterator<Long> eldest = releasedSequences.values().iterator();
+                releasedFloor = Math.max(releasedFloor, eldest.next());
+                eldest.remove();
+            }
+        } finally {
+            releasedLock.unlock();
+        }
+    }
+    
+    /**
+     * The last sequence a room of this name had before it was removed. A
+     * room no longer remembered gets one above every forgotten room's, so
+     * clients resuming it see a gap rather than reused numbers.
+     */
+    private long releasedSequence(String roomName) {
+        releasedLock.lock();
+        try {
+            Long released = releasedSequences.remove(roomName);
+            return released != null ? released : releasedFloor;
+        } finally {
+            releasedLock.unlock();
+        }
+    }
+    
+    /**
+     * Posts a chat message to a room. Returns false if the room's rate
+     * limit turned it away; the Message is only built once it is admitted.
+     */
+    public boolean broadcastMessage(String roomName, String username, String content) {
+        return broadcastMessage(roomName, username, Message.idOf(username), content);
+    }
+    
+    /**
+     * Posts a chat message from a user whose id the caller looked up at
+     * login, so the message is built without touching the name table.
+     */
+    public boolean broadcastMessage(String roomName, String username, int userId, String content) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room != null) {
+            if (!room.tryPost()) {
+                metrics.roomThrottled();
+                return false;
+            }
+            publish(room, roomMessage(room, userId, username, content, Message.MessageType.CHAT));
+        }
+        return true;
+    }
+    
+    public void broadcastSystemMessage(String roomName, String content) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room != null) {
+            publish(room, roomMessage(room, SYSTEM_USER, "SYSTEM", content, Message.MessageType.SYSTEM));
+        }
+    }
+    
+    /**
+     * Builds a message in a room from ids already looked up, or from the
+     * names when either got no id in Message.NAMES.
+     */
+    private static Message roomMessage(ChatRoom room, int userId, String username, String content,
+                                       Message.MessageType type) {
+        if (userId == Message.INLINE_NAME || room.getId() == Message.INLINE_NAME) {
+            return new Message(username, content, room.getName(), type);
+        }
+        return new Message(userId, content, room.getId(), type);
+    }
+    
+    /**
+     * Sends a new room message on its way. In a cluster it goes to the room's
+     * owner, which records it and hands it back to every node with members
+     * in the room; otherwise, or while the owner is unreachable, it is
+     * recorded and delivered here.
+     */
+    private void publish(ChatRoom room, Message message) {
+        if (cluster != null && !cluster.owns(room.getName()) && cluster.publish(room.getName(), message)) {
+            return;
+        }
+        distribute(room, message, 0);
+    }
+    
+    /**
+     * Records a message and delivers it to the room's members on this node
+     * and, when this node owns the room, on every subscribed node. All of it
+     * happens under the room's history lock, so every member and subscribed
+     * node gets the room's messages in the order they are numbered, and a
+     * member or node joining meanwhile (see joinRoom and subscribe) gets
+     * each message exactly once. Delivering only queues, so the lock is
+     * held briefly.
+     */
+    private int distribute(ChatRoom room, Message message, long sentMicros) {
+        ReentrantLock historyLock = room.getHistoryLock();
+        historyLock.lock();
+        try {
+            record(room, message);
+            if (cluster != null) {
+                cluster.fanOut(room.getName(), message, sentMicros);
+            }
+            return broadcastToRoom(room, message);
+        } finally {
+            historyLock.unlock();
+        }
+    }
+    
+    /**
+     * Hands a message to every member of a room on this node, except the
+     * subject of a join or leave. Connections encode it with Message.encode,
+     * so it is rendered once per wire format rather than once per recipient.
+     */
+    private int broadcastToRoom(ChatRoom room, Message message) {
+        long start = System.nanoTime();
+        Message.MessageType type = message.getType();
+        // The subject of a join or leave is skipped by identity, so chat
+        // messages cost one array walk with no lookups
+        Connection excluded = type == Message.MessageType.JOIN || type == Message.MessageType.LEAVE
+                              ? room.getClients().get(message.getUsername()) : null;
+        int recipients = 0;
+        for (Connection member : room.getMembers()) {
+            if (member != excluded) {
+                member.deliver(message);
+                recipients++;
+            }
+        }
+        messagesRouted.increment();
+        deliveries.add(recipients);
+        room.recordBroadcast(recipients);
+        metrics.recordFanOut(System.nanoTime() - start);
+        return recipients;
+    }
+    
+    public void sendPrivateMessage(String fromUser, String toUser, String content) {
+        Connection target = connectedClients.get(toUser);
+        Connection sender = connectedClients.get(fromUser);
+        
+        Message privateMessage = new Message(fromUser, content, "", Message.MessageType.PRIVATE);
+        boolean sent = false;
+        if (target != null) {
+            target.deliver(privateMessage);
+            messagesRouted.increment();
+            deliveries.increment();
+            sent = true;
+        } else if (cluster != null) {
+            sent = cluster.sendPrivate(toUser, privateMessage);
+        }
+        
+        if (sent) {
+            if (sender != null) {
+                sender.sendMessage("Private message sent to " + toUser + ": " + content);
+            }
+        } else {
+            if (sender != null) {
+                sender.sendMessage("User '" + toUser + "' not found or offline.");
+            }
+        }
+    }
+    
+    private ChatRoom newRoom(String roomName) {
+        ChatRoom room = new ChatRoom(roomName, historySize);
+        if (roomRate > 0) {
+            room.setRateLimit(new TokenBucket(roomRate, roomBurst));
+        }
+        if (searchBudget > 0) {
+            room.setSearchIndex(new SearchIndex(searchBudget));
+        }
+        room.advanceSequence(releasedSequence(roomName));
+        if (messageLog != null && (cluster == null || cluster.owns(roomName))) {
+            // Warm the in-memory history so joiners see messages from before a restart
+            try {
+                messageLog.replayLast(roomName, historySize, room::addMessage);
+            } catch (IOException e) {
+                System.err.println("Error loading history for room " + roomName + ": " + e.getMessage());
+            }
+        }
+        return room;
+    }
+    
+    private void record(ChatRoom room, Message message) {
+        room.addMessage(message);
+        if (messageLog != null && (cluster == null || cluster.owns(room.getName()))) {
+            messageLog.append(room.getName(), message);
+        }
+    }
+    
+    /**
+     * Sends a user the last {@code count} messages of its current room.
+     * They come from the message log when one is configured, so they can
+     * reach back past the in-memory history and across restarts.
+     */
+    public void sendHistory(String username, int count) {
+        Connection client = connectedClients.get(username);
+        if (client == null || client.getCurrentRoom() == null) return;
+        String roomName = client.getCurrentRoom();
+        ArrayDeque<Message> messages = new ArrayDeque<>();
+        int limit = Math.min(count, MAX_HISTORY_REPLAY);
+        try {
+            if (hasLog(roomName)) {
+                messageLog.replayLast(roomName, limit, messages::add);
+            } else {
+                ChatRoom room = chatRooms.get(roomName);
+                if (room != null) {
+                    room.getHistory().forEach(message -> keepLast(messages, message, limit));
+                }
+            }
+        } catch (IOException e) {
+            client.sendMessage("Could not read history: " + e.getMessage());
+            return;
+        }
+        sendReplay(client, roomName, messages, false);
+    }
+    
+    /**
+     * Sends a user every message of its current room since {@code since},
+     * up to the most recent few hundred.
+     */
+    public void sendHistorySince(String username, LocalDateTime since) {
+        Connection client = connectedClients.get(username);
+        if (client == null || client.getCurrentRoom() == null) return;
+        String roomName = client.getCurrentRoom();
+        ArrayDeque<Message> messages = new ArrayDeque<>();
+        boolean[] truncated = new boolean[1];
+        try {
+            if (hasLog(roomName)) {
+                messageLog.replaySince(roomName, since, message -> truncated[0] |= keepLast(messages, message, MAX_HISTORY_REPLAY));
+            } else {
+                ChatRoom room = chatRooms.get(roomName);
+                if (room != null) {
+                    for (Message message : room.getHistory()) {
+                        if (!message.getTimestamp().isBefore(since)) {
+                            truncated[0] |= keepLast(messages, message, MAX_HISTORY_REPLAY);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            client.sendMessage("Could not read history: " + e.getMessage());
+            return;
+        }
+        sendReplay(client, roomName, messages, truncated[0]);
+    }
+    
+    /**
+     * Only a room's owner logs it; other nodes answer from their in-memory copy.
+     */
+    private boolean hasLog(String roomName) {
+        return messageLog != null && (cluster == null || cluster.owns(roomName));
+    }
+    
+    private static boolean keepLast(ArrayDeque<Message> messages, Message message, int limit) {
+        messages.addLast(message);
+        if (messages.size() > limit) {
+            messages.removeFirst();
+            return true;
+        }
+        return false;
+    }
+    
+    private void sendReplay(Connection client, String roomName, ArrayDeque<Message> messages, boolean truncated) {
+        client.sendMessage("=== History of " + roomName + " (" + messages.size() + " messages"
+                           + (truncated ? ", older ones omitted" : "") + ") ===");
+        client.deliverAll(messages);
+        client.sendMessage("=== End of history ===");
+    }
+    
+    /**
+     * Sends a user page {@code page} (from 0) of the chat messages holding
+     * every word of {@code query}, best match first, from all the rooms on
+     * this node. Each room's index is searched as its own fork-join task and
+     * the best hits are merged on the way back up, so a query over many busy
+     * rooms runs on every core.
+     */
+    public void search(String username, String query, int page) {
+        Connection client = connectedClients.get(username);
+        if (client == null) return;
+        if (searchBudget <= 0) {
+            client.sendMessage("Search is not enabled on this server.");
+            return;
+        }
+        List<String> terms = SearchIndex.terms(query);
+        int first = page * SEARCH_PAGE_SIZE;
+        if (terms.isEmpty() || first >= MAX_SEARCH_RESULTS) {
+            client.sendMessage("=== No " + (page > 0 ? "more " : "") + "messages match \"" + query + "\" ===");
+            return;
+        }
+        ChatRoom[] rooms = chatRooms.values().toArray(new ChatRoom[0]);
+        SearchIndex.Result result = ForkJoinPool.commonPool().invoke(
+                new SearchTask(rooms, 0, rooms.length, terms, first + SEARCH_PAGE_SIZE));
+        List<SearchIndex.Hit> hits = result.getHits();
+        if (first >= hits.size()) {
+            client.sendMessage("=== No " + (page > 0 ? "more " : "") + "messages match \"" + query + "\" ===");
+            return;
+        }
+        int last = Math.min(hits.size(), first + SEARCH_PAGE_SIZE);
+        client.sendMessage("=== Search \"" + query + "\": " + result.getTotal() + " matches, showing "
+                           + (first + 1) + "-" + last + " ===");
+        for (SearchIndex.Hit hit : hits.subList(first, last)) {
+            client.sendMessage("#" + hit.getMessage().getRoom() + " " + hit.getMessage());
+        }
+        boolean more = last < Math.min(result.getTotal(), MAX_SEARCH_RESULTS);
+        client.sendMessage(more ? "=== /more for the next page ===" : "=== End of results ===");
+    }
+    
+    /**
+     * Searches a range of rooms, splitting it in half until each task has
+     * one room, and keeps the best {@code limit} hits of the range.
+     */
+    private static final class SearchTask extends RecursiveTask<SearchIndex.Result> {
+        private static final long serialVersionUID = 1L;
+        
+        // ForkJoinTask is Serializable, but a search never leaves the process
+        private final transient ChatRoom[] rooms;
+        private final int from;
+        private final int to;
+        private final transient List<String> terms;
+        private final int limit;
+        
+        SearchTask(ChatRoom[] rooms, int from, int to, List<String> terms, int limit) {
+            this.rooms = rooms;
+            this.from = from;
+            this.to = to;
+            this.terms = terms;
+            this.limit = limit;
+        }
+        
+        @Override
+        protected SearchIndex.Result compute() {
+            if (to - from <= 1) {
+                SearchIndex index = from < to ? rooms[from].getSearchIndex() : null;
+                return index != null ? index.search(terms, limit) : SearchIndex.Result.EMPTY;
+            }
+            int middle = (from + to) >>> 1;
+            SearchTask left = new SearchTask(rooms, from, middle, terms, limit);
+            left.fork();
+            SearchIndex.Result right = new SearchTask(rooms, middle, to, terms, limit).compute();
+            return SearchIndex.Result.merge(left.join(), right, limit);
+        }
+    }
+    
+    public String getConnectedUsers() {
+        StringBuilder users = new StringBuilder("Connected users: ");
+        Set<String> usernames = new LinkedHashSet<>(connectedClients.keySet());
+        if (cluster != null) {
+            usernames.addAll(cluster.getRemoteUsers());
+        }
+        for (String username : usernames) {
+            users.append(username).append(" ");
+        }
+        return users.toString();
+    }
+    
+    public String getAvailableRooms() {
+        StringBuilder rooms = new StringBuilder("Available rooms: ");
+        for (Map.Entry<String, ChatRoom> entry : chatRooms.entrySet()) {
+            rooms.append(entry.getKey())
+                 .append("(").append(entry.getValue().getClientCount()).append(") ");
+        }
+        return rooms.toString();
+    }
+    
+    /**
+     * Totals for every transport, followed by the connections with the most
+     * dropped messages and deepest outbound queues, i.e. the ones holding
+     * their rooms back.
+     */
+    public String getStats() {
+        List<Connection> clients = new ArrayList<>(connectedClients.values());
+        clients.sort(Comparator.comparingLong(Connection::getDroppedCount)
+                               .thenComparingInt(Connection::getQueueDepth)
+                               .reversed());
+        StringBuilder stats = new StringBuilder("Routed " + messagesRouted.sum() + " messages in "
+                                                + deliveries.sum() + " deliveries to " + clients.size()
+                                                + " users in " + chatRooms.size() + " rooms. Throttled "
+                                                + metrics.getUserThrottled() + " by user and "
+                                                + metrics.getRoomThrottled() + " by room limits. Outbound queues:");
+        for (int i = 0; i < Math.min(10, clients.size()); i++) {
+            Connection client = clients.get(i);
+            stats.append(" ").append(client.getUsername())
+                 .append("[depth=").append(client.getQueueDepth())
+                 .append(" max=").append(client.getQueueHighWaterMark())
+                 .append(" dropped=").append(client.getDroppedCount()).append("]");
+        }
+        if (cluster != null) {
+            stats.append(". ").append(cluster.getStats());
+        }
+        return stats.toString();
+    }
+    
+    public long getMessagesRouted() {
+        return messagesRouted.sum();
+    }
+    
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+    
+    public Collection<Connection> getConnections() {
+        return connectedClients.values();
+    }
+    
+    public Collection<ChatRoom> getRooms() {
+        return chatRooms.values();
+    }
+    
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Sets how many recent messages each room keeps for replay to joiners.
+     * Call before any transport starts.
+     */
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+        chatRooms.put(DEFAULT_ROOM, newRoom(DEFAULT_ROOM));
+    }
+    
+    /**
+     * Limits every room to {@code perSecond} chat messages, with bursts of
+     * up to {@code burst}. 0 (the default) means no limit. Call before any
+     * transport starts.
+     */
+    public void setRoomRateLimit(double perSecond, int burst) {
+        this.roomRate = perSecond;
+        this.roomBurst = burst;
+        chatRooms.put(DEFAULT_ROOM, newRoom(DEFAULT_ROOM));
+    }
+    
+    /**
+     * Indexes every room's chat messages for /search, keeping about
+     * {@code bytes} of index per room (see SearchIndex). 0 (the default)
+     * turns search off. Call before any transport starts.
+     */
+    public void setSearchBudget(long bytes) {
+        this.searchBudget = bytes;
+        chatRooms.put(DEFAULT_ROOM, newRoom(DEFAULT_ROOM));
+    }
+    
+    /**
+     * Persists every room message to {@code store} and replays room history
+     * from it. Call before any transport starts.
+     */
+    public void setMessageLog(MessageLogStore store) {
+        this.messageLog = store;
+        chatRooms.put(DEFAULT_ROOM, newRoom(DEFAULT_ROOM));
+    }
+    
+    /**
+     * Joins this router to a cluster. Call before the cluster node and any
+     * transport start.
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+        cluster.attach(this);
+    }
+    
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+    
+    // ---- Called by ClusterNode for traffic from other nodes ----
+    
+    /**
+     * A message posted on another node in a room this node owns.
+     */
+    int onPublish(String roomName, Message message, long sentMicros) {
+        int recipients = distribute(chatRooms.computeIfAbsent(roomName, this::newRoom), message, sentMicros);
+        // A leave can arrive after its sender unsubscribed
+        releaseRoom(roomName);
+        return recipients;
+    }
+    
+    /**
+     * A message the owner of a room published to this node's members.
+     */
+    int onDeliver(String roomName, Message message) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room == null) return 0;
+        ReentrantLock historyLock = room.getHistoryLock();
+        historyLock.lock();
+        try {
+            room.addMessage(message);
+            return broadcastToRoom(room, message);
+        } finally {
+            historyLock.unlock();
+        }
+    }
+    
+    /**
+     * A message this node sent to a room's owner over a link that went down
+     * before writing it. It is published again, so it reaches the owner over
+     * a new link or, failing that, the members here.
+     */
+    void onUnpublished(String roomName, Message message) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room != null) {
+            publish(room, message);
+        }
+    }
+    
+    /**
+     * Recent history from a room's owner, sent when this node subscribed.
+     * A room that already has history here keeps it; otherwise the members
+     * who joined while the snapshot was on its way get it replayed.
+     */
+    void onSnapshot(String roomName, List<Message> history) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room == null || room.getHistory().size() > 0) return;
+        for (Message message : history) {
+            room.addMessage(message);
+        }
+        List<Message> replay = chatMessages(room);
+        for (Connection member : room.getMembers()) {
+            member.deliverAll(replay);
+        }
+    }
+    
+    boolean onPrivate(String toUser, Message message) {
+        Connection target = connectedClients.get(toUser);
+        if (target == null) return false;
+        target.deliver(message);
+        messagesRouted.increment();
+        deliveries.increment();
+        return true;
+    }
+    
+    /**
+     * Another node announced a user. If the same name logged in here in the
+     * meantime, the node with the lower id keeps it.
+     */
+    void onRemoteUserUp(String username, String nodeId) {
+        Connection local = connectedClients.get(username);
+        if (local != null && nodeId.compareTo(cluster.getNodeId()) < 0) {
+            local.sendMessage("Username '" + username + "' is already in use on another server. Disconnecting.");
+            local.disconnect();
+        }
+    }
+    
+    /**
+     * Hands {@code subscribe} the recent history of a room while no message
+     * can be recorded in it. A node registered as a subscriber in there has
+     * every earlier message in the snapshot and every later one fanned out
+     * to it.
+     */
+    void subscribe(String roomName, Consumer<List<Message>> subscribe) {
+        ChatRoom room = chatRooms.computeIfAbsent(roomName, this::newRoom);
+        ReentrantLock historyLock = room.getHistoryLock();
+        historyLock.lock();
+        try {
+            subscribe.accept(room.getMessageHistory());
+        } finally {
+            historyLock.unlock();
+        }
+    }
+    
+    boolean hasLocalMembers(String roomName) {
+        ChatRoom room = chatRooms.get(roomName);
+        return room != null && !room.isEmpty();
+    }
+    
+    Collection<String> getLocalRoomNames() {
+        return chatRooms.keySet();
+    }
+    
+    Collection<String> getLocalUsernames() {
+        return connectedClients.keySet();
+    }
+    
+    public void close() {
+        if (cluster != null) {
+            cluster.stop();
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+    }
+}
\ No newline at end of file
@@ -1,36 +1,72 @@
 package com.chat.server;
 
 import com.chat.common.ChatRoom;
-import com.chat.common.Message;
+import com.chat.common.DeflateProtocol;
+import com.chat.common.ExecutorMode;
+import com.chat.common.TokenBucket;
+import com.chat.websocket.WebSocketChatServer;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.concurrent.*;
-import java.util.Map;
+import java.util.function.IntFunction;
 
+/**
+ * The line-based TCP transport. Connections are served by ClientHandler
+ * (or NioClientHandler in --nio mode); rooms, users and fan-out live in the
+ * ChatRouter, which a WebSocketChatServer can share.
+ */
 public class ChatServer {
     private static final int PORT = 8080;
-    private static final String DEFAULT_ROOM = "general";
+    private static final int DEFAULT_USER_BURST = 10;
+    private static final int DEFAULT_ROOM_BURST = 100;
+    private static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 10_000;
     
+    private final int port;
+    private final ExecutorMode executorMode;
+    private final ChatRouter router;
     private ServerSocket serverSocket;
-    private Map<String, ChatRoom> chatRooms;
-    private Map<String, ClientHandler> connectedClients;
     private ExecutorService threadPool;
+    private final ExecutorService writerPool;
+    private int outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private long flushIntervalMillis;
+    private ScheduledExecutorService flushScheduler;
+    private double userRate;
+    private int userBurst;
+    private IdleReaper idleReaper;
+    private int compressionLevel;
+    private int compressionMinSize = DeflateProtocol.DEFAULT_MIN_SIZE;
     private volatile boolean running;
     
     public ChatServer() {
-        chatRooms = new ConcurrentHashMap<>();
-        connectedClients = new ConcurrentHashMap<>();
-        threadPool = Executors.newCachedThreadPool();
-        
-        // Create default room
-        chatRooms.put(DEFAULT_ROOM, new ChatRoom(DEFAULT_ROOM));
+        this(PORT);
+    }
+    
+    public ChatServer(int port) {
+        this(port, ExecutorMode.CACHED, ExecutorMode.DEFAULT_POOL_SIZE);
+    }
+    
+    public ChatServer(int port, ExecutorMode executorMode, int poolSize) {
+        this(port, executorMode, poolSize, new ChatRouter());
+    }
+    
+    public ChatServer(int port, ExecutorMode executorMode, int poolSize, ChatRouter router) {
+        this.port = port;
+        this.executorMode = executorMode;
+        this.router = router;
+        threadPool = executorMode.newExecutor(poolSize);
+        // Per-connection writers only exist while a client has a backlog;
+        // virtual threads make parking one on a slow socket cheap
+        writerPool = Executors.newVirtualThreadPerTaskExecutor();
     }
     
     public void start() {
         try {
-            serverSocket = new ServerSocket(PORT);
+            serverSocket = new ServerSocket(port);
             running = true;
-            System.out.println("Chat Server started on port " + PORT);
+            System.out.println("Chat Server started on port " + port + " (" + executorMode + " executor)");
             System.out.println("Waiting for clients to connect...");
             
             while (running) {
@@ -61,142 +97,303 @@ public class ChatServer {
             if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
                 threadPool.shutdownNow();
             }
+            writerPool.shutdown();
+            if (flushScheduler != null) {
+                flushScheduler.shutdownNow();
+            }
+            router.close();
         } catch (IOException | InterruptedException e) {
             System.err.println("Error stopping server: " + e.getMessage());
         }
     }
     
-    public synchronized void addClient(String username, ClientHandler clientHandler) {
-        connectedClients.put(username, clientHandler);
-        joinRoom(username, DEFAULT_ROOM);
-        broadcastSystemMessage(DEFAULT_ROOM, username + " connected to the server");
-        System.out.println("Client connected: " + username + " (Total: " + connectedClients.size() + ")");
+    /**
+     * Sets the size and overflow policy of the outbound queue each new
+     * connection gets. Call before start().
+     */
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy policy) {
+        this.outboundCapacity = capacity;
+        this.overflowPolicy = policy;
     }
     
-    public synchronized void removeClient(String username) {
-        ClientHandler clientHandler = connectedClients.remove(username);
-        if (clientHandler != null) {
-            String currentRoom = clientHandler.getCurrentRoom();
-            if (currentRoom != null) {
-                leaveRoom(username, currentRoom);
-            }
-            broadcastSystemMessage(currentRoom != null ? currentRoom : DEFAULT_ROOM, 
-                                 username + " disconnected from the server");
-            System.out.println("Client disconnected: " + username + " (Total: " + connectedClients.size() + ")");
+    /**
+     * Delays each connection's writer by up to {@code millis} after output
+     * is queued, so that everything queued meanwhile goes out in one write
+     * and one flush. 0 (the default) writes as soon as possible. The NIO
+     * mode already gathers each loop pass's output and ignores this. Call
+     * before start().
+     */
+    public void setFlushInterval(long millis) {
+        this.flushIntervalMillis = millis;
+        if (millis > 0 && flushScheduler == null) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "flush-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
     }
     
-    public void joinRoom(String username, String roomName) {
-        ChatRoom room = chatRooms.computeIfAbsent(roomName, ChatRoom::new);
-        ClientHandler clientHandler = connectedClients.get(username);
-        
-        if (clientHandler != null) {
-            // Leave current room if any
-            String currentRoom = clientHandler.getCurrentRoom();
-            if (currentRoom != null && !currentRoom.equals(roomName)) {
-                leaveRoom(username, currentRoom);
-            }
-            
-            room.addClient(username, clientHandler);
-            clientHandler.setCurrentRoom(roomName);
-            
-            Message joinMessage = new Message(username, "", roomName, Message.MessageType.JOIN);
-            room.addMessage(joinMessage);
-            broadcastToRoom(roomName, joinMessage.toString(), username);
-            
-            // Send room history to the joining client
-            clientHandler.sendMessage("=== Joined room: " + roomName + " ===");
-            for (Message msg : room.getMessageHistory()) {
-                if (msg.getType() == Message.MessageType.CHAT) {
-                    clientHandler.sendMessage(msg.toString());
-                }
-            }
-        }
+    /**
+     * Limits each connection to {@code perSecond} lines or frames of input,
+     * with bursts of up to {@code burst}; input over the limit is dropped
+     * with a notice. 0 (the default) means no limit. Call before start().
+     */
+    public void setUserRateLimit(double perSecond, int burst) {
+        this.userRate = perSecond;
+        this.userBurst = burst;
     }
     
-    public void leaveRoom(String username, String roomName) {
-        ChatRoom room = chatRooms.get(roomName);
-        if (room != null) {
-            room.removeClient(username);
-            
-            Message leaveMessage = new Message(username, "", roomName, Message.MessageType.LEAVE);
-            room.addMessage(leaveMessage);
-            broadcastToRoom(roomName, leaveMessage.toString(), username);
-            
-            // Remove empty rooms (except default)
-            if (room.isEmpty() && !DEFAULT_ROOM.equals(roomName)) {
-                chatRooms.remove(roomName);
-            }
-        }
+    /**
+     * Has {@code reaper} ping quiet connections and disconnect the ones that
+     * stop answering. Without one (the default) idle connections are only
+     * noticed when a read or write fails. Call before start().
+     */
+    public void setIdleReaper(IdleReaper reaper) {
+        this.idleReaper = reaper;
     }
     
-    public void broadcastMessage(String roomName, String username, String content) {
-        ChatRoom room = chatRooms.get(roomName);
-        if (room != null) {
-            Message message = new Message(username, content, roomName, Message.MessageType.CHAT);
-            room.addMessage(message);
-            broadcastToRoom(roomName, message.toString(), null);
-        }
+    /**
+     * Lets clients ask for compressed output (see DeflateProtocol) at the
+     * given deflate level, 1-9. Batches under {@code minSize} bytes are sent
+     * uncompressed. 0 (the default) turns the request down. Call before
+     * start().
+     */
+    public void setCompression(int level, int minSize) {
+        this.compressionLevel = level;
+        this.compressionMinSize = minSize;
     }
     
-    public void broadcastSystemMessage(String roomName, String content) {
-        ChatRoom room = chatRooms.get(roomName);
-        if (room != null) {
-            Message message = new Message("SYSTEM", content, roomName, Message.MessageType.SYSTEM);
-            room.addMessage(message);
-            broadcastToRoom(roomName, message.toString(), null);
-        }
+    /**
+     * Returns a compressor for a connection that asked for one, starting
+     * after {@code ack}, or null if compression is off.
+     */
+    DeflateProtocol.Compressor newCompressor(ByteBuffer ack) {
+        if (compressionLevel <= 0) return null;
+        ChatMetrics metrics = router.getMetrics();
+        return new DeflateProtocol.Compressor(compressionLevel, compressionMinSize, ack,
+                                              metrics.getCompressionIn(), metrics.getCompressionOut());
     }
     
-    private void broadcastToRoom(String roomName, String message, String excludeUser) {
-        ChatRoom room = chatRooms.get(roomName);
-        if (room != null) {
-            for (Map.Entry<String, Object> entry : room.getClients().entrySet()) {
-                String username = entry.getKey();
-                if (excludeUser == null || !username.equals(excludeUser)) {
-                    ClientHandler clientHandler = (ClientHandler) entry.getValue();
-                    clientHandler.sendMessage(message);
-                }
-            }
-        }
+    /**
+     * Starts watching a new connection for idleness, if a reaper is set.
+     * Returns the watch to cancel on close, or null.
+     */
+    TimingWheel.Task watchIdle(IdleReaper.Watched connection) {
+        return idleReaper != null ? idleReaper.watch(connection) : null;
     }
     
-    public void sendPrivateMessage(String fromUser, String toUser, String content) {
-        ClientHandler targetClient = connectedClients.get(toUser);
-        ClientHandler senderClient = connectedClients.get(fromUser);
-        
-        if (targetClient != null) {
-            Message privateMessage = new Message(fromUser, content, "", Message.MessageType.PRIVATE);
-            targetClient.sendMessage(privateMessage.toString());
-            if (senderClient != null) {
-                senderClient.sendMessage("Private message sent to " + toUser + ": " + content);
-            }
-        } else {
-            if (senderClient != null) {
-                senderClient.sendMessage("User '" + toUser + "' not found or offline.");
+    /**
+     * Returns a new connection's rate limit, or null if there is none.
+     */
+    TokenBucket newUserRateLimit() {
+        return userRate > 0 ? new TokenBucket(userRate, userBurst) : null;
+    }
+    
+    /**
+     * @param skippedNotice encodes the COALESCE notice in the connection's
+     *                      current wire format
+     */
+    OutboundQueue newOutboundQueue(IntFunction<ByteBuffer> skippedNotice) {
+        return new OutboundQueue(outboundCapacity, overflowPolicy, skippedNotice);
+    }
+    
+    void executeWriter(Runnable writer) {
+        if (flushIntervalMillis > 0) {
+            try {
+                flushScheduler.schedule(() -> startWriter(writer), flushIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Server is shutting down; the connection is about to close anyway
             }
+            return;
         }
+        startWriter(writer);
     }
     
-    public String getConnectedUsers() {
-        StringBuilder users = new StringBuilder("Connected users: ");
-        for (String username : connectedClients.keySet()) {
-            users.append(username).append(" ");
+    private void startWriter(Runnable writer) {
+        try {
+            writerPool.execute(writer);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down; the connection is about to close anyway
         }
-        return users.toString();
     }
     
-    public String getAvailableRooms() {
-        StringBuilder rooms = new StringBuilder("Available rooms: ");
-        for (Map.Entry<String, ChatRoom> entry : chatRooms.entrySet()) {
-            rooms.append(entry.getKey())
-                 .append("(").append(entry.getValue().getClientCount()).append(") ");
-        }
-        return rooms.toString();
+    public ChatRouter getRouter() {
+        return router;
+    }
+    
+    public int getPort() {
+        return port;
     }
     
+    /**
+     * Usage: ChatServer [--nio] [--port=N] [--executor=cached|virtual|bounded] [--pool-size=N]
+     *                   [--queue-size=N] [--overflow=drop-oldest|disconnect|coalesce] [--history-size=N]
+     *                   [--log-dir=DIR] [--log-fsync-ms=N] [--flush-interval-ms=N] [--websocket-port=N]
+     *                   [--metrics-port=N] [--user-rate=N --user-burst=N] [--room-rate=N --room-burst=N]
+     *                   [--heartbeat-ms=N] [--heartbeat-timeout-ms=N]
+     *                   [--compress-level=N] [--compress-min-bytes=N] [--search-budget-kb=N]
+     *                   [--node-id=ID --cluster-port=N --peers=id@host:port,...]
+     * <p>
+     * The default mode runs one thread per client; {@code --executor} picks
+     * what kind of thread that is. {@code --nio} serves all clients from a
+     * single selector thread instead (see NioChatServer). The queue options
+     * bound each client's outbound backlog and say what to do when it fills;
+     * {@code --history-size} sets how many messages a room replays to joiners.
+     * {@code --log-dir} persists room messages to disk, fsyncing every
+     * {@code --log-fsync-ms} milliseconds (0 = every message, -1 = never).
+     * {@code --flush-interval-ms} batches each client's output into one
+     * write per interval. Clients may switch to the binary protocol (see
+     * BinaryProtocol); text stays the default.
+     * {@code --websocket-port} also accepts browser clients on that port,
+     * in the same rooms as the TCP clients. {@code --metrics-port} serves
+     * Prometheus metrics at {@code http://host:N/metrics}. {@code --user-rate}
+     * and {@code --room-rate} cap the messages per second of each connection
+     * and each room, allowing bursts of {@code --user-burst} and
+     * {@code --room-burst}; over the limit, messages are dropped.
+     * {@code --heartbeat-ms} pings every connection that has been quiet that
+     * long and drops it if it does not answer within
+     * {@code --heartbeat-timeout-ms} (see IdleReaper).
+     * {@code --compress-level} lets clients ask for deflated output, leaving
+     * batches under {@code --compress-min-bytes} uncompressed.
+     * {@code --search-budget-kb} indexes each room for /search in about
+     * that much heap. The cluster options join this server to others over a
+     * TCP bus on {@code --cluster-port}; every node must list all the others
+     * in {@code --peers} (see ClusterNode).
+     */
     public static void main(String[] args) {
-        ChatServer server = new ChatServer();
+        boolean nio = false;
+        int port = PORT;
+        ExecutorMode executorMode = ExecutorMode.CACHED;
+        int poolSize = ExecutorMode.DEFAULT_POOL_SIZE;
+        int queueSize = OutboundQueue.DEFAULT_CAPACITY;
+        OutboundQueue.OverflowPolicy overflow = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+        int historySize = ChatRoom.DEFAULT_HISTORY_SIZE;
+        String logDir = null;
+        long fsyncMillis = MessageLogStore.DEFAULT_FSYNC_INTERVAL_MILLIS;
+        long flushMillis = 0;
+        int webSocketPort = -1;
+        int metricsPort = -1;
+        double userRate = 0;
+        int userBurst = DEFAULT_USER_BURST;
+        double roomRate = 0;
+        int roomBurst = DEFAULT_ROOM_BURST;
+        long heartbeatMillis = 0;
+        long heartbeatTimeoutMillis = DEFAULT_HEARTBEAT_TIMEOUT_MILLIS;
+        int compressionLevel = 0;
+        int compressionMinSize = DeflateProtocol.DEFAULT_MIN_SIZE;
+        long searchBudgetKb = 0;
+        String nodeId = null;
+        int clusterPort = -1;
+        String peers = "";
+        for (String arg : args) {
+            if (arg.equals("--nio")) {
+                nio = true;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--executor=")) {
+                executorMode = ExecutorMode.parse(arg.substring("--executor=".length()));
+            } else if (arg.startsWith("--pool-size=")) {
+                poolSize = Integer.parseInt(arg.substring("--pool-size=".length()));
+            } else if (arg.startsWith("--queue-size=")) {
+                queueSize = Integer.parseInt(arg.substring("--queue-size=".length()));
+            } else if (arg.startsWith("--overflow=")) {
+                overflow = OutboundQueue.OverflowPolicy.parse(arg.substring("--overflow=".length()));
+            } else if (arg.startsWith("--history-size=")) {
+                historySize = Integer.parseInt(arg.substring("--history-size=".length()));
+            } else if (arg.startsWith("--log-dir=")) {
+                logDir = arg.substring("--log-dir=".length());
+            } else if (arg.startsWith("--log-fsync-ms=")) {
+                fsyncMillis = Long.parseLong(arg.substring("--log-fsync-ms=".length()));
+            } else if (arg.startsWith("--flush-interval-ms=")) {
+                flushMillis = Long.parseLong(arg.substring("--flush-interval-ms=".length()));
+            } else if (arg.startsWith("--websocket-port=")) {
+                webSocketPort = Integer.parseInt(arg.substring("--websocket-port=".length()));
+            } else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--user-rate=")) {
+                userRate = Double.parseDouble(arg.substring("--user-rate=".length()));
+            } else if (arg.startsWith("--user-burst=")) {
+                userBurst = Integer.parseInt(arg.substring("--user-burst=".length()));
+            } else if (arg.startsWith("--room-rate=")) {
+                roomRate = Double.parseDouble(arg.substring("--room-rate=".length()));
+            } else if (arg.startsWith("--room-burst=")) {
+                roomBurst = Integer.parseInt(arg.substring("--room-burst=".length()));
+            } else if (arg.startsWith("--heartbeat-ms=")) {
+                heartbeatMillis = Long.parseLong(arg.substring("--heartbeat-ms=".length()));
+            } else if (arg.startsWith("--heartbeat-timeout-ms=")) {
+                heartbeatTimeoutMillis = Long.parseLong(arg.substring("--heartbeat-timeout-ms=".length()));
+            } else if (arg.startsWith("--compress-level=")) {
+                compressionLevel = Integer.parseInt(arg.substring("--compress-level=".length()));
+            } else if (arg.startsWith("--compress-min-bytes=")) {
+                compressionMinSize = Integer.parseInt(arg.substring("--compress-min-bytes=".length()));
+            } else if (arg.startsWith("--search-budget-kb=")) {
+                searchBudgetKb = Long.parseLong(arg.substring("--search-budget-kb=".length()));
+            } else if (arg.startsWith("--node-id=")) {
+                nodeId = arg.substring("--node-id=".length());
+            } else if (arg.startsWith("--cluster-port=")) {
+                clusterPort = Integer.parseInt(arg.substring("--cluster-port=".length()));
+            } else if (arg.startsWith("--peers=")) {
+                peers = arg.substring("--peers=".length());
+            }
+        }
+        
+        ChatRouter router = new ChatRouter();
+        router.setHistorySize(historySize);
+        if (roomRate > 0) {
+            router.setRoomRateLimit(roomRate, roomBurst);
+        }
+        if (searchBudgetKb > 0) {
+            router.setSearchBudget(searchBudgetKb * 1024);
+        }
+        if (logDir != null) {
+            router.setMessageLog(new MessageLogStore(Paths.get(logDir), fsyncMillis));
+        }
+        if (nodeId != null && clusterPort > 0) {
+            ClusterNode cluster = new ClusterNode(nodeId, clusterPort, ClusterNode.parsePeers(peers));
+            router.setCluster(cluster);
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.err.println("Could not start cluster node: " + e.getMessage());
+                return;
+            }
+        }
+        if (metricsPort > 0) {
+            MetricsHttpServer metricsServer = new MetricsHttpServer(metricsPort, router);
+            try {
+                metricsServer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(metricsServer::stop));
+            } catch (IOException e) {
+                System.err.println("Could not start metrics server: " + e.getMessage());
+            }
+        }
+        ChatServer server = new ChatServer(port, executorMode, poolSize, router);
+        server.setOutboundQueue(queueSize, overflow);
+        server.setFlushInterval(flushMillis);
+        server.setUserRateLimit(userRate, userBurst);
+        server.setCompression(compressionLevel, compressionMinSize);
+        IdleReaper idleReaper = null;
+        if (heartbeatMillis > 0) {
+            idleReaper = new IdleReaper(heartbeatMillis, heartbeatTimeoutMillis);
+            idleReaper.start();
+            server.setIdleReaper(idleReaper);
+        }
+        
+        if (webSocketPort > 0) {
+            WebSocketChatServer webSocketServer = new WebSocketChatServer(webSocketPort, executorMode, poolSize, router);
+            webSocketServer.setOutboundQueue(queueSize, overflow);
+            webSocketServer.setIdleReaper(idleReaper);
+            Runtime.getRuntime().addShutdownHook(new Thread(webSocketServer::stop));
+            new Thread(webSocketServer::start, "websocket-server").start();
+        }
+        
+        if (nio) {
+            NioChatServer nioServer = new NioChatServer(server, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(nioServer::stop));
+            nioServer.start();
+            return;
+        }
         
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
@@ -0,0 +1,128 @@
+package com.chat.test;
+
+import com.chat.server.ChatServer;
+import com.chat.server.NioChatServer;
+import com.chat.test.BenchClient.LatencyRecorder;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Selector;
+
+/**
+ * Load test comparing the thread-per-client server with the NIO event loop.
+ * Connects a number of clients to a single room, has one of them send timed
+ * messages and measures how long each broadcast takes to reach every member.
+ *
+ * Usage: java com.chat.test.ChatServerLoadTest [clients] [messages]
+ */
+public class ChatServerLoadTest {
+    
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        
+        System.out.println("=== Chat Server Load Test ===");
+        System.out.println("Clients: " + clients + ", broadcasts: " + messages);
+        System.out.println();
+        
+        // NIO first so leftover pool threads from the threaded run don't skew its thread count
+        Result nio = run(true, clients, messages);
+        Result threaded = run(false, clients, messages);
+        
+        System.out.printf("%-18s %12s %14s %10s %10s %10s%n",
+                "mode", "connected", "server threads", "p50 (ms)", "p99 (ms)", "max (ms)");
+        threaded.print("thread-per-client");
+        nio.print("nio");
+    }
+    
+    private static Result run(boolean nioMode, int clientCount, int messageCount) throws Exception {
+        int port = findFreePort();
+        int baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        ChatServer chatServer = new ChatServer(port);
+        NioChatServer nioServer = nioMode ? new NioChatServer(chatServer, port) : null;
+        Thread serverThread = new Thread(nioMode ? nioServer::start : chatServer::start, "load-test-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForPort(port);
+        
+        Result result = new Result(new LatencyRecorder(clientCount * messageCount));
+        try (Selector selector = Selector.open()) {
+            BenchClient[] clients = new BenchClient[clientCount];
+            for (int i = 0; i < clientCount; i++) {
+                clients[i] = BenchClient.connect(selector, port, result.recorder);
+                clients[i].send("u" + i);
+            }
+            
+            BenchClient.pump(selector, () -> result.recorder.welcomed() >= clientCount, 60_000);
+            result.connected = result.recorder.welcomed();
+            result.serverThreads = ManagementFactory.getThreadMXBean().getThreadCount() - baselineThreads;
+            
+            for (int m = 0; m < messageCount; m++) {
+                clients[0].sendTimestamped();
+                int expected = (m + 1) * clientCount;
+                BenchClient.pump(selector, () -> result.recorder.samples() >= expected, 10_000);
+            }
+            
+            for (BenchClient client : clients) {
+                client.close();
+            }
+        } finally {
+            if (nioMode) {
+                nioServer.stop();
+            } else {
+                chatServer.stop();
+            }
+        }
+        return result;
+    }
+    
+    static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+    
+    /**
+     * Waits until something accepts connections on {@code port}. The probe
+     * connection is closed straight away without logging in, so the server
+     * never counts it as a user and drops it on the first read.
+     */
+    static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            Socket probe = new Socket();
+            try {
+                probe.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            } finally {
+                try {
+                    probe.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+    
+    private static class Result {
+        private final LatencyRecorder recorder;
+        private int connected;
+        private int serverThreads;
+        
+        Result(LatencyRecorder recorder) {
+            this.recorder = recorder;
+        }
+        
+        void print(String mode) {
+            long[] sorted = recorder.sorted();
+            System.out.printf("%-18s %12d %14d %10.2f %10.2f %10.2f%n",
+                    mode, connected, serverThreads,
+                    LatencyRecorder.percentileMillis(sorted, 0.50),
+                    LatencyRecorder.percentileMillis(sorted, 0.99),
+                    sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1_000_000.0);
+        }
+    }
+}
\ No newline at end of file
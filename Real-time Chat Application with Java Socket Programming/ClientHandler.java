@@ -1,20 +1,78 @@
 package com.chat.server;
 
+import com.chat.common.BinaryProtocol;
+import com.chat.common.Connection;
+import com.chat.common.DeflateProtocol;
+import com.chat.common.Heartbeat;
+import com.chat.common.Message;
+import com.chat.common.MessageEncoder;
+import com.chat.common.SessionProtocol;
+import com.chat.common.TokenBucket;
 import java.io.*;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, Connection, IdleReaper.Watched {
+    private static final int DEFAULT_HISTORY_COUNT = 20;
+    private static final long WRITER_SHUTDOWN_MILLIS = 1000;
+    
     private Socket clientSocket;
     private ChatServer server;
+    private final ChatRouter router;
+    protected final ChatMetrics metrics;
     private BufferedReader reader;
-    private PrintWriter writer;
+    private OutputStream output;
+    private final OutboundQueue outbound;
+    private final OutboundWriter writer;
     private String username;
-    private String currentRoom;
+    // The username's id in Message.NAMES, set at login
+    private int userId = Message.NO_NAME;
+    private volatile String currentRoom;
     private volatile boolean running;
+    private volatile boolean binary;
+    private volatile boolean sequenced;
+    private final BinaryProtocol.FrameDecoder frames = new BinaryProtocol.FrameDecoder();
+    private final TokenBucket rateLimit;
+    // Only the first of a run of rejected lines gets a notice
+    private boolean throttleNoticeSent;
+    private boolean roomBusyNoticeSent;
+    private volatile long lastActivity = System.nanoTime();
+    private DeflateProtocol.Compressor compressor;
+    // The last /search, for /more
+    private String lastSearch;
+    private int searchPage;
+    // Set once the connection is up, in onConnect
+    private volatile TimingWheel.Task idleWatch;
     
     public ClientHandler(Socket clientSocket, ChatServer server) {
         this.clientSocket = clientSocket;
         this.server = server;
+        this.router = server.getRouter();
+        this.metrics = router.getMetrics();
+        this.outbound = server.newOutboundQueue(this::skippedNotice);
+        this.writer = new OutboundWriter(outbound, server::executeWriter, metrics.getBytesWritten(), e -> running = false);
+        this.rateLimit = server.newUserRateLimit();
+        this.running = true;
+    }
+    
+    /**
+     * Constructor for transports that deliver input lines themselves
+     * (see NioClientHandler) instead of reading from a blocking socket.
+     */
+    protected ClientHandler(ChatServer server) {
+        this.server = server;
+        this.router = server.getRouter();
+        this.metrics = router.getMetrics();
+        this.outbound = server.newOutboundQueue(this::skippedNotice);
+        this.writer = null;
+        this.rateLimit = server.newUserRateLimit();
         this.running = true;
     }
     
@@ -22,8 +80,14 @@ public class ClientHandler implements Runnable {
     public void run() {
         try {
             setupStreams();
-            authenticateUser();
-            handleMessages();
+            onConnect();
+            String line;
+            while (running && !binary && (line = reader.readLine()) != null) {
+                handleLine(line);
+            }
+            if (running && binary) {
+                readFrames(clientSocket.getInputStream());
+            }
         } catch (IOException e) {
             System.err.println("Client handler error: " + e.getMessage());
         } finally {
@@ -32,164 +96,549 @@ public class ClientHandler implements Runnable {
     }
     
     private void setupStreams() throws IOException {
-        reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        writer = new PrintWriter(clientSocket.getOutputStream(), true);
+        reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
+        output = new BufferedOutputStream(clientSocket.getOutputStream(), 8192);
+        writer.setOutput(output);
     }
     
-    private void authenticateUser() throws IOException {
-        writer.println("Welcome to the Chat Server!");
-        writer.println("Enter your username:");
-        
-        while (running) {
-            String inputUsername = reader.readLine();
-            if (inputUsername == null) {
-                return;
-            }
-            
-            inputUsername = inputUsername.trim();
-            if (inputUsername.isEmpty()) {
-                writer.println("Username cannot be empty. Please try again:");
-                continue;
-            }
-            
-            if (inputUsername.contains(" ") || inputUsername.length() > 20) {
-                writer.println("Username must be single word and max 20 characters. Please try again:");
-                continue;
-            }
-            
-            // Check if username is already taken
-            if (isUsernameTaken(inputUsername)) {
-                writer.println("Username '" + inputUsername + "' is already taken. Please choose another:");
-                continue;
-            }
-            
-            this.username = inputUsername;
-            server.addClient(username, this);
-            writer.println("Welcome, " + username + "! You are now connected.");
-            writer.println("Type '/help' for available commands.");
-            break;
+    /**
+     * Called by the transport once the connection is set up: starts
+     * watching it for idleness and greets the client.
+     */
+    protected void onConnect() {
+        idleWatch = server.watchIdle(this);
+        sendMessage("Welcome to the Chat Server!");
+        sendMessage("Enter your username:");
+    }
+    
+    /**
+     * Processes one line of client input. Until a username has been accepted
+     * every line is treated as a login attempt, afterwards as chat input.
+     */
+    protected void handleLine(String line) {
+        lastActivity = System.nanoTime();
+        if (line.equals(Heartbeat.PONG)) {
+            return;
+        } else if (username == null && line.trim().equals(BinaryProtocol.UPGRADE_REQUEST)) {
+            switchToBinary();
+        } else if (username == null && compressor == null && line.trim().equals(DeflateProtocol.UPGRADE_REQUEST)) {
+            switchToCompressed();
+        } else if (username == null && line.startsWith(SessionProtocol.LOGIN + " ")) {
+            startSession(line.substring(SessionProtocol.LOGIN.length() + 1));
+        } else if (username == null && line.startsWith(SessionProtocol.RESUME + " ")) {
+            resumeSession(line.substring(SessionProtocol.RESUME.length() + 1).trim().split(" "));
+        } else if (username == null) {
+            authenticateUser(line);
+        } else if (admit()) {
+            handleMessage(line);
         }
     }
     
-    private boolean isUsernameTaken(String username) {
-        // This would be implemented by checking with the server
-        // For now, we'll assume it's handled by the server's addClient method
+    /**
+     * Applies this connection's rate limit to one line or frame of input,
+     * before it is parsed. Returns false if it must be dropped.
+     */
+    private boolean admit() {
+        if (rateLimit == null || rateLimit.tryAcquire()) {
+            throttleNoticeSent = false;
+            return true;
+        }
+        metrics.userThrottled();
+        if (!throttleNoticeSent) {
+            throttleNoticeSent = true;
+            sendMessage("You are sending messages too fast; some were dropped.");
+        }
         return false;
     }
     
-    private void handleMessages() throws IOException {
-        String message;
-        while (running && (message = reader.readLine()) != null) {
-            message = message.trim();
-            if (message.isEmpty()) continue;
-            
-            if (message.startsWith("/")) {
-                handleCommand(message);
-            } else {
-                if (currentRoom != null) {
-                    server.broadcastMessage(currentRoom, username, message);
-                } else {
-                    writer.println("You are not in any room. Use '/join <room>' to join a room.");
-                }
+    /**
+     * Acknowledges the upgrade in text; everything after the acknowledgement
+     * is binary frames. The client waits for it before sending frames, so
+     * the line reader cannot have read past the upgrade request.
+     */
+    private void switchToBinary() {
+        ByteBuffer ack = ByteBuffer.wrap((BinaryProtocol.UPGRADE_ACK + "\n").getBytes(StandardCharsets.UTF_8));
+        outbound.setPrefixer(new BinaryProtocol.Definitions(ack));
+        enqueue(ack);
+        binary = true;
+    }
+    
+    /**
+     * Acknowledges the request in plain text and compresses everything
+     * queued after the acknowledgement. Like the binary upgrade, the client
+     * reads byte by byte until it sees it.
+     */
+    private void switchToCompressed() {
+        ByteBuffer ack = ByteBuffer.wrap((DeflateProtocol.UPGRADE_ACK + "\n").getBytes(StandardCharsets.UTF_8));
+        DeflateProtocol.Compressor compressor = server.newCompressor(ack);
+        if (compressor == null) {
+            sendMessage(DeflateProtocol.UPGRADE_REFUSED);
+            return;
+        }
+        this.compressor = compressor;
+        outbound.setCompressor(compressor);
+        enqueue(ack);
+    }
+    
+    /**
+     * The binary counterpart of the line loop: reads whatever the socket
+     * has and dispatches the complete frames in it.
+     */
+    private void readFrames(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while (running && (count = in.read(buffer)) > 0) {
+            handleFrames(ByteBuffer.wrap(buffer, 0, count));
+        }
+    }
+    
+    protected void handleFrames(ByteBuffer input) throws IOException {
+        lastActivity = System.nanoTime();
+        try {
+            frames.feed(input, this::handleFrame);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed frame from " + username);
+        }
+    }
+    
+    /**
+     * Dispatches one binary frame. Chat and private messages arrive with
+     * their fields already separated, so only COMMAND frames go through the
+     * text command parser.
+     */
+    private void handleFrame(int opcode, ByteBuffer payload) {
+        if (username != null && !admit()) return;
+        String text = BinaryProtocol.getString(payload);
+        if (username == null && opcode != BinaryProtocol.PRIVATE) {
+            authenticateUser(text);
+            return;
+        }
+        switch (opcode) {
+            case BinaryProtocol.LOGIN:
+                sendMessage("You are already logged in as " + username + ".");
+                break;
+            case BinaryProtocol.CHAT:
+                if (text.isBlank()) return;
+                postToRoom(text);
+                break;
+            case BinaryProtocol.PRIVATE:
+                if (username == null) return;
+                router.sendPrivateMessage(username, text, BinaryProtocol.getString(payload));
+                break;
+            case BinaryProtocol.COMMAND:
+                handleMessage(text);
+                break;
+            default:
+                sendMessage("Unknown frame type " + opcode + ".");
+        }
+    }
+    
+    private void authenticateUser(String inputUsername) {
+        inputUsername = inputUsername.trim();
+        if (inputUsername.isEmpty()) {
+            sendMessage("Username cannot be empty. Please try again:");
+            return;
+        }
+        
+        if (inputUsername.contains(" ") || inputUsername.length() > 20) {
+            sendMessage("Username must be single word and max 20 characters. Please try again:");
+            return;
+        }
+        
+        // Claim the username; the server rejects it if it is already taken
+        this.username = inputUsername;
+        if (!router.addClient(username, this)) {
+            this.username = null;
+            sendMessage("Username '" + inputUsername + "' is already taken. Please choose another:");
+            return;
+        }
+        userId = Message.idOf(username);
+        sendMessage("Welcome, " + username + "! You are now connected.");
+        sendMessage("Type '/help' for available commands.");
+    }
+    
+    /**
+     * Logs in with a resumable session: room messages carry their sequence
+     * numbers and the client is given a token to resume with.
+     */
+    private void startSession(String inputUsername) {
+        sequenced = true;
+        authenticateUser(inputUsername);
+        if (username != null) {
+            sendMessage(SessionProtocol.TOKEN + " " + router.startSession(username));
+        } else {
+            sequenced = false;
+        }
+    }
+    
+    /**
+     * Handles "username token [room lastSequence]". An unknown token, e.g.
+     * from before a server restart, starts a new session instead.
+     */
+    private void resumeSession(String[] parts) {
+        if (parts.length < 2 || !router.isSessionValid(parts[0], parts[1])) {
+            startSession(parts[0]);
+            return;
+        }
+        String room = ChatRouter.DEFAULT_ROOM;
+        long lastSequence = -1;
+        if (parts.length >= 4) {
+            room = parts[2];
+            try {
+                lastSequence = Long.parseLong(parts[3]);
+            } catch (NumberFormatException e) {
+                // Replay the whole history instead
             }
         }
+        sequenced = true;
+        this.username = parts[0];
+        if (!router.resumeClient(username, this, room, lastSequence)) {
+            this.username = null;
+            sendMessage("Username '" + parts[0] + "' is already taken. Please choose another:");
+            return;
+        }
+        userId = Message.idOf(username);
+        sendMessage("Welcome back, " + username + "! Your session was resumed.");
+        sendMessage(SessionProtocol.TOKEN + " " + parts[1]);
+    }
+    
+    private void handleMessage(String message) {
+        message = message.trim();
+        if (message.isEmpty()) return;
+        
+        if (message.startsWith("/")) {
+            handleCommand(message);
+        } else {
+            postToRoom(message);
+        }
+    }
+    
+    private void postToRoom(String content) {
+        String room = currentRoom;
+        if (room == null) {
+            sendMessage("You are not in any room. Use '/join <room>' to join a room.");
+        } else if (router.broadcastMessage(room, username, userId, content)) {
+            roomBusyNoticeSent = false;
+        } else if (!roomBusyNoticeSent) {
+            roomBusyNoticeSent = true;
+            sendMessage("Room " + room + " is busy; some of your messages were not sent.");
+        }
     }
     
     private void handleCommand(String command) {
+        long start = System.nanoTime();
         String[] parts = command.split(" ", 3);
         String cmd = parts[0].toLowerCase();
-        
+        runCommand(cmd, parts);
+        metrics.recordCommand(cmd, System.nanoTime() - start);
+    }
+    
+    private void runCommand(String cmd, String[] parts) {
         switch (cmd) {
             case "/help":
                 sendHelpMessage();
                 break;
-                
+            
             case "/join":
                 if (parts.length < 2) {
-                    writer.println("Usage: /join <room_name>");
+                    sendMessage("Usage: /join <room_name>");
                 } else {
-                    server.joinRoom(username, parts[1]);
+                    router.joinRoom(username, parts[1]);
                 }
                 break;
-                
+            
             case "/leave":
                 if (currentRoom != null) {
-                    server.leaveRoom(username, currentRoom);
-                    currentRoom = null;
-                    writer.println("You left the room.");
+                    router.leaveRoom(username, currentRoom);
+                    sendMessage("You left the room.");
                 } else {
-                    writer.println("You are not in any room.");
+                    sendMessage("You are not in any room.");
                 }
                 break;
-                
+            
             case "/pm":
             case "/private":
                 if (parts.length < 3) {
-                    writer.println("Usage: /pm <username> <message>");
+                    sendMessage("Usage: /pm <username> <message>");
                 } else {
-                    server.sendPrivateMessage(username, parts[1], parts[2]);
+                    router.sendPrivateMessage(username, parts[1], parts[2]);
                 }
                 break;
-                
+            
             case "/users":
-                writer.println(server.getConnectedUsers());
+                sendMessage(router.getConnectedUsers());
                 break;
-                
+            
             case "/rooms":
-                writer.println(server.getAvailableRooms());
+                sendMessage(router.getAvailableRooms());
+                break;
+            
+            case "/history":
+                sendHistory(parts);
+                break;
+            
+            case "/search":
+                if (parts.length < 2) {
+                    sendMessage("Usage: /search <words>");
+                } else {
+                    lastSearch = parts.length > 2 ? parts[1] + " " + parts[2] : parts[1];
+                    searchPage = 0;
+                    router.search(username, lastSearch, searchPage);
+                }
                 break;
-                
+            
+            case "/more":
+                if (lastSearch == null) {
+                    sendMessage("Nothing to show more of. Use '/search <words>' first.");
+                } else {
+                    router.search(username, lastSearch, ++searchPage);
+                }
+                break;
+            
+            case "/stats":
+                sendMessage(router.getStats());
+                break;
+            
+            case "/pong":
+                // Heartbeat answer from a binary client; reading it was enough
+                break;
+            
             case "/quit":
             case "/exit":
-                writer.println("Goodbye!");
-                running = false;
+                router.endSession(username);
+                sendMessage("Goodbye!");
+                close();
                 break;
-                
+            
             default:
-                writer.println("Unknown command. Type '/help' for available commands.");
+                sendMessage("Unknown command. Type '/help' for available commands.");
+        }
+    }
+    
+    /**
+     * /history [count] or /history since HH:mm[:ss]. A time later than now
+     * is taken to mean yesterday.
+     */
+    private void sendHistory(String[] parts) {
+        if (currentRoom == null) {
+            sendMessage("You are not in any room.");
+            return;
+        }
+        try {
+            if (parts.length >= 3 && parts[1].equalsIgnoreCase("since")) {
+                LocalDateTime since = LocalDate.now().atTime(LocalTime.parse(parts[2].trim()));
+                if (since.isAfter(LocalDateTime.now())) {
+                    since = since.minusDays(1);
+                }
+                router.sendHistorySince(username, since);
+            } else {
+                router.sendHistory(username, parts.length >= 2 ? Integer.parseInt(parts[1]) : DEFAULT_HISTORY_COUNT);
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            sendMessage("Usage: /history [count] or /history since HH:mm");
         }
     }
     
     private void sendHelpMessage() {
-        writer.println("=== Available Commands ===");
-        writer.println("/join <room>    - Join a chat room");
-        writer.println("/leave          - Leave current room");
-        writer.println("/pm <user> <msg> - Send private message");
-        writer.println("/users          - List connected users");
-        writer.println("/rooms          - List available rooms");
-        writer.println("/help           - Show this help message");
-        writer.println("/quit           - Exit the chat");
-        writer.println("========================");
+        sendMessage("=== Available Commands ===");
+        sendMessage("/join <room>    - Join a chat room");
+        sendMessage("/leave          - Leave current room");
+        sendMessage("/pm <user> <msg> - Send private message");
+        sendMessage("/users          - List connected users");
+        sendMessage("/rooms          - List available rooms");
+        sendMessage("/history [n]    - Show the last n messages of this room");
+        sendMessage("/history since HH:mm - Show messages since a time today");
+        sendMessage("/search <words> - Find messages in all rooms (/more for the next page)");
+        sendMessage("/stats          - Show routing and outbound queue stats");
+        sendMessage("/help           - Show this help message");
+        sendMessage("/quit           - Exit the chat");
+        sendMessage("========================");
     }
     
+    /**
+     * Queues one line for the client. The caller never touches the socket,
+     * so a slow reader cannot stall a broadcast to the rest of the room.
+     */
+    @Override
     public void sendMessage(String message) {
-        if (writer != null) {
-            writer.println(message);
+        if (binary) {
+            enqueue(BinaryProtocol.text(message));
+        } else {
+            enqueue(ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)));
         }
     }
     
+    /**
+     * Queues a routed message as a text line, sequenced text line or binary
+     * frame, encoded once for all recipients using that format.
+     */
+    @Override
+    public void deliver(Message message) {
+        if (binary) {
+            sendLine(message.encode(BinaryProtocol.MESSAGE_FRAME));
+        } else {
+            sendLine(sequenced ? message.encode(SessionProtocol.SEQUENCED_LINE) : message.toLine());
+        }
+    }
+    
+    /**
+     * Queues a history replay as one buffer, so it is written, and
+     * compressed, as one block. Binary frames stay separate because ids
+     * are defined frame by frame.
+     */
+    @Override
+    public void deliverAll(Collection<Message> messages) {
+        if (binary || messages.size() < 2) {
+            Connection.super.deliverAll(messages);
+            return;
+        }
+        MessageEncoder encoder = sequenced ? SessionProtocol.SEQUENCED_LINE : Message.TEXT_LINE;
+        int length = 0;
+        for (Message message : messages) {
+            length += message.encode(encoder).remaining();
+        }
+        ByteBuffer replay = ByteBuffer.allocate(length);
+        for (Message message : messages) {
+            replay.put(message.encode(encoder).duplicate());
+        }
+        enqueue(replay.flip());
+    }
+    
+    /**
+     * Queues a line that was encoded once for many recipients (see
+     * Message.toLine). Each recipient gets its own view of the shared bytes.
+     */
+    public void sendLine(ByteBuffer sharedLine) {
+        enqueue(sharedLine.duplicate());
+    }
+    
+    protected void enqueue(ByteBuffer line) {
+        if (!running) return;
+        if (!outbound.offer(line)) {
+            onSlowConsumer();
+            return;
+        }
+        scheduleWrite();
+    }
+    
+    /**
+     * Starts this connection's writer unless one is already draining the
+     * queue. At most one writer runs per connection at a time.
+     */
+    protected void scheduleWrite() {
+        writer.schedule();
+    }
+    
+    protected void onSlowConsumer() {
+        if (!running) return;
+        running = false;
+        System.out.println("Disconnecting slow consumer: " + username
+                + " (queue depth " + outbound.getDepth() + ", dropped " + outbound.getDroppedCount() + ")");
+        disconnect();
+    }
+    
+    /**
+     * Closes the connection from another thread. Closing the socket makes
+     * the blocked read fail, and the read loop then runs the normal cleanup.
+     */
+    @Override
+    public void disconnect() {
+        running = false;
+        try {
+            if (clientSocket != null) clientSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+    }
+    
+    @Override
+    public long getLastActivity() {
+        return lastActivity;
+    }
+    
+    @Override
+    public void sendHeartbeat() {
+        sendMessage(Heartbeat.PING);
+    }
+    
+    private ByteBuffer skippedNotice(int skipped) {
+        String notice = OutboundQueue.skippedText(skipped);
+        return binary ? BinaryProtocol.text(notice)
+                      : ByteBuffer.wrap((notice + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+    
+    @Override
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+    
+    @Override
+    public int getQueueHighWaterMark() {
+        return outbound.getHighWaterMark();
+    }
+    
+    @Override
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
+    }
+    
+    @Override
     public String getUsername() {
         return username;
     }
     
+    @Override
     public String getCurrentRoom() {
         return currentRoom;
     }
     
+    @Override
     public void setCurrentRoom(String room) {
         this.currentRoom = room;
     }
     
-    private void cleanup() {
+    public boolean isBinary() {
+        return binary;
+    }
+    
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Asks the connection to terminate. The blocking transport stops its
+     * read loop; other transports override this to close their channel.
+     */
+    protected void close() {
+        running = false;
+    }
+    
+    protected void cleanup() {
         running = false;
+        if (idleWatch != null) {
+            idleWatch.cancel();
+        }
         if (username != null) {
-            server.removeClient(username);
+            router.removeClient(username);
+        }
+        
+        // Send whatever is still queued (e.g. "Goodbye!") before the socket closes
+        if (writer != null) {
+            writer.finish(WRITER_SHUTDOWN_MILLIS);
+        }
+        if (compressor != null) {
+            compressor.close();
         }
         
         try {
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
+            // A slow-consumer disconnect has already closed the socket and its streams
             if (clientSocket != null && !clientSocket.isClosed()) {
+                if (reader != null) reader.close();
+                if (output != null) output.close();
                 clientSocket.close();
             }
         } catch (IOException e) {
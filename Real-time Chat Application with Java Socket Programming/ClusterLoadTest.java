@@ -0,0 +1,145 @@
+package com.chat.test;
+
+import com.chat.common.ExecutorMode;
+import com.chat.server.ChatRouter;
+import com.chat.server.ChatServer;
+import com.chat.server.ClusterNode;
+import com.chat.test.BenchClient.LatencyRecorder;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Starts several clustered ChatServers on localhost, spreads clients across
+ * them in one room and measures how long a broadcast takes to reach the
+ * members on each node. Messages are sent from a node that does not own the
+ * room, so its own members see the trip to the owner and back, the owner's
+ * members one hop and the remaining nodes two.
+ * Each node's own view of cross-node delivery latency is printed as well.
+ *
+ * Usage: java com.chat.test.ClusterLoadTest [nodes] [clients per node] [messages]
+ */
+public class ClusterLoadTest {
+    private static final String ROOM = "general";
+    
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int clientsPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        
+        System.out.println("=== Cluster Load Test ===");
+        System.out.println(nodeCount + " nodes, " + clientsPerNode + " clients per node, " + messages + " broadcasts");
+        System.out.println();
+        
+        String[] ids = new String[nodeCount];
+        int[] chatPorts = new int[nodeCount];
+        int[] busPorts = new int[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            ids[n] = "node" + n;
+            chatPorts[n] = ChatServerLoadTest.findFreePort();
+            busPorts[n] = ChatServerLoadTest.findFreePort();
+        }
+        
+        ChatServer[] servers = new ChatServer[nodeCount];
+        ClusterNode[] nodes = new ClusterNode[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+            for (int p = 0; p < nodeCount; p++) {
+                if (p != n) peers.put(ids[p], new InetSocketAddress("localhost", busPorts[p]));
+            }
+            ChatRouter router = new ChatRouter();
+            nodes[n] = new ClusterNode(ids[n], busPorts[n], peers);
+            router.setCluster(nodes[n]);
+            nodes[n].start();
+            servers[n] = new ChatServer(chatPorts[n], ExecutorMode.CACHED, ExecutorMode.DEFAULT_POOL_SIZE, router);
+            Thread serverThread = new Thread(servers[n]::start, "cluster-test-" + ids[n]);
+            serverThread.setDaemon(true);
+            serverThread.start();
+            ChatServerLoadTest.waitForPort(chatPorts[n]);
+        }
+        waitForMesh(nodes);
+        String owner = nodes[0].ownerOf(ROOM);
+        int sender = 0;
+        while (nodeCount > 1 && ids[sender].equals(owner)) {
+            sender++;
+        }
+        
+        int total = nodeCount * clientsPerNode;
+        LatencyRecorder[] recorders = new LatencyRecorder[nodeCount];
+        try (Selector selector = Selector.open()) {
+            BenchClient[] clients = new BenchClient[total];
+            for (int n = 0; n < nodeCount; n++) {
+                recorders[n] = new LatencyRecorder(clientsPerNode * messages);
+                for (int c = 0; c < clientsPerNode; c++) {
+                    BenchClient client = BenchClient.connect(selector, chatPorts[n], recorders[n]);
+                    client.send("n" + n + "u" + c);
+                    clients[n * clientsPerNode + c] = client;
+                }
+            }
+            BenchClient.pump(selector, () -> welcomed(recorders) >= total, 60_000);
+            // Let the last joins settle so every node is subscribed to the room
+            Thread.sleep(500);
+            
+            for (int m = 0; m < messages; m++) {
+                clients[sender * clientsPerNode].sendTimestamped();
+                int expected = (m + 1) * total;
+                if (!BenchClient.pump(selector, () -> samples(recorders) >= expected, 10_000)) {
+                    System.out.println("Timed out waiting for broadcast " + m + " (" + samples(recorders) + "/" + expected + ")");
+                    break;
+                }
+            }
+            for (BenchClient client : clients) {
+                client.close();
+            }
+        }
+        
+        System.out.println("Room '" + ROOM + "' is owned by " + owner + "; messages are sent from " + ids[sender]);
+        System.out.println();
+        System.out.printf("%-22s %10s %10s %10s %10s%n", "recipients on", "samples", "p50 (ms)", "p99 (ms)", "max (ms)");
+        for (int n = 0; n < nodeCount; n++) {
+            long[] sorted = recorders[n].sorted();
+            String label = ids[n] + (n == sender ? " (sender)" : "") + (ids[n].equals(owner) ? " (owner)" : "");
+            System.out.printf("%-22s %10d %10.2f %10.2f %10.2f%n", label, sorted.length,
+                    LatencyRecorder.percentileMillis(sorted, 0.50),
+                    LatencyRecorder.percentileMillis(sorted, 0.99),
+                    sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1_000_000.0);
+        }
+        System.out.println();
+        for (ClusterNode node : nodes) {
+            System.out.println(node.getStats());
+        }
+        
+        for (ChatServer server : servers) {
+            server.stop();
+        }
+    }
+    
+    private static void waitForMesh(ClusterNode[] nodes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (ClusterNode node : nodes) {
+            while (node.getConnectedPeerCount() < nodes.length - 1) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Cluster did not connect: " + node.getStats());
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+    
+    private static int welcomed(LatencyRecorder[] recorders) {
+        int welcomed = 0;
+        for (LatencyRecorder recorder : recorders) {
+            welcomed += recorder.welcomed();
+        }
+        return welcomed;
+    }
+    
+    private static int samples(LatencyRecorder[] recorders) {
+        int samples = 0;
+        for (LatencyRecorder recorder : recorders) {
+            samples += recorder.samples();
+        }
+        return samples;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,720 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Links the ChatRouters of several ChatServer processes over a small TCP
+ * bus so they act as one chat service.
+ * <p>
+ * Every room has an owner node, chosen by a consistent hash of its name over
+ * the configured node ids. A node with local members in a room it does not
+ * own subscribes to the owner; messages posted anywhere are sent to the
+ * owner, which records them (history and message log live on the owner) and
+ * publishes them back to every subscribed node. Each node announces its
+ * logged-in users to every peer, which gives each node a directory of who is
+ * online where for /users and /pm.
+ * <p>
+ * Each node opens one connection to every peer and only writes to it, so a
+ * pair of nodes uses two connections. Outgoing frames are queued per peer
+ * and written by an OutboundWriter, like client output. While a room's owner
+ * is unreachable, messages in that room reach the members on the sending
+ * node only; so do messages sent to the owner over a link that went down
+ * before they were written out.
+ */
+public class ClusterNode {
+    private static final byte HELLO = 1;
+    private static final byte USER_UP = 2;
+    private static final byte USER_DOWN = 3;
+    private static final byte SUBSCRIBE = 4;
+    private static final byte UNSUBSCRIBE = 5;
+    private static final byte PUBLISH = 6;
+    private static final byte DELIVER = 7;
+    private static final byte SNAPSHOT = 8;
+    private static final byte PRIVATE = 9;
+    
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_MILLIS = 1000;
+    
+    private final String nodeId;
+    private final int busPort;
+    private final Map<String, InetSocketAddress> peerAddresses;
+    private final ConsistentHashRing ring;
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> usersByNode = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock subscriptionLock = new ReentrantLock();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ExecutorService writerPool = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService connector;
+    private ChatRouter router;
+    private ServerSocket busSocket;
+    private volatile boolean running;
+    
+    /**
+     * @param peers the other nodes of the cluster by id. Every node must be
+     *              configured with the same set of ids, or they will disagree
+     *              about room owners.
+     */
+    public ClusterNode(String nodeId, int busPort, Map<String, InetSocketAddress> peers) {
+        this.nodeId = nodeId;
+        this.busPort = busPort;
+        this.peerAddresses = new LinkedHashMap<>(peers);
+        List<String> ids = new ArrayList<>(peers.keySet());
+        ids.add(nodeId);
+        this.ring = new ConsistentHashRing(ids);
+        this.connector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-connector-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    void attach(ChatRouter router) {
+        this.router = router;
+    }
+    
+    /**
+     * Starts listening for peers and connecting to them. The router must
+     * have been given this node with ChatRouter.setCluster first.
+     */
+    public void start() throws IOException {
+        if (router == null) {
+            throw new IllegalStateException("Call ChatRouter.setCluster before starting the cluster node");
+        }
+        busSocket = new ServerSocket(busPort);
+        running = true;
+        Thread acceptor = new Thread(this::acceptPeers, "cluster-accept-" + nodeId);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        connector.scheduleWithFixedDelay(this::connectPeers, 0, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + nodeId + " listening for peers on port " + busPort);
+    }
+    
+    public void stop() {
+        running = false;
+        connector.shutdownNow();
+        try {
+            if (busSocket != null) busSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing cluster bus: " + e.getMessage());
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        for (Socket socket : inbound) {
+            closeQuietly(socket);
+        }
+        writerPool.shutdown();
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    public String ownerOf(String room) {
+        return ring.ownerOf(room);
+    }
+    
+    public boolean owns(String room) {
+        return nodeId.equals(ring.ownerOf(room));
+    }
+    
+    // ---- Rooms ----
+    
+    /**
+     * Sends a message posted on this node to the owner of its room. Returns
+     * false if the owner cannot be reached, in which case the caller
+     * delivers it locally. If the link goes down before the frame has been
+     * written, the message is handed back to the router the same way.
+     */
+    boolean publish(String room, Message message) {
+        PeerLink link = links.get(ring.ownerOf(room));
+        return link != null && link.publish(room, message);
+    }
+    
+    /**
+     * Sends a message recorded by this node, the room's owner, to every
+     * node subscribed to the room. The frame is encoded once for all of them.
+     */
+    void fanOut(String room, Message message, long sentMicros) {
+        Set<String> nodes = subscribers.get(room);
+        if (nodes == null || nodes.isEmpty()) return;
+        ByteBuffer frame = new Frame(DELIVER).string(room).message(message)
+                .number(sentMicros != 0 ? sentMicros : nowMicros()).build().asReadOnlyBuffer();
+        for (String node : nodes) {
+            PeerLink link = links.get(node);
+            if (link != null) {
+                link.send(frame.duplicate());
+            }
+        }
+    }
+    
+    boolean hasSubscribers(String room) {
+        Set<String> nodes = subscribers.get(room);
+        return nodes != null && !nodes.isEmpty();
+    }
+    
+    /**
+     * Subscribes to or unsubscribes from a remotely owned room so that it
+     * matches whether the room has local members. Safe to call after any
+     * join or leave: the decision is made under a lock from the current
+     * membership, so the last call always leaves the right state.
+     */
+    void roomMembershipChanged(String room) {
+        String owner = ring.ownerOf(room);
+        if (owner.equals(nodeId)) return;
+        subscriptionLock.lock();
+        try {
+            boolean wanted = router.hasLocalMembers(room);
+            if (wanted == subscriptions.contains(room)) return;
+            PeerLink link = links.get(owner);
+            if (!wanted) {
+                subscriptions.remove(room);
+                if (link != null) {
+                    link.send(new Frame(UNSUBSCRIBE).string(room).build());
+                }
+            } else if (link != null && link.send(new Frame(SUBSCRIBE).string(room).build())) {
+                subscriptions.add(room);
+            }
+            // A room that could not be subscribed yet is picked up when the link comes up
+        } finally {
+            subscriptionLock.unlock();
+        }
+    }
+    
+    // ---- Presence ----
+    
+    void userUp(String username) {
+        broadcast(new Frame(USER_UP).string(username).build());
+    }
+    
+    void userDown(String username) {
+        broadcast(new Frame(USER_DOWN).string(username).build());
+    }
+    
+    /**
+     * Returns the peer a user is logged in on, or null if no peer has
+     * announced it. If two nodes claim the name, the lower id wins.
+     */
+    String nodeOf(String username) {
+        String found = null;
+        for (Map.Entry<String, Set<String>> entry : usersByNode.entrySet()) {
+            if (entry.getValue().contains(username) && (found == null || entry.getKey().compareTo(found) < 0)) {
+                found = entry.getKey();
+            }
+        }
+        return found;
+    }
+    
+    Collection<String> getRemoteUsers() {
+        Set<String> users = new LinkedHashSet<>();
+        for (Set<String> names : usersByNode.values()) {
+            users.addAll(names);
+        }
+        return users;
+    }
+    
+    /**
+     * Sends a private message to the node {@code toUser} is logged in on.
+     * Returns false if the user is not known to be online anywhere else.
+     */
+    boolean sendPrivate(String toUser, Message message) {
+        String node = nodeOf(toUser);
+        PeerLink link = node != null ? links.get(node) : null;
+        return link != null && link.send(new Frame(PRIVATE).string(toUser).message(message).number(nowMicros()).build());
+    }
+    
+    // ---- Links ----
+    
+    private void broadcast(ByteBuffer frame) {
+        ByteBuffer shared = frame.asReadOnlyBuffer();
+        for (PeerLink link : links.values()) {
+            link.send(shared.duplicate());
+        }
+    }
+    
+    private void connectPeers() {
+        for (Map.Entry<String, InetSocketAddress> peer : peerAddresses.entrySet()) {
+            if (!running || links.containsKey(peer.getKey())) continue;
+            Socket socket = new Socket();
+            try {
+                socket.connect(peer.getValue(), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                PeerLink link = new PeerLink(peer.getKey(), socket);
+                links.put(peer.getKey(), link);
+                onLinkUp(link);
+                System.out.println("Cluster node " + nodeId + " connected to " + peer.getKey() + " at " + peer.getValue());
+            } catch (IOException e) {
+                closeQuietly(socket); // Not up yet; retried on the next round
+            }
+        }
+    }
+    
+    /**
+     * Tells a newly connected peer who we are, who is logged in here and
+     * which of its rooms we have members in.
+     */
+    private void onLinkUp(PeerLink link) {
+        link.send(new Frame(HELLO).string(nodeId).build());
+        for (String username : router.getLocalUsernames()) {
+            link.send(new Frame(USER_UP).string(username).build());
+        }
+        subscriptionLock.lock();
+        try {
+            for (String room : router.getLocalRoomNames()) {
+                if (link.peerId.equals(ring.ownerOf(room)) && router.hasLocalMembers(room)
+                        && link.send(new Frame(SUBSCRIBE).string(room).build())) {
+                    subscriptions.add(room);
+                }
+            }
+        } finally {
+            subscriptionLock.unlock();
+        }
+    }
+    
+    private void onLinkDown(PeerLink link, List<Published> unwritten) {
+        if (!links.remove(link.peerId, link)) return;
+        subscriptionLock.lock();
+        try {
+            // Resubscribed when the link comes back
+            subscriptions.removeIf(room -> link.peerId.equals(ring.ownerOf(room)));
+        } finally {
+            subscriptionLock.unlock();
+        }
+        if (running) {
+            System.out.println("Cluster node " + nodeId + " lost its link to " + link.peerId);
+            if (!unwritten.isEmpty()) {
+                // Not on this thread, which may hold another room's history lock
+                link.execute(() -> {
+                    for (Published entry : unwritten) {
+                        router.onUnpublished(entry.room, entry.message);
+                    }
+                });
+            }
+        }
+    }
+    
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket socket = busSocket.accept();
+                socket.setTcpNoDelay(true);
+                inbound.add(socket);
+                Thread reader = new Thread(() -> readPeer(socket), "cluster-reader-" + nodeId);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting cluster peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads frames from one peer until it disconnects, then forgets its
+     * users and subscriptions.
+     */
+    private void readPeer(Socket socket) {
+        String peerId = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            while (running) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Bad cluster frame length " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                ByteBuffer frame = ByteBuffer.wrap(body);
+                byte type = frame.get();
+                if (type == HELLO) {
+                    peerId = readString(frame);
+                } else if (peerId == null) {
+                    throw new IOException("Cluster peer sent frame " + type + " before HELLO");
+                } else {
+                    handleFrame(peerId, type, frame);
+                }
+            }
+        } catch (IOException e) {
+            // Peer went away; its state is dropped below
+        } finally {
+            inbound.remove(socket);
+            closeQuietly(socket);
+            if (peerId != null) {
+                onPeerGone(peerId);
+            }
+        }
+    }
+    
+    private void handleFrame(String peerId, byte type, ByteBuffer frame) {
+        switch (type) {
+            case USER_UP: {
+                String username = readString(frame);
+                usersByNode.computeIfAbsent(peerId, id -> ConcurrentHashMap.newKeySet()).add(username);
+                router.onRemoteUserUp(username, peerId);
+                break;
+            }
+            case USER_DOWN: {
+                Set<String> users = usersByNode.get(peerId);
+                if (users != null) {
+                    users.remove(readString(frame));
+                }
+                break;
+            }
+            case SUBSCRIBE: {
+                String room = readString(frame);
+                PeerLink link = links.get(peerId);
+                // Nothing is recorded in the room in between, so each message is either
+                // in the snapshot or fanned out after it, never both or neither
+                router.subscribe(room, history -> {
+                    if (link != null) {
+                        Frame snapshot = new Frame(SNAPSHOT).string(room);
+                        snapshot.number(history.size());
+                        for (Message message : history) {
+                            snapshot.message(message);
+                        }
+                        link.send(snapshot.build());
+                    }
+                    subscribers.computeIfAbsent(room, r -> ConcurrentHashMap.newKeySet()).add(peerId);
+                });
+                break;
+            }
+            case UNSUBSCRIBE: {
+                String room = readString(frame);
+                Set<String> nodes = subscribers.get(room);
+                if (nodes != null) {
+                    nodes.remove(peerId);
+                }
+                router.releaseRoom(room);
+                break;
+            }
+            case PUBLISH: {
+                String room = readString(frame);
+                Message message = readMessage(frame);
+                long sentMicros = frame.getLong();
+                if (router.onPublish(room, message, sentMicros) > 0) {
+                    latency.record((nowMicros() - sentMicros) * 1000);
+                }
+                break;
+            }
+            case DELIVER: {
+                String room = readString(frame);
+                Message message = readMessage(frame);
+                long sentMicros = frame.getLong();
+                if (router.onDeliver(room, message) > 0) {
+                    latency.record((nowMicros() - sentMicros) * 1000);
+                }
+                break;
+            }
+            case SNAPSHOT: {
+                String room = readString(frame);
+                int count = (int) frame.getLong();
+                List<Message> history = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    history.add(readMessage(frame));
+                }
+                router.onSnapshot(room, history);
+                break;
+            }
+            case PRIVATE: {
+                String toUser = readString(frame);
+                Message message = readMessage(frame);
+                long sentMicros = frame.getLong();
+                if (router.onPrivate(toUser, message)) {
+                    latency.record((nowMicros() - sentMicros) * 1000);
+                }
+                break;
+            }
+            default:
+                System.err.println("Ignoring unknown cluster frame " + type + " from " + peerId);
+        }
+    }
+    
+    private void onPeerGone(String peerId) {
+        usersByNode.remove(peerId);
+        for (Map.Entry<String, Set<String>> entry : subscribers.entrySet()) {
+            if (entry.getValue().remove(peerId)) {
+                router.releaseRoom(entry.getKey());
+            }
+        }
+        // Reconnect from our side too, so a restarted peer hears our users again
+        PeerLink link = links.get(peerId);
+        if (link != null) {
+            link.close();
+        }
+    }
+    
+    // ---- Stats ----
+    
+    public int getConnectedPeerCount() {
+        return links.size();
+    }
+    
+    /**
+     * Time from a message leaving the sending node to its delivery on this
+     * one, in nanoseconds, at the precision of the micros sent on the bus.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+    
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("Cluster node " + nodeId + ", peers:");
+        for (String peer : peerAddresses.keySet()) {
+            stats.append(" ").append(peer).append(links.containsKey(peer) ? "(up)" : "(down)");
+        }
+        stats.append(". Cross-node deliveries: ").append(latency.getCount())
+             .append(String.format(", latency p50=%.2f ms p99=%.2f ms",
+                                   latency.percentile(50) / 1e6, latency.percentile(99) / 1e6));
+        return stats.toString();
+    }
+    
+    /**
+     * Parses a peer list of the form {@code id@host:port,id@host:port}.
+     */
+    public static Map<String, InetSocketAddress> parsePeers(String spec) {
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Peer must look like id@host:port: " + entry);
+            }
+            peers.put(entry.substring(0, at),
+                      new InetSocketAddress(entry.substring(at + 1, colon), Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return peers;
+    }
+    
+    static long nowMicros() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+    
+    private static String readString(ByteBuffer frame) {
+        int length = frame.getInt();
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+    
+    private static Message readMessage(ByteBuffer frame) {
+        String username = readString(frame);
+        String content = readString(frame);
+        String room = readString(frame);
+        Message.MessageType type = Message.MessageType.values()[frame.get()];
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(frame.getLong()), ZoneId.systemDefault());
+        Message message = new Message(username, content, room, type, timestamp);
+        message.setSequence(frame.getLong());
+        return message;
+    }
+    
+    /**
+     * The outgoing half of the connection to one peer.
+     */
+    private final class PeerLink {
+        final String peerId;
+        private final Socket socket;
+        private final OutboundQueue queue = new OutboundQueue(LINK_QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DISCONNECT);
+        private final OutboundWriter writer;
+        private final LongAdder bytesWritten = new LongAdder();
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        // PUBLISH frames not known to be written yet, oldest first
+        private final ArrayDeque<Published> published = new ArrayDeque<>();
+        private final ReentrantLock publishLock = new ReentrantLock();
+        private long bytesQueued;
+        
+        PeerLink(String peerId, Socket socket) throws IOException {
+            this.peerId = peerId;
+            this.socket = socket;
+            this.writer = new OutboundWriter(queue, this::execute, bytesWritten, e -> close());
+            writer.setOutput(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+        
+        /**
+         * Queues a PUBLISH frame and remembers its message until the writer
+         * has flushed past it. The link only writes, so a frame that reached
+         * the socket counts as delivered; one still queued when the link
+         * goes down is handed back to the router by close().
+         */
+        boolean publish(String room, Message message) {
+            ByteBuffer frame = new Frame(PUBLISH).string(room).message(message).number(nowMicros()).build();
+            publishLock.lock();
+            try {
+                // Under the lock, so frames are queued in the order their ends were counted
+                if (!send(frame)) return false;
+                bytesQueued += frame.remaining();
+                long written = bytesWritten.sum();
+                while (!published.isEmpty() && published.peek().end <= written) {
+                    published.poll();
+                }
+                published.add(new Published(room, message, bytesQueued));
+                return true;
+            } finally {
+                publishLock.unlock();
+            }
+        }
+        
+        /**
+         * Queues a frame. A peer that falls a whole queue behind is
+         * disconnected and resynchronized on reconnect rather than sent a
+         * stream with holes in it.
+         */
+        boolean send(ByteBuffer frame) {
+            if (!open.get()) return false;
+            if (!queue.offer(frame)) {
+                System.err.println("Cluster link to " + peerId + " is " + LINK_QUEUE_CAPACITY + " frames behind; reconnecting");
+                close();
+                return false;
+            }
+            writer.schedule();
+            return true;
+        }
+        
+        void close() {
+            if (!open.compareAndSet(true, false)) return;
+            closeQuietly(socket);
+            List<Published> unwritten = new ArrayList<>();
+            publishLock.lock();
+            try {
+                long written = bytesWritten.sum();
+                for (Published entry : published) {
+                    if (entry.end > written) {
+                        unwritten.add(entry);
+                    }
+                }
+                published.clear();
+            } finally {
+                publishLock.unlock();
+            }
+            onLinkDown(this, unwritten);
+        }
+        
+        void execute(Runnable task) {
+            try {
+                writerPool.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Node is stopping
+            }
+        }
+    }
+    
+    /**
+     * A message sent to a room's owner and where its frame ends in the
+     * link's output.
+     */
+    private static final class Published {
+        final String room;
+        final Message message;
+        final long end;
+        
+        Published(String room, Message message, long end) {
+            this.room = room;
+            this.message = message;
+            this.end = end;
+        }
+    }
+    
+    /**
+     * Builds one length-prefixed bus frame: int length | byte type | fields.
+     * Strings are an int byte count followed by UTF-8.
+     */
+    private static final class Frame {
+        private byte[] bytes = new byte[128];
+        private int length = 4;
+        
+        Frame(byte type) {
+            bytes[length++] = type;
+        }
+        
+        Frame string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + utf8.length);
+            putInt(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+            return this;
+        }
+        
+        Frame number(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+        
+        Frame message(Message message) {
+            string(message.getUsername()).string(message.getContent()).string(message.getRoom());
+            ensure(1);
+            bytes[length++] = (byte) message.getType().ordinal();
+            number(message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            return number(message.getSequence());
+        }
+        
+        ByteBuffer build() {
+            int body = length - 4;
+            length = 0;
+            putInt(body);
+            length = body + 4;
+            return ByteBuffer.wrap(bytes, 0, length);
+        }
+        
+        private void putInt(int value) {
+            bytes[length++] = (byte) (value >>> 24);
+            bytes[length++] = (byte) (value >>> 16);
+            bytes[length++] = (byte) (value >>> 8);
+            bytes[length++] = (byte) value;
+        }
+        
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package com.chat.test;
+
+import com.chat.common.DeflateProtocol;
+import com.chat.common.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+/**
+ * Bandwidth against CPU for compressed connections. Generated room traffic
+ * (text lines as the server renders them) is packed the way a connection's
+ * writer packs it: {@code lines/block} messages per batch, e.g. 1 for a
+ * quiet room where every message is written on its own, 8 for a busy room
+ * and 100 for a history replay. Each row reports the bytes sent per
+ * message, what compressing cost the server and what inflating cost the
+ * client. "off" is the uncompressed protocol; the min 0 rows compress even
+ * tiny batches, to show what the minimum size saves.
+ *
+ * Usage: java com.chat.test.CompressionBenchmark [messages]
+ */
+public class CompressionBenchmark {
+    private static final String[] WORDS = {
+        "the", "a", "is", "it", "to", "and", "of", "in", "that", "you", "for", "on", "with", "this", "we",
+        "have", "be", "not", "are", "was", "but", "just", "so", "what", "do", "can", "if", "about", "at",
+        "server", "room", "message", "build", "deploy", "test", "today", "tomorrow", "meeting", "lunch",
+        "anyone", "know", "why", "broken", "fixed", "works", "thanks", "great", "sure", "later", "ok",
+        "release", "branch", "merge", "review", "latency", "queue", "client", "socket", "log", "error"
+    };
+    private static final int[] BATCHES = { 1, 8, 100 };
+    private static final int[] LEVELS = { 1, 6, 9 };
+    
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        
+        System.out.println("=== Compression Benchmark ===");
+        System.out.println("Messages per run: " + count);
+        System.out.println();
+        System.out.printf("%-7s %11s %5s %5s %10s %10s %7s %14s %14s%n", "mix", "lines/block", "level", "min",
+                "raw B/msg", "sent B/msg", "ratio", "deflate ns/msg", "inflate ns/msg");
+        
+        for (boolean shortMessages : new boolean[] { true, false }) {
+            Message[] messages = generate(count, shortMessages);
+            for (int batch : BATCHES) {
+                run(messages, shortMessages, batch, 0, 0);
+                if (batch == 1) {
+                    run(messages, shortMessages, batch, DeflateProtocol.DEFAULT_LEVEL, 0);
+                }
+                for (int level : LEVELS) {
+                    run(messages, shortMessages, batch, level, DeflateProtocol.DEFAULT_MIN_SIZE);
+                }
+            }
+        }
+    }
+    
+    private static Message[] generate(int count, boolean shortMessages) {
+        Random random = new Random(42);
+        LocalDateTime time = LocalDateTime.of(2024, 1, 1, 9, 0);
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            int words = shortMessages ? 1 + random.nextInt(3) : 3 + random.nextInt(18);
+            StringBuilder content = new StringBuilder();
+            for (int w = 0; w < words; w++) {
+                if (w > 0) content.append(' ');
+                content.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            time = time.plusNanos(random.nextInt(2_000_000_000));
+            messages[i] = new Message("user" + random.nextInt(50), content.toString(), "general",
+                                      Message.MessageType.CHAT, time);
+            messages[i].toLine();
+        }
+        return messages;
+    }
+    
+    /**
+     * Packs every message in batches of {@code batch} lines, twice so that
+     * the second, timed pass runs warm. Level 0 writes the lines as they are.
+     */
+    private static void run(Message[] messages, boolean shortMessages, int batch, int level, int minSize)
+            throws IOException {
+        long raw = 0;
+        long sent = 0;
+        long deflateNanos = 0;
+        long inflateNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            DeflateProtocol.Compressor compressor =
+                    level > 0 ? new DeflateProtocol.Compressor(level, minSize, null, null, null) : null;
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            ByteBuffer[] lines = new ByteBuffer[batch];
+            raw = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages.length; i += batch) {
+                int n = Math.min(batch, messages.length - i);
+                for (int j = 0; j < n; j++) {
+                    lines[j] = messages[i + j].toLine().duplicate();
+                    raw += lines[j].remaining();
+                }
+                int blocks = compressor != null ? compressor.pack(lines, n) : n;
+                for (int j = 0; j < blocks; j++) {
+                    ByteBuffer block = lines[j];
+                    byte[] bytes = new byte[block.remaining()];
+                    block.get(bytes);
+                    wire.write(bytes);
+                }
+            }
+            deflateNanos = compressor != null ? System.nanoTime() - start : 0;
+            if (compressor != null) {
+                compressor.close();
+            }
+            byte[] bytes = wire.toByteArray();
+            sent = bytes.length;
+            
+            start = System.nanoTime();
+            if (compressor != null) {
+                InputStream in = new DeflateProtocol.InflatingInputStream(new ByteArrayInputStream(bytes));
+                byte[] buffer = new byte[8192];
+                long inflated = 0;
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    inflated += read;
+                }
+                in.close();
+                if (inflated != raw) {
+                    throw new IllegalStateException("Inflated " + inflated + " bytes, expected " + raw);
+                }
+            }
+            inflateNanos = compressor != null ? System.nanoTime() - start : 0;
+        }
+        int count = messages.length;
+        System.out.printf("%-7s %11d %5s %5s %10.1f %10.1f %7.2f %14.0f %14.0f%n",
+                shortMessages ? "short" : "normal", batch, level > 0 ? Integer.toString(level) : "off",
+                level > 0 ? Integer.toString(minSize) : "-", raw / (double) count, sent / (double) count,
+                raw / (double) sent, deflateNanos / (double) count, inflateNanos / (double) count);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,52 @@
+package com.chat.common;
+
+import java.util.Collection;
+
+/**
+ * A logged-in user as the chat core sees it, whatever transport it arrived
+ * on. Rooms hold connections and the core fans messages out to them; each
+ * implementation renders a message in its own wire format. Delivery only
+ * queues, so a slow connection never blocks the thread that is routing.
+ */
+public interface Connection {
+    String getUsername();
+    
+    String getCurrentRoom();
+    
+    void setCurrentRoom(String room);
+    
+    /**
+     * Queues a room, system or private message for this user.
+     */
+    void deliver(Message message);
+    
+    /**
+     * Queues several messages at once, e.g. a history replay. Transports
+     * that can send them in one write override this.
+     */
+    default void deliverAll(Collection<Message> messages) {
+        for (Message message : messages) {
+            deliver(message);
+        }
+    }
+    
+    /**
+     * Queues a notice meant for this user only, such as a command reply.
+     */
+    void sendMessage(String text);
+    
+    /**
+     * Closes the connection from any thread; the transport then removes
+     * the user as on a normal disconnect.
+     */
+    void disconnect();
+    
+    /** Messages waiting to be written to the transport. */
+    int getQueueDepth();
+    
+    /** Deepest the outbound backlog has been. */
+    int getQueueHighWaterMark();
+    
+    /** Messages discarded because this connection could not keep up. */
+    long getDroppedCount();
+}
\ No newline at end of file
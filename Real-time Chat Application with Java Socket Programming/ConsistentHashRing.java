@@ -0,0 +1,60 @@
+package com.chat.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys (room names) to node ids. Every node is placed on the ring at
+ * many pseudo-random points, so keys spread evenly and adding or removing a
+ * node only moves the keys next to its points. All nodes build the ring from
+ * the same id list and therefore agree on every owner without talking.
+ */
+public class ConsistentHashRing {
+    public static final int DEFAULT_POINTS_PER_NODE = 128;
+    
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    
+    public ConsistentHashRing(Collection<String> nodeIds) {
+        this(nodeIds, DEFAULT_POINTS_PER_NODE);
+    }
+    
+    public ConsistentHashRing(Collection<String> nodeIds, int pointsPerNode) {
+        if (nodeIds.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        for (String nodeId : nodeIds) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                ring.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+    
+    /**
+     * Returns the node that owns {@code key}: the first ring point at or
+     * after the key's hash, wrapping around.
+     */
+    public String ownerOf(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+    
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3
+     * mixer so that similar names land far apart.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,269 @@
+package com.chat.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of what the server sends on a TCP connection. A
+ * client opts in by sending UPGRADE_REQUEST before it logs in (and before
+ * BinaryProtocol.UPGRADE_REQUEST, if it wants both) and reading byte by
+ * byte up to the UPGRADE_ACK line. From then on server output arrives in
+ * blocks:
+ * <pre>
+ *   varint length | kind | data          (length counts kind and data)
+ * </pre>
+ * A RAW block holds the bytes as they are. A DEFLATED block holds raw
+ * deflate data ending in a sync flush, minus the final 00 00 FF FF, as in
+ * WebSocket permessage-deflate. Every DEFLATED block on a connection
+ * continues one compression context, so a line can refer back to names and
+ * text sent earlier. Client input stays uncompressed.
+ */
+public final class DeflateProtocol {
+    public static final String UPGRADE_REQUEST = "/deflate";
+    public static final String UPGRADE_ACK = "Switched to compressed output.";
+    public static final String UPGRADE_REFUSED = "Compression is not enabled on this server.";
+    public static final int RAW = 0;
+    public static final int DEFLATED = 1;
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    /** Smallest batch worth compressing; below it the block overhead outweighs the saving. */
+    public static final int DEFAULT_MIN_SIZE = 64;
+    private static final byte[] SYNC_TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+    
+    private DeflateProtocol() {
+    }
+    
+    private static ByteBuffer block(int kind, byte[] data, int length) {
+        ByteBuffer block = ByteBuffer.allocate(BinaryProtocol.varintSize(length + 1) + length + 1);
+        BinaryProtocol.putVarint(block, length + 1);
+        block.put((byte) kind);
+        block.put(data, 0, length);
+        return block.flip();
+    }
+    
+    /**
+     * Packs a connection's outgoing batches into blocks, on its writer
+     * thread. Each batch the writer takes from the queue becomes one block,
+     * so a burst such as a history replay is compressed as a whole. Buffers
+     * up to and including {@code after} (the text sent before the upgrade)
+     * are passed over.
+     * <p>
+     * Each compressor holds a zlib context of a few hundred KB outside the
+     * heap until close().
+     */
+    public static final class Compressor {
+        private final Deflater deflater;
+        private final int minSize;
+        private final LongAdder bytesIn;
+        private final LongAdder bytesOut;
+        private final ReentrantLock lock = new ReentrantLock();
+        private ByteBuffer after;
+        private byte[] input = new byte[8192];
+        private byte[] output = new byte[8192];
+        private boolean closed;
+        
+        /**
+         * @param bytesIn  counts the bytes of every packed batch; may be null
+         * @param bytesOut counts the bytes of the blocks they became; may be null
+         */
+        public Compressor(int level, int minSize, ByteBuffer after, LongAdder bytesIn, LongAdder bytesOut) {
+            this.deflater = new Deflater(level, true);
+            this.minSize = minSize;
+            this.after = after;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+        
+        /**
+         * Replaces the first {@code count} buffers of {@code batch} with
+         * blocks and returns how many buffers are left to write.
+         */
+        public int pack(ByteBuffer[] batch, int count) {
+            int start = 0;
+            if (after != null) {
+                while (start < count && batch[start] != after) {
+                    start++;
+                }
+                if (start == count) {
+                    return count;
+                }
+                after = null;
+                start++;
+            }
+            if (start == count) {
+                return count;
+            }
+            int length = 0;
+            for (int i = start; i < count; i++) {
+                length += batch[i].remaining();
+            }
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            int offset = 0;
+            for (int i = start; i < count; i++) {
+                ByteBuffer part = batch[i];
+                part.get(part.position(), input, offset, part.remaining());
+                offset += part.remaining();
+                batch[i] = null;
+            }
+            ByteBuffer block = length < minSize ? block(RAW, input, length) : deflate(length);
+            if (block == null) {
+                // Closed under us; the connection is going away
+                block = block(RAW, input, length);
+            }
+            if (bytesIn != null) {
+                bytesIn.add(length);
+                bytesOut.add(block.remaining());
+            }
+            batch[start] = block;
+            return start + 1;
+        }
+        
+        private ByteBuffer deflate(int length) {
+            lock.lock();
+            try {
+                if (closed) return null;
+                deflater.setInput(input, 0, length);
+                int produced = 0;
+                while (true) {
+                    if (produced == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    int count = deflater.deflate(output, produced, output.length - produced, Deflater.SYNC_FLUSH);
+                    produced += count;
+                    // A full buffer means there may be more to flush
+                    if (produced < output.length) break;
+                }
+                return block(DEFLATED, output, produced - SYNC_TAIL.length);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Frees the compression context. Safe to call while the writer is
+         * still running.
+         */
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                deflater.end();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * The client side: reads blocks from the server and returns the bytes
+     * the server meant to send.
+     */
+    public static final class InflatingInputStream extends InputStream {
+        private final InputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private byte[] block = new byte[256];
+        private byte[] data = new byte[8192];
+        private int position;
+        private int limit;
+        
+        /**
+         * @param in the connection's stream, positioned just after the UPGRADE_ACK line
+         */
+        public InflatingInputStream(InputStream in) {
+            this.in = in;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return data[position++] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!fill()) return -1;
+            int count = Math.min(length, limit - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+        
+        @Override
+        public int available() {
+            return limit - position;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+        
+        /**
+         * Reads blocks until there is something to return. Returns false at
+         * the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                int length;
+                try {
+                    length = BinaryProtocol.readVarint(in);
+                } catch (EOFException e) {
+                    return false;
+                }
+                if (length < 1) {
+                    throw new IOException("Invalid block length " + length);
+                }
+                if (block.length < length + SYNC_TAIL.length) {
+                    block = new byte[Math.max(length + SYNC_TAIL.length, block.length * 2)];
+                }
+                int read = 0;
+                while (read < length) {
+                    int count = in.read(block, read, length - read);
+                    if (count < 0) throw new EOFException("Connection closed inside a block");
+                    read += count;
+                }
+                position = 0;
+                if (block[0] == RAW) {
+                    limit = length - 1;
+                    if (data.length < limit) {
+                        data = new byte[limit];
+                    }
+                    System.arraycopy(block, 1, data, 0, limit);
+                } else {
+                    System.arraycopy(SYNC_TAIL, 0, block, length, SYNC_TAIL.length);
+                    limit = inflate(length - 1 + SYNC_TAIL.length);
+                }
+            }
+            return true;
+        }
+        
+        private int inflate(int length) throws IOException {
+            inflater.setInput(block, 1, length);
+            int produced = 0;
+            try {
+                while (true) {
+                    if (produced == data.length) {
+                        data = Arrays.copyOf(data, data.length * 2);
+                    }
+                    int count = inflater.inflate(data, produced, data.length - produced);
+                    produced += count;
+                    if (count == 0) break;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed block: " + e.getMessage());
+            }
+            return produced;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package com.chat.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How the blocking servers run their per-connection handlers.
+ * <ul>
+ *   <li>CACHED  - one platform thread per connection, created on demand</li>
+ *   <li>VIRTUAL - one virtual thread per connection (Java 21+)</li>
+ *   <li>BOUNDED - a fixed pool of platform threads; connections beyond the
+ *       pool size wait in the queue until a thread frees up</li>
+ * </ul>
+ */
+public enum ExecutorMode {
+    CACHED, VIRTUAL, BOUNDED;
+    
+    public static final int DEFAULT_POOL_SIZE = 200;
+    
+    public ExecutorService newExecutor(int poolSize) {
+        switch (this) {
+            case VIRTUAL:
+                return Executors.newVirtualThreadPerTaskExecutor();
+            case BOUNDED:
+                return Executors.newFixedThreadPool(poolSize);
+            default:
+                return Executors.newCachedThreadPool();
+        }
+    }
+    
+    /**
+     * Parses a command line value such as "virtual", "cached" or "bounded".
+     */
+    public static ExecutorMode parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
\ No newline at end of file
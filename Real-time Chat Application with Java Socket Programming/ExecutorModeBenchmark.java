@@ -0,0 +1,145 @@
+package com.chat.test;
+
+import com.chat.common.ExecutorMode;
+import com.chat.server.ChatServer;
+import com.chat.test.BenchClient.LatencyRecorder;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the executor modes of the thread-per-connection ChatServer.
+ * A large population of idle clients sits in small rooms while a smaller
+ * set of active clients chats at a fixed rate; for each mode we report how
+ * many clients got served, the server thread and heap cost and the
+ * end-to-end delivery latency of the active traffic.
+ *
+ * Usage: java com.chat.test.ExecutorModeBenchmark [idle] [active] [seconds] [msgs/sec per active client] [pool size]
+ *
+ * Each simulated client needs two file descriptors (client and server end),
+ * so raise the open file limit before running with the defaults.
+ */
+public class ExecutorModeBenchmark {
+    private static final int ROOM_SIZE = 100;
+    
+    public static void main(String[] args) throws Exception {
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int active = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        int poolSize = args.length > 4 ? Integer.parseInt(args[4]) : ExecutorMode.DEFAULT_POOL_SIZE;
+        
+        System.out.println("=== Executor Mode Benchmark ===");
+        System.out.printf("Idle clients: %d, active clients: %d, %d s at %.1f msg/s each, bounded pool: %d%n%n",
+                idle, active, seconds, rate, poolSize);
+        
+        List<String> rows = new ArrayList<>();
+        for (ExecutorMode mode : new ExecutorMode[] { ExecutorMode.VIRTUAL, ExecutorMode.BOUNDED, ExecutorMode.CACHED }) {
+            rows.add(run(mode, idle, active, seconds, rate, poolSize));
+            // Let exiting pool threads die before the next mode is measured
+            System.gc();
+            Thread.sleep(2000);
+        }
+        
+        System.out.printf("%-8s %8s %10s %10s %10s %10s %10s %10s%n",
+                "mode", "served", "threads", "heap MB", "msgs/s", "p50 (ms)", "p99 (ms)", "p999 (ms)");
+        rows.forEach(System.out::println);
+    }
+    
+    private static String run(ExecutorMode mode, int idle, int active, int seconds, double rate, int poolSize)
+            throws Exception {
+        int port = ChatServerLoadTest.findFreePort();
+        System.gc();
+        long baselineHeap = usedHeap();
+        int baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        
+        ChatServer server = new ChatServer(port, mode, poolSize);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        ChatServerLoadTest.waitForPort(port);
+        
+        LatencyRecorder recorder = new LatencyRecorder(active * ROOM_SIZE);
+        List<BenchClient> activeClients = new ArrayList<>();
+        int delivered;
+        double throughput;
+        int served;
+        int threads;
+        long heap;
+        try (Selector selector = Selector.open()) {
+            List<BenchClient> all = new ArrayList<>();
+            // Pipeline the room change after the login so nobody lingers in
+            // the default room and joins only fan out to small rooms
+            int idleRooms = Math.max(1, idle / ROOM_SIZE);
+            for (int i = 0; i < idle; i++) {
+                BenchClient client = BenchClient.connect(selector, port, recorder);
+                client.send("idle" + i + "\n/join idle-" + (i % idleRooms));
+                all.add(client);
+                if (i % 500 == 0) BenchClient.pump(selector, () -> false, 1);
+            }
+            int activeRooms = Math.max(1, active / ROOM_SIZE);
+            for (int i = 0; i < active; i++) {
+                BenchClient client = BenchClient.connect(selector, port, recorder);
+                client.send("active" + i + "\n/join active-" + (i % activeRooms));
+                all.add(client);
+                activeClients.add(client);
+            }
+            
+            // Wait until logins stop making progress
+            int lastWelcomed = -1;
+            while (recorder.welcomed() != lastWelcomed && recorder.welcomed() < all.size()) {
+                lastWelcomed = recorder.welcomed();
+                BenchClient.pump(selector, () -> recorder.welcomed() >= all.size(), 5_000);
+            }
+            served = recorder.welcomed();
+            threads = ManagementFactory.getThreadMXBean().getThreadCount() - baselineThreads;
+            System.gc();
+            heap = (usedHeap() - baselineHeap) / (1024 * 1024);
+            
+            long intervalNanos = (long) (1_000_000_000L / rate);
+            long start = System.nanoTime();
+            long end = start + seconds * 1_000_000_000L;
+            long[] nextSend = new long[activeClients.size()];
+            for (int i = 0; i < nextSend.length; i++) {
+                nextSend[i] = start + (intervalNanos * i) / nextSend.length;
+            }
+            int sent = 0;
+            while (System.nanoTime() < end) {
+                long now = System.nanoTime();
+                for (int i = 0; i < nextSend.length; i++) {
+                    BenchClient client = activeClients.get(i);
+                    if (now >= nextSend[i] && client.isWelcomed()) {
+                        client.sendTimestamped();
+                        nextSend[i] += intervalNanos;
+                        sent++;
+                    }
+                }
+                BenchClient.pump(selector, () -> false, 5);
+            }
+            // Drain in-flight deliveries
+            BenchClient.pump(selector, () -> false, 2_000);
+            delivered = recorder.samples();
+            throughput = sent / (double) seconds;
+            
+            for (BenchClient client : all) {
+                client.close();
+            }
+        } finally {
+            server.stop();
+        }
+        
+        long[] sorted = recorder.sorted();
+        System.out.printf("%s: %d/%d clients served, %d deliveries%n", mode, served, idle + active, delivered);
+        return String.format("%-8s %8d %10d %10d %10.0f %10.2f %10.2f %10.2f",
+                mode, served, threads, heap, throughput,
+                LatencyRecorder.percentileMillis(sorted, 0.50),
+                LatencyRecorder.percentileMillis(sorted, 0.99),
+                LatencyRecorder.percentileMillis(sorted, 0.999));
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+package com.chat.test;
+
+import com.chat.common.ChatRoom;
+import com.chat.common.Connection;
+import com.chat.common.Message;
+import java.util.Map;
+
+/**
+ * Cost of walking a room's members for one broadcast. The "map" path is how
+ * broadcastToRoom used to work: iterate the ConcurrentHashMap's entries and
+ * compare each key against the excluded user. The "snapshot" path walks the
+ * array that ChatRoom rebuilds on join and leave, skipping the excluded
+ * connection by identity.
+ *
+ * Members are stub connections that only count deliveries, so the numbers
+ * are the iteration itself rather than any queueing.
+ *
+ * Usage: java com.chat.test.FanOutBenchmark [deliveries per run]
+ */
+public class FanOutBenchmark {
+    private static final int[] ROOM_SIZES = { 10, 100, 1000, 10_000 };
+    
+    private static long sink;
+    
+    public static void main(String[] args) {
+        long deliveries = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+        
+        System.out.println("=== Room Fan-out Benchmark ===");
+        System.out.println("Deliveries per run: " + deliveries);
+        System.out.println();
+        System.out.printf("%-8s %-10s %14s %14s%n", "members", "path", "ns/bcast", "ns/recipient");
+        
+        for (int members : ROOM_SIZES) {
+            ChatRoom room = new ChatRoom("general");
+            for (int i = 0; i < members; i++) {
+                String username = "user" + i;
+                room.addClient(username, new CountingConnection(username));
+            }
+            // Exclude someone who is not a member, so every path delivers to everyone
+            String excludeUser = "nobody";
+            long broadcasts = Math.max(100, deliveries / members);
+            for (boolean snapshot : new boolean[] { false, true }) {
+                for (int i = 0; i < broadcasts; i++) {
+                    sink += snapshot ? viaSnapshot(room, excludeUser) : viaMap(room, excludeUser);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < broadcasts; i++) {
+                    sink += snapshot ? viaSnapshot(room, excludeUser) : viaMap(room, excludeUser);
+                }
+                double perBroadcast = (System.nanoTime() - start) / (double) broadcasts;
+                System.out.printf("%-8d %-10s %14.1f %14.2f%n", members, snapshot ? "snapshot" : "map",
+                        perBroadcast, perBroadcast / members);
+            }
+        }
+        if (sink == 42) System.out.println();
+    }
+    
+    private static int viaMap(ChatRoom room, String excludeUser) {
+        int recipients = 0;
+        for (Map.Entry<String, Connection> entry : room.getClients().entrySet()) {
+            if (excludeUser == null || !entry.getKey().equals(excludeUser)) {
+                entry.getValue().deliver(null);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+    
+    private static int viaSnapshot(ChatRoom room, String excludeUser) {
+        Connection excluded = room.getClients().get(excludeUser);
+        int recipients = 0;
+        for (Connection member : room.getMembers()) {
+            if (member != excluded) {
+                member.deliver(null);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+    
+    private static class CountingConnection implements Connection {
+        private final String username;
+        private long delivered;
+        
+        CountingConnection(String username) {
+            this.username = username;
+        }
+        
+        @Override
+        public String getUsername() { return username; }
+        
+        @Override
+        public String getCurrentRoom() { return "general"; }
+        
+        @Override
+        public void setCurrentRoom(String room) {
+        }
+        
+        @Override
+        public void deliver(Message message) {
+            delivered++;
+        }
+        
+        @Override
+        public void sendMessage(String text) {
+            delivered++;
+        }
+        
+        @Override
+        public void disconnect() {
+        }
+        
+        @Override
+        public int getQueueDepth() { return 0; }
+        
+        @Override
+        public int getQueueHighWaterMark() { return 0; }
+        
+        @Override
+        public long getDroppedCount() { return 0; }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+package com.chat.common;
+
+/**
+ * Application-level keepalive for the TCP chat protocol. A server that has
+ * heard nothing from a client for a while sends PING, as a text line or a
+ * binary TEXT frame; the client answers PONG. Any input from the client
+ * counts as a sign of life, so only quiet connections are pinged.
+ */
+public final class Heartbeat {
+    public static final String PING = "/ping";
+    public static final String PONG = "/pong";
+    
+    private Heartbeat() {
+    }
+}
\ No newline at end of file
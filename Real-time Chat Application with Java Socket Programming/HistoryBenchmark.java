@@ -0,0 +1,161 @@
+package com.chat.test;
+
+import com.chat.common.Message;
+import com.chat.common.MessageHistory;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput of room history appends and join-time replays under concurrent
+ * writers. Compares the old copy-on-write list (append, trim with remove(0),
+ * copy on read) with MessageHistory's ring buffer. One reader thread replays
+ * the history in a loop while the writers append.
+ *
+ * Usage: java com.chat.test.HistoryBenchmark [seconds per run] [history size]
+ */
+public class HistoryBenchmark {
+    private static final int[] WRITER_COUNTS = { 0, 1, 2, 4 };
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int historySize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        
+        System.out.println("=== Room History Benchmark ===");
+        System.out.println("History size: " + historySize + ", " + seconds + " s per run, 1 reader");
+        System.out.println();
+        System.out.printf("%-10s %8s %14s %14s %12s%n", "history", "writers", "adds/s", "replays/s", "bytes/add");
+        
+        for (int writers : WRITER_COUNTS) {
+            run(new CopyOnWriteHistory(historySize), writers, seconds);
+            run(new RingHistory(historySize), writers, seconds);
+        }
+    }
+    
+    private static void run(History history, int writers, int seconds) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Message message = new Message("alice", "hello everyone", "general", Message.MessageType.CHAT);
+        for (int i = 0; i < 1000; i++) {
+            history.add(message);
+        }
+        
+        LongAdder adds = new LongAdder();
+        LongAdder replays = new LongAdder();
+        LongAdder writerBytes = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            workers.add(new Thread(() -> {
+                await(start);
+                long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 100; i++) {
+                        history.add(message);
+                    }
+                    count += 100;
+                }
+                writerBytes.add(threads.getCurrentThreadAllocatedBytes() - bytesBefore);
+                adds.add(count);
+            }, "history-writer-" + w));
+        }
+        workers.add(new Thread(() -> {
+            await(start);
+            long count = 0;
+            long seen = 0;
+            while (System.nanoTime() < deadline) {
+                seen += history.replay();
+                count++;
+            }
+            replays.add(count);
+            if (seen < 0) System.out.println(seen);
+        }, "history-reader"));
+        
+        workers.forEach(Thread::start);
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        
+        System.out.printf("%-10s %8d %14.0f %14.0f %12.1f%n",
+                history.name(), writers, adds.sum() / (double) seconds, replays.sum() / (double) seconds,
+                writerBytes.sum() / (double) Math.max(1, adds.sum()));
+    }
+    
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private interface History {
+        String name();
+        
+        void add(Message message);
+        
+        /** Walks the history as joinRoom does and returns how many messages it saw. */
+        int replay();
+    }
+    
+    /**
+     * ChatRoom's history before the ring buffer.
+     */
+    private static class CopyOnWriteHistory implements History {
+        private final List<Message> messages = new CopyOnWriteArrayList<>();
+        private final int maxSize;
+        
+        CopyOnWriteHistory(int maxSize) {
+            this.maxSize = maxSize;
+        }
+        
+        public String name() {
+            return "cow-list";
+        }
+        
+        public void add(Message message) {
+            messages.add(message);
+            if (messages.size() > maxSize) {
+                messages.remove(0);
+            }
+        }
+        
+        public int replay() {
+            int seen = 0;
+            for (Message message : new CopyOnWriteArrayList<>(messages)) {
+                if (message.getType() == Message.MessageType.CHAT) seen++;
+            }
+            return seen;
+        }
+    }
+    
+    private static class RingHistory implements History {
+        private final MessageHistory messages;
+        
+        RingHistory(int capacity) {
+            messages = new MessageHistory(capacity);
+        }
+        
+        public String name() {
+            return "ring";
+        }
+        
+        public void add(Message message) {
+            messages.add(message);
+        }
+        
+        public int replay() {
+            int seen = 0;
+            for (Message message : messages) {
+                if (message.getType() == Message.MessageType.CHAT) seen++;
+            }
+            return seen;
+        }
+    }
+}
\ No newline at end of file
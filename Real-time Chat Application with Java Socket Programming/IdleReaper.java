@@ -0,0 +1,118 @@
+package com.chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds dead and idle connections for every transport from one
+ * TimingWheel. Each connection gets a single wheel task that wakes when it
+ * could first have been quiet for the idle period; if it has had input
+ * since, the task simply re-arms for the new deadline, so busy connections
+ * cost nothing per message beyond a timestamp write. A quiet connection is
+ * sent a heartbeat, and disconnected if still nothing arrives within the
+ * timeout.
+ */
+public class IdleReaper {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+    
+    /**
+     * A connection the reaper can watch.
+     */
+    public interface Watched {
+        /** System.nanoTime() of the last input from the peer. */
+        long getLastActivity();
+        
+        /** Asks the peer for a sign of life. */
+        void sendHeartbeat();
+        
+        void disconnect();
+        
+        /** The logged-in user, or null before login. */
+        String getUsername();
+    }
+    
+    private final TimingWheel wheel;
+    private final long idleMillis;
+    private final long timeoutMillis;
+    private final LongAdder heartbeats = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    
+    public IdleReaper(long idleMillis, long timeoutMillis) {
+        this(idleMillis, timeoutMillis, DEFAULT_TICK_MILLIS);
+    }
+    
+    /**
+     * @param idleMillis    quiet time after which a connection is pinged
+     * @param timeoutMillis time a pinged connection has to answer
+     * @param tickMillis    resolution of the wheel
+     */
+    public IdleReaper(long idleMillis, long timeoutMillis, long tickMillis) {
+        this.idleMillis = idleMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.wheel = new TimingWheel(tickMillis, WHEEL_SIZE);
+    }
+    
+    public void start() {
+        wheel.start();
+    }
+    
+    public void stop() {
+        wheel.stop();
+    }
+    
+    /**
+     * Starts watching a connection. Cancel the returned task when the
+     * connection closes.
+     */
+    public TimingWheel.Task watch(Watched connection) {
+        Watch watch = new Watch(connection);
+        wheel.schedule(watch, idleMillis);
+        return watch;
+    }
+    
+    public long getHeartbeatsSent() {
+        return heartbeats.sum();
+    }
+    
+    public long getEvicted() {
+        return evicted.sum();
+    }
+    
+    private final class Watch extends TimingWheel.Task {
+        private final Watched connection;
+        // When the unanswered heartbeat went out, or 0
+        private long pingedAt;
+        
+        Watch(Watched connection) {
+            this.connection = connection;
+        }
+        
+        @Override
+        protected void run() {
+            long now = System.nanoTime();
+            long lastActivity = connection.getLastActivity();
+            if (pingedAt != 0) {
+                if (lastActivity - pingedAt < 0) {
+                    evicted.increment();
+                    // Sockets that never logged in are only counted
+                    String username = connection.getUsername();
+                    if (username != null) {
+                        System.out.println("Disconnecting idle connection: " + username);
+                    }
+                    connection.disconnect();
+                    return;
+                }
+                pingedAt = 0;
+            }
+            long quietMillis = (now - lastActivity) / 1_000_000L;
+            if (quietMillis >= idleMillis) {
+                pingedAt = now;
+                heartbeats.increment();
+                connection.sendHeartbeat();
+                wheel.schedule(this, timeoutMillis);
+            } else {
+                wheel.schedule(this, idleMillis - quietMillis);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+package com.chat.test;
+
+import com.chat.server.IdleReaper;
+import com.chat.server.LatencyHistogram;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Watches a large number of stub connections with one IdleReaper. Half of
+ * them answer every heartbeat straight away, the other half never do. After
+ * a few idle periods every silent connection should have been disconnected
+ * and every live one still be up; the harness reports how late the
+ * evictions were against their ideal time (idle + timeout after the start)
+ * and the heap each watch costs.
+ *
+ * Usage: java com.chat.test.IdleReaperBenchmark [connections] [idleMs] [timeoutMs]
+ */
+public class IdleReaperBenchmark {
+    
+    public static void main(String[] args) throws InterruptedException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long idleMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        long timeoutMillis = args.length > 2 ? Long.parseLong(args[2]) : 500;
+        
+        System.out.println("=== Idle Reaper Benchmark ===");
+        System.out.println("Connections: " + connections + " (half silent)");
+        System.out.println("Idle: " + idleMillis + " ms, timeout: " + timeoutMillis + " ms");
+        
+        IdleReaper reaper = new IdleReaper(idleMillis, timeoutMillis);
+        LatencyHistogram lateness = new LatencyHistogram();
+        LongAdder wrongful = new LongAdder();
+        
+        StubConnection[] peers = new StubConnection[connections];
+        for (int i = 0; i < connections; i++) {
+            peers[i] = new StubConnection(i % 2 == 0, lateness, wrongful);
+        }
+        
+        long heapBefore = usedHeap();
+        for (StubConnection peer : peers) {
+            peer.connected(idleMillis + timeoutMillis);
+            reaper.watch(peer);
+        }
+        long heapAfter = usedHeap();
+        reaper.start();
+        
+        // Long enough for the silent half to go and the live half to be pinged a few times
+        Thread.sleep(3 * (idleMillis + timeoutMillis) + 500);
+        reaper.stop();
+        
+        int silent = connections / 2;
+        System.out.println();
+        System.out.printf("Heartbeats sent:     %d%n", reaper.getHeartbeatsSent());
+        System.out.printf("Silent evicted:      %d / %d%n", lateness.getCount(), silent);
+        System.out.printf("Live evicted:        %d / %d%n", wrongful.sum(), connections - silent);
+        System.out.printf("Eviction lateness:   p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                lateness.percentile(50) / 1e6, lateness.percentile(99) / 1e6, lateness.percentile(100) / 1e6);
+        System.out.printf("Heap per watch:      ~%d bytes%n", (heapAfter - heapBefore) / connections);
+        
+        boolean ok = lateness.getCount() == silent && wrongful.sum() == 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) System.exit(1);
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static class StubConnection implements IdleReaper.Watched {
+        private final boolean silent;
+        private final LatencyHistogram lateness;
+        private final LongAdder wrongful;
+        private long idealEviction;
+        private volatile long lastActivity;
+        
+        StubConnection(boolean silent, LatencyHistogram lateness, LongAdder wrongful) {
+            this.silent = silent;
+            this.lateness = lateness;
+            this.wrongful = wrongful;
+        }
+        
+        void connected(long evictAfterMillis) {
+            lastActivity = System.nanoTime();
+            idealEviction = lastActivity + evictAfterMillis * 1_000_000L;
+        }
+        
+        @Override
+        public long getLastActivity() {
+            return lastActivity;
+        }
+        
+        @Override
+        public void sendHeartbeat() {
+            if (!silent) {
+                lastActivity = System.nanoTime();
+            }
+        }
+        
+        @Override
+        public void disconnect() {
+            if (silent) {
+                lateness.record(Math.max(0, System.nanoTime() - idealEviction));
+            } else {
+                wrongful.increment();
+            }
+        }
+        
+        @Override
+        public String getUsername() {
+            return null;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,524 @@
+package com.chat.test;
+
+import com.chat.common.Connection;
+import com.chat.common.ExecutorMode;
+import com.chat.server.ChatRouter;
+import com.chat.server.ChatServer;
+import com.chat.server.LatencyHistogram;
+import com.chat.websocket.WebSocketChatServer;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for ChatServer and WebSocketChatServer. Every
+ * simulated user is a blocking socket with a reader and a sender on
+ * virtual threads, so thousands of them fit in one JVM. Users are spread
+ * over rooms, uniformly or Zipf-skewed, and send fixed-size messages at a
+ * combined target rate; a share of them are private messages to random
+ * users. Each message carries its send time, so every delivery gives an
+ * end-to-end latency sample, and deliveries that never arrive are counted
+ * as dropped.
+ * <p>
+ * Without {@code --port} each transport gets a fresh server in this JVM.
+ *
+ * Usage: java com.chat.test.LoadGenerator [--transport=tcp|ws|both] [--host=H --port=N]
+ *            [--clients=N] [--rooms=N] [--room-skew=S] [--rate=msgs/sec] [--size=bytes]
+ *            [--pm-ratio=F] [--duration=seconds]
+ */
+public class LoadGenerator {
+    private static final int MAX_CONCURRENT_LOGINS = 200;
+    private static final long DRAIN_TIMEOUT_MILLIS = 30_000;
+    
+    private String host = "localhost";
+    private int port;
+    private int clients = 1000;
+    private int rooms = 10;
+    private double roomSkew;
+    private int rate = 2000;
+    private int messageSize = 64;
+    private double pmRatio = 0.1;
+    private int durationSeconds = 10;
+    
+    // Per run
+    private String marker;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String transport = "both";
+        for (String arg : args) {
+            if (arg.startsWith("--transport=")) {
+                transport = arg.substring("--transport=".length());
+            } else if (arg.startsWith("--host=")) {
+                generator.host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                generator.port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--clients=")) {
+                generator.clients = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--rooms=")) {
+                generator.rooms = Integer.parseInt(arg.substring("--rooms=".length()));
+            } else if (arg.startsWith("--room-skew=")) {
+                generator.roomSkew = Double.parseDouble(arg.substring("--room-skew=".length()));
+            } else if (arg.startsWith("--rate=")) {
+                generator.rate = Integer.parseInt(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--size=")) {
+                generator.messageSize = Integer.parseInt(arg.substring("--size=".length()));
+            } else if (arg.startsWith("--pm-ratio=")) {
+                generator.pmRatio = Double.parseDouble(arg.substring("--pm-ratio=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                generator.durationSeconds = Integer.parseInt(arg.substring("--duration=".length()));
+            }
+        }
+        if (generator.port > 0 && transport.equals("both")) {
+            transport = "tcp";
+        }
+        
+        System.out.println("=== Chat Load Generator ===");
+        System.out.println(generator.clients + " users in " + generator.rooms + " rooms (skew "
+                           + generator.roomSkew + "), " + generator.rate + " msgs/sec of " + generator.messageSize
+                           + " bytes, " + Math.round(generator.pmRatio * 100) + "% private, "
+                           + generator.durationSeconds + " s");
+        System.out.println();
+        
+        List<String> report = new ArrayList<>();
+        for (String mode : transport.equals("both") ? new String[] { "tcp", "ws" } : new String[] { transport }) {
+            report.add(new LoadGenerator().copySettings(generator).run(mode.equals("ws")));
+        }
+        System.out.println();
+        System.out.printf("%-10s %8s %10s %10s %12s %12s %9s %9s %9s %9s %9s %8s%n", "server", "users", "sent",
+                "sent/sec", "delivered", "deliv/sec", "p50 ms", "p99 ms", "p999 ms", "max ms", "dropped", "errors");
+        for (String line : report) {
+            System.out.println(line);
+        }
+    }
+    
+    private LoadGenerator copySettings(LoadGenerator from) {
+        host = from.host;
+        port = from.port;
+        clients = from.clients;
+        rooms = from.rooms;
+        roomSkew = from.roomSkew;
+        rate = from.rate;
+        messageSize = from.messageSize;
+        pmRatio = from.pmRatio;
+        durationSeconds = from.durationSeconds;
+        return this;
+    }
+    
+    /**
+     * Runs one load test against a TCP or WebSocket server and returns its
+     * report row.
+     */
+    private String run(boolean webSocket) throws Exception {
+        String runId = Integer.toString(ThreadLocalRandom.current().nextInt(36 * 36 * 36), 36);
+        marker = "lg" + runId + "|";
+        String label = webSocket ? "websocket" : "tcp";
+        
+        ChatRouter router = null;
+        ChatServer chatServer = null;
+        WebSocketChatServer webSocketServer = null;
+        int targetPort = port;
+        if (targetPort == 0) {
+            targetPort = ChatServerLoadTest.findFreePort();
+            router = new ChatRouter();
+            Thread serverThread;
+            if (webSocket) {
+                webSocketServer = new WebSocketChatServer(targetPort, ExecutorMode.VIRTUAL, ExecutorMode.DEFAULT_POOL_SIZE, router);
+                serverThread = new Thread(webSocketServer::start, "load-generator-server");
+            } else {
+                chatServer = new ChatServer(targetPort, ExecutorMode.VIRTUAL, ExecutorMode.DEFAULT_POOL_SIZE, router);
+                serverThread = new Thread(chatServer::start, "load-generator-server");
+            }
+            serverThread.setDaemon(true);
+            serverThread.start();
+            ChatServerLoadTest.waitForPort(targetPort);
+        }
+        
+        int[] roomOf = assignRooms();
+        int[] members = new int[rooms];
+        for (int room : roomOf) {
+            members[room]++;
+        }
+        
+        System.out.println("[" + label + "] connecting " + clients + " users...");
+        SimulatedUser[] users = new SimulatedUser[clients];
+        long connectStart = System.nanoTime();
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            Semaphore logins = new Semaphore(MAX_CONCURRENT_LOGINS);
+            for (int i = 0; i < clients; i++) {
+                int index = i;
+                int portToUse = targetPort;
+                threads.execute(() -> {
+                    try {
+                        logins.acquire();
+                        try {
+                            SimulatedUser user = webSocket ? new WebSocketUser() : new TcpUser();
+                            user.connect(host, portToUse, "lg" + runId + "_" + index, "load-" + roomOf[index]);
+                            users[index] = user;
+                        } finally {
+                            logins.release();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        errors.increment();
+                    }
+                });
+            }
+        }
+        int connected = 0;
+        for (SimulatedUser user : users) {
+            if (user != null) connected++;
+        }
+        System.out.printf("[%s] %d users logged in in %.1f s%n", label, connected, (System.nanoTime() - connectStart) / 1e9);
+        
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long interval = (long) (1e9 * clients / rate);
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (SimulatedUser user : users) {
+                if (user == null) continue;
+                Thread.ofVirtual().start(() -> readLoop(user));
+                threads.execute(() -> sendLoop(user, users, roomOf, members, start, end, interval));
+            }
+        }
+        double sendSeconds = (System.nanoTime() - start) / 1e9;
+        
+        // Wait for the last deliveries, or until they stop coming
+        long drainStart = System.currentTimeMillis();
+        long lastCount = -1;
+        long lastProgress = drainStart;
+        while (received.sum() < expected.sum() && System.currentTimeMillis() - drainStart < DRAIN_TIMEOUT_MILLIS) {
+            long count = received.sum();
+            if (count != lastCount) {
+                lastCount = count;
+                lastProgress = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastProgress > 2000) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        
+        long serverDrops = 0;
+        if (router != null) {
+            for (Connection connection : router.getConnections()) {
+                serverDrops += connection.getDroppedCount();
+            }
+        }
+        for (SimulatedUser user : users) {
+            if (user != null) user.close();
+        }
+        if (chatServer != null) chatServer.stop();
+        if (webSocketServer != null) webSocketServer.stop();
+        
+        long dropped = expected.sum() - received.sum();
+        System.out.printf("[%s] sent %d, expected %d deliveries, received %d%s%n", label, sent.sum(), expected.sum(),
+                          received.sum(), router != null ? ", server queues dropped " + serverDrops : "");
+        return String.format("%-10s %8d %10d %10.0f %12d %12.0f %9.2f %9.2f %9.2f %9.2f %9d %8d", label, connected,
+                sent.sum(), sent.sum() / sendSeconds, received.sum(), received.sum() / elapsed,
+                latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+                latency.percentile(100) / 1e6, dropped, errors.sum());
+    }
+    
+    /**
+     * Picks a room for every user. With a skew of 0 the rooms get equal
+     * shares; otherwise room k is chosen with weight 1 / (k + 1)^skew.
+     */
+    private int[] assignRooms() {
+        double[] cumulative = new double[rooms];
+        double total = 0;
+        for (int k = 0; k < rooms; k++) {
+            total += 1.0 / Math.pow(k + 1, roomSkew);
+            cumulative[k] = total;
+        }
+        Random random = new Random(42);
+        int[] roomOf = new int[clients];
+        for (int i = 0; i < clients; i++) {
+            double pick = random.nextDouble() * total;
+            int room = 0;
+            while (room < rooms - 1 && cumulative[room] < pick) {
+                room++;
+            }
+            roomOf[i] = room;
+        }
+        return roomOf;
+    }
+    
+    /**
+     * Sends at a fixed interval from a random phase, so the users' messages
+     * add up to the target rate without arriving in lockstep.
+     */
+    private void sendLoop(SimulatedUser user, SimulatedUser[] users, int[] roomOf, int[] members,
+                          long start, long end, long interval) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long next = start + random.nextLong(Math.max(1, interval));
+        try {
+            while (next < end) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+                SimulatedUser target = random.nextDouble() < pmRatio ? users[random.nextInt(users.length)] : null;
+                if (target != null && target != user) {
+                    // The recipient gets the message and the sender a confirmation quoting it
+                    expected.add(2);
+                    user.sendPrivate(target.username, content());
+                } else {
+                    expected.add(members[roomOf[user.index()]]);
+                    user.send(content());
+                }
+                sent.increment();
+                next += interval;
+            }
+        } catch (IOException e) {
+            errors.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private String content() {
+        StringBuilder content = new StringBuilder(messageSize).append(marker).append(System.nanoTime()).append('|');
+        while (content.length() < messageSize) {
+            content.append('x');
+        }
+        return content.toString();
+    }
+    
+    private void readLoop(SimulatedUser user) {
+        try {
+            String text;
+            while ((text = user.read()) != null) {
+                int at = text.indexOf(marker);
+                if (at < 0) continue;
+                int from = at + marker.length();
+                int to = text.indexOf('|', from);
+                if (to < 0) continue;
+                latency.record(System.nanoTime() - Long.parseLong(text, from, to, 10));
+                received.increment();
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run
+        }
+    }
+    
+    /**
+     * One simulated user. connect() logs in and joins the room before
+     * returning; afterwards one thread reads and another sends.
+     */
+    private abstract static class SimulatedUser {
+        String username;
+        
+        int index() {
+            return Integer.parseInt(username.substring(username.indexOf('_') + 1));
+        }
+        
+        abstract void connect(String host, int port, String username, String room) throws IOException;
+        
+        abstract void send(String content) throws IOException;
+        
+        abstract void sendPrivate(String to, String content) throws IOException;
+        
+        /** Returns the next line or message, or null at end of stream. */
+        abstract String read() throws IOException;
+        
+        abstract void close();
+    }
+    
+    private static class TcpUser extends SimulatedUser {
+        private Socket socket;
+        private BufferedReader reader;
+        private Writer writer;
+        
+        @Override
+        void connect(String host, int port, String username, String room) throws IOException {
+            this.username = username;
+            socket = new Socket(host, port);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            writeLine(username);
+            awaitLine("Welcome, ");
+            writeLine("/join " + room);
+            awaitLine("=== Joined room: " + room);
+        }
+        
+        private void writeLine(String line) throws IOException {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        }
+        
+        private void awaitLine(String prefix) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(prefix)) return;
+            }
+            throw new EOFException("Server closed the connection during login");
+        }
+        
+        @Override
+        void send(String content) throws IOException {
+            writeLine(content);
+        }
+        
+        @Override
+        void sendPrivate(String to, String content) throws IOException {
+            writeLine("/pm " + to + " " + content);
+        }
+        
+        @Override
+        String read() throws IOException {
+            return reader.readLine();
+        }
+        
+        @Override
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+        }
+    }
+    
+    /**
+     * A minimal RFC 6455 client: masked text frames out, unmasked frames in.
+     */
+    private static class WebSocketUser extends SimulatedUser {
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        
+        @Override
+        void connect(String host, int port, String username, String room) throws IOException {
+            this.username = username;
+            socket = new Socket(host, port);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            byte[] key = new byte[16];
+            ThreadLocalRandom.current().nextBytes(key);
+            String request = "GET / HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nUpgrade: websocket\r\n"
+                             + "Connection: Upgrade\r\nSec-WebSocket-Key: " + Base64.getEncoder().encodeToString(key)
+                             + "\r\nSec-WebSocket-Version: 13\r\n\r\n";
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String status = readHeaderLine();
+            if (!status.contains(" 101 ")) {
+                throw new IOException("Handshake refused: " + status);
+            }
+            while (!readHeaderLine().isEmpty()) {
+                // Skip the response headers
+            }
+            writeText("{\"type\":\"join\",\"username\":\"" + username + "\",\"room\":\"" + room + "\"}");
+            String joined = "=== Joined room: " + room;
+            String message;
+            while ((message = read()) != null) {
+                if (message.contains(joined)) return;
+            }
+            throw new EOFException("Server closed the connection during login");
+        }
+        
+        private String readHeaderLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (b != '\r') line.append((char) b);
+            }
+            if (b < 0) throw new EOFException("Server closed the connection during the handshake");
+            return line.toString();
+        }
+        
+        @Override
+        void send(String content) throws IOException {
+            writeText("{\"type\":\"message\",\"content\":\"" + content + "\"}");
+        }
+        
+        @Override
+        void sendPrivate(String to, String content) throws IOException {
+            writeText("{\"type\":\"private\",\"to\":\"" + to + "\",\"content\":\"" + content + "\"}");
+        }
+        
+        private void writeText(String text) throws IOException {
+            writeFrame(0x1, text.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        private void writeFrame(int opcode, byte[] payload) throws IOException {
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(0x80 | payload.length);
+            } else if (payload.length < 65536) {
+                out.write(0x80 | 126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length);
+            } else {
+                out.write(0x80 | 127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) ((long) payload.length >>> shift));
+                }
+            }
+            byte[] mask = new byte[4];
+            ThreadLocalRandom.current().nextBytes(mask);
+            out.write(mask);
+            byte[] masked = new byte[payload.length];
+            for (int i = 0; i < payload.length; i++) {
+                masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+            }
+            out.write(masked);
+            out.flush();
+        }
+        
+        @Override
+        String read() throws IOException {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            while (true) {
+                int first = in.read();
+                int second = in.read();
+                if (first < 0 || second < 0) return null;
+                long length = second & 0x7f;
+                if (length == 126) {
+                    length = (in.read() << 8) | in.read();
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) {
+                        length = (length << 8) | in.read();
+                    }
+                }
+                byte[] payload = in.readNBytes((int) length);
+                int opcode = first & 0x0f;
+                if (opcode == 0x8) {
+                    return null;
+                } else if (opcode == 0x9) {
+                    writeFrame(0xA, payload);
+                } else if (opcode == 0x1 || opcode == 0x0) {
+                    message.write(payload);
+                    if ((first & 0x80) != 0) {
+                        return message.toString(StandardCharsets.UTF_8);
+                    }
+                }
+            }
+        }
+        
+        @Override
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+        }
+    }
+}
\ No newline at end of file
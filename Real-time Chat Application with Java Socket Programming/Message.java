@@ -1,50 +1,162 @@
 package com.chat.common;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 
 public class Message {
-    private String username;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final Object[] NOT_ENCODED = new Object[0];
+    
+    /** The line-based TCP protocol: toString() plus a newline, in UTF-8. */
+    public static final MessageEncoder TEXT_LINE =
+            message -> ByteBuffer.wrap((message.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+    
+    /**
+     * The user and room names the process has seen, up to MAX_NAMES.
+     * Messages hold the ids and only turn them back into names when
+     * rendered, so history keeps no strings of its own and names decoded
+     * from a log or a peer collapse into one copy. Ids are never released,
+     * as any message still in a history, index or queue may refer to them;
+     * instead a message with a name seen after the table filled up keeps
+     * that name itself.
+     */
+    public static final int MAX_NAMES = 1 << 16;
+    public static final SymbolTable NAMES = new SymbolTable(MAX_NAMES);
+    /** The id of an empty name, e.g. the room of a private message. */
+    public static final int NO_NAME = -1;
+    /** The id of a name that did not fit in NAMES. */
+    public static final int INLINE_NAME = -2;
+    
+    private int userId;
     private String content;
-    private String room;
+    private int roomId;
     private LocalDateTime timestamp;
     private MessageType type;
+    private long sequence;
+    // Alternating encoder, encoded buffer pairs; replaced, never mutated
+    private volatile Object[] encodings = NOT_ENCODED;
+    // Username and room, when either has INLINE_NAME for an id; otherwise null
+    private String[] inlineNames;
     
     public enum MessageType {
         CHAT, JOIN, LEAVE, SYSTEM, PRIVATE, COMMAND
     }
     
     public Message(String username, String content, String room, MessageType type) {
-        this.username = username;
+        this(username, content, room, type, LocalDateTime.now());
+    }
+    
+    public Message(String username, String content, String room, MessageType type, LocalDateTime timestamp) {
+        this(idOf(username), content, idOf(room), type, timestamp);
+        if (userId == INLINE_NAME || roomId == INLINE_NAME) {
+            inlineNames = new String[] { username, room };
+        }
+    }
+    
+    /**
+     * Builds a message from ids already taken from NAMES, skipping the
+     * lookups. Neither may be INLINE_NAME; use the constructor taking names
+     * for those.
+     */
+    public Message(int userId, String content, int roomId, MessageType type) {
+        this(userId, content, roomId, type, LocalDateTime.now());
+    }
+    
+    public Message(int userId, String content, int roomId, MessageType type, LocalDateTime timestamp) {
+        this.userId = userId;
         this.content = content;
-        this.room = room;
+        this.roomId = roomId;
         this.type = type;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
+    }
+    
+    /**
+     * Returns the id of {@code name} in NAMES, NO_NAME for an empty name or
+     * INLINE_NAME if NAMES is full.
+     */
+    public static int idOf(String name) {
+        if (name == null || name.isEmpty()) return NO_NAME;
+        int id = NAMES.idOf(name);
+        return id != SymbolTable.FULL ? id : INLINE_NAME;
+    }
+    
+    public static String nameOf(int id) {
+        return id == NO_NAME ? "" : NAMES.nameOf(id);
     }
     
-    public String getUsername() { return username; }
+    public String getUsername() { return userId == INLINE_NAME ? inlineNames[0] : nameOf(userId); }
     public String getContent() { return content; }
-    public String getRoom() { return room; }
+    public String getRoom() { return roomId == INLINE_NAME ? inlineNames[1] : nameOf(roomId); }
+    public int getUserId() { return userId; }
+    public int getRoomId() { return roomId; }
     public MessageType getType() { return type; }
     public LocalDateTime getTimestamp() { return timestamp; }
     
+    /**
+     * Returns this message's position in its room, counting from 1, or 0
+     * if it has not been recorded in a room.
+     */
+    public long getSequence() { return sequence; }
+    
+    /**
+     * Numbers a room message. Called once, by the room that records it,
+     * before the message is handed to any recipient.
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
     public String getFormattedTimestamp() {
-        return timestamp.format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+        return timestamp.format(TIME_FORMAT);
+    }
+    
+    /**
+     * Returns this message rendered as a newline-terminated UTF-8 line. The
+     * bytes are encoded on first use and shared by every recipient, so callers
+     * get a read-only buffer and must {@code duplicate()} it before consuming.
+     */
+    public ByteBuffer toLine() {
+        return encode(TEXT_LINE);
+    }
+    
+    /**
+     * Returns this message as encoded by {@code encoder}, encoding it on the
+     * first call for that encoder. Like toLine, the buffer is read-only and
+     * shared by every recipient.
+     */
+    public ByteBuffer encode(MessageEncoder encoder) {
+        Object[] cached = encodings;
+        for (int i = 0; i < cached.length; i += 2) {
+            if (cached[i] == encoder) {
+                return (ByteBuffer) cached[i + 1];
+            }
+        }
+        ByteBuffer encoded = encoder.encode(this).asReadOnlyBuffer();
+        // Racing callers may drop each other's entry; that only costs a re-encode
+        Object[] extended = Arrays.copyOf(cached, cached.length + 2);
+        extended[cached.length] = encoder;
+        extended[cached.length + 1] = encoded;
+        encodings = extended;
+        return encoded;
     }
     
     @Override
     public String toString() {
+        String username = getUsername();
         switch (type) {
             case CHAT:
-                return String.format("[%s] %s: %s", getFormattedTimestamp(), username, content);
+                return "[" + getFormattedTimestamp() + "] " + username + ": " + content;
             case JOIN:
-                return String.format("[%s] %s joined the room", getFormattedTimestamp(), username);
+                return "[" + getFormattedTimestamp() + "] " + username + " joined the room";
             case LEAVE:
-                return String.format("[%s] %s left the room", getFormattedTimestamp(), username);
+                return "[" + getFormattedTimestamp() + "] " + username + " left the room";
             case SYSTEM:
-                return String.format("[%s] SYSTEM: %s", getFormattedTimestamp(), content);
+                return "[" + getFormattedTimestamp() + "] SYSTEM: " + content;
             case PRIVATE:
-                return String.format("[%s] PRIVATE from %s: %s", getFormattedTimestamp(), username, content);
+                return "[" + getFormattedTimestamp() + "] PRIVATE from " + username + ": " + content;
             default:
                 return content;
         }
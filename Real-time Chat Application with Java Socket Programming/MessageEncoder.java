@@ -0,0 +1,12 @@
+package com.chat.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a message into the bytes one transport writes for it. Encoders are
+ * shared constants: Message caches each encoder's result, keyed by
+ * identity, so a broadcast is encoded once per wire format.
+ */
+public interface MessageEncoder {
+    ByteBuffer encode(Message message);
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+package com.chat.test;
+
+import com.chat.common.Message;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap retained per history message. The "strings" layout is Message as it
+ * was before names were interned: it holds the username and room strings
+ * it was given. The "ids" layout is Message now, holding ids from
+ * Message.NAMES.
+ *
+ * Messages built by a live connection share one username and room string
+ * either way, so the two layouts cost the same. Messages decoded from the
+ * message log or a cluster peer used to get fresh strings each; with ids
+ * they keep none.
+ *
+ * Usage: java com.chat.test.MessageFootprintBenchmark [messages] [users]
+ */
+public class MessageFootprintBenchmark {
+    private static final String CONTENT = "hello everyone, how is it going?";
+    
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        LocalDateTime timestamp = LocalDateTime.now();
+        String[] usernames = new String[users];
+        for (int i = 0; i < users; i++) {
+            usernames[i] = "user" + i;
+            Message.idOf(usernames[i]);
+        }
+        Message.idOf("general");
+        
+        System.out.println("=== Message Footprint Benchmark ===");
+        System.out.println("Messages: " + count + ", users: " + users + ", shared content and timestamp");
+        System.out.println();
+        System.out.printf("%-10s %-8s %14s%n", "source", "layout", "bytes/message");
+        
+        for (boolean decoded : new boolean[] { false, true }) {
+            for (boolean ids : new boolean[] { false, true }) {
+                List<Object> history = new ArrayList<>(count);
+                long before = usedHeap();
+                for (int i = 0; i < count; i++) {
+                    String username = usernames[i % users];
+                    String room = "general";
+                    if (decoded) {
+                        // What a log or peer decoder builds for every record
+                        username = new String(username.toCharArray());
+                        room = new String(room.toCharArray());
+                    }
+                    history.add(ids ? new Message(username, CONTENT, room, Message.MessageType.CHAT, timestamp)
+                                    : new StringMessage(username, CONTENT, room, Message.MessageType.CHAT, timestamp));
+                }
+                long after = usedHeap();
+                System.out.printf("%-10s %-8s %14.1f%n", decoded ? "decoded" : "live", ids ? "ids" : "strings",
+                        (after - before) / (double) count);
+                if (history.size() != count) System.out.println();
+            }
+        }
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    /**
+     * Message's fields before names were interned.
+     */
+    private static class StringMessage {
+        private static final Object[] NOT_ENCODED = new Object[0];
+        
+        private final String username;
+        private final String content;
+        private final String room;
+        private final LocalDateTime timestamp;
+        private final Message.MessageType type;
+        private long sequence;
+        private volatile Object[] encodings = NOT_ENCODED;
+        
+        StringMessage(String username, String content, String room, Message.MessageType type, LocalDateTime timestamp) {
+            this.username = username;
+            this.content = content;
+            this.room = room;
+            this.type = type;
+            this.timestamp = timestamp;
+        }
+    }
+}
\ No newline at end of file
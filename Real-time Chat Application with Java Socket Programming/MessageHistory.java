@@ -0,0 +1,127 @@
+package com.chat.common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring of the most recent messages in a room. Writers claim a
+ * slot with a single atomic increment and never block each other or readers;
+ * once the ring is full each new message overwrites the oldest one. A slot
+ * only ever moves to a higher sequence, so a slow writer whose slot has
+ * already been lapped drops its message instead of overwriting a newer one.
+ * <p>
+ * Iterating is zero-copy: an iterator remembers which sequence numbers were
+ * in the window when it was created and reads them straight from the ring.
+ * A message that is overwritten while the iterator is still behind it, or
+ * whose writer has not finished publishing it yet, is skipped.
+ */
+public class MessageHistory implements Iterable<Message> {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+    private final AtomicLong nextSequence = new AtomicLong();
+    
+    public MessageHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+    
+    public void add(Message message) {
+        long sequence = nextSequence.getAndIncrement();
+        int index = (int) (sequence % capacity);
+        Entry entry = new Entry(sequence, message);
+        Entry current = slots.get(index);
+        // A writer that stalled after claiming its sequence may find the slot
+        // already lapped; it must not put its older message over the newer one
+        while (current == null || current.sequence < sequence) {
+            if (slots.compareAndSet(index, current, entry)) {
+                return;
+            }
+            current = slots.get(index);
+        }
+    }
+    
+    public int size() {
+        return (int) Math.min(nextSequence.get(), capacity);
+    }
+    
+    public int capacity() {
+        return capacity;
+    }
+    
+    /**
+     * Iterates the messages in the ring when this method was called, oldest
+     * first, without copying them.
+     */
+    @Override
+    public Iterator<Message> iterator() {
+        long end = nextSequence.get();
+        return new SnapshotIterator(Math.max(0, end - capacity), end);
+    }
+    
+    /**
+     * Copies the current window into a list, for callers that need to keep it.
+     */
+    public List<Message> toList() {
+        List<Message> messages = new ArrayList<>(size());
+        for (Message message : this) {
+            messages.add(message);
+        }
+        return messages;
+    }
+    
+    private static final class Entry {
+        final long sequence;
+        final Message message;
+        
+        Entry(long sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+    
+    private final class SnapshotIterator implements Iterator<Message> {
+        private final long end;
+        private long cursor;
+        private int index;
+        private Message next;
+        
+        SnapshotIterator(long start, long end) {
+            this.cursor = start;
+            this.end = end;
+            this.index = (int) (start % capacity);
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (next == null && cursor < end) {
+                Entry entry = slots.get(index);
+                // A different sequence means the slot was lapped or is not published yet
+                if (entry != null && entry.sequence == cursor) {
+                    next = entry.message;
+                }
+                cursor++;
+                if (++index == capacity) {
+                    index = 0;
+                }
+            }
+            return next != null;
+        }
+        
+        @Override
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Message message = next;
+            next = null;
+            return message;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+package com.chat.test;
+
+import com.chat.common.Message;
+import com.chat.common.MessageHistory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Many writers racing on a history ring smaller than the number of writers,
+ * so slots are lapped while other writers are still storing into them. After
+ * every round the test checks the window for holes: a stale store over a
+ * newer entry leaves a slot whose sequence is outside the window, which
+ * iteration skips, so the ring yields fewer than its capacity of messages.
+ *
+ * Usage: java com.chat.test.MessageHistoryStressTest [writers] [capacity] [rounds]
+ */
+public class MessageHistoryStressTest {
+    private static final int MESSAGES_PER_ROUND = 16;
+    
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+        
+        System.out.println("=== Message History Stress Test ===");
+        System.out.println("Writers: " + writers + ", capacity: " + capacity + ", rounds: " + rounds);
+        
+        MessageHistory history = new MessageHistory(capacity);
+        Message[][] messages = new Message[writers][MESSAGES_PER_ROUND];
+        for (int w = 0; w < writers; w++) {
+            for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+                messages[w][i] = new Message("writer" + w, "message " + i, "stress", Message.MessageType.CHAT);
+            }
+        }
+        
+        int[] failures = new int[1];
+        CyclicBarrier roundStart = new CyclicBarrier(writers);
+        CyclicBarrier roundEnd = new CyclicBarrier(writers, () -> {
+            List<Message> window = history.toList();
+            if (window.size() != capacity) {
+                failures[0]++;
+            }
+        });
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            Message[] own = messages[w];
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        roundStart.await();
+                        for (Message message : own) {
+                            history.add(message);
+                        }
+                        roundEnd.await();
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "history-writer-" + w);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        System.out.println("Rounds with messages missing from the window: " + failures[0]);
+        System.out.println(failures[0] == 0 ? "PASS" : "FAIL");
+        if (failures[0] != 0) System.exit(1);
+    }
+}
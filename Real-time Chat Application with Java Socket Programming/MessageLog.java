@@ -0,0 +1,551 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk log of one room's messages, split into segment files
+ * named after the offset of their first record. Each record is
+ * <pre>
+ *   int length | int crc32 | long timestamp | byte type | short user length | user | content
+ * </pre>
+ * where length and crc cover everything after the crc. Every segment has a
+ * sparse index (one entry per few KB of log) mapping offsets and timestamps
+ * to file positions, so a replay seeks straight to the first record it needs
+ * and reads forward through a memory mapping instead of loading whole files.
+ * <p>
+ * Appends go to an in-memory buffer; {@link #flush(boolean)} writes it out
+ * and optionally fsyncs. A torn record at the end of the last segment (from
+ * a crash mid-write) is truncated when the log is reopened.
+ */
+public class MessageLog implements Closeable {
+    private static final int HEADER_SIZE = 8;
+    private static final int FIXED_PAYLOAD_SIZE = 8 + 1 + 2;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    
+    private final Path directory;
+    private final String room;
+    private final int segmentBytes;
+    private final boolean syncEveryAppend;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private long nextOffset;
+    private boolean dirty;
+    private boolean closed;
+    
+    /**
+     * Opens (or creates) the log in {@code directory}. With
+     * {@code syncEveryAppend} each append is fsynced before it returns;
+     * otherwise durability is up to whoever calls flush.
+     */
+    public MessageLog(Path directory, String room, int segmentBytes, boolean syncEveryAppend) throws IOException {
+        this.directory = directory;
+        this.room = room;
+        this.segmentBytes = segmentBytes;
+        this.syncEveryAppend = syncEveryAppend;
+        Files.createDirectories(directory);
+        
+        List<Long> baseOffsets = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                 .filter(name -> name.endsWith(LOG_SUFFIX))
+                 .forEach(name -> baseOffsets.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()))));
+        }
+        baseOffsets.sort(null);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            Segment segment = new Segment(baseOffsets.get(i));
+            if (i < baseOffsets.size() - 1) {
+                segment.openSealed(baseOffsets.get(i + 1));
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(0));
+        }
+        active = segments.get(segments.size() - 1);
+        nextOffset = active.openActive();
+    }
+    
+    /**
+     * Appends a message. Returns false if the log has been closed, in which
+     * case the caller should reopen it and retry.
+     */
+    public boolean append(Message message) throws IOException {
+        byte[] user = message.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        int payload = FIXED_PAYLOAD_SIZE + user.length + content.length;
+        int recordSize = HEADER_SIZE + payload;
+        long timestamp = toMillis(message.getTimestamp());
+        
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (active.size + writeBuffer.position() + recordSize > segmentBytes && nextOffset > active.baseOffset) {
+                roll();
+            }
+            if (writeBuffer.remaining() < recordSize) {
+                writeBuffered();
+            }
+            int position = (int) (active.size + writeBuffer.position());
+            active.maybeIndex(nextOffset, timestamp, position);
+            
+            ByteBuffer target = recordSize <= writeBuffer.remaining() ? writeBuffer : ByteBuffer.allocate(recordSize);
+            int start = target.position();
+            target.putInt(payload).putInt(0)
+                  .putLong(timestamp).put((byte) message.getType().ordinal())
+                  .putShort((short) user.length).put(user).put(content);
+            crc.reset();
+            crc.update(target.array(), target.arrayOffset() + start + HEADER_SIZE, payload);
+            target.putInt(start + 4, (int) crc.getValue());
+            if (target != writeBuffer) {
+                // Larger than the whole buffer, which was emptied above
+                target.flip();
+                active.write(target);
+            }
+            nextOffset++;
+            dirty = true;
+            if (syncEveryAppend) {
+                flushLocked(true);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes buffered records to the segment file and, if {@code sync} is
+     * set, forces them to disk. Several appends share one fsync this way.
+     */
+    public void flush(boolean sync) throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                flushLocked(sync);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Streams the last {@code count} messages to {@code consumer}, oldest first.
+     */
+    public void replayLast(int count, Consumer<Message> consumer) throws IOException {
+        List<SegmentView> views = snapshot();
+        if (views.isEmpty() || count <= 0) return;
+        long end = views.get(views.size() - 1).endOffset;
+        long start = Math.max(views.get(0).segment.baseOffset, end - count);
+        
+        int first = views.size() - 1;
+        while (first > 0 && views.get(first).segment.baseOffset > start) {
+            first--;
+        }
+        for (int i = first; i < views.size(); i++) {
+            SegmentView view = views.get(i);
+            if (i == first) {
+                int entry = view.floorIndexByOffset(start);
+                view.read(view.indexPositions[entry], view.indexOffsets[entry], start, Long.MIN_VALUE, consumer);
+            } else {
+                view.read(0, view.segment.baseOffset, view.segment.baseOffset, Long.MIN_VALUE, consumer);
+            }
+        }
+    }
+    
+    /**
+     * Streams every message stamped at or after {@code since} to
+     * {@code consumer}, oldest first.
+     */
+    public void replaySince(LocalDateTime since, Consumer<Message> consumer) throws IOException {
+        List<SegmentView> views = snapshot();
+        long sinceMillis = toMillis(since);
+        int first = views.size() - 1;
+        while (first > 0 && views.get(first).firstTimestamp() >= sinceMillis) {
+            first--;
+        }
+        for (int i = Math.max(first, 0); i < views.size(); i++) {
+            SegmentView view = views.get(i);
+            // Concurrent appends can be a few ms out of order, so start one
+            // index entry early and filter by timestamp while reading
+            int entry = i == first ? Math.max(0, view.floorIndexByTimestamp(sinceMillis) - 1) : 0;
+            long offset = view.indexCount == 0 ? view.segment.baseOffset : view.indexOffsets[entry];
+            int position = view.indexCount == 0 ? 0 : view.indexPositions[entry];
+            view.read(position, offset, offset, sinceMillis, consumer);
+        }
+    }
+    
+    public long getNextOffset() {
+        lock.lock();
+        try {
+            return nextOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            flushLocked(true);
+            closed = true;
+            active.closeChannels();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void flushLocked(boolean sync) throws IOException {
+        writeBuffered();
+        active.writeIndex();
+        if (sync && dirty) {
+            active.channel.force(false);
+            dirty = false;
+        }
+    }
+    
+    private void writeBuffered() throws IOException {
+        if (writeBuffer.position() == 0) return;
+        writeBuffer.flip();
+        active.write(writeBuffer);
+        writeBuffer.clear();
+    }
+    
+    private void roll() throws IOException {
+        flushLocked(true);
+        active.seal(nextOffset);
+        active = new Segment(nextOffset);
+        active.openActive();
+        segments.add(active);
+    }
+    
+    /**
+     * Makes everything appended so far visible to the file mapping and
+     * captures the segment boundaries, so the caller can read without the lock.
+     */
+    private List<SegmentView> snapshot() throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Message log for room '" + room + "' is closed");
+            writeBuffered();
+            List<SegmentView> views = new ArrayList<>(segments.size());
+            for (Segment segment : segments) {
+                long end = segment == active ? nextOffset : segment.endOffset;
+                if (end > segment.baseOffset) {
+                    views.add(new SegmentView(segment, end));
+                }
+            }
+            return views;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    
+    private static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+    
+    /**
+     * One segment file and its sparse index. Only the active segment is
+     * written to; sealed segments are mapped once and then only read.
+     */
+    private final class Segment {
+        final long baseOffset;
+        final Path logPath;
+        final Path indexPath;
+        FileChannel channel;
+        FileChannel indexChannel;
+        long size;
+        long endOffset;
+        long[] indexOffsets = new long[16];
+        long[] indexTimestamps = new long[16];
+        int[] indexPositions = new int[16];
+        int indexCount;
+        int indexWritten;
+        volatile MappedByteBuffer sealedMapping;
+        
+        Segment(long baseOffset) {
+            this.baseOffset = baseOffset;
+            String name = String.format("%020d", baseOffset);
+            this.logPath = directory.resolve(name + LOG_SUFFIX);
+            this.indexPath = directory.resolve(name + INDEX_SUFFIX);
+        }
+        
+        void openSealed(long endOffset) throws IOException {
+            this.endOffset = endOffset;
+            this.size = Files.size(logPath);
+            if (!loadIndex()) {
+                recover();
+                rewriteIndex();
+            }
+        }
+        
+        /**
+         * Opens the segment for appending, recovering its tail. Returns the
+         * offset the next record will get.
+         */
+        long openActive() throws IOException {
+            channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+            loadIndex();
+            long next = recover();
+            if (size < channel.size()) {
+                System.err.println("Truncating torn tail of " + logPath + " at byte " + size);
+                channel.truncate(size);
+            }
+            rewriteIndex();
+            indexChannel = FileChannel.open(indexPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return next;
+        }
+        
+        /**
+         * Scans forward from the last index entry, validating records and
+         * indexing them. Leaves {@code size} at the end of the last good
+         * record and returns the offset after it.
+         */
+        long recover() throws IOException {
+            // Drop index entries that point past the data actually on disk
+            while (indexCount > 0 && indexPositions[indexCount - 1] >= size) {
+                indexCount--;
+            }
+            int position = indexCount == 0 ? 0 : indexPositions[indexCount - 1];
+            long offset = indexCount == 0 ? baseOffset : indexOffsets[indexCount - 1];
+            if (indexCount > 0) indexCount--; // re-added by the scan below
+            
+            ByteBuffer data;
+            try (FileChannel reader = FileChannel.open(logPath, StandardOpenOption.READ)) {
+                data = reader.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            CRC32 check = new CRC32();
+            while (position + HEADER_SIZE <= size) {
+                int payload = data.getInt(position);
+                if (payload < FIXED_PAYLOAD_SIZE || position + HEADER_SIZE + (long) payload > size) break;
+                check.reset();
+                check.update(data.slice(position + HEADER_SIZE, payload));
+                if ((int) check.getValue() != data.getInt(position + 4)) break;
+                maybeIndex(offset, data.getLong(position + HEADER_SIZE), position);
+                position += HEADER_SIZE + payload;
+                offset++;
+            }
+            size = position;
+            return offset;
+        }
+        
+        void maybeIndex(long offset, long timestamp, int position) {
+            if (indexCount > 0 && position - indexPositions[indexCount - 1] < INDEX_INTERVAL_BYTES) return;
+            if (indexCount == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexOffsets[indexCount] = offset;
+            indexTimestamps[indexCount] = timestamp;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+        
+        void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer, size);
+            }
+        }
+        
+        /**
+         * Appends index entries added since the last call. The index is
+         * not fsynced; a stale one is repaired from the log on reopen.
+         */
+        void writeIndex() throws IOException {
+            if (indexWritten == indexCount || indexChannel == null) return;
+            ByteBuffer entries = ByteBuffer.allocate((indexCount - indexWritten) * INDEX_ENTRY_SIZE);
+            for (int i = indexWritten; i < indexCount; i++) {
+                entries.putLong(indexOffsets[i]).putLong(indexTimestamps[i]).putInt(indexPositions[i]);
+            }
+            entries.flip();
+            while (entries.hasRemaining()) {
+                indexChannel.write(entries);
+            }
+            indexWritten = indexCount;
+        }
+        
+        boolean loadIndex() throws IOException {
+            if (!Files.exists(indexPath)) return false;
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+                long offset = entries.getLong();
+                long timestamp = entries.getLong();
+                int position = entries.getInt();
+                if (indexCount == indexOffsets.length) {
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                    indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+                }
+                indexOffsets[indexCount] = offset;
+                indexTimestamps[indexCount] = timestamp;
+                indexPositions[indexCount] = position;
+                indexCount++;
+            }
+            return indexCount > 0;
+        }
+        
+        void rewriteIndex() throws IOException {
+            Files.write(indexPath, new byte[0]);
+            try (FileChannel writer = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                indexChannel = writer;
+                indexWritten = 0;
+                writeIndex();
+            } finally {
+                indexChannel = null;
+            }
+        }
+        
+        void seal(long endOffset) throws IOException {
+            this.endOffset = endOffset;
+            closeChannels();
+        }
+        
+        void closeChannels() throws IOException {
+            if (channel != null) channel.close();
+            if (indexChannel != null) indexChannel.close();
+            channel = null;
+            indexChannel = null;
+        }
+        
+        /**
+         * Returns a read-only mapping of the first {@code length} bytes.
+         * Sealed segments are mapped once; the active one is remapped per
+         * read because it keeps growing.
+         */
+        ByteBuffer map(long length, boolean sealed) throws IOException {
+            MappedByteBuffer mapping = sealedMapping;
+            if (sealed && mapping != null) {
+                return mapping;
+            }
+            try (FileChannel reader = FileChannel.open(logPath, StandardOpenOption.READ)) {
+                mapping = reader.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            if (sealed) {
+                sealedMapping = mapping;
+            }
+            return mapping;
+        }
+    }
+    
+    /**
+     * A segment as it was when a replay started. Index arrays only ever
+     * grow past {@code indexCount}, so reading them without the lock is safe.
+     */
+    private final class SegmentView {
+        final Segment segment;
+        final long endOffset;
+        final long size;
+        final long[] indexOffsets;
+        final long[] indexTimestamps;
+        final int[] indexPositions;
+        final int indexCount;
+        final boolean sealed;
+        
+        SegmentView(Segment segment, long endOffset) {
+            this.segment = segment;
+            this.endOffset = endOffset;
+            this.size = segment.size;
+            this.indexOffsets = segment.indexOffsets;
+            this.indexTimestamps = segment.indexTimestamps;
+            this.indexPositions = segment.indexPositions;
+            this.indexCount = segment.indexCount;
+            this.sealed = segment != active;
+        }
+        
+        long firstTimestamp() {
+            return indexCount == 0 ? Long.MAX_VALUE : indexTimestamps[0];
+        }
+        
+        int floorIndexByOffset(long offset) {
+            int low = 0;
+            int high = indexCount - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (indexOffsets[mid] <= offset) low = mid; else high = mid - 1;
+            }
+            return low;
+        }
+        
+        int floorIndexByTimestamp(long timestamp) {
+            int low = 0;
+            int high = indexCount - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (indexTimestamps[mid] < timestamp) low = mid; else high = mid - 1;
+            }
+            return low;
+        }
+        
+        /**
+         * Decodes records starting at {@code position} (which holds record
+         * {@code offset}), delivering those at or after {@code fromOffset}
+         * and {@code sinceMillis}.
+         */
+        void read(int position, long offset, long fromOffset, long sinceMillis, Consumer<Message> consumer)
+                throws IOException {
+            ByteBuffer data = segment.map(size, sealed);
+            while (offset < endOffset && position + HEADER_SIZE <= size) {
+                int payload = data.getInt(position);
+                if (offset >= fromOffset) {
+                    int base = position + HEADER_SIZE;
+                    long timestamp = data.getLong(base);
+                    if (timestamp >= sinceMillis) {
+                        int userLength = data.getShort(base + 9);
+                        byte[] user = new byte[userLength];
+                        byte[] content = new byte[payload - FIXED_PAYLOAD_SIZE - userLength];
+                        data.get(base + FIXED_PAYLOAD_SIZE, user);
+                        data.get(base + FIXED_PAYLOAD_SIZE + userLength, content);
+                        consumer.accept(new Message(new String(user, StandardCharsets.UTF_8),
+                                                    new String(content, StandardCharsets.UTF_8),
+                                                    room, TYPES[data.get(base + 8)], fromMillis(timestamp)));
+                    }
+                }
+                position += HEADER_SIZE + payload;
+                offset++;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+package com.chat.test;
+
+import com.chat.common.Message;
+import com.chat.server.MessageLogStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Append throughput of the on-disk message log under each fsync setting,
+ * followed by replay latency against the log the last run produced. Several
+ * writer threads append to one room, as chat users in a busy room would.
+ *
+ * Usage: java com.chat.test.MessageLogBenchmark [seconds per run] [writer threads] [directory]
+ */
+public class MessageLogBenchmark {
+    private static final long[] FSYNC_INTERVALS = { 0, 10, 100, -1 };
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Path base = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("chat-log-bench");
+        
+        System.out.println("=== Message Log Benchmark ===");
+        System.out.println(writers + " writers, " + seconds + " s per run, logs in " + base);
+        System.out.println();
+        System.out.printf("%-14s %14s%n", "fsync", "appends/s");
+        
+        MessageLogStore last = null;
+        for (long interval : FSYNC_INTERVALS) {
+            Path directory = base.resolve("fsync" + interval);
+            MessageLogStore store = new MessageLogStore(directory, interval);
+            long appended = appendFor(store, writers, seconds);
+            System.out.printf("%-14s %14.0f%n", describe(interval), appended / (double) seconds);
+            if (last != null) last.close();
+            last = store;
+        }
+        
+        MessageLogStore store = last;
+        System.out.println();
+        System.out.printf("%-24s %10s %12s%n", "replay", "messages", "ms");
+        for (int count : new int[] { 100, 10_000 }) {
+            replay("last " + count, consumer -> store.replayLast("bench", count, consumer));
+        }
+        LocalDateTime recent = LocalDateTime.now().minusSeconds(1);
+        replay("since 1 s ago", consumer -> store.replaySince("bench", recent, consumer));
+        store.close();
+        
+        if (args.length <= 2) {
+            deleteRecursively(base);
+        }
+    }
+    
+    private static long appendFor(MessageLogStore store, int writers, int seconds) throws InterruptedException {
+        LongAdder appended = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            String user = "writer" + w;
+            threads.add(new Thread(() -> {
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    store.append("bench", new Message(user, "message " + count + " from a busy room", "bench",
+                                                      Message.MessageType.CHAT));
+                    count++;
+                }
+                appended.add(count);
+            }, "log-writer-" + w));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return appended.sum();
+    }
+    
+    private interface Replay {
+        void run(Consumer<Message> consumer) throws IOException;
+    }
+    
+    private static void replay(String label, Replay replay) throws IOException {
+        // Warm-up passes map the segments and let the JIT compile the decoder
+        for (int i = 0; i < 5; i++) {
+            replay.run(message -> { });
+        }
+        LongAdder messages = new LongAdder();
+        long start = System.nanoTime();
+        replay.run(message -> messages.increment());
+        double millis = (System.nanoTime() - start) / 1_000_000.0;
+        System.out.printf("%-24s %10d %12.2f%n", label, messages.sum(), millis);
+    }
+    
+    private static String describe(long interval) {
+        if (interval == 0) return "every append";
+        if (interval < 0) return "never";
+        return "every " + interval + " ms";
+    }
+    
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
\ No newline at end of file
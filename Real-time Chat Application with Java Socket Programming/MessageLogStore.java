@@ -0,0 +1,159 @@
+package com.chat.server;
+
+import com.chat.common.Message;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The message logs of all rooms under one directory, plus the group commit
+ * that makes them durable. With a positive fsync interval a background
+ * thread writes out and fsyncs every room's buffered records once per
+ * interval, so however many messages arrive in that window share one fsync
+ * per room. An interval of 0 fsyncs every message before the append returns;
+ * a negative interval writes buffers out on the default interval but leaves
+ * fsync to the operating system.
+ */
+public class MessageLogStore {
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    
+    private final Path directory;
+    private final long fsyncIntervalMillis;
+    private final int segmentBytes;
+    private final Map<String, MessageLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    
+    public MessageLogStore(Path directory, long fsyncIntervalMillis) {
+        this(directory, fsyncIntervalMillis, DEFAULT_SEGMENT_BYTES);
+    }
+    
+    public MessageLogStore(Path directory, long fsyncIntervalMillis, int segmentBytes) {
+        this.directory = directory;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.segmentBytes = segmentBytes;
+        if (fsyncIntervalMillis == 0) {
+            flusher = null;
+        } else {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "message-log-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = fsyncIntervalMillis > 0 ? fsyncIntervalMillis : DEFAULT_FSYNC_INTERVAL_MILLIS;
+            flusher.scheduleWithFixedDelay(() -> flushAll(fsyncIntervalMillis > 0),
+                                           interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Appends a message to its room's log. Failures are reported but never
+     * stop the message from being delivered.
+     */
+    public void append(String room, Message message) {
+        try {
+            // A log closed by closeRoom in the meantime is reopened
+            MessageLog log;
+            while (!(log = log(room)).append(message)) {
+                logs.remove(room, log);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error writing message log for room " + room + ": " + e.getMessage());
+        }
+    }
+    
+    public void replayLast(String room, int count, Consumer<Message> consumer) throws IOException {
+        try {
+            log(room).replayLast(count, consumer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    public void replaySince(String room, LocalDateTime since, Consumer<Message> consumer) throws IOException {
+        try {
+            log(room).replaySince(since, consumer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Closes a room's log so an abandoned room does not keep files open.
+     * It is reopened on the next access.
+     */
+    public void closeRoom(String room) {
+        // Closing inside compute keeps the room's key locked, so a new log
+        // for the same directory cannot open until this one has flushed
+        logs.computeIfPresent(room, (name, log) -> {
+            closeQuietly(log);
+            return null;
+        });
+    }
+    
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        for (String room : logs.keySet()) {
+            closeRoom(room);
+        }
+    }
+    
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+    
+    private MessageLog log(String room) {
+        return logs.computeIfAbsent(room, name -> {
+            try {
+                return new MessageLog(directory.resolve(directoryName(name)), name, segmentBytes, fsyncIntervalMillis == 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+    
+    private void flushAll(boolean sync) {
+        for (Map.Entry<String, MessageLog> entry : logs.entrySet()) {
+            try {
+                entry.getValue().flush(sync);
+            } catch (IOException e) {
+                System.err.println("Error flushing message log for room " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    private static void closeQuietly(MessageLog log) {
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("Error closing message log: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Room names come from users, so anything but letters, digits, '-' and
+     * '_' is percent-encoded to keep each room inside its own directory.
+     */
+    static String directoryName(String room) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                name.append(c);
+            } else {
+                name.append('%').append(String.format("%02X", b & 0xff));
+            }
+        }
+        return name.toString();
+    }
+}
\ No newline at end of file
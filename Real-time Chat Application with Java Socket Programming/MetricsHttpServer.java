@@ -0,0 +1,56 @@
+package com.chat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@code GET /metrics} in the Prometheus text format using the
+ * JDK's built-in HTTP server. Scrapes are rendered on its single dispatch
+ * thread, away from the chat threads.
+ */
+public class MetricsHttpServer {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    private final int port;
+    private final ChatRouter router;
+    private HttpServer server;
+    
+    public MetricsHttpServer(int port, ChatRouter router) {
+        this.port = port;
+        this.router = router;
+    }
+    
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        System.out.println("Metrics available at http://localhost:" + port + "/metrics");
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") || !exchange.getRequestURI().getPath().equals("/metrics")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = router.getMetrics().scrape(router).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,174 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector-based alternative to the thread-per-client accept loop in
+ * ChatServer. A single event loop thread owns every connection: reads are
+ * non-blocking, input is framed into lines by NioClientHandler and handed
+ * to the same command protocol, and output is queued per connection until
+ * the socket becomes writable. Room state and routing stay in ChatServer.
+ */
+public class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    
+    private final ChatServer chatServer;
+    private final int port;
+    private final Queue<NioClientHandler> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<NioClientHandler> pendingCloses = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile Thread eventLoopThread;
+    private volatile boolean running;
+    
+    public NioChatServer(ChatServer chatServer, int port) {
+        this.chatServer = chatServer;
+        this.port = port;
+    }
+    
+    public void start() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            running = true;
+            eventLoopThread = Thread.currentThread();
+            System.out.println("Chat Server (NIO) started on port " + port);
+            System.out.println("Waiting for clients to connect...");
+            
+            while (running) {
+                selector.select();
+                runPendingFlushes();
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        NioClientHandler handler = (NioClientHandler) key.attachment();
+                        if (key.isReadable()) {
+                            read(key, handler);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.flush();
+                        }
+                    }
+                }
+                runPendingFlushes();
+                runPendingCloses();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+        } finally {
+            stop();
+        }
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            NioClientHandler handler = new NioClientHandler(channel, chatServer, this);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ, handler);
+            handler.register(key);
+        }
+    }
+    
+    private void read(SelectionKey key, NioClientHandler handler) {
+        readBuffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = ((SocketChannel) key.channel()).read(readBuffer);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        
+        if (bytesRead < 0) {
+            handler.close();
+            return;
+        }
+        readBuffer.flip();
+        handler.onRead(readBuffer);
+    }
+    
+    private void runPendingFlushes() {
+        NioClientHandler handler;
+        while ((handler = pendingFlushes.poll()) != null) {
+            handler.flush();
+        }
+    }
+    
+    private void runPendingCloses() {
+        NioClientHandler handler;
+        while ((handler = pendingCloses.poll()) != null) {
+            handler.close();
+        }
+    }
+    
+    boolean inEventLoop() {
+        return Thread.currentThread() == eventLoopThread;
+    }
+    
+    /**
+     * Schedules a flush at the end of the current loop pass. When called
+     * from another thread the loop is woken up so the write goes out promptly.
+     */
+    void requestFlush(NioClientHandler handler) {
+        pendingFlushes.add(handler);
+        if (!inEventLoop()) {
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+    }
+    
+    void requestClose(NioClientHandler handler) {
+        pendingCloses.add(handler);
+        if (!inEventLoop()) {
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+    }
+    
+    public void stop() {
+        if (!running && serverChannel == null) return;
+        running = false;
+        try {
+            if (selector != null && selector.isOpen()) {
+                selector.wakeup();
+                if (inEventLoop()) {
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof NioClientHandler) {
+                            ((NioClientHandler) key.attachment()).close();
+                        }
+                    }
+                    selector.close();
+                }
+            }
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error stopping server: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,163 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection state for the selector-based server mode. Input bytes are
+ * framed into lines here and fed to the shared command protocol in
+ * ClientHandler; output lines wait in the connection's OutboundQueue and
+ * are flushed when the socket is writable, so no thread ever blocks on a
+ * slow client.
+ */
+public class NioClientHandler extends ClientHandler {
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_GATHER = 64;
+    
+    private final SocketChannel channel;
+    private final NioChatServer eventLoop;
+    private final ByteBuffer[] inFlight = new ByteBuffer[MAX_GATHER];
+    private int inFlightIndex;
+    private int inFlightCount;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private SelectionKey key;
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength;
+    private volatile boolean closed;
+    
+    public NioClientHandler(SocketChannel channel, ChatServer server, NioChatServer eventLoop) {
+        super(server);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+    
+    void register(SelectionKey key) {
+        this.key = key;
+        onConnect();
+    }
+    
+    /**
+     * Splits the bytes in {@code buffer} into newline-terminated lines and
+     * dispatches each complete one, or into frames once the client has
+     * switched to the binary protocol. Partial input is kept for the next read.
+     */
+    void onRead(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closed) {
+            if (isBinary()) {
+                readFrames(buffer);
+                return;
+            }
+            byte b = buffer.get();
+            if (b == '\n') {
+                int end = lineLength;
+                if (end > 0 && lineBuffer[end - 1] == '\r') {
+                    end--;
+                }
+                String line = new String(lineBuffer, 0, end, StandardCharsets.UTF_8);
+                lineLength = 0;
+                handleLine(line);
+            } else if (lineLength < MAX_LINE_LENGTH) {
+                if (lineLength == lineBuffer.length) {
+                    lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH));
+                }
+                lineBuffer[lineLength++] = b;
+            }
+        }
+    }
+    
+    private void readFrames(ByteBuffer buffer) {
+        try {
+            handleFrames(buffer);
+        } catch (IOException e) {
+            System.err.println("Client handler error: " + e.getMessage());
+            close();
+        }
+    }
+    
+    /**
+     * Writes are batched: everything queued during one pass of the event
+     * loop goes out in a single gathering write.
+     */
+    @Override
+    protected void scheduleWrite() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.requestFlush(this);
+        }
+    }
+    
+    @Override
+    public void disconnect() {
+        eventLoop.requestClose(this);
+    }
+    
+    /**
+     * Writes as much queued output as the socket accepts. Called on the
+     * event loop thread only; registers interest in OP_WRITE while data remains.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed || key == null) return;
+        try {
+            writePending();
+            boolean backlog = inFlightIndex < inFlightCount || !getOutboundQueue().isEmpty();
+            int ops = backlog ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (key.isValid() && key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            // Closing here would broadcast the disconnect from inside
+            // another client's fan-out, so let the event loop do it
+            getOutboundQueue().clear();
+            eventLoop.requestClose(this);
+        }
+    }
+    
+    private void writePending() throws IOException {
+        while (true) {
+            if (inFlightIndex == inFlightCount) {
+                inFlightIndex = 0;
+                inFlightCount = getOutboundQueue().drainTo(inFlight);
+                if (inFlightCount == 0) return;
+            }
+            metrics.getBytesWritten().add(channel.write(inFlight, inFlightIndex, inFlightCount - inFlightIndex));
+            while (inFlightIndex < inFlightCount && !inFlight[inFlightIndex].hasRemaining()) {
+                inFlight[inFlightIndex++] = null;
+            }
+            if (inFlightIndex < inFlightCount) {
+                return; // socket send buffer is full
+            }
+        }
+    }
+    
+    @Override
+    protected void close() {
+        if (closed) return;
+        // Give the client its last replies (e.g. "Goodbye!") before closing
+        try {
+            writePending();
+        } catch (IOException ignored) {
+            // Peer is gone; nothing left to deliver
+        }
+        closed = true;
+        super.close();
+        cleanup();
+    }
+    
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error during cleanup: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,191 @@
+package com.chat.server;
+
+import com.chat.common.DeflateProtocol;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-connection queue of encoded outbound lines. Broadcasting
+ * threads only ever append here; the connection's writer drains it, so a
+ * client with a full TCP send buffer delays nobody but itself. What happens
+ * when the queue is full is decided by the OverflowPolicy.
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        /** Discard the oldest queued line to make room for the new one. */
+        DROP_OLDEST,
+        /** Reject the line and ask for the connection to be closed. */
+        DISCONNECT,
+        /** Replace the whole backlog with a single "messages skipped" notice. */
+        COALESCE;
+        
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+    
+    public static final int DEFAULT_CAPACITY = 1024;
+    
+    private final ArrayDeque<ByteBuffer> queue;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final IntFunction<ByteBuffer> skippedNotice;
+    private final ReentrantLock lock = new ReentrantLock();
+    private UnaryOperator<ByteBuffer> prefixer;
+    private volatile DeflateProtocol.Compressor compressor;
+    private volatile int depth;
+    private volatile long dropped;
+    private int highWaterMark;
+    
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, OutboundQueue::skippedLine);
+    }
+    
+    /**
+     * @param skippedNotice encodes the COALESCE notice for a given number of
+     *                      skipped messages in the connection's wire format
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, IntFunction<ByteBuffer> skippedNotice) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.skippedNotice = skippedNotice;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+    
+    /**
+     * Appends a line. Returns false only under the DISCONNECT policy when
+     * the queue is full, meaning the consumer should be dropped.
+     */
+    public boolean offer(ByteBuffer line) {
+        lock.lock();
+        try {
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                    case COALESCE:
+                        int skipped = queue.size();
+                        queue.clear();
+                        queue.add(skippedNotice.apply(skipped));
+                        dropped += skipped;
+                        break;
+                    default:
+                        queue.poll();
+                        dropped++;
+                }
+            }
+            queue.add(line);
+            depth = queue.size();
+            if (depth > highWaterMark) {
+                highWaterMark = depth;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Moves up to {@code batch.length} queued lines, oldest first, into
+     * {@code batch} and returns how many were moved. Lines handed to the
+     * writer this way can no longer be discarded by an overflow, so a
+     * partially written line is never cut short. With a compressor set,
+     * the lines come out packed into one block, compressed after the lock
+     * is released.
+     */
+    public int drainTo(ByteBuffer[] batch) {
+        int count = drainLines(batch);
+        DeflateProtocol.Compressor packer = compressor;
+        return packer != null && count > 0 ? packer.pack(batch, count) : count;
+    }
+    
+    private int drainLines(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            // Leave room for a prefix in front of every line
+            int limit = prefixer != null ? batch.length - 1 : batch.length;
+            ByteBuffer line;
+            while (count < limit && (line = queue.poll()) != null) {
+                if (prefixer != null) {
+                    ByteBuffer prefix = prefixer.apply(line);
+                    if (prefix != null) {
+                        batch[count++] = prefix;
+                    }
+                }
+                batch[count++] = line;
+            }
+            depth = queue.size();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Sets a function that sees each line as the writer takes it and may
+     * return bytes to write just before it, or null. Since it runs on the
+     * writer it sees exactly what reaches the client, whatever the overflow
+     * policy discarded; the binary protocol uses it to define ids.
+     */
+    public void setPrefixer(UnaryOperator<ByteBuffer> prefixer) {
+        lock.lock();
+        try {
+            this.prefixer = prefixer;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Compresses everything the writer takes from now on (see
+     * DeflateProtocol). Only one writer drains at a time, so the
+     * compressor is never used concurrently.
+     */
+    public void setCompressor(DeflateProtocol.Compressor compressor) {
+        this.compressor = compressor;
+    }
+    
+    public void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+            depth = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isEmpty() {
+        return depth == 0;
+    }
+    
+    public int getDepth() {
+        return depth;
+    }
+    
+    public long getDroppedCount() {
+        return dropped;
+    }
+    
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+    
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+    
+    public static String skippedText(int skipped) {
+        return "*** " + skipped + " messages skipped: your connection is too slow ***";
+    }
+    
+    private static ByteBuffer skippedLine(int skipped) {
+        return ByteBuffer.wrap((skippedText(skipped) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,132 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Drains a connection's OutboundQueue into a blocking stream. A writer task
+ * is started on the executor when output is queued and runs until the queue
+ * is empty, so at most one thread writes to the stream at a time and the
+ * threads that queue output never touch the socket. Shared by the blocking
+ * TCP handler and the WebSocket handler.
+ */
+public class OutboundWriter {
+    private final OutboundQueue outbound;
+    private final Executor executor;
+    private final Consumer<IOException> onFailure;
+    private final LongAdder bytesWritten;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+    private byte[] copyBuffer;
+    private volatile OutputStream output;
+    
+    /**
+     * @param onFailure called on the writer thread when the stream breaks;
+     *                  the queue has already been cleared
+     */
+    public OutboundWriter(OutboundQueue outbound, Executor executor, Consumer<IOException> onFailure) {
+        this(outbound, executor, null, onFailure);
+    }
+    
+    /**
+     * @param bytesWritten counts the bytes written, once per flushed batch;
+     *                     may be null
+     */
+    public OutboundWriter(OutboundQueue outbound, Executor executor, LongAdder bytesWritten,
+                          Consumer<IOException> onFailure) {
+        this.outbound = outbound;
+        this.executor = executor;
+        this.bytesWritten = bytesWritten;
+        this.onFailure = onFailure;
+    }
+    
+    /**
+     * Sets the stream to write to. Output queued before this waits for the
+     * next schedule() call.
+     */
+    public void setOutput(OutputStream output) {
+        this.output = output;
+    }
+    
+    /**
+     * Starts a writer unless one is already draining the queue.
+     */
+    public void schedule() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+    
+    private void drain() {
+        OutputStream out = output;
+        if (out == null) {
+            drainScheduled.set(false);
+            return;
+        }
+        try {
+            do {
+                int count;
+                while ((count = outbound.drainTo(writeBatch)) > 0) {
+                    long bytes = 0;
+                    for (int i = 0; i < count; i++) {
+                        bytes += write(out, writeBatch[i]);
+                        writeBatch[i] = null;
+                    }
+                    out.flush();
+                    if (bytesWritten != null) {
+                        bytesWritten.add(bytes);
+                    }
+                }
+                drainScheduled.set(false);
+                // Output queued after the last drainTo but before the flag
+                // was cleared found the writer busy, so pick it up here
+            } while (!outbound.isEmpty() && drainScheduled.compareAndSet(false, true));
+        } catch (IOException e) {
+            outbound.clear();
+            drainScheduled.set(false);
+            onFailure.accept(e);
+        }
+    }
+    
+    private int write(OutputStream out, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), length);
+            return length;
+        }
+        // Shared broadcast buffers are read-only and do not expose their array
+        if (copyBuffer == null || copyBuffer.length < length) {
+            copyBuffer = new byte[Math.max(length, 1024)];
+        }
+        data.get(data.position(), copyBuffer, 0, length);
+        out.write(copyBuffer, 0, length);
+        return length;
+    }
+    
+    /**
+     * Writes whatever is still queued (e.g. a goodbye) on the calling
+     * thread, once a writer that is still draining has finished. Gives up
+     * after {@code timeoutMillis}, e.g. when that writer is stuck on a
+     * client that stopped reading.
+     */
+    public void finish(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!drainScheduled.compareAndSet(false, true)) {
+            if (System.currentTimeMillis() >= deadline) {
+                return;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        drain();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,266 @@
+package com.chat.test;
+
+import com.chat.common.BinaryProtocol;
+import com.chat.common.Message;
+import com.chat.server.ChatServer;
+import com.chat.test.BenchClient.LatencyRecorder;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the text and binary protocols at a fixed offered load. One client
+ * sends timestamped messages to a room at the target rate, batching each
+ * millisecond's messages into one write, and every member (sender included)
+ * counts what arrives. Both protocols are run with and without the
+ * server's flush interval. Reports delivered rate, wire bytes per message,
+ * delivery latency and messages lost to full outbound queues.
+ *
+ * Usage: java com.chat.test.ProtocolThroughputBenchmark [msgs/sec] [seconds] [receivers]
+ */
+public class ProtocolThroughputBenchmark {
+    private static final int MAX_BATCH = 1000;
+    
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int receivers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        
+        System.out.println("=== Protocol Throughput Benchmark ===");
+        System.out.println("Offered load: " + rate + " msgs/sec for " + seconds + " s, "
+                           + (receivers + 1) + " room members");
+        System.out.println();
+        System.out.printf("%-22s %12s %14s %10s %10s %10s %10s%n", "protocol", "sent/sec",
+                "delivered/sec", "bytes/msg", "p50 (ms)", "p99 (ms)", "lost");
+        run("text", false, 0, rate, seconds, receivers);
+        run("binary", true, 0, rate, seconds, receivers);
+        run("text, flush 2 ms", false, 2, rate, seconds, receivers);
+        run("binary, flush 2 ms", true, 2, rate, seconds, receivers);
+    }
+    
+    private static void run(String label, boolean binary, long flushMillis,
+                            int rate, int seconds, int receivers) throws Exception {
+        int port = ChatServerLoadTest.findFreePort();
+        ChatServer server = new ChatServer(port);
+        server.setFlushInterval(flushMillis);
+        Thread serverThread = new Thread(server::start, "protocol-benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        ChatServerLoadTest.waitForPort(port);
+        
+        Member[] members = new Member[receivers + 1];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new Member(port, "m" + i, binary);
+        }
+        for (Member member : members) {
+            member.thread.start();
+        }
+        
+        long total = (long) rate * seconds;
+        long start = System.nanoTime();
+        long sent = members[0].sendPaced(rate, total);
+        double sendSeconds = (System.nanoTime() - start) / 1e9;
+        
+        // Wait until deliveries stop arriving
+        long expected = sent * members.length;
+        long received = 0;
+        for (int idle = 0; idle < 10 && received < expected; ) {
+            Thread.sleep(100);
+            long now = 0;
+            for (Member member : members) {
+                now += member.received;
+            }
+            idle = now == received ? idle + 1 : 0;
+            received = now;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        
+        long bytes = 0;
+        long[] latencies = new long[0];
+        for (Member member : members) {
+            member.close();
+            member.thread.join(1000);
+            bytes += member.bytes;
+            long[] own = member.latencies.sorted();
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + own.length);
+            System.arraycopy(own, 0, latencies, offset, own.length);
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-22s %12.0f %14.0f %10.1f %10.2f %10.2f %10d%n", label,
+                sent / sendSeconds, received / elapsed, received == 0 ? 0.0 : (double) bytes / received,
+                LatencyRecorder.percentileMillis(latencies, 0.50),
+                LatencyRecorder.percentileMillis(latencies, 0.99),
+                expected - received);
+        server.stop();
+    }
+    
+    /**
+     * A room member on a blocking socket. Logs in on construction, then
+     * counts the timestamped messages that reach it on its own thread.
+     */
+    private static class Member implements Runnable {
+        private final Socket socket;
+        private final boolean binary;
+        private final InputStream in;
+        private final OutputStream out;
+        private final LatencyRecorder latencies = new LatencyRecorder(1 << 16);
+        private final Thread thread;
+        private volatile long received;
+        private volatile long bytes;
+        
+        Member(int port, String username, boolean binary) throws IOException {
+            this.socket = new Socket("localhost", port);
+            this.binary = binary;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            this.thread = new Thread(this, "member-" + username);
+            this.thread.setDaemon(true);
+            if (binary) {
+                writeLine(BinaryProtocol.UPGRADE_REQUEST);
+                awaitLine(BinaryProtocol.UPGRADE_ACK);
+                ByteBuffer login = BinaryProtocol.frame(BinaryProtocol.LOGIN, username);
+                out.write(login.array(), 0, login.limit());
+                out.flush();
+            } else {
+                writeLine(username);
+                awaitLine("Welcome, ");
+            }
+        }
+        
+        private void writeLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        
+        /**
+         * Reads text lines until one starts with {@code prefix}, byte by byte
+         * so nothing after it is consumed.
+         */
+        private void awaitLine(String prefix) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                } else if (line.toString(StandardCharsets.UTF_8).startsWith(prefix)) {
+                    return;
+                } else {
+                    line.reset();
+                }
+            }
+            throw new EOFException("Server closed the connection during login");
+        }
+        
+        /**
+         * Sends {@code total} messages at {@code rate} per second, writing
+         * whatever is due in one batch. Returns how many were sent.
+         */
+        long sendPaced(int rate, long total) throws IOException {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+            long start = System.nanoTime();
+            long sent = 0;
+            while (sent < total) {
+                long due = Math.min(total, (System.nanoTime() - start) * rate / 1_000_000_000L + 1);
+                if (due <= sent) {
+                    LockSupport.parkNanos(100_000);
+                    continue;
+                }
+                batch.reset();
+                long count = Math.min(due - sent, MAX_BATCH);
+                for (long i = 0; i < count; i++) {
+                    String content = BenchClient.MARKER + System.nanoTime();
+                    if (binary) {
+                        ByteBuffer frame = BinaryProtocol.frame(BinaryProtocol.CHAT, content);
+                        batch.write(frame.array(), 0, frame.limit());
+                    } else {
+                        batch.write((content + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                batch.writeTo(out);
+                out.flush();
+                sent += count;
+            }
+            return sent;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                if (binary) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
+            } catch (IOException e) {
+                // Closed at the end of the run
+            }
+        }
+        
+        private void readLines() throws IOException {
+            CountingInputStream counted = new CountingInputStream(in);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(counted, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                onContent(line);
+                bytes = counted.count;
+            }
+        }
+        
+        private void readFrames() throws IOException {
+            BinaryProtocol.FrameDecoder decoder = new BinaryProtocol.FrameDecoder();
+            String[] names = new String[1024];
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes += count;
+                decoder.feed(ByteBuffer.wrap(buffer, 0, count), (opcode, payload) -> {
+                    if (opcode == BinaryProtocol.DEFINE) {
+                        int id = BinaryProtocol.getVarint(payload);
+                        names[id] = BinaryProtocol.getString(payload);
+                    } else if (opcode == BinaryProtocol.MESSAGE) {
+                        Message message = BinaryProtocol.decodeMessage(payload, id -> names[id]);
+                        onContent(message.getContent());
+                    }
+                });
+            }
+        }
+        
+        private void onContent(String text) {
+            int marker = text.indexOf(BenchClient.MARKER);
+            if (marker < 0) return;
+            long sentAt = Long.parseLong(text.substring(marker + BenchClient.MARKER.length()).trim());
+            latencies.record(System.nanoTime() - sentAt);
+            received++;
+        }
+        
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+    
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+}
\ No newline at end of file
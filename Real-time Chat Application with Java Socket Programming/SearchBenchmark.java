@@ -0,0 +1,164 @@
+package com.chat.test;
+
+import com.chat.common.Message;
+import com.chat.common.SearchIndex;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Indexing cost and query latency of SearchIndex. Generated chat traffic is
+ * spread over a number of rooms, each with its own index, and then a set of
+ * one- and two-word queries is run three ways: a scan of every message
+ * (what /search would cost without an index), the indexes one room after
+ * another, and the indexes as fork-join tasks like ChatRouter.search. The
+ * index must find what the scan finds, less any older messages it dropped
+ * to stay in its budget.
+ *
+ * Usage: java com.chat.test.SearchBenchmark [messages] [rooms] [budgetKb]
+ */
+public class SearchBenchmark {
+    private static final String[] WORDS = {
+        "the", "a", "is", "it", "to", "and", "of", "in", "that", "you", "for", "on", "with", "this", "we",
+        "have", "be", "not", "are", "was", "but", "just", "so", "what", "do", "can", "if", "about", "at",
+        "server", "room", "message", "build", "deploy", "test", "today", "tomorrow", "meeting", "lunch",
+        "anyone", "know", "why", "broken", "fixed", "works", "thanks", "great", "sure", "later", "ok",
+        "release", "branch", "merge", "review", "latency", "queue", "client", "socket", "log", "error"
+    };
+    private static final String[] QUERIES = {
+        "deploy", "latency", "broken build", "merge review", "lunch today", "socket error", "the"
+    };
+    private static final int LIMIT = 10;
+    private static final int ROUNDS = 20;
+    
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int roomCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long budget = (args.length > 2 ? Long.parseLong(args[2]) : 64 * 1024) * 1024;
+        
+        System.out.println("=== Search Benchmark ===");
+        System.out.println("Messages: " + count + " in " + roomCount + " rooms, budget " + budget / 1024
+                           + " KB per room, " + ForkJoinPool.commonPool().getParallelism() + " fork-join workers");
+        
+        Random random = new Random(42);
+        LocalDateTime time = LocalDateTime.of(2024, 1, 1, 9, 0);
+        List<List<Message>> raw = new ArrayList<>();
+        SearchIndex[] indexes = new SearchIndex[roomCount];
+        for (int r = 0; r < roomCount; r++) {
+            raw.add(new ArrayList<>());
+            indexes[r] = new SearchIndex(budget);
+        }
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            int words = 3 + random.nextInt(18);
+            StringBuilder content = new StringBuilder();
+            for (int w = 0; w < words; w++) {
+                if (w > 0) content.append(' ');
+                content.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            time = time.plusNanos(random.nextInt(2_000_000_000));
+            int room = random.nextInt(roomCount);
+            messages[i] = new Message("user" + random.nextInt(50), content.toString(), "room" + room,
+                                      Message.MessageType.CHAT, time);
+            messages[i].setSequence(raw.get(room).size() + 1);
+            raw.get(room).add(messages[i]);
+        }
+        
+        long start = System.nanoTime();
+        for (Message message : messages) {
+            indexes[Integer.parseInt(message.getRoom().substring(4))].add(message);
+        }
+        long indexNanos = System.nanoTime() - start;
+        long bytes = 0;
+        int segments = 0;
+        for (SearchIndex index : indexes) {
+            bytes += index.getBytes();
+            segments += index.getSegmentCount();
+        }
+        System.out.printf("Indexing:       %.0f ns/message, ~%d KB held, %d segments%n",
+                indexNanos / (double) count, bytes / 1024, segments);
+        
+        System.out.println();
+        System.out.printf("%-14s %10s %10s %12s %12s %12s%n", "query", "scanned", "indexed", "scan us", "serial us",
+                "fork-join us");
+        boolean ok = true;
+        for (String query : QUERIES) {
+            List<String> terms = SearchIndex.terms(query);
+            start = System.nanoTime();
+            long scanned = scan(raw, terms);
+            long scanNanos = System.nanoTime() - start;
+            long indexed = 0;
+            long serial = 0;
+            long parallel = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long serialStart = System.nanoTime();
+                SearchIndex.Result result = SearchIndex.Result.EMPTY;
+                for (SearchIndex index : indexes) {
+                    result = SearchIndex.Result.merge(result, index.search(terms, LIMIT), LIMIT);
+                }
+                long serialEnd = System.nanoTime();
+                SearchIndex.Result forked = ForkJoinPool.commonPool().invoke(
+                        new RoomsTask(indexes, 0, indexes.length, terms));
+                long forkedEnd = System.nanoTime();
+                indexed = result.getTotal();
+                ok &= forked.getTotal() == indexed && forked.getHits().size() == result.getHits().size();
+                // Only the second half of the rounds is timed
+                if (round >= ROUNDS / 2) {
+                    serial += serialEnd - serialStart;
+                    parallel += forkedEnd - serialEnd;
+                }
+            }
+            ok &= indexed <= scanned;
+            System.out.printf("%-14s %10d %10d %12.0f %12.0f %12.0f%n", query, scanned, indexed, scanNanos / 1e3,
+                    serial / (ROUNDS / 2) / 1e3, parallel / (ROUNDS / 2) / 1e3);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) System.exit(1);
+    }
+    
+    /**
+     * Counts the messages holding every term by reading them all.
+     */
+    private static long scan(List<List<Message>> rooms, List<String> terms) {
+        long matches = 0;
+        for (List<Message> room : rooms) {
+            for (Message message : room) {
+                if (SearchIndex.terms(message.getContent()).containsAll(terms)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+    
+    private static class RoomsTask extends RecursiveTask<SearchIndex.Result> {
+        private static final long serialVersionUID = 1L;
+        
+        private final transient SearchIndex[] indexes;
+        private final int from;
+        private final int to;
+        private final transient List<String> terms;
+        
+        RoomsTask(SearchIndex[] indexes, int from, int to, List<String> terms) {
+            this.indexes = indexes;
+            this.from = from;
+            this.to = to;
+            this.terms = terms;
+        }
+        
+        @Override
+        protected SearchIndex.Result compute() {
+            if (to - from == 1) {
+                return indexes[from].search(terms, LIMIT);
+            }
+            int middle = (from + to) >>> 1;
+            RoomsTask left = new RoomsTask(indexes, from, middle, terms);
+            left.fork();
+            SearchIndex.Result right = new RoomsTask(indexes, middle, to, terms).compute();
+            return SearchIndex.Result.merge(left.join(), right, LIMIT);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,547 @@
+package com.chat.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Inverted index over the chat messages of one room, kept up to date by
+ * ChatRoom.addMessage so /search never scans the history.
+ * <p>
+ * New messages go into a small mutable segment. Once it holds
+ * SEGMENT_SIZE messages (or an eighth of the budget) it is sealed into an
+ * immutable segment of sorted terms and posting lists, and every run of
+ * MERGE_FACTOR sealed segments of the same size is merged into one in the
+ * background, so a query reads a handful of segments however long the room
+ * has been busy. Sealed segments are published as a copy-on-write array,
+ * so queries read them without locking; only the mutable segment is read
+ * under the lock writers take.
+ * <p>
+ * The index keeps the messages it covers alive, so it holds an estimate of
+ * its heap size to a budget: past it, the oldest segment is dropped and
+ * the room's oldest messages stop being found. Merges are capped at half
+ * the budget so that this never forgets more than half the index at once.
+ */
+public class SearchIndex {
+    public static final int SEGMENT_SIZE = 1024;
+    private static final int MERGE_FACTOR = 4;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int MAX_FREQUENCY = 255;
+    // Postings hold (document << 8 | frequency) in an int
+    private static final int MAX_SEGMENT_DOCS = 1 << 23;
+    private static final Segment[] NO_SEGMENTS = new Segment[0];
+    
+    /**
+     * A matching message and how well it matched.
+     */
+    public static final class Hit {
+        /** Best score first, then newest first. */
+        public static final Comparator<Hit> RANKING =
+                Comparator.comparingDouble(Hit::getScore).reversed()
+                          .thenComparing(hit -> hit.message.getTimestamp(), Comparator.reverseOrder())
+                          .thenComparing(hit -> hit.message.getSequence(), Comparator.reverseOrder());
+        
+        private final Message message;
+        private final double score;
+        
+        Hit(Message message, double score) {
+            this.message = message;
+            this.score = score;
+        }
+        
+        public Message getMessage() { return message; }
+        public double getScore() { return score; }
+    }
+    
+    /**
+     * The best hits of a query, best first, and how many messages matched
+     * in all.
+     */
+    public static final class Result {
+        public static final Result EMPTY = new Result(List.of(), 0);
+        
+        private final List<Hit> hits;
+        private final long total;
+        
+        public Result(List<Hit> hits, long total) {
+            this.hits = hits;
+            this.total = total;
+        }
+        
+        public List<Hit> getHits() { return hits; }
+        public long getTotal() { return total; }
+        
+        /**
+         * Combines the results of two disjoint indexes, keeping the best
+         * {@code limit} hits.
+         */
+        public static Result merge(Result a, Result b, int limit) {
+            List<Hit> hits = new ArrayList<>(a.hits.size() + b.hits.size());
+            hits.addAll(a.hits);
+            hits.addAll(b.hits);
+            hits.sort(Hit.RANKING);
+            if (hits.size() > limit) {
+                hits = new ArrayList<>(hits.subList(0, limit));
+            }
+            return new Result(hits, a.total + b.total);
+        }
+    }
+    
+    private final long budget;
+    private final Executor merger;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Oldest first
+    private volatile Segment[] segments = NO_SEGMENTS;
+    private LiveSegment live = new LiveSegment();
+    private boolean merging;
+    
+    /**
+     * @param budget approximate heap, in bytes, the index may keep
+     */
+    public SearchIndex(long budget) {
+        this(budget, ForkJoinPool.commonPool());
+    }
+    
+    public SearchIndex(long budget, Executor merger) {
+        this.budget = budget;
+        this.merger = merger;
+    }
+    
+    /**
+     * Splits text into lower-case runs of letters and digits, the terms
+     * both messages and queries are indexed by. Overlong runs are cut.
+     */
+    public static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+    
+    public void add(Message message) {
+        List<String> terms = terms(message.getContent());
+        if (terms.isEmpty()) return;
+        lock.lock();
+        try {
+            live.add(message, terms);
+            if (live.size() >= SEGMENT_SIZE || live.bytes() >= budget / 8) {
+                seal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Finds the messages containing every one of {@code terms} (as
+     * returned by terms()) and returns the best {@code limit} of them.
+     * Scores favour messages that repeat the terms and messages with few
+     * other words in them.
+     */
+    public Result search(List<String> terms, int limit) {
+        if (terms.isEmpty() || limit <= 0) return Result.EMPTY;
+        String[] query = terms.stream().distinct().toArray(String[]::new);
+        PriorityQueue<Hit> best = new PriorityQueue<>(Hit.RANKING.reversed());
+        long total;
+        Segment[] sealed;
+        // Read the two together, so a seal cannot hide or repeat messages
+        lock.lock();
+        try {
+            sealed = segments;
+            total = live.search(query, best, limit);
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : sealed) {
+            total += segment.search(query, best, limit);
+        }
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(Hit.RANKING);
+        return new Result(hits, total);
+    }
+    
+    /**
+     * Estimated heap held by the index, including the messages it keeps.
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return sealedBytes() + live.bytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getSegmentCount() {
+        return segments.length + 1;
+    }
+    
+    private long sealedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Turns the live segment into a sealed one, drops the oldest segments
+     * while over the budget and starts a merge if one is due. Holds the lock.
+     */
+    private void seal() {
+        Segment[] current = segments;
+        Segment[] extended = Arrays.copyOf(current, current.length + 1);
+        extended[current.length] = live.seal();
+        live = new LiveSegment();
+        int dropped = 0;
+        long bytes = 0;
+        for (Segment segment : extended) {
+            bytes += segment.bytes;
+        }
+        while (bytes > budget && dropped < extended.length) {
+            bytes -= extended[dropped++].bytes;
+        }
+        segments = Arrays.copyOfRange(extended, dropped, extended.length);
+        scheduleMerge();
+    }
+    
+    /**
+     * Merges the oldest run of MERGE_FACTOR adjacent segments of the same
+     * level whose result would fit in half the budget. Taking the oldest
+     * keeps levels falling from old to new, so no small segment is left
+     * stranded between big ones. Holds the lock.
+     */
+    private void scheduleMerge() {
+        if (merging) return;
+        Segment[] current = segments;
+        Segment[] parts = null;
+        for (int start = 0; parts == null && start + MERGE_FACTOR <= current.length; start++) {
+            long bytes = 0;
+            int docs = 0;
+            int end = start;
+            while (end < start + MERGE_FACTOR && current[end].level == current[start].level) {
+                bytes += current[end].bytes;
+                docs += current[end].docs.length;
+                end++;
+            }
+            if (end == start + MERGE_FACTOR && bytes <= budget / 2 && docs <= MAX_SEGMENT_DOCS) {
+                parts = Arrays.copyOfRange(current, start, end);
+            }
+        }
+        if (parts == null) return;
+        Segment[] chosen = parts;
+        merging = true;
+        merger.execute(() -> {
+            Segment merged = Segment.merge(chosen);
+            lock.lock();
+            try {
+                merging = false;
+                replace(chosen, merged);
+                scheduleMerge();
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+    
+    /**
+     * Puts a merged segment in place of its parts, unless some of them were
+     * dropped while it was being built. Holds the lock.
+     */
+    private void replace(Segment[] parts, Segment merged) {
+        Segment[] current = segments;
+        for (int start = 0; start + parts.length <= current.length; start++) {
+            if (current[start] == parts[0]) {
+                Segment[] replaced = new Segment[current.length - parts.length + 1];
+                System.arraycopy(current, 0, replaced, 0, start);
+                replaced[start] = merged;
+                System.arraycopy(current, start + parts.length, replaced, start + 1,
+                                 current.length - start - parts.length);
+                segments = replaced;
+                return;
+            }
+        }
+    }
+    
+    private static long messageBytes(Message message) {
+        // The Message, its content string and our reference to it
+        return 96 + message.getContent().length();
+    }
+    
+    private static long termBytes(String term) {
+        return 64 + term.length();
+    }
+    
+    private static double score(int frequencies, int length) {
+        return frequencies / Math.sqrt(length);
+    }
+    
+    /**
+     * Offers a hit to a bounded min-heap of the best ones.
+     */
+    private static void offer(PriorityQueue<Hit> best, int limit, Message message, double score) {
+        if (best.size() < limit) {
+            best.add(new Hit(message, score));
+            return;
+        }
+        // Most matches lose on score alone; only build a Hit for the rest
+        if (score < best.peek().score) return;
+        Hit hit = new Hit(message, score);
+        if (Hit.RANKING.compare(hit, best.peek()) < 0) {
+            best.poll();
+            best.add(hit);
+        }
+    }
+    
+    /**
+     * Immutable terms and postings over a run of messages, oldest first.
+     */
+    private static final class Segment {
+        final Message[] docs;
+        // Number of terms in each message, for length normalization
+        final short[] lengths;
+        final String[] terms;
+        final int[][] postings;
+        final long bytes;
+        final int level;
+        
+        Segment(Message[] docs, short[] lengths, String[] terms, int[][] postings, int level) {
+            this.docs = docs;
+            this.lengths = lengths;
+            this.terms = terms;
+            this.postings = postings;
+            this.level = level;
+            long bytes = 0;
+            for (Message doc : docs) {
+                bytes += messageBytes(doc) + 2;
+            }
+            for (int i = 0; i < terms.length; i++) {
+                bytes += termBytes(terms[i]) + 4L * postings[i].length;
+            }
+            this.bytes = bytes;
+        }
+        
+        /**
+         * Merges adjacent segments, oldest first, into one a level up.
+         */
+        static Segment merge(Segment[] parts) {
+            int docCount = 0;
+            for (Segment part : parts) {
+                docCount += part.docs.length;
+            }
+            Message[] docs = new Message[docCount];
+            short[] lengths = new short[docCount];
+            int[] base = new int[parts.length];
+            int offset = 0;
+            for (int p = 0; p < parts.length; p++) {
+                base[p] = offset;
+                System.arraycopy(parts[p].docs, 0, docs, offset, parts[p].docs.length);
+                System.arraycopy(parts[p].lengths, 0, lengths, offset, parts[p].lengths.length);
+                offset += parts[p].docs.length;
+            }
+            
+            List<String> terms = new ArrayList<>();
+            List<int[]> postings = new ArrayList<>();
+            int[] next = new int[parts.length];
+            while (true) {
+                String term = null;
+                for (int p = 0; p < parts.length; p++) {
+                    if (next[p] < parts[p].terms.length
+                            && (term == null || parts[p].terms[next[p]].compareTo(term) < 0)) {
+                        term = parts[p].terms[next[p]];
+                    }
+                }
+                if (term == null) break;
+                int length = 0;
+                for (int p = 0; p < parts.length; p++) {
+                    if (next[p] < parts[p].terms.length && parts[p].terms[next[p]].equals(term)) {
+                        length += parts[p].postings[next[p]].length;
+                    }
+                }
+                int[] merged = new int[length];
+                int at = 0;
+                for (int p = 0; p < parts.length; p++) {
+                    if (next[p] < parts[p].terms.length && parts[p].terms[next[p]].equals(term)) {
+                        for (int posting : parts[p].postings[next[p]]) {
+                            merged[at++] = posting + (base[p] << 8);
+                        }
+                        next[p]++;
+                    }
+                }
+                terms.add(term);
+                postings.add(merged);
+            }
+            return new Segment(docs, lengths, terms.toArray(new String[0]), postings.toArray(new int[0][]),
+                               parts[0].level + 1);
+        }
+        
+        /**
+         * Offers every message holding all of {@code query} to {@code best}
+         * and returns how many there were.
+         */
+        int search(String[] query, PriorityQueue<Hit> best, int limit) {
+            int[][] lists = new int[query.length][];
+            for (int t = 0; t < query.length; t++) {
+                int i = Arrays.binarySearch(terms, query[t]);
+                if (i < 0) return 0;
+                lists[t] = postings[i];
+            }
+            // Walk the rarest term's list and look the message up in the others
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+            int matches = 0;
+            int[] cursors = new int[lists.length];
+            next:
+            for (int posting : lists[0]) {
+                int doc = posting >>> 8;
+                int frequencies = posting & 0xff;
+                for (int t = 1; t < lists.length; t++) {
+                    int at = seek(lists[t], cursors[t], lists[t].length, doc);
+                    cursors[t] = at;
+                    if (at == lists[t].length || lists[t][at] >>> 8 != doc) continue next;
+                    frequencies += lists[t][at] & 0xff;
+                }
+                matches++;
+                offer(best, limit, docs[doc], score(frequencies, lengths[doc]));
+            }
+            return matches;
+        }
+        
+        /**
+         * Index of the first posting in {@code [from, to)} whose document
+         * is at least {@code doc}, or {@code to}.
+         */
+        static int seek(int[] list, int from, int to, int doc) {
+            int low = from;
+            int high = to;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (list[mid] >>> 8 < doc) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+    
+    /**
+     * The segment new messages are added to, guarded by the index lock.
+     */
+    private static final class LiveSegment {
+        private final List<Message> docs = new ArrayList<>();
+        private short[] lengths = new short[64];
+        private final Map<String, Postings> postings = new HashMap<>();
+        private long bytes;
+        
+        int size() {
+            return docs.size();
+        }
+        
+        long bytes() {
+            return bytes;
+        }
+        
+        void add(Message message, List<String> terms) {
+            int doc = docs.size();
+            docs.add(message);
+            if (doc == lengths.length) {
+                lengths = Arrays.copyOf(lengths, doc * 2);
+            }
+            lengths[doc] = (short) Math.min(terms.size(), Short.MAX_VALUE);
+            bytes += messageBytes(message) + 2;
+            for (String term : terms) {
+                Postings list = postings.get(term);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(term, list);
+                    bytes += termBytes(term) + 48;
+                }
+                if (list.add(doc)) {
+                    bytes += 4;
+                }
+            }
+        }
+        
+        Segment seal() {
+            String[] terms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(terms);
+            int[][] lists = new int[terms.length][];
+            for (int i = 0; i < terms.length; i++) {
+                Postings list = postings.get(terms[i]);
+                lists[i] = Arrays.copyOf(list.items, list.size);
+            }
+            return new Segment(docs.toArray(new Message[0]), Arrays.copyOf(lengths, docs.size()), terms, lists, 0);
+        }
+        
+        int search(String[] query, PriorityQueue<Hit> best, int limit) {
+            Postings[] lists = new Postings[query.length];
+            for (int t = 0; t < query.length; t++) {
+                lists[t] = postings.get(query[t]);
+                if (lists[t] == null) return 0;
+            }
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+            int matches = 0;
+            next:
+            for (int i = 0; i < lists[0].size; i++) {
+                int doc = lists[0].items[i] >>> 8;
+                int frequencies = lists[0].items[i] & 0xff;
+                for (int t = 1; t < lists.length; t++) {
+                    int frequency = lists[t].frequency(doc);
+                    if (frequency == 0) continue next;
+                    frequencies += frequency;
+                }
+                matches++;
+                offer(best, limit, docs.get(doc), score(frequencies, lengths[doc]));
+            }
+            return matches;
+        }
+    }
+    
+    /**
+     * A growing posting list; documents arrive in order.
+     */
+    private static final class Postings {
+        int[] items = new int[2];
+        int size;
+        
+        /**
+         * Counts one occurrence in {@code doc}. Returns true if it is the
+         * first in that document.
+         */
+        boolean add(int doc) {
+            if (size > 0 && items[size - 1] >>> 8 == doc) {
+                if ((items[size - 1] & 0xff) < MAX_FREQUENCY) {
+                    items[size - 1]++;
+                }
+                return false;
+            }
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = doc << 8 | 1;
+            return true;
+        }
+        
+        int frequency(int doc) {
+            int i = Segment.seek(items, 0, size, doc);
+            return i < size && items[i] >>> 8 == doc ? items[i] & 0xff : 0;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,36 @@
+package com.chat.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resumable sessions for the text chat protocol. A client opts in by
+ * logging in with {@code LOGIN username} instead of a bare username; the
+ * server then answers with a {@code TOKEN} line and prefixes every room
+ * message with its room sequence number:
+ * <pre>
+ *   #&lt;sequence&gt; &lt;room&gt; &lt;message line&gt;
+ * </pre>
+ * After a dropped connection the client logs in again with
+ * {@code RESUME username token room lastSequence} and is sent only the
+ * messages of that room it has not seen, instead of the whole history.
+ * Tokens live in the server's memory, so after a restart a resume is
+ * treated as a new session.
+ */
+public final class SessionProtocol {
+    public static final String LOGIN = "/session";
+    public static final String RESUME = "/resume";
+    public static final String TOKEN = "/token";
+    public static final char SEQUENCE_MARK = '#';
+    
+    /** Encodes a room message as a line prefixed with its sequence number and room. */
+    public static final MessageEncoder SEQUENCED_LINE = message -> {
+        String line = message.getSequence() > 0
+                      ? SEQUENCE_MARK + Long.toString(message.getSequence()) + " " + message.getRoom() + " " + message
+                      : message.toString();
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    };
+    
+    private SessionProtocol() {
+    }
+}
\ No newline at end of file
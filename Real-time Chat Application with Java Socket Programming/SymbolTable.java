@@ -0,0 +1,65 @@
+package com.chat.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Numbers names in order of first use, up to a fixed capacity. Looking up a
+ * known name is a single map read; new names are assigned under a lock so
+ * ids stay dense and can index an array. Ids are never reused, so once the
+ * table is full new names get FULL and callers must keep those themselves.
+ */
+public class SymbolTable {
+    /** Returned by idOf for a new name once the table is full. */
+    public static final int FULL = -1;
+    
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private volatile String[] names = new String[64];
+    private volatile int size;
+    
+    public SymbolTable(int capacity) {
+        this.capacity = capacity;
+    }
+    
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        if (size >= capacity) return FULL;
+        lock.lock();
+        try {
+            id = ids.get(name);
+            if (id != null) return id;
+            if (size >= capacity) return FULL;
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            int next = size;
+            current[next] = name;
+            names = current;
+            ids.put(name, next);
+            size = next + 1;
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the name for an id handed out by idOf.
+     */
+    public String nameOf(int id) {
+        return names[id];
+    }
+    
+    public int size() {
+        return ids.size();
+    }
+    
+    public int capacity() {
+        return capacity;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,149 @@
+package com.chat.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: a ring of buckets, one per tick, each holding the
+ * tasks due on that tick (plus whole turns of the wheel). One thread
+ * advances the wheel and runs what falls due, so a million pending timers
+ * cost one thread and one list node each, and scheduling or cancelling is
+ * O(1). Deadlines are rounded up to the next tick.
+ * <p>
+ * Tasks scheduled from other threads wait in a queue until the next tick;
+ * a task that re-arms itself from run() goes straight into its bucket.
+ * Cancelled tasks are unlinked lazily, when their bucket next comes round.
+ */
+public class TimingWheel {
+    private final long tickNanos;
+    private final Task[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Task> pending = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean running;
+    private Thread thread;
+    // Only touched by the wheel thread
+    private long tick;
+    
+    /**
+     * Something to run on the wheel thread. Subclasses keep their own state,
+     * so a task that re-arms itself allocates nothing.
+     */
+    public abstract static class Task {
+        private long deadlineNanos;
+        private long rounds;
+        private Task next;
+        private volatile boolean cancelled;
+        
+        /**
+         * Called on the wheel thread when the task falls due. May call
+         * schedule() to run again later.
+         */
+        protected abstract void run();
+        
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+    
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize  buckets, rounded up to a power of two; deadlines
+     *                   further away than one turn wait in their bucket for
+     *                   the turns in between
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive: " + tickMillis + ", " + wheelSize);
+        }
+        this.tickNanos = tickMillis * 1_000_000L;
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) size <<= 1;
+        this.buckets = new Task[size];
+        this.mask = size - 1;
+    }
+    
+    public void start() {
+        running = true;
+        thread = new Thread(this::runWheel, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+    
+    /**
+     * Runs {@code task} once, {@code delayMillis} from now. A task must not
+     * be scheduled again until it has run, and a cancelled task stays
+     * cancelled.
+     */
+    public void schedule(Task task, long delayMillis) {
+        task.deadlineNanos = System.nanoTime() + delayMillis * 1_000_000L;
+        if (Thread.currentThread() == thread) {
+            insert(task, tick + 1);
+        } else {
+            pending.add(task);
+        }
+    }
+    
+    private void runWheel() {
+        while (running) {
+            long wait = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            Task task;
+            while ((task = pending.poll()) != null) {
+                if (!task.cancelled) {
+                    insert(task, tick);
+                }
+            }
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+    
+    /**
+     * Puts a task in the bucket of its deadline's tick, or of
+     * {@code earliestTick} if that has already passed.
+     */
+    private void insert(Task task, long earliestTick) {
+        // Tick n's bucket is expired at the end of tick n, i.e. at or after the deadline
+        long due = Math.max((task.deadlineNanos - startNanos) / tickNanos, earliestTick);
+        task.rounds = (due - earliestTick) / buckets.length;
+        int index = (int) (due & mask);
+        task.next = buckets[index];
+        buckets[index] = task;
+    }
+    
+    private void expire(int index) {
+        Task task = buckets[index];
+        buckets[index] = null;
+        while (task != null) {
+            Task next = task.next;
+            task.next = null;
+            if (task.cancelled) {
+                task = next;
+                continue;
+            }
+            if (task.rounds > 0) {
+                task.rounds--;
+                task.next = buckets[index];
+                buckets[index] = task;
+            } else {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e.getMessage());
+                }
+            }
+            task = next;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+package com.chat.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as a single timestamp: the time at which the
+ * bucket would be full again (the generic cell rate algorithm). Taking a
+ * token moves that time one refill interval later, and is refused when it
+ * would end up more than a full burst ahead of now. A rejection is one
+ * volatile read and no allocation, so turning away a flood costs next to
+ * nothing.
+ */
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+    
+    /**
+     * @param perSecond tokens added per second
+     * @param burst     most tokens that can be taken at once after a quiet spell
+     */
+    public TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + perSecond + ", " + burst);
+        }
+        this.intervalNanos = Math.max(1, (long) (1e9 / perSecond));
+        this.burstNanos = intervalNanos * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+    
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
\ No newline at end of file
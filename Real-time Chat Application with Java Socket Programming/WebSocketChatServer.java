@@ -1,36 +1,65 @@
 package com.chat.websocket;
 
-import com.chat.common.ChatRoom;
+import com.chat.common.Connection;
+import com.chat.common.ExecutorMode;
+import com.chat.common.Message;
+import com.chat.common.MessageEncoder;
+import com.chat.server.ChatRouter;
+import com.chat.server.IdleReaper;
+import com.chat.server.OutboundQueue;
+import com.chat.server.OutboundWriter;
+import com.chat.server.TimingWheel;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
-import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.security.MessageDigest;
 import java.util.Base64;
 
+/**
+ * The WebSocket transport for browser clients. Users log in and chat
+ * through the shared ChatRouter, so they are in the same rooms as TCP
+ * clients when the router is shared with a ChatServer (see
+ * {@code ChatServer --websocket-port}).
+ */
 public class WebSocketChatServer {
     private static final int PORT = 8081;
     
+    /** Routed messages as the JSON text frames websocket-chat.js expects. */
+    static final MessageEncoder JSON_FRAME =
+            message -> ByteBuffer.wrap(WebSocketCodec.encodeTextFrame(toJson(message)));
+    
+    private final int port;
+    private final ChatRouter router;
     private ServerSocket serverSocket;
-    private Map<String, ChatRoom> chatRooms;
-    private Map<String, WebSocketClientHandler> connectedClients;
     private ExecutorService threadPool;
+    private final ExecutorService writerPool;
+    private int outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private IdleReaper idleReaper;
     private volatile boolean running;
     
     public WebSocketChatServer() {
-        chatRooms = new ConcurrentHashMap<>();
-        connectedClients = new ConcurrentHashMap<>();
-        threadPool = Executors.newCachedThreadPool();
-        chatRooms.put("general", new ChatRoom("general"));
+        this(ExecutorMode.CACHED, ExecutorMode.DEFAULT_POOL_SIZE);
+    }
+    
+    public WebSocketChatServer(ExecutorMode executorMode, int poolSize) {
+        this(PORT, executorMode, poolSize, new ChatRouter());
+    }
+    
+    public WebSocketChatServer(int port, ExecutorMode executorMode, int poolSize, ChatRouter router) {
+        this.port = port;
+        this.router = router;
+        threadPool = executorMode.newExecutor(poolSize);
+        writerPool = Executors.newVirtualThreadPerTaskExecutor();
     }
     
     public void start() {
         try {
-            serverSocket = new ServerSocket(PORT);
+            serverSocket = new ServerSocket(port);
             running = true;
-            System.out.println("WebSocket Chat Server started on port " + PORT);
+            System.out.println("WebSocket Chat Server started on port " + port);
             System.out.println("Open web/index.html in your browser");
             
             while (running) {
@@ -54,74 +83,175 @@ public class WebSocketChatServer {
         try {
             if (serverSocket != null) serverSocket.close();
             threadPool.shutdown();
+            writerPool.shutdown();
         } catch (IOException e) {
             System.err.println("Error stopping server: " + e.getMessage());
         }
     }
     
-    public synchronized void addClient(String username, WebSocketClientHandler handler) {
-        connectedClients.put(username, handler);
-        joinRoom(username, "general");
-        System.out.println("Client connected: " + username);
+    /**
+     * Sets the size and overflow policy of the outbound queue each new
+     * connection gets. Call before start().
+     */
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy policy) {
+        this.outboundCapacity = capacity;
+        this.overflowPolicy = policy;
     }
     
-    public synchronized void removeClient(String username) {
-        connectedClients.remove(username);
-        System.out.println("Client disconnected: " + username);
+    /**
+     * Has {@code reaper} ping quiet browsers (with WebSocket ping frames)
+     * and disconnect the ones that stop answering. Call before start().
+     */
+    public void setIdleReaper(IdleReaper reaper) {
+        this.idleReaper = reaper;
     }
     
-    public void joinRoom(String username, String roomName) {
-        ChatRoom room = chatRooms.computeIfAbsent(roomName, ChatRoom::new);
-        WebSocketClientHandler handler = connectedClients.get(username);
-        
-        if (handler != null) {
-            room.addClient(username, handler);
-            handler.setCurrentRoom(roomName);
+    TimingWheel.Task watchIdle(IdleReaper.Watched connection) {
+        return idleReaper != null ? idleReaper.watch(connection) : null;
+    }
+    
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundCapacity, overflowPolicy,
+                                 skipped -> systemFrame(OutboundQueue.skippedText(skipped)));
+    }
+    
+    void executeWriter(Runnable writer) {
+        try {
+            writerPool.execute(writer);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down; the connection is about to close anyway
         }
     }
     
-    public void broadcastMessage(String roomName, String username, String content) {
-        String message = String.format("{\"type\":\"message\",\"username\":\"%s\",\"content\":\"%s\"}", 
-                                     username, content);
-        ChatRoom room = chatRooms.get(roomName);
-        if (room != null) {
-            for (Map.Entry<String, Object> entry : room.getClients().entrySet()) {
-                WebSocketClientHandler handler = (WebSocketClientHandler) entry.getValue();
-                handler.sendMessage(message);
+    public ChatRouter getRouter() {
+        return router;
+    }
+    
+    static String toJson(Message message) {
+        switch (message.getType()) {
+            case CHAT:
+                return "{\"type\":\"message\",\"username\":" + quote(message.getUsername())
+                       + ",\"content\":" + quote(message.getContent())
+                       + ",\"room\":" + quote(message.getRoom())
+                       + ",\"timestamp\":" + quote(message.getFormattedTimestamp()) + "}";
+            case PRIVATE:
+                return "{\"type\":\"private\",\"from\":" + quote(message.getUsername())
+                       + ",\"content\":" + quote(message.getContent()) + "}";
+            case JOIN:
+                return systemJson(message.getUsername() + " joined the room");
+            case LEAVE:
+                return systemJson(message.getUsername() + " left the room");
+            default:
+                return systemJson(message.getContent());
+        }
+    }
+    
+    static String systemJson(String content) {
+        return "{\"type\":\"system\",\"content\":" + quote(content) + "}";
+    }
+    
+    static ByteBuffer systemFrame(String content) {
+        return ByteBuffer.wrap(WebSocketCodec.encodeTextFrame(systemJson(content)));
+    }
+    
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
             }
         }
+        return quoted.append('"').toString();
     }
     
+    /**
+     * Usage: WebSocketChatServer [--port=N] [--executor=cached|virtual|bounded] [--pool-size=N]
+     * <p>
+     * Runs browser clients on their own; use {@code ChatServer --websocket-port=N}
+     * to put them in the same rooms as TCP clients.
+     */
     public static void main(String[] args) {
-        new WebSocketChatServer().start();
+        int port = PORT;
+        ExecutorMode executorMode = ExecutorMode.CACHED;
+        int poolSize = ExecutorMode.DEFAULT_POOL_SIZE;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--executor=")) {
+                executorMode = ExecutorMode.parse(arg.substring("--executor=".length()));
+            } else if (arg.startsWith("--pool-size=")) {
+                poolSize = Integer.parseInt(arg.substring("--pool-size=".length()));
+            }
+        }
+        new WebSocketChatServer(port, executorMode, poolSize, new ChatRouter()).start();
     }
 }
 
-class WebSocketClientHandler implements Runnable {
+/**
+ * One browser connection. Frames are read on the handler's thread; every
+ * outgoing frame, control frames included, goes through the connection's
+ * OutboundQueue and is written by its OutboundWriter, so routing threads
+ * never block on a slow browser.
+ */
+class WebSocketClientHandler implements Runnable, Connection, IdleReaper.Watched {
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    private static final int MAX_HANDSHAKE_LINE = 8192;
+    private static final int CLOSE_UNSUPPORTED_DATA = 1003;
+    private static final long WRITER_SHUTDOWN_MILLIS = 1000;
+    
     private Socket socket;
-    private WebSocketChatServer server;
-    private BufferedReader reader;
+    private final ChatRouter router;
+    private InputStream input;
     private OutputStream output;
+    private final WebSocketCodec codec = new WebSocketCodec(MAX_MESSAGE_SIZE, true);
+    private final OutboundQueue outbound;
+    private final OutboundWriter writer;
     private String username;
-    private String currentRoom;
-    private boolean handshakeComplete = false;
+    // The username's id in Message.NAMES, set at login
+    private int userId = Message.NO_NAME;
+    private volatile String currentRoom;
+    private volatile boolean open;
+    private volatile long lastActivity = System.nanoTime();
+    private final TimingWheel.Task idleWatch;
     
     public WebSocketClientHandler(Socket socket, WebSocketChatServer server) {
         this.socket = socket;
-        this.server = server;
+        this.router = server.getRouter();
+        this.outbound = server.newOutboundQueue();
+        this.writer = new OutboundWriter(outbound, server::executeWriter, router.getMetrics().getBytesWritten(),
+                                         this::onWriteFailure);
+        this.idleWatch = server.watchIdle(this);
     }
     
     @Override
     public void run() {
         try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = socket.getOutputStream();
+            // Frames follow the handshake on the same stream, so read both as bytes
+            input = new BufferedInputStream(socket.getInputStream(), 8192);
+            output = new BufferedOutputStream(socket.getOutputStream(), 8192);
             
             if (performHandshake()) {
+                writer.setOutput(output);
+                open = true;
                 handleMessages();
             }
+        } catch (WebSocketCodec.ProtocolException e) {
+            close(e.getCloseCode(), e.getMessage());
         } catch (Exception e) {
-            System.err.println("Handler error: " + e.getMessage());
+            if (open) {
+                System.err.println("Handler error: " + e.getMessage());
+            }
         } finally {
             cleanup();
         }
@@ -131,13 +261,18 @@ class WebSocketClientHandler implements Runnable {
         String line;
         String key = null;
         
-        while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            if (line.startsWith("Sec-WebSocket-Key:")) {
-                key = line.substring(18).trim();
+        while ((line = readHttpLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
             }
         }
         
-        if (key == null) return false;
+        if (key == null) {
+            output.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            return false;
+        }
         
         String acceptKey = generateAcceptKey(key);
         String response = "HTTP/1.1 101 Switching Protocols\r\n" +
@@ -145,46 +280,321 @@ class WebSocketClientHandler implements Runnable {
                          "Connection: Upgrade\r\n" +
                          "Sec-WebSocket-Accept: " + acceptKey + "\r\n\r\n";
         
-        output.write(response.getBytes());
+        output.write(response.getBytes(StandardCharsets.US_ASCII));
         output.flush();
-        handshakeComplete = true;
         return true;
     }
     
+    /**
+     * Reads one CRLF-terminated header line, or null at end of stream.
+     */
+    private String readHttpLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_HANDSHAKE_LINE) {
+                throw new IOException("Handshake header line too long");
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+    
     private String generateAcceptKey(String key) throws Exception {
         String concat = key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
         MessageDigest md = MessageDigest.getInstance("SHA-1");
-        byte[] hash = md.digest(concat.getBytes());
+        byte[] hash = md.digest(concat.getBytes(StandardCharsets.US_ASCII));
         return Base64.getEncoder().encodeToString(hash);
     }
     
-    private void handleMessages() throws Exception {
-        // Simplified message handling for demo
-        sendMessage("{\"type\":\"system\",\"content\":\"Connected to WebSocket server\"}");
+    private void handleMessages() throws IOException {
+        sendMessage("Connected to WebSocket server");
+        while (open) {
+            int opcode = codec.readMessage(input);
+            lastActivity = System.nanoTime();
+            switch (opcode) {
+                case WebSocketCodec.OP_TEXT:
+                    handleText(codec.payloadText());
+                    break;
+                case WebSocketCodec.OP_BINARY:
+                    close(CLOSE_UNSUPPORTED_DATA, "Binary messages are not supported");
+                    return;
+                case WebSocketCodec.OP_PING:
+                    writeControl(WebSocketCodec.OP_PONG, codec.payload(), codec.payloadLength());
+                    break;
+                case WebSocketCodec.OP_PONG:
+                    break;
+                case WebSocketCodec.OP_CLOSE:
+                    int code = codec.closeCode();
+                    close(code == 1005 ? WebSocketCodec.CLOSE_NORMAL : code, "");
+                    return;
+                default:
+                    return; // end of stream
+            }
+        }
     }
     
-    public void sendMessage(String message) {
+    /**
+     * Handles one JSON message from the browser client:
+     * {"type":"join","username":..,"room":..}, {"type":"message","content":..}
+     * or {"type":"private","to":..,"content":..}.
+     */
+    private void handleText(String json) {
+        String type = jsonField(json, "type");
+        if ("join".equals(type)) {
+            String room = jsonField(json, "room");
+            if (username == null && !login(jsonField(json, "username"))) {
+                return;
+            }
+            if (room != null && !room.trim().isEmpty() && !room.trim().equals(currentRoom)) {
+                router.joinRoom(username, room.trim());
+            }
+        } else if ("message".equals(type)) {
+            String content = jsonField(json, "content");
+            if (username == null) {
+                sendMessage("Join with a username first");
+            } else if (content != null && !content.trim().isEmpty() && currentRoom != null) {
+                router.broadcastMessage(currentRoom, username, userId, content.trim());
+            }
+        } else if ("private".equals(type)) {
+            String to = jsonField(json, "to");
+            String content = jsonField(json, "content");
+            if (username == null) {
+                sendMessage("Join with a username first");
+            } else if (to != null && content != null && !content.trim().isEmpty()) {
+                router.sendPrivateMessage(username, to.trim(), content.trim());
+            }
+        }
+    }
+    
+    private boolean login(String name) {
+        name = name == null ? "" : name.trim();
+        if (name.isEmpty() || name.contains(" ") || name.length() > 20) {
+            close(WebSocketCodec.CLOSE_POLICY_VIOLATION, "Username must be single word and max 20 characters");
+            return false;
+        }
+        // Set before registering: the router reads it while announcing the join
+        username = name;
+        if (!router.addClient(name, this)) {
+            username = null;
+            sendMessage("Username '" + name + "' is already taken");
+            close(WebSocketCodec.CLOSE_POLICY_VIOLATION, "Username taken");
+            return false;
+        }
+        userId = Message.idOf(name);
+        return true;
+    }
+    
+    /**
+     * Returns a top-level string field of a JSON object, or null if it is
+     * missing or not a string. The browser client only sends flat objects,
+     * so nested values are skipped rather than parsed.
+     */
+    static String jsonField(String json, String name) {
+        int[] cursor = { skipSpace(json, 0) };
+        if (cursor[0] >= json.length() || json.charAt(cursor[0]) != '{') return null;
+        cursor[0]++;
+        while (true) {
+            cursor[0] = skipSpace(json, cursor[0]);
+            if (cursor[0] >= json.length() || json.charAt(cursor[0]) != '"') return null;
+            String key = readJsonString(json, cursor);
+            cursor[0] = skipSpace(json, cursor[0]);
+            if (key == null || cursor[0] >= json.length() || json.charAt(cursor[0]) != ':') return null;
+            cursor[0] = skipSpace(json, cursor[0] + 1);
+            if (cursor[0] >= json.length()) return null;
+            if (json.charAt(cursor[0]) == '"') {
+                String value = readJsonString(json, cursor);
+                if (name.equals(key)) return value;
+            } else {
+                skipJsonValue(json, cursor);
+            }
+            cursor[0] = skipSpace(json, cursor[0]);
+            if (cursor[0] >= json.length() || json.charAt(cursor[0]) != ',') return null;
+            cursor[0]++;
+        }
+    }
+    
+    private static int skipSpace(String json, int index) {
+        while (index < json.length() && Character.isWhitespace(json.charAt(index))) index++;
+        return index;
+    }
+    
+    /**
+     * Reads the string literal starting at {@code cursor[0]} and leaves the
+     * cursor after its closing quote. Returns null if it is unterminated.
+     */
+    private static String readJsonString(String json, int[] cursor) {
+        StringBuilder value = new StringBuilder();
+        int i = cursor[0] + 1;
+        while (i < json.length()) {
+            char c = json.charAt(i++);
+            if (c == '"') {
+                cursor[0] = i;
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i >= json.length()) break;
+            char escaped = json.charAt(i++);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (i + 4 > json.length()) return null;
+                    try {
+                        value.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        cursor[0] = json.length();
+        return null;
+    }
+    
+    private static void skipJsonValue(String json, int[] cursor) {
+        int depth = 0;
+        while (cursor[0] < json.length()) {
+            char c = json.charAt(cursor[0]);
+            if (c == '"') {
+                readJsonString(json, cursor);
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) return;
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return;
+            }
+            cursor[0]++;
+        }
+    }
+    
+    /**
+     * Queues a routed message as a JSON text frame, encoded once for all
+     * WebSocket recipients.
+     */
+    @Override
+    public void deliver(Message message) {
+        enqueue(message.encode(WebSocketChatServer.JSON_FRAME).duplicate());
+    }
+    
+    /**
+     * Queues a notice for this user as a system message.
+     */
+    @Override
+    public void sendMessage(String text) {
+        enqueue(WebSocketChatServer.systemFrame(text));
+    }
+    
+    private void writeControl(int opcode, byte[] payload, int length) {
+        enqueue(ByteBuffer.wrap(WebSocketCodec.encodeFrame(opcode, payload, 0, length)));
+    }
+    
+    private void enqueue(ByteBuffer frame) {
+        if (!open) return;
+        if (!outbound.offer(frame)) {
+            System.out.println("Disconnecting slow consumer: " + username
+                    + " (queue depth " + outbound.getDepth() + ", dropped " + outbound.getDroppedCount() + ")");
+            onWriteFailure(null);
+            return;
+        }
+        writer.schedule();
+    }
+    
+    /**
+     * Queues a close frame (once) and stops the read loop; cleanup flushes
+     * it and closes the socket.
+     */
+    private void close(int code, String reason) {
+        if (!open) return;
+        enqueue(ByteBuffer.wrap(WebSocketCodec.encodeClose(code, reason == null ? "" : reason)));
+        open = false;
+    }
+    
+    /**
+     * Sends a close frame and ends the read loop, whose cleanup removes the
+     * user and flushes the frame.
+     */
+    @Override
+    public void disconnect() {
+        close(WebSocketCodec.CLOSE_POLICY_VIOLATION, "Disconnected by server");
         try {
-            byte[] messageBytes = message.getBytes();
-            byte[] frame = new byte[2 + messageBytes.length];
-            frame[0] = (byte) 0x81; // Text frame
-            frame[1] = (byte) messageBytes.length;
-            System.arraycopy(messageBytes, 0, frame, 2, messageBytes.length);
-            
-            output.write(frame);
-            output.flush();
-        } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
+            socket.shutdownInput();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+    
+    /**
+     * Drops the connection after a failed write, or with a null cause after
+     * a queue overflow. Closing the socket unblocks the read loop.
+     */
+    private void onWriteFailure(IOException e) {
+        if (open) {
+            open = false;
+            if (e != null) {
+                System.err.println("Error sending message: " + e.getMessage());
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
         }
     }
     
+    @Override
+    public String getUsername() { return username; }
+    @Override
     public String getCurrentRoom() { return currentRoom; }
+    @Override
     public void setCurrentRoom(String room) { this.currentRoom = room; }
+    @Override
+    public int getQueueDepth() { return outbound.getDepth(); }
+    @Override
+    public int getQueueHighWaterMark() { return outbound.getHighWaterMark(); }
+    @Override
+    public long getDroppedCount() { return outbound.getDroppedCount(); }
+    
+    @Override
+    public long getLastActivity() { return lastActivity; }
+    
+    /**
+     * Browsers answer ping frames by themselves, so no script support is needed.
+     */
+    @Override
+    public void sendHeartbeat() {
+        writeControl(WebSocketCodec.OP_PING, new byte[0], 0);
+    }
     
     private void cleanup() {
+        open = false;
+        if (idleWatch != null) {
+            idleWatch.cancel();
+        }
         if (username != null) {
-            server.removeClient(username);
+            router.removeClient(username);
         }
+        // Deliver anything still queued, such as a close frame
+        writer.finish(WRITER_SHUTDOWN_MILLIS);
         try {
             if (socket != null) socket.close();
         } catch (IOException e) {
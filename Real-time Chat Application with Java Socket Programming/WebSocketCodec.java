@@ -0,0 +1,318 @@
+package com.chat.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RFC 6455 frame encoder and decoder for one connection. Handles 7, 16 and
+ * 64-bit payload lengths, masking, fragmented messages and the close, ping
+ * and pong control frames (which may arrive between fragments).
+ * <p>
+ * The decoder reuses its buffers: a fragmented or unfragmented message is
+ * assembled in one growable array, control frame payloads in another, so a
+ * steady stream of frames allocates nothing beyond the decoded text.
+ * Violations are reported as a {@link ProtocolException} carrying the close
+ * code to send back.
+ */
+public class WebSocketCodec {
+    public static final int OP_CONTINUATION = 0x0;
+    public static final int OP_TEXT = 0x1;
+    public static final int OP_BINARY = 0x2;
+    public static final int OP_CLOSE = 0x8;
+    public static final int OP_PING = 0x9;
+    public static final int OP_PONG = 0xA;
+    
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_INVALID_DATA = 1007;
+    public static final int CLOSE_POLICY_VIOLATION = 1008;
+    public static final int CLOSE_TOO_BIG = 1009;
+    
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int MAX_HEADER_SIZE = 14;
+    
+    private final int maxMessageSize;
+    private final boolean expectMasked;
+    // Reading and writing happen on different threads, so each has its own scratch
+    private final byte[] lengthBytes = new byte[8];
+    private final byte[] header = new byte[MAX_HEADER_SIZE];
+    private final byte[] mask = new byte[4];
+    private final byte[] control = new byte[MAX_CONTROL_PAYLOAD];
+    private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+    private byte[] maskScratch = new byte[0];
+    private byte[] message = new byte[1024];
+    private int messageLength;
+    private int messageOpcode = -1;
+    private byte[] payload;
+    private int payloadLength;
+    
+    /**
+     * @param maxMessageSize largest reassembled message accepted
+     * @param expectMasked   true on the server side, where RFC 6455 requires
+     *                       every client frame to be masked
+     */
+    public WebSocketCodec(int maxMessageSize, boolean expectMasked) {
+        this.maxMessageSize = maxMessageSize;
+        this.expectMasked = expectMasked;
+    }
+    
+    /**
+     * Reads frames until a complete message or a control frame is available
+     * and returns its opcode (TEXT, BINARY, CLOSE, PING or PONG), or -1 at
+     * end of stream. The payload stays valid until the next call.
+     */
+    public int readMessage(InputStream in) throws IOException {
+        while (true) {
+            int first = in.read();
+            if (first < 0) return -1;
+            int second = readByte(in);
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            if ((first & 0x70) != 0) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Reserved bits set without an extension");
+            }
+            boolean masked = (second & 0x80) != 0;
+            if (masked != expectMasked) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, masked ? "Unexpected masked frame" : "Client frames must be masked");
+            }
+            long length = second & 0x7F;
+            if (length == 126) {
+                readFully(in, lengthBytes, 0, 2);
+                length = ((lengthBytes[0] & 0xFF) << 8) | (lengthBytes[1] & 0xFF);
+            } else if (length == 127) {
+                readFully(in, lengthBytes, 0, 8);
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | (lengthBytes[i] & 0xFF);
+                }
+                if (length < 0) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Negative payload length");
+                }
+            }
+            if (masked) {
+                readFully(in, mask, 0, 4);
+            }
+            
+            if (opcode >= OP_CLOSE) {
+                if (opcode > OP_PONG) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+                }
+                if (!fin || length > MAX_CONTROL_PAYLOAD) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Control frames must be final and at most 125 bytes");
+                }
+                readPayload(in, control, 0, (int) length, masked);
+                payload = control;
+                payloadLength = (int) length;
+                return opcode;
+            }
+            
+            if (opcode == OP_CONTINUATION) {
+                if (messageOpcode < 0) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Continuation without a message to continue");
+                }
+            } else if (opcode == OP_TEXT || opcode == OP_BINARY) {
+                if (messageOpcode >= 0) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "New message before the previous one finished");
+                }
+                messageOpcode = opcode;
+                messageLength = 0;
+            } else {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (messageLength + length > maxMessageSize) {
+                throw new ProtocolException(CLOSE_TOO_BIG, "Message exceeds " + maxMessageSize + " bytes");
+            }
+            int end = messageLength + (int) length;
+            if (end > message.length) {
+                message = Arrays.copyOf(message, Math.min(maxMessageSize, Math.max(end, message.length * 2)));
+            }
+            readPayload(in, message, messageLength, (int) length, masked);
+            messageLength = end;
+            if (fin) {
+                int completed = messageOpcode;
+                messageOpcode = -1;
+                payload = message;
+                payloadLength = messageLength;
+                return completed;
+            }
+        }
+    }
+    
+    public byte[] payload() {
+        return payload;
+    }
+    
+    public int payloadLength() {
+        return payloadLength;
+    }
+    
+    /**
+     * Decodes the current payload as UTF-8, rejecting invalid sequences as
+     * RFC 6455 requires for text messages.
+     */
+    public String payloadText() throws ProtocolException {
+        return decodeText(payload, 0, payloadLength);
+    }
+    
+    /**
+     * Status code of the current close frame, or 1005 (no status) if the
+     * peer sent none.
+     */
+    public int closeCode() {
+        return payloadLength >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1005;
+    }
+    
+    /**
+     * Writes one unfragmented frame. Server frames are sent unmasked; a
+     * client-side codec masks them with a fresh key as the RFC requires.
+     * The payload bytes are left untouched. Callers serialize writes.
+     */
+    public void writeFrame(OutputStream out, int opcode, byte[] data, int offset, int length) throws IOException {
+        boolean masked = !expectMasked;
+        int headerLength = writeHeader(header, opcode, length, masked);
+        if (!masked) {
+            out.write(header, 0, headerLength);
+            out.write(data, offset, length);
+            return;
+        }
+        int key = ThreadLocalRandom.current().nextInt();
+        for (int i = 0; i < 4; i++) {
+            header[headerLength + i] = (byte) (key >>> (24 - 8 * i));
+        }
+        out.write(header, 0, headerLength + 4);
+        if (maskScratch.length < length) {
+            maskScratch = new byte[Math.max(length, 1024)];
+        }
+        for (int i = 0; i < length; i++) {
+            maskScratch[i] = (byte) (data[offset + i] ^ header[headerLength + (i & 3)]);
+        }
+        out.write(maskScratch, 0, length);
+    }
+    
+    public void writeClose(OutputStream out, int code, String reason) throws IOException {
+        byte[] body = closeBody(code, reason);
+        writeFrame(out, OP_CLOSE, body, 0, body.length);
+    }
+    
+    /**
+     * Encodes a complete unmasked text frame once, so the same bytes can be
+     * written to every recipient of a broadcast.
+     */
+    public static byte[] encodeTextFrame(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        return encodeFrame(OP_TEXT, data, 0, data.length);
+    }
+    
+    /**
+     * Encodes a complete unmasked frame, copying the payload, for servers
+     * that queue frames instead of writing them directly.
+     */
+    public static byte[] encodeFrame(int opcode, byte[] data, int offset, int length) {
+        byte[] frameHeader = new byte[MAX_HEADER_SIZE];
+        int headerLength = writeHeader(frameHeader, opcode, length, false);
+        byte[] frame = Arrays.copyOf(frameHeader, headerLength + length);
+        System.arraycopy(data, offset, frame, headerLength, length);
+        return frame;
+    }
+    
+    public static byte[] encodeClose(int code, String reason) {
+        byte[] body = closeBody(code, reason);
+        return encodeFrame(OP_CLOSE, body, 0, body.length);
+    }
+    
+    private static byte[] closeBody(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, MAX_CONTROL_PAYLOAD - 2);
+        byte[] body = new byte[2 + length];
+        body[0] = (byte) (code >>> 8);
+        body[1] = (byte) code;
+        System.arraycopy(text, 0, body, 2, length);
+        return body;
+    }
+    
+    private static int writeHeader(byte[] target, int opcode, int length, boolean masked) {
+        target[0] = (byte) (0x80 | opcode);
+        int maskBit = masked ? 0x80 : 0;
+        if (length < 126) {
+            target[1] = (byte) (maskBit | length);
+            return 2;
+        }
+        if (length <= 0xFFFF) {
+            target[1] = (byte) (maskBit | 126);
+            target[2] = (byte) (length >>> 8);
+            target[3] = (byte) length;
+            return 4;
+        }
+        target[1] = (byte) (maskBit | 127);
+        long wide = length;
+        for (int i = 0; i < 8; i++) {
+            target[2 + i] = (byte) (wide >>> (56 - 8 * i));
+        }
+        return 10;
+    }
+    
+    private String decodeText(byte[] data, int offset, int length) throws ProtocolException {
+        try {
+            CharBuffer chars = utf8.reset().decode(ByteBuffer.wrap(data, offset, length));
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            throw new ProtocolException(CLOSE_INVALID_DATA, "Text message is not valid UTF-8");
+        }
+    }
+    
+    private void readPayload(InputStream in, byte[] target, int offset, int length, boolean masked) throws IOException {
+        readFully(in, target, offset, length);
+        if (masked) {
+            for (int i = 0; i < length; i++) {
+                target[offset + i] ^= mask[i & 3];
+            }
+        }
+    }
+    
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException("Connection closed mid-frame");
+        return b;
+    }
+    
+    private static void readFully(InputStream in, byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(target, offset, length);
+            if (read < 0) throw new EOFException("Connection closed mid-frame");
+            offset += read;
+            length -= read;
+        }
+    }
+    
+    /**
+     * A frame that breaks RFC 6455; the connection must be closed with
+     * {@link #getCloseCode()}.
+     */
+    public static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        private final int closeCode;
+        
+        public ProtocolException(int closeCode, String message) {
+            super(message);
+            this.closeCode = closeCode;
+        }
+        
+        public int getCloseCode() {
+            return closeCode;
+        }
+    }
+}
\ No newline at end of file